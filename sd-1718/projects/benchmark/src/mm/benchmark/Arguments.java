@@ -0,0 +1,508 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/* -------------------------------------------------------------------------- */
+
+public class Arguments
+{
+    private static final ArgumentParser PARSER;
+
+    static
+    {
+        PARSER =
+            ArgumentParsers
+            .newFor("benchmark")
+            .build()
+            .defaultHelp(true)
+            .description("Runs micro-benchmarks of server components.");
+
+        PARSER
+            .addArgument("benchmark")
+            .choices("queue", "matchmaker", "team-balancing", "simulation")
+            .help(
+                "Benchmark to run: \"queue\" compares the throughput of"
+                + " BlockingQueue and MpscQueue with several producer threads"
+                + " pushing into one consumer thread; \"matchmaker\" adds and"
+                + " removes players concurrently from several threads and"
+                + " checks that no player is matched twice; \"team-balancing\""
+                + " measures the time taken to split lobbies of several sizes"
+                + " into balanced teams; \"simulation\" drives the matchmaker,"
+                + " matches and lobbies with a synthetic population on a"
+                + " virtual clock and reports times to match, lobby rank"
+                + " spreads and throughput."
+                );
+
+        PARSER
+            .addArgument("-t")
+            .metavar("threads")
+            .setDefault("1,2,4,8")
+            .help("Comma-separated numbers of threads to run the benchmark with.");
+
+        PARSER
+            .addArgument("-n")
+            .metavar("iterations")
+            .type(Integer.class)
+            .setDefault(1_000_000)
+            .help(
+                "Number of iterations performed by each thread in each round,"
+                + " or of players arriving in the simulation."
+                );
+
+        PARSER
+            .addArgument("-r")
+            .metavar("rounds")
+            .type(Integer.class)
+            .setDefault(5)
+            .help(
+                "Number of measured rounds, each preceded by one warm-up"
+                + " round."
+                );
+
+        // simulation
+
+        PARSER
+            .addArgument("-k")
+            .metavar("matchmaker")
+            .choices("buckets", "rating", "batch")
+            .setDefault("buckets")
+            .help(
+                "For the simulation, the matchmaker to simulate, as in the"
+                + " server."
+                );
+
+        PARSER
+            .addArgument("-w")
+            .metavar("initial-growth")
+            .setDefault("0.5-0.1")
+            .help(
+                "For the simulation with the \"rating\" and \"batch\""
+                + " matchmakers, the largest rank difference accepted by"
+                + " players that just joined matchmaking, and how much it grows"
+                + " per second of waiting."
+                );
+
+        PARSER
+            .addArgument("-i")
+            .metavar("matchmaking_interval")
+            .type(Double.class)
+            .setDefault(0.25)
+            .help(
+                "For the simulation with the \"rating\" and \"batch\""
+                + " matchmakers, the interval (in seconds) between attempts to"
+                + " form lobbies that did not form when players joined"
+                + " matchmaking."
+                );
+
+        PARSER
+            .addArgument("-m")
+            .metavar("time_to_accept_match")
+            .type(Double.class)
+            .setDefault(10.)
+            .help(
+                "For the simulation, the amount of time players have to accept"
+                + " a found match, in seconds."
+                );
+
+        PARSER
+            .addArgument("-s")
+            .metavar("time_to_select_hero")
+            .type(Double.class)
+            .setDefault(30.)
+            .help(
+                "For the simulation, the amount of time players have to select"
+                + " a hero, in seconds."
+                );
+
+        PARSER
+            .addArgument("-a")
+            .metavar("arrival_rate")
+            .type(Double.class)
+            .setDefault(100.)
+            .help(
+                "For the simulation, the mean number of players joining"
+                + " matchmaking per second, which arrive as a Poisson process."
+                );
+
+        PARSER
+            .addArgument("-d")
+            .metavar("mean-deviation")
+            .setDefault("4.5-2")
+            .help(
+                "For the simulation, the mean and standard deviation of the"
+                + " normal distribution of player ranks, which are clipped to"
+                + " the valid range."
+                );
+
+        PARSER
+            .addArgument("-p")
+            .metavar("accept_probability")
+            .type(Double.class)
+            .setDefault(0.95)
+            .help(
+                "For the simulation, the probability that a player accepts a"
+                + " found match instead of declining it, which cancels the"
+                + " match for everyone else."
+                );
+
+        PARSER
+            .addArgument("-c")
+            .metavar("response_delay")
+            .type(Double.class)
+            .setDefault(2.)
+            .help(
+                "For the simulation, the mean time players take to accept or"
+                + " decline a found match, in seconds, which is exponentially"
+                + " distributed."
+                );
+
+        PARSER
+            .addArgument("-e")
+            .metavar("hero_selection_delay")
+            .type(Double.class)
+            .setDefault(8.)
+            .help(
+                "For the simulation, the mean time players take to select a"
+                + " hero, in seconds, which is exponentially distributed."
+                );
+
+        PARSER
+            .addArgument("--seed")
+            .type(Long.class)
+            .setDefault(42L)
+            .help(
+                "For the simulation, the seed of all random choices, which"
+                + " together with the other arguments determines the outcome."
+                );
+    }
+
+    private static double[] parsePair(
+        String pair, String description, String format
+        )
+    {
+        String[] parts = pair.split("-", -1);
+
+        if (parts.length != 2)
+        {
+            throw new IllegalArgumentException(
+                description + " must be in the format " + format + "."
+                );
+        }
+
+        return new double[] {
+            Double.parseDouble(parts[0]),
+            Double.parseDouble(parts[1])
+            };
+    }
+
+    private static List< Integer > parseNumThreads(String numThreads)
+    {
+        return
+            Arrays
+            .stream(numThreads.split(",", -1))
+            .map(String::trim)
+            .map(Integer::valueOf)
+            .collect(Collectors.toList());
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    public static Arguments parse(String[] args)
+    {
+        try
+        {
+            Namespace ns = PARSER.parseArgs(args);
+
+            double[] window = parsePair(
+                ns.getString("w"), "Matchmaking window", "initial-growth"
+                );
+
+            double[] rankDistribution = parsePair(
+                ns.getString("d"), "Rank distribution", "mean-deviation"
+                );
+
+            return new Arguments(
+                ns.getString("benchmark"),
+                parseNumThreads(ns.getString("t")),
+                ns.getInt("n"),
+                ns.getInt("r"),
+                ns.getString("k"),
+                window[0], window[1],
+                ns.getDouble("i"),
+                ns.getDouble("m"),
+                ns.getDouble("s"),
+                ns.getDouble("a"),
+                rankDistribution[0], rankDistribution[1],
+                ns.getDouble("p"),
+                ns.getDouble("c"),
+                ns.getDouble("e"),
+                ns.getLong("seed")
+                );
+        }
+        catch (ArgumentParserException e)
+        {
+            PARSER.handleError(e);
+            System.exit(1);
+        }
+        catch (Throwable t)
+        {
+            System.err.println(t.getMessage());
+            System.exit(1);
+        }
+
+        // should never be reached
+        return null;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final String benchmark;
+
+    private final List< Integer > numThreads;
+
+    private final int numIterations;
+    private final int numRounds;
+
+    // simulation
+
+    private final String matchmaker;
+
+    private final double initialMatchmakingWindow;
+    private final double matchmakingWindowGrowth;
+
+    private final double matchmakingInterval;
+
+    private final double timeToAcceptMatch;
+    private final double timeToSelectHero;
+
+    private final double arrivalRate;
+
+    private final double meanRank;
+    private final double rankDeviation;
+
+    private final double acceptProbability;
+
+    private final double meanResponseDelay;
+    private final double meanHeroSelectionDelay;
+
+    private final long seed;
+
+    /* ---------------------------------------------------------------------- */
+
+    public Arguments(
+        String benchmark,
+        List< Integer > numThreads,
+        int numIterations,
+        int numRounds,
+        String matchmaker,
+        double initialMatchmakingWindow, double matchmakingWindowGrowth,
+        double matchmakingInterval,
+        double timeToAcceptMatch, double timeToSelectHero,
+        double arrivalRate,
+        double meanRank, double rankDeviation,
+        double acceptProbability,
+        double meanResponseDelay, double meanHeroSelectionDelay,
+        long seed
+        )
+    {
+        if (numThreads.isEmpty() || numThreads.stream().anyMatch(n -> n < 1))
+        {
+            throw new IllegalArgumentException(
+                "Numbers of threads must be positive."
+                );
+        }
+
+        if (numIterations < 1)
+        {
+            throw new IllegalArgumentException(
+                "Number of iterations must be positive."
+                );
+        }
+
+        if (numRounds < 1)
+        {
+            throw new IllegalArgumentException(
+                "Number of rounds must be positive."
+                );
+        }
+
+        this.benchmark = Objects.requireNonNull(benchmark);
+
+        this.numThreads = numThreads;
+
+        this.numIterations = numIterations;
+        this.numRounds     = numRounds;
+
+        // simulation
+
+        if (!(matchmakingInterval > 0))
+        {
+            throw new IllegalArgumentException(
+                "Matchmaking interval must be positive."
+                );
+        }
+
+        if (!(timeToAcceptMatch > 0) || !(timeToSelectHero > 0))
+        {
+            throw new IllegalArgumentException(
+                "Times to accept matches and select heroes must be positive."
+                );
+        }
+
+        if (!(arrivalRate > 0) || Double.isInfinite(arrivalRate))
+        {
+            throw new IllegalArgumentException(
+                "Arrival rate must be positive and finite."
+                );
+        }
+
+        if (!(rankDeviation >= 0))
+        {
+            throw new IllegalArgumentException(
+                "Rank deviation must be non-negative."
+                );
+        }
+
+        if (!(acceptProbability >= 0 && acceptProbability <= 1))
+        {
+            throw new IllegalArgumentException(
+                "Accept probability must be between 0 and 1."
+                );
+        }
+
+        if (!(meanResponseDelay >= 0) || !(meanHeroSelectionDelay >= 0))
+        {
+            throw new IllegalArgumentException(
+                "Mean delays must be non-negative."
+                );
+        }
+
+        this.matchmaker = Objects.requireNonNull(matchmaker);
+
+        this.initialMatchmakingWindow = initialMatchmakingWindow;
+        this.matchmakingWindowGrowth  = matchmakingWindowGrowth;
+
+        this.matchmakingInterval = matchmakingInterval;
+
+        this.timeToAcceptMatch = timeToAcceptMatch;
+        this.timeToSelectHero  = timeToSelectHero;
+
+        this.arrivalRate = arrivalRate;
+
+        this.meanRank      = meanRank;
+        this.rankDeviation = rankDeviation;
+
+        this.acceptProbability = acceptProbability;
+
+        this.meanResponseDelay      = meanResponseDelay;
+        this.meanHeroSelectionDelay = meanHeroSelectionDelay;
+
+        this.seed = seed;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    public String getBenchmark()
+    {
+        return benchmark;
+    }
+
+    public List< Integer > getNumThreads()
+    {
+        return numThreads;
+    }
+
+    public int getNumIterations()
+    {
+        return numIterations;
+    }
+
+    public int getNumRounds()
+    {
+        return numRounds;
+    }
+
+    // "buckets", "rating" or "batch"
+    public String getMatchmaker()
+    {
+        return matchmaker;
+    }
+
+    public double getInitialMatchmakingWindow()
+    {
+        return initialMatchmakingWindow;
+    }
+
+    public double getMatchmakingWindowGrowth()
+    {
+        return matchmakingWindowGrowth;
+    }
+
+    // in seconds
+    public double getMatchmakingInterval()
+    {
+        return matchmakingInterval;
+    }
+
+    // in seconds
+    public double getTimeToAcceptMatch()
+    {
+        return timeToAcceptMatch;
+    }
+
+    // in seconds
+    public double getTimeToSelectHero()
+    {
+        return timeToSelectHero;
+    }
+
+    // in players per second
+    public double getArrivalRate()
+    {
+        return arrivalRate;
+    }
+
+    public double getMeanRank()
+    {
+        return meanRank;
+    }
+
+    public double getRankDeviation()
+    {
+        return rankDeviation;
+    }
+
+    public double getAcceptProbability()
+    {
+        return acceptProbability;
+    }
+
+    // in seconds
+    public double getMeanResponseDelay()
+    {
+        return meanResponseDelay;
+    }
+
+    // in seconds
+    public double getMeanHeroSelectionDelay()
+    {
+        return meanHeroSelectionDelay;
+    }
+
+    public long getSeed()
+    {
+        return seed;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
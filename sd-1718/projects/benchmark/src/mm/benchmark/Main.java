@@ -0,0 +1,43 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.benchmark;
+
+/* -------------------------------------------------------------------------- */
+
+public class Main
+{
+    public static void main(String[] args) throws InterruptedException
+    {
+        // parse arguments
+
+        Arguments arguments = Arguments.parse(args);
+
+        // run benchmark
+
+        switch (arguments.getBenchmark())
+        {
+            case "queue":
+                QueueBenchmark.run(arguments);
+                break;
+
+            case "matchmaker":
+                MatchmakerBenchmark.run(arguments);
+                break;
+
+            case "team-balancing":
+                TeamBalancingBenchmark.run(arguments);
+                break;
+
+            case "simulation":
+                MatchmakingSimulation.run(arguments);
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown benchmark: " + arguments.getBenchmark()
+                    );
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,289 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import mm.common.Config;
+import mm.server.game.Matchmaker;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Stresses a single {@link Matchmaker} with several threads concurrently
+ * adding and removing players of random ranks, and checks the outcome.
+ * <p>
+ * After each round, every player must have ended up in exactly one of: one
+ * lobby, removed from matchmaking, or still waiting in matchmaking. Every
+ * lobby must have {@link Config#LOBBY_SIZE} distinct players whose ranks
+ * differ by at most one. Any violation aborts the benchmark.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class MatchmakerBenchmark
+{
+    // one in this many additions is followed by a removal attempt
+    private static final int REMOVAL_PERIOD = 4;
+
+    /* ---------------------------------------------------------------------- */
+
+    // What a single thread did during a round. Thread t adds the players
+    // with session ids t * numAdditions through (t + 1) * numAdditions - 1.
+    private static final class Outcome
+    {
+        final int firstSessionId;
+
+        final int[] ranks;
+
+        final List< int[] > lobbies = new ArrayList<>();
+
+        final boolean[] removed;
+
+        Outcome(int firstSessionId, int numAdditions)
+        {
+            this.firstSessionId = firstSessionId;
+            this.ranks          = new int[numAdditions];
+            this.removed        = new boolean[numAdditions];
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private static Outcome runThread(
+        Matchmaker matchmaker, int threadIndex, int numAdditions
+        )
+    {
+        Outcome outcome =
+            new Outcome(threadIndex * numAdditions, numAdditions);
+
+        Random random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < numAdditions; ++i)
+        {
+            int rank =
+                Config.MIN_RANK
+                + random.nextInt(Config.MAX_RANK - Config.MIN_RANK + 1);
+
+            outcome.ranks[i] = rank;
+
+            int[] lobby =
+                matchmaker.addPlayer(outcome.firstSessionId + i, rank);
+
+            if (lobby != null)
+                outcome.lobbies.add(lobby);
+
+            // occasionally remove the previously added player, which may
+            // concurrently be put in a lobby by another thread
+
+            if (i % REMOVAL_PERIOD == 0 && i > 0)
+            {
+                try
+                {
+                    matchmaker.removePlayer(
+                        outcome.firstSessionId + i - 1, outcome.ranks[i - 1]
+                        );
+
+                    outcome.removed[i - 1] = true;
+                }
+                catch (IllegalStateException e)
+                {
+                    // already in a lobby
+                }
+            }
+        }
+
+        return outcome;
+    }
+
+    private static void check(Matchmaker matchmaker, List< Outcome > outcomes)
+    {
+        int numPlayers = 0;
+
+        for (Outcome outcome : outcomes)
+            numPlayers += outcome.ranks.length;
+
+        int[] ranks = new int[numPlayers];
+        boolean[] removed = new boolean[numPlayers];
+        boolean[] matched = new boolean[numPlayers];
+
+        int numRemoved = 0;
+        int numMatched = 0;
+
+        for (Outcome outcome : outcomes)
+        {
+            for (int i = 0; i < outcome.ranks.length; ++i)
+            {
+                ranks[outcome.firstSessionId + i]   = outcome.ranks[i];
+                removed[outcome.firstSessionId + i] = outcome.removed[i];
+
+                if (outcome.removed[i])
+                    ++numRemoved;
+            }
+        }
+
+        for (Outcome outcome : outcomes)
+        {
+            for (int[] lobby : outcome.lobbies)
+            {
+                if (lobby.length != Config.LOBBY_SIZE)
+                {
+                    fail(
+                        "lobby has %d players: %s",
+                        lobby.length, Arrays.toString(lobby)
+                        );
+                }
+
+                int minRank = Integer.MAX_VALUE;
+                int maxRank = Integer.MIN_VALUE;
+
+                for (int id : lobby)
+                {
+                    if (matched[id])
+                        fail("player %d is in more than one lobby", id);
+
+                    if (removed[id])
+                        fail("removed player %d is in a lobby", id);
+
+                    matched[id] = true;
+                    ++numMatched;
+
+                    minRank = Math.min(minRank, ranks[id]);
+                    maxRank = Math.max(maxRank, ranks[id]);
+                }
+
+                if (maxRank - minRank > 1)
+                    fail("lobby has ranks %d to %d", minRank, maxRank);
+            }
+        }
+
+        int waiting = numPlayers - numMatched - numRemoved;
+
+        if (waiting != matchmaker.getPlayerCount())
+        {
+            fail(
+                "%d players should be waiting, matchmaker reports %d",
+                waiting, matchmaker.getPlayerCount()
+                );
+        }
+    }
+
+    private static void fail(String format, Object... args)
+    {
+        throw new IllegalStateException(
+            "Matchmaker check failed: " + String.format(format, args)
+            );
+    }
+
+    // Returns the duration of the round, in nanoseconds.
+    private static long runRound(int numThreads, int numAdditionsPerThread)
+        throws InterruptedException
+    {
+        Matchmaker matchmaker = new Matchmaker();
+
+        CountDownLatch start = new CountDownLatch(1);
+
+        List< Outcome > outcomes = new ArrayList<>();
+        List< Thread > threads = new ArrayList<>(numThreads);
+
+        for (int i = 0; i < numThreads; ++i)
+        {
+            int threadIndex = i;
+
+            outcomes.add(null);
+
+            threads.add(new Thread(() -> {
+
+                try
+                {
+                    start.await();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                Outcome outcome = runThread(
+                    matchmaker, threadIndex, numAdditionsPerThread
+                    );
+
+                synchronized (outcomes)
+                {
+                    outcomes.set(threadIndex, outcome);
+                }
+
+            }));
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+
+        long startTime = System.nanoTime();
+
+        start.countDown();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        long endTime = System.nanoTime();
+
+        synchronized (outcomes)
+        {
+            check(matchmaker, outcomes);
+        }
+
+        return endTime - startTime;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private MatchmakerBenchmark()
+    {
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Runs the benchmark with the specified arguments, printing the median
+     * throughput of additions for each number of threads.
+     *
+     * @param arguments the benchmark's arguments
+     *
+     * @throws InterruptedException if interrupted while waiting for threads
+     * @throws IllegalStateException if the matchmaker misbehaves
+     */
+    public static void run(Arguments arguments) throws InterruptedException
+    {
+        for (int numThreads : arguments.getNumThreads())
+        {
+            long[] times = new long[arguments.getNumRounds()];
+
+            for (int i = 0; i < times.length; ++i)
+            {
+                // warm up
+
+                runRound(numThreads, arguments.getNumIterations());
+
+                // measure
+
+                times[i] = runRound(numThreads, arguments.getNumIterations());
+            }
+
+            Arrays.sort(times);
+
+            long total = (long)numThreads * arguments.getNumIterations();
+
+            System.out.println(String.format(
+                "Matchmaker %3d threads: %8.2f M additions/s, no violations",
+                numThreads, total * 1e3 / times[times.length / 2]
+                ));
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,671 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import mm.common.Config;
+import mm.common.data.ConcreteHero;
+import mm.common.data.Team;
+import mm.common.util.ManualScheduler;
+import mm.common.util.Scheduler;
+import mm.server.game.BatchMatchmaker;
+import mm.server.game.Lobby;
+import mm.server.game.MatchFound;
+import mm.server.game.Matchmaker;
+import mm.server.game.MatchmakingQueue;
+import mm.server.game.RatingMatchmaker;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Simulates matchmaking offline, driving a {@link MatchmakingQueue},
+ * {@link MatchFound} and {@link Lobby} with a synthetic population of players
+ * on a virtual clock, so that matchmaking policies may be compared before
+ * they are deployed.
+ * <p>
+ * Players arrive as a Poisson process with normally distributed ranks and
+ * join matchmaking. When a match is found, each player accepts it with a
+ * given probability and otherwise declines it, after an exponentially
+ * distributed delay. Players that decline leave and cancel the match, and
+ * players that do not respond in time leave when the match times out. The
+ * remaining players return to matchmaking as the server does. Once all
+ * players accept, each selects a hero after an exponentially distributed
+ * delay, and the lobby dies if some player does not do so in time. Players
+ * leave after their lobby plays or dies.
+ * <p>
+ * The simulation runs on a single thread without sockets, and its outcome
+ * depends only on the arguments, including the seed. Reports the percentiles
+ * of the time players take to reach a lobby, the spread of ranks within
+ * lobbies, and the throughput of both the simulated server and the
+ * simulation itself.
+ * <p>
+ * For the "rating" and "batch" matchmakers, also checks that a player who
+ * just joined, with a window too narrow for any group that includes it, does
+ * not keep the players ranked on both sides of it, who have waited long
+ * enough to accept each other, from forming a lobby, and fails with an
+ * {@link IllegalStateException} if it does.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class MatchmakingSimulation
+{
+    // how long lobbies keep being polled for after the last arrival, for
+    // matchmakers whose lobbies may form as time passes
+    private static final long DRAIN_MILLIS = 3_600_000;
+
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 1 };
+
+    /* ---------------------------------------------------------------------- */
+
+    private static final class Player
+    {
+        final String username;
+
+        final double rank;
+
+        final long arrivalMillis;
+
+        // in the matchmaker, reused once the player leaves
+        final int sessionId;
+
+        // as in the server, set while the player waits in the matchmaker
+        // after having accepted a match that was canceled
+        boolean acceptedMatch;
+
+        Player(int index, double rank, long arrivalMillis, int sessionId)
+        {
+            this.username      = "player" + index;
+            this.rank          = rank;
+            this.arrivalMillis = arrivalMillis;
+            this.sessionId     = sessionId;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private static MatchmakingQueue newMatchmaker(Arguments arguments)
+    {
+        switch (arguments.getMatchmaker())
+        {
+        case "rating":
+            return new RatingMatchmaker(
+                arguments.getInitialMatchmakingWindow(),
+                arguments.getMatchmakingWindowGrowth()
+                );
+
+        case "batch":
+            return new BatchMatchmaker(
+                arguments.getInitialMatchmakingWindow(),
+                arguments.getMatchmakingWindowGrowth()
+                );
+
+        default:
+            return new Matchmaker();
+        }
+    }
+
+    // Sets up the case of a player who just joined between two groups of
+    // players that have waited long enough to accept each other, and returns
+    // the number of lobbies formed when polling right away, or -1 if the
+    // matchmaker's windows do not allow the case to be set up.
+    private static int runStraddlingNewcomer(Arguments arguments)
+    {
+        double initialWindow = arguments.getInitialMatchmakingWindow();
+        double windowGrowth  = arguments.getMatchmakingWindowGrowth();
+
+        // the waiting players are split between two ranks twice the initial
+        // window apart, and wait until their windows are three times as wide
+
+        double lowRank  = Config.MIN_RANK;
+        double highRank = lowRank + 2 * initialWindow;
+
+        if (initialWindow <= 0 || windowGrowth <= 0
+            || highRank > Config.MAX_RANK)
+        {
+            return -1;
+        }
+
+        long nowMillis = (long)Math.ceil(2000 * initialWindow / windowGrowth);
+
+        MatchmakingQueue matchmaker = newMatchmaker(arguments);
+
+        int numLobbies = 0;
+
+        for (int i = 0; i < Config.LOBBY_SIZE; ++i)
+        {
+            double rank = (i < Config.LOBBY_SIZE / 2) ? lowRank : highRank;
+
+            if (matchmaker.addPlayer(i, rank, 0) != null)
+                ++numLobbies;
+        }
+
+        if (matchmaker.addPlayer(
+            Config.LOBBY_SIZE, (lowRank + highRank) / 2, nowMillis
+            ) != null)
+        {
+            ++numLobbies;
+        }
+
+        return numLobbies + matchmaker.pollLobbies(nowMillis).size();
+    }
+
+    private static long toMillis(double seconds)
+    {
+        return (long)(seconds * 1000.);
+    }
+
+    private static String formatPercentiles(long[] values, int count)
+    {
+        Arrays.sort(values, 0, count);
+
+        StringBuilder sb = new StringBuilder();
+
+        for (double p : PERCENTILES)
+        {
+            int i = Math.max((int)Math.ceil(p * count) - 1, 0);
+
+            sb.append(String.format(
+                " %s %8.2f",
+                (p == 1) ? "max" : String.format("p%.0f", 100 * p),
+                (count == 0) ? 0. : values[i] / 1000.
+                ));
+        }
+
+        return sb.toString();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final Arguments arguments;
+
+    private final Random random;
+
+    private final MatchmakingQueue matchmaker;
+
+    // the virtual clock, on which all events and timeouts are scheduled
+    private final ManualScheduler scheduler;
+
+    // null for matchmakers that only form lobbies when players are added
+    private Scheduler.Timeout pollTimeout;
+
+    // indexed by session id
+    private final List< Player > sessions;
+
+    // session ids below sessions.size() that are not in use, as a stack
+    private int[] freeSessionIds;
+    private int numFreeSessionIds;
+
+    private int numArrived;
+    private long lastArrivalMillis;
+
+    // results
+
+    private final long[] timesToLobbyMillis;
+    private int numInLobbies;
+
+    // in thousandths of a rank
+    private final long[] lobbyRankSpreads;
+    private int numLobbies;
+
+    private int numMatchesFound;
+    private int numMatchesCanceled;
+    private int numDeclined;
+    private int numFailedToAccept;
+    private int numLobbiesPlayed;
+    private int numLobbiesDied;
+
+    /* ---------------------------------------------------------------------- */
+
+    private MatchmakingSimulation(Arguments arguments)
+    {
+        this.arguments = arguments;
+
+        this.random = new Random(arguments.getSeed());
+
+        this.matchmaker = newMatchmaker(arguments);
+
+        this.scheduler   = new ManualScheduler();
+        this.pollTimeout = null;
+
+        this.sessions          = new ArrayList<>();
+        this.freeSessionIds    = new int[64];
+        this.numFreeSessionIds = 0;
+
+        this.numArrived        = 0;
+        this.lastArrivalMillis = 0;
+
+        int numPlayers = arguments.getNumIterations();
+
+        this.timesToLobbyMillis = new long[numPlayers];
+        this.lobbyRankSpreads   = new long[numPlayers / Config.LOBBY_SIZE];
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private long nowMillis()
+    {
+        return scheduler.nowMillis();
+    }
+
+    private void schedule(long delayMillis, Runnable action)
+    {
+        scheduler.schedule(action, delayMillis);
+    }
+
+    private long nextExponentialMillis(double meanSeconds)
+    {
+        return toMillis(-meanSeconds * Math.log(1 - random.nextDouble()));
+    }
+
+    private void run()
+    {
+        schedule(
+            nextExponentialMillis(1 / arguments.getArrivalRate()),
+            this::onArrival
+            );
+
+        if (!arguments.getMatchmaker().equals("buckets"))
+        {
+            long intervalMillis = toMillis(arguments.getMatchmakingInterval());
+
+            pollTimeout = scheduler.scheduleAtFixedRate(
+                this::onPoll, intervalMillis, intervalMillis
+                );
+        }
+
+        while (scheduler.runNext())
+        {
+        }
+
+        scheduler.stop();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private void onArrival()
+    {
+        double rank = Math.max(
+            Config.MIN_RANK,
+            Math.min(
+                Config.MAX_RANK,
+                arguments.getMeanRank()
+                    + arguments.getRankDeviation() * random.nextGaussian()
+                )
+            );
+
+        int sessionId =
+            (numFreeSessionIds > 0)
+            ? freeSessionIds[--numFreeSessionIds]
+            : sessions.size();
+
+        Player player = new Player(numArrived++, rank, nowMillis(), sessionId);
+
+        lastArrivalMillis = nowMillis();
+
+        if (sessionId == sessions.size())
+            sessions.add(player);
+        else
+            sessions.set(sessionId, player);
+
+        if (numArrived < arguments.getNumIterations())
+        {
+            schedule(
+                nextExponentialMillis(1 / arguments.getArrivalRate()),
+                this::onArrival
+                );
+        }
+
+        int[] lobby = matchmaker.addPlayer(sessionId, rank, nowMillis());
+
+        if (lobby != null)
+            startMatch(lobby);
+    }
+
+    private void onPoll()
+    {
+        for (int[] lobby : matchmaker.pollLobbies(nowMillis()))
+            startMatch(lobby);
+
+        // keep polling while anything else may happen, or while lobbies may
+        // still form as windows widen (this task is already rescheduled)
+
+        boolean morePlayers =
+            numArrived < arguments.getNumIterations()
+            || scheduler.getNumPendingTasks() > 1;
+
+        boolean mayDrain =
+            matchmaker.getPlayerCount() >= Config.LOBBY_SIZE
+            && nowMillis() < lastArrivalMillis + DRAIN_MILLIS;
+
+        if (!morePlayers && !mayDrain)
+            pollTimeout.cancel();
+    }
+
+    private void leave(Player player)
+    {
+        sessions.set(player.sessionId, null);
+
+        if (numFreeSessionIds == freeSessionIds.length)
+        {
+            freeSessionIds =
+                Arrays.copyOf(freeSessionIds, 2 * freeSessionIds.length);
+        }
+
+        freeSessionIds[numFreeSessionIds++] = player.sessionId;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private void startMatch(int[] lobbySessionIds)
+    {
+        ++numMatchesFound;
+
+        Player[] players = new Player[lobbySessionIds.length];
+        Set< String > usernames = new HashSet<>(2 * lobbySessionIds.length);
+
+        for (int i = 0; i < players.length; ++i)
+        {
+            players[i] = sessions.get(lobbySessionIds[i]);
+            usernames.add(players[i].username);
+        }
+
+        MatchFound matchFound = new MatchFound(
+            usernames,
+            arguments.getTimeToAcceptMatch(),
+            scheduler,
+            m -> onFailedToAcceptMatch(players, m)
+            );
+
+        for (Player p : players)
+        {
+            if (p.acceptedMatch)
+            {
+                // keeps its acceptance of a canceled match
+
+                matchFound.acceptMatch(p.username);
+                p.acceptedMatch = false;
+            }
+            else
+            {
+                boolean accepts =
+                    random.nextDouble() < arguments.getAcceptProbability();
+
+                schedule(
+                    nextExponentialMillis(arguments.getMeanResponseDelay()),
+                    () -> onResponse(players, matchFound, p, accepts)
+                    );
+            }
+        }
+
+        matchFound.startTimer();
+    }
+
+    private void onResponse(
+        Player[] players, MatchFound matchFound, Player player, boolean accepts
+        )
+    {
+        if (matchFound.timerWasCanceled())
+            return;
+
+        if (accepts)
+        {
+            if (matchFound.acceptMatch(player.username))
+            {
+                matchFound.cancelTimer();
+                startLobby(players);
+            }
+        }
+        else
+        {
+            // the player leaves matchmaking, canceling the match
+
+            matchFound.cancelTimer();
+
+            ++numDeclined;
+            leave(player);
+
+            returnToMatchmaking(players, matchFound);
+        }
+    }
+
+    private void onFailedToAcceptMatch(Player[] players, MatchFound matchFound)
+    {
+        if (matchFound.timerWasCanceled())
+            return;
+
+        matchFound.cancelTimer();
+
+        for (Player p : players)
+        {
+            if (!matchFound.playerAcceptedMatch(p.username))
+            {
+                ++numFailedToAccept;
+                leave(p);
+            }
+        }
+
+        returnToMatchmaking(players, matchFound);
+    }
+
+    // Returns the players of the match that did not leave to matchmaking, as
+    // the server does.
+    private void returnToMatchmaking(Player[] players, MatchFound matchFound)
+    {
+        ++numMatchesCanceled;
+
+        boolean keepAcceptance = matchmaker.supportsReservedLobbies();
+
+        List< int[] > groups = new ArrayList<>();
+        List< Double > ranks = new ArrayList<>();
+
+        for (Player p : players)
+        {
+            if (sessions.get(p.sessionId) != p)
+                continue;
+
+            p.acceptedMatch =
+                keepAcceptance && matchFound.playerAcceptedMatch(p.username);
+
+            groups.add(new int[] { p.sessionId });
+            ranks.add(p.rank);
+        }
+
+        List< int[] > lobbies = matchmaker.addReservedLobby(
+            groups,
+            ranks.stream().mapToDouble(r -> r).toArray(),
+            nowMillis()
+            );
+
+        for (int[] lobby : lobbies)
+            startMatch(lobby);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private void startLobby(Player[] players)
+    {
+        double minRank = Double.POSITIVE_INFINITY;
+        double maxRank = Double.NEGATIVE_INFINITY;
+
+        List< List< Lobby.Player > > groups = new ArrayList<>(players.length);
+
+        for (Player p : players)
+        {
+            timesToLobbyMillis[numInLobbies++] = nowMillis() - p.arrivalMillis;
+
+            minRank = Math.min(minRank, p.rank);
+            maxRank = Math.max(maxRank, p.rank);
+
+            groups.add(Collections.singletonList(
+                new Lobby.Player(p.username, (int)Math.round(p.rank))
+                ));
+        }
+
+        lobbyRankSpreads[numLobbies++] = Math.round(1000 * (maxRank - minRank));
+
+        Lobby lobby = new Lobby(
+            groups,
+            arguments.getTimeToSelectHero(),
+            scheduler,
+            l -> onFailedToSelectHero(players, l)
+            );
+
+        long timeToSelectHeroMillis = toMillis(arguments.getTimeToSelectHero());
+
+        for (Team team : Team.values())
+        {
+            List< String > usernames = lobby.getTeamPlayerUsernames(team);
+
+            for (int i = 0; i < usernames.size(); ++i)
+            {
+                int index = i;
+
+                long delayMillis = nextExponentialMillis(
+                    arguments.getMeanHeroSelectionDelay()
+                    );
+
+                // players that would select a hero too late never do
+
+                if (delayMillis < timeToSelectHeroMillis)
+                {
+                    schedule(
+                        delayMillis,
+                        () -> onHeroSelected(players, lobby, team, index)
+                        );
+                }
+            }
+        }
+
+        lobby.startTimer();
+    }
+
+    private void onHeroSelected(
+        Player[] players, Lobby lobby, Team team, int teamPlayerIndex
+        )
+    {
+        if (lobby.timerWasCanceled())
+            return;
+
+        // pick random heroes until one is not taken
+
+        while (!lobby.trySelectHero(
+            team, teamPlayerIndex,
+            new ConcreteHero(random.nextInt(Config.NUM_HEROES))
+            ))
+        {
+        }
+
+        if (lobby.didEveryPlayerSelectAHero())
+        {
+            lobby.cancelTimer();
+
+            ++numLobbiesPlayed;
+
+            for (Player p : players)
+                leave(p);
+        }
+    }
+
+    private void onFailedToSelectHero(Player[] players, Lobby lobby)
+    {
+        if (lobby.timerWasCanceled())
+            return;
+
+        lobby.cancelTimer();
+
+        ++numLobbiesDied;
+
+        for (Player p : players)
+            leave(p);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private void report(long elapsedNanos)
+    {
+        int numPlayers = arguments.getNumIterations();
+
+        System.out.println(String.format(
+            "Simulated %d players (%s matchmaker) over %.1f s in %.2f s"
+                + " (%.2f M players/s)",
+            numPlayers, arguments.getMatchmaker(), nowMillis() / 1000.,
+            elapsedNanos / 1e9, numPlayers * 1e3 / elapsedNanos
+            ));
+
+        System.out.println(String.format(
+            "Matches found: %d, canceled: %d; lobbies: %d, played: %d,"
+                + " died: %d (%.2f lobbies/s)",
+            numMatchesFound, numMatchesCanceled,
+            numLobbies, numLobbiesPlayed, numLobbiesDied,
+            numLobbies * 1000. / Math.max(nowMillis(), 1)
+            ));
+
+        System.out.println(String.format(
+            "Players in lobbies: %d, declined: %d, failed to accept: %d,"
+                + " still waiting: %d",
+            numInLobbies, numDeclined, numFailedToAccept,
+            matchmaker.getPlayerCount()
+            ));
+
+        System.out.println(
+            "Time to lobby (s):    "
+            + formatPercentiles(timesToLobbyMillis, numInLobbies)
+            );
+
+        System.out.println(
+            "Lobby rank spread:    "
+            + formatPercentiles(lobbyRankSpreads, numLobbies)
+            );
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Runs the simulation with the specified arguments and prints its
+     * results.
+     * <p>
+     * The number of iterations is the number of simulated players. The
+     * numbers of threads and rounds are ignored.
+     *
+     * @param arguments the simulation's arguments
+     */
+    public static void run(Arguments arguments)
+    {
+        MatchmakingSimulation simulation = new MatchmakingSimulation(arguments);
+
+        long startTime = System.nanoTime();
+
+        simulation.run();
+
+        long endTime = System.nanoTime();
+
+        simulation.report(endTime - startTime);
+
+        if (!arguments.getMatchmaker().equals("buckets"))
+        {
+            int numLobbies = runStraddlingNewcomer(arguments);
+
+            if (numLobbies >= 0 && numLobbies != 1)
+            {
+                throw new IllegalStateException(String.format(
+                    "Matchmaker check failed: a straddling newcomer left %d"
+                        + " lobbies formed instead of 1",
+                    numLobbies
+                    ));
+            }
+
+            if (numLobbies == 1)
+                System.out.println("Straddling newcomer:   lobby formed");
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
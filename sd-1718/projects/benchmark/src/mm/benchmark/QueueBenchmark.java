@@ -0,0 +1,230 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import mm.common.util.BlockingQueue;
+import mm.common.util.MpscQueue;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Measures the throughput of the queues that may hold a connection's outbound
+ * messages, with several producer threads pushing into a single consumer
+ * thread that drains the queue with popAll, as SocketTransport does.
+ * <p>
+ * Two times are reported: the time until all producers are done pushing,
+ * which is what senders pay (possibly while holding the server's lock), and
+ * the time until the consumer has popped every item.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class QueueBenchmark
+{
+    // pushed by every producer, so that allocation does not skew the results
+    private static final byte[] MESSAGE = new byte[64];
+
+    /* ---------------------------------------------------------------------- */
+
+    private static interface Queue
+    {
+        void push(byte[] item);
+
+        int popAll(List< byte[] > items);
+
+        void setPopBlocks(boolean popBlocks);
+    }
+
+    private static Queue newBlockingQueue()
+    {
+        BlockingQueue< byte[] > queue = new BlockingQueue<>();
+
+        return new Queue() {
+            @Override
+            public void push(byte[] item)
+            {
+                queue.push(item);
+            }
+
+            @Override
+            public int popAll(List< byte[] > items)
+            {
+                return queue.popAll(items);
+            }
+
+            @Override
+            public void setPopBlocks(boolean popBlocks)
+            {
+                queue.setPopBlocks(popBlocks);
+            }
+        };
+    }
+
+    private static Queue newMpscQueue()
+    {
+        MpscQueue< byte[] > queue = new MpscQueue<>();
+
+        return new Queue() {
+            @Override
+            public void push(byte[] item)
+            {
+                queue.push(item);
+            }
+
+            @Override
+            public int popAll(List< byte[] > items)
+            {
+                return queue.popAll(items);
+            }
+
+            @Override
+            public void setPopBlocks(boolean popBlocks)
+            {
+                queue.setPopBlocks(popBlocks);
+            }
+        };
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    // Returns the time until all producers are done and the time until the
+    // consumer is done, in nanoseconds.
+    private static long[] runRound(
+        Queue queue, int numProducers, int numPushesPerProducer
+        ) throws InterruptedException
+    {
+        CountDownLatch start = new CountDownLatch(1);
+
+        AtomicLong producersEndTime = new AtomicLong();
+        AtomicInteger numProducersRunning = new AtomicInteger(numProducers);
+
+        List< Thread > producers = new ArrayList<>(numProducers);
+
+        for (int i = 0; i < numProducers; ++i)
+        {
+            producers.add(new Thread(() -> {
+
+                try
+                {
+                    start.await();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                for (int j = 0; j < numPushesPerProducer; ++j)
+                    queue.push(MESSAGE);
+
+                if (numProducersRunning.decrementAndGet() == 0)
+                    producersEndTime.set(System.nanoTime());
+
+            }));
+        }
+
+        for (Thread producer : producers)
+            producer.start();
+
+        long total = (long)numProducers * numPushesPerProducer;
+        long popped = 0;
+
+        List< byte[] > batch = new ArrayList<>();
+
+        long startTime = System.nanoTime();
+
+        start.countDown();
+
+        while (popped < total)
+        {
+            popped += queue.popAll(batch);
+            batch.clear();
+        }
+
+        long consumerEndTime = System.nanoTime();
+
+        for (Thread producer : producers)
+            producer.join();
+
+        queue.setPopBlocks(false);
+
+        return new long[] {
+            producersEndTime.get() - startTime,
+            consumerEndTime - startTime
+            };
+    }
+
+    private static void runQueue(
+        String name, Supplier< Queue > queueFactory, Arguments arguments
+        ) throws InterruptedException
+    {
+        for (int numProducers : arguments.getNumThreads())
+        {
+            long[] pushTimes = new long[arguments.getNumRounds()];
+            long[] popTimes  = new long[arguments.getNumRounds()];
+
+            for (int i = 0; i < pushTimes.length; ++i)
+            {
+                // warm up
+
+                runRound(
+                    queueFactory.get(), numProducers,
+                    arguments.getNumIterations()
+                    );
+
+                // measure
+
+                long[] times = runRound(
+                    queueFactory.get(), numProducers,
+                    arguments.getNumIterations()
+                    );
+
+                pushTimes[i] = times[0];
+                popTimes[i]  = times[1];
+            }
+
+            Arrays.sort(pushTimes);
+            Arrays.sort(popTimes);
+
+            long total = (long)numProducers * arguments.getNumIterations();
+
+            System.out.println(String.format(
+                "%-14s %3d producers: push %8.2f M/s, pop %8.2f M/s",
+                name, numProducers,
+                total * 1e3 / pushTimes[pushTimes.length / 2],
+                total * 1e3 / popTimes[popTimes.length / 2]
+                ));
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private QueueBenchmark()
+    {
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Runs the benchmark with the specified arguments, printing the median
+     * push and pop throughputs of each queue for each number of producers.
+     *
+     * @param arguments the benchmark's arguments
+     *
+     * @throws InterruptedException if interrupted while waiting for producers
+     */
+    public static void run(Arguments arguments) throws InterruptedException
+    {
+        runQueue("BlockingQueue", QueueBenchmark::newBlockingQueue, arguments);
+        runQueue("MpscQueue", QueueBenchmark::newMpscQueue, arguments);
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,174 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import mm.common.Config;
+import mm.server.game.TeamBalancer;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Measures the time {@link TeamBalancer} takes to split a lobby into teams,
+ * and the resulting difference between the teams' rank sums, for several
+ * lobby sizes.
+ * <p>
+ * The rank sum difference is compared with that of the previous approach,
+ * which sorted players by rank and alternated them between teams. For lobbies
+ * of {@link Config#LOBBY_SIZE} players, the time per lobby is also checked
+ * against a budget of one microsecond.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class TeamBalancingBenchmark
+{
+    private static final int[] LOBBY_SIZES = {
+        Config.LOBBY_SIZE, TeamBalancer.MAX_EXACT_PLAYERS, 20, 50, 100
+    };
+
+    private static final long BUDGET_NANOS = 1000;
+
+    // fixed seed, so that all runs balance the same lobbies
+    private static final long SEED = 42;
+
+    /* ---------------------------------------------------------------------- */
+
+    private static int[][] newLobbies(int numLobbies, int lobbySize)
+    {
+        Random random = new Random(SEED);
+
+        int[][] lobbies = new int[numLobbies][lobbySize];
+
+        for (int[] ranks : lobbies)
+        {
+            for (int i = 0; i < lobbySize; ++i)
+            {
+                ranks[i] =
+                    Config.MIN_RANK
+                    + random.nextInt(Config.MAX_RANK - Config.MIN_RANK + 1);
+            }
+        }
+
+        return lobbies;
+    }
+
+    private static int getDifference(int[] ranks, boolean[] inFirstTeam)
+    {
+        int difference = 0;
+
+        for (int i = 0; i < ranks.length; ++i)
+            difference += inFirstTeam[i] ? ranks[i] : -ranks[i];
+
+        return Math.abs(difference);
+    }
+
+    // The previous approach: sort by rank, then alternate between teams.
+    private static int getAlternatingDifference(int[] ranks)
+    {
+        int[] sorted = ranks.clone();
+
+        Arrays.sort(sorted);
+
+        int difference = 0;
+
+        for (int i = 0; i < sorted.length; ++i)
+            difference += (i % 2 == 0) ? sorted[i] : -sorted[i];
+
+        return Math.abs(difference);
+    }
+
+    // Returns the time taken to balance all lobbies, in nanoseconds, and adds
+    // the resulting differences to the specified array.
+    private static long runRound(int[][] lobbies, long[] totalDifference)
+    {
+        long difference = 0;
+
+        long startTime = System.nanoTime();
+
+        for (int[] ranks : lobbies)
+            difference += getDifference(ranks, TeamBalancer.balance(ranks));
+
+        long endTime = System.nanoTime();
+
+        totalDifference[0] += difference;
+
+        return endTime - startTime;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private TeamBalancingBenchmark()
+    {
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Runs the benchmark with the specified arguments, printing the median
+     * time per lobby and the mean rank sum difference for each lobby size.
+     *
+     * @param arguments the benchmark's arguments
+     */
+    public static void run(Arguments arguments)
+    {
+        for (int lobbySize : LOBBY_SIZES)
+        {
+            int[][] lobbies =
+                newLobbies(arguments.getNumIterations(), lobbySize);
+
+            long[] times = new long[arguments.getNumRounds()];
+            long[] totalDifference = new long[1];
+
+            for (int i = 0; i < times.length; ++i)
+            {
+                // warm up
+
+                runRound(lobbies, new long[1]);
+
+                // measure
+
+                times[i] = runRound(lobbies, totalDifference);
+            }
+
+            Arrays.sort(times);
+
+            double nanosPerLobby =
+                (double)times[times.length / 2] / lobbies.length;
+
+            double meanDifference =
+                (double)totalDifference[0] / times.length / lobbies.length;
+
+            double meanAlternatingDifference =
+                Arrays
+                .stream(lobbies)
+                .mapToInt(TeamBalancingBenchmark::getAlternatingDifference)
+                .average()
+                .orElse(0);
+
+            String budget = "";
+
+            if (lobbySize == Config.LOBBY_SIZE)
+            {
+                budget = (nanosPerLobby <= BUDGET_NANOS)
+                    ? ", within budget"
+                    : ", OVER BUDGET";
+            }
+
+            System.out.println(String.format(
+                "%3d players (%s): %8.1f ns/lobby, mean difference %.3f"
+                + " (alternating: %.3f)%s",
+                lobbySize,
+                (lobbySize <= TeamBalancer.MAX_EXACT_PLAYERS)
+                    ? "exact"
+                    : "heuristic",
+                nanosPerLobby, meanDifference, meanAlternatingDifference,
+                budget
+                ));
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -20,9 +20,13 @@ import mm.common.data.LeftMatchmakingCause;
 import mm.common.data.LobbyCauseOfDeath;
 import mm.common.data.LoginError;
 import mm.common.data.MatchSummary;
+import mm.common.data.PartyError;
+import mm.common.data.PartyInfo;
 import mm.common.data.ServerStats;
 import mm.common.data.SignUpError;
 import mm.common.data.TeamInfo;
+import mm.common.net.Handshake;
+import mm.common.net.WireFormat;
 import mm.common.util.TriConsumer;
 import mm.common.util.Util;
 
@@ -105,8 +109,9 @@ public class NetClient
          * Logged in, not in matchmaking nor in any lobby.
          * <p>
          * A NetClient in this state may transition directly to state
-         * {@link #DISCONNECTED}, {@link #LOGGING_OUT}, or
-         * {@link #JOINING_MATCHMAKING}.
+         * {@link #DISCONNECTED}, {@link #LOGGING_OUT},
+         * {@link #JOINING_MATCHMAKING}, or {@link #IN_MATCHMAKING} (if the
+         * leader of the user's party joins matchmaking).
          */
         IDLE,
 
@@ -156,9 +161,9 @@ public class NetClient
 
     private class Messenger extends ServerMessenger
     {
-        public Messenger(Socket socket)
+        public Messenger(Socket socket, WireFormat wireFormat)
         {
-            super(socket);
+            super(socket, wireFormat);
         }
 
         @Override
@@ -167,6 +172,7 @@ public class NetClient
             synchronized (NetClient.this)
             {
                 accountInfo = null;
+                partyInfo   = null;
 
                 state = State.DISCONNECTED;
                 NetClient.this.notifyAll();
@@ -230,6 +236,7 @@ public class NetClient
 
                 accountInfo = null;
                 serverStats = null;
+                partyInfo   = null;
 
                 Util.runCallback(onLogoutSucceeded);
             }
@@ -259,7 +266,11 @@ public class NetClient
         {
             synchronized (NetClient.this)
             {
+                if (ignoredWhileLoggingOut())
+                    return;
+
                 assertStateReceive(
+                    State.IDLE,
                     State.JOINING_MATCHMAKING,
                     State.MATCH_FOUND
                     );
@@ -275,6 +286,9 @@ public class NetClient
         {
             synchronized (NetClient.this)
             {
+                if (ignoredWhileLoggingOut())
+                    return;
+
                 assertStateReceive(State.IN_MATCHMAKING, State.MATCH_FOUND);
 
                 state = State.IDLE;
@@ -288,6 +302,9 @@ public class NetClient
         {
             synchronized (NetClient.this)
             {
+                if (ignoredWhileLoggingOut())
+                    return;
+
                 assertStateReceive(State.IN_MATCHMAKING);
 
                 state = State.MATCH_FOUND;
@@ -301,6 +318,9 @@ public class NetClient
         {
             synchronized (NetClient.this)
             {
+                if (ignoredWhileLoggingOut())
+                    return;
+
                 assertStateReceive(State.MATCH_FOUND);
 
                 state = State.IN_MATCHMAKING;
@@ -314,6 +334,9 @@ public class NetClient
         {
             synchronized (NetClient.this)
             {
+                if (ignoredWhileLoggingOut())
+                    return;
+
                 assertStateReceive(State.MATCH_FOUND);
 
                 Util.runCallback(onPlayerAcceptedMatch);
@@ -413,6 +436,59 @@ public class NetClient
                 Util.runCallback(onMatchPlayed, matchSummary, oldRank, newRank);
             }
         }
+
+        @Override
+        protected void onPartyUpdatedReceived(PartyInfo partyInfo)
+        {
+            synchronized (NetClient.this)
+            {
+                assertStateReceiveLoggedIn();
+
+                NetClient.this.partyInfo = partyInfo;
+
+                Util.runCallback(onPartyUpdated, partyInfo);
+            }
+        }
+
+        @Override
+        protected void onLeftPartyReceived()
+        {
+            synchronized (NetClient.this)
+            {
+                assertStateReceiveLoggedIn();
+
+                partyInfo = null;
+
+                Util.runCallback(onLeftParty);
+            }
+        }
+
+        @Override
+        protected void onPartyInviteReceived(String leaderUsername)
+        {
+            synchronized (NetClient.this)
+            {
+                assertStateReceiveLoggedIn();
+
+                Util.runCallback(onPartyInviteReceived, leaderUsername);
+            }
+        }
+
+        @Override
+        protected void onPartyRequestFailedReceived(PartyError error)
+        {
+            synchronized (NetClient.this)
+            {
+                assertStateReceiveLoggedIn();
+
+                // a failed request to join matchmaking leaves the user idle
+
+                if (state == State.JOINING_MATCHMAKING)
+                    state = State.IDLE;
+
+                Util.runCallback(onPartyRequestFailed, error);
+            }
+        }
     }
 
     /* ---------------------------------------------------------------------- */
@@ -436,6 +512,9 @@ public class NetClient
     private ServerStats serverStats;
     private TeamState   teamState;
 
+    // null if the user is not in a party
+    private PartyInfo partyInfo;
+
     // callbacks
 
     private AtomicReference< Runnable > onConnectSucceded;
@@ -463,6 +542,11 @@ public class NetClient
 
     private AtomicReference< TriConsumer< MatchSummary, Integer, Integer > > onMatchPlayed;
 
+    private AtomicReference< Consumer< PartyInfo > > onPartyUpdated;
+    private AtomicReference< Runnable > onLeftParty;
+    private AtomicReference< Consumer< String > > onPartyInviteReceived;
+    private AtomicReference< Consumer< PartyError > > onPartyRequestFailed;
+
     /* ---------------------------------------------------------------------- */
 
     // Must only be called when synchronized on this.
@@ -508,6 +592,27 @@ public class NetClient
         }
     }
 
+    // Must only be called when synchronized on this.
+    private void assertStateReceiveLoggedIn()
+    {
+        assertStateReceive(
+            State.IDLE,
+            State.LOGGING_OUT,
+            State.JOINING_MATCHMAKING,
+            State.IN_MATCHMAKING,
+            State.MATCH_FOUND,
+            State.IN_LOBBY
+            );
+    }
+
+    // Must only be called when synchronized on this. Returns true if the user
+    // is logging out, in which case matchmaking messages caused by the user's
+    // party leader before the logout request reached the server are ignored.
+    private boolean ignoredWhileLoggingOut()
+    {
+        return state == State.LOGGING_OUT;
+    }
+
     /* ---------------------------------------------------------------------- */
 
     /**
@@ -524,6 +629,7 @@ public class NetClient
         accountInfo = null;
         serverStats = null;
         teamState   = null;
+        partyInfo   = null;
 
         // callbacks
 
@@ -551,6 +657,11 @@ public class NetClient
         onChatMessageReceived = new AtomicReference<>();
 
         onMatchPlayed         = new AtomicReference<>();
+
+        onPartyUpdated        = new AtomicReference<>();
+        onLeftParty           = new AtomicReference<>();
+        onPartyInviteReceived = new AtomicReference<>();
+        onPartyRequestFailed  = new AtomicReference<>();
     }
 
     /* ---------------------------------------------------------------------- */
@@ -638,6 +749,32 @@ public class NetClient
         return teamState.getUnselectedHeroes();
     }
 
+    /**
+     * Returns information about the user's party, or null if the user is not
+     * in a party.
+     * <p>
+     * This method may only be called when this NetClient's state is IDLE,
+     * LOGGING_OUT, JOINING_MATCHMAKING, IN_MATCHMAKING, MATCH_FOUND, or
+     * IN_LOBBY.
+     *
+     * @return information about the user's party, or null
+     *
+     * @throws IllegalStateException if this NetClient's state is inadequate
+     */
+    public synchronized PartyInfo getPartyInfo()
+    {
+        assertState(
+            State.IDLE,
+            State.LOGGING_OUT,
+            State.JOINING_MATCHMAKING,
+            State.IN_MATCHMAKING,
+            State.MATCH_FOUND,
+            State.IN_LOBBY
+            );
+
+        return partyInfo;
+    }
+
     /* ---------------------------------------------------------------------- */
 
     /**
@@ -656,9 +793,37 @@ public class NetClient
      * @throws IllegalStateException if this NetClient's state is inadequate
      * @throws NullPointerException if serverEndpoint is null
      */
-    public synchronized void connect(InetSocketAddress serverEndpoint)
+    public void connect(InetSocketAddress serverEndpoint)
+    {
+        connect(serverEndpoint, WireFormat.TEXT);
+    }
+
+    /**
+     * Asynchronously attempts to establish a connected with the server at the
+     * specified endpoint, requesting that messages be exchanged in the
+     * specified wire format.
+     * <p>
+     * If serverEndpoint is unresolved, an attempt is made to resolve it
+     * asynchronously. The wire format is negotiated before this NetClient's
+     * state changes to CONNECTED, and the server may decide to use
+     * {@link WireFormat#TEXT} instead of the requested format.
+     * <p>
+     * This method may only be called when this NetClient's state is
+     * DISCONNECTED. Invoking this method changes this NetClient's state to
+     * CONNECTING.
+     *
+     * @param serverEndpoint the endpoint of the server
+     * @param wireFormat the requested wire format
+     *
+     * @throws IllegalStateException if this NetClient's state is inadequate
+     * @throws NullPointerException if serverEndpoint or wireFormat are null
+     */
+    public synchronized void connect(
+        InetSocketAddress serverEndpoint, WireFormat wireFormat
+        )
     {
         Objects.requireNonNull(serverEndpoint);
+        Objects.requireNonNull(wireFormat);
 
         assertState(State.DISCONNECTED);
 
@@ -693,11 +858,17 @@ public class NetClient
 
                 socket = new Socket(endpoint.getAddress(), endpoint.getPort());
 
+                // negotiate wire format
+
+                WireFormat agreedWireFormat = Handshake.request(
+                    socket, wireFormat
+                    );
+
                 // create messenger
 
                 synchronized (this)
                 {
-                    messenger = new Messenger(socket);
+                    messenger = new Messenger(socket, agreedWireFormat);
                 }
             }
             catch (Throwable t)
@@ -994,6 +1165,97 @@ public class NetClient
         messenger.sendLeaveLobby();
     }
 
+    /**
+     * Asynchronously sends a request to create a party, led by the user, to
+     * the server.
+     * <p>
+     * This method may only be called when this NetClient's state is IDLE.
+     * Invoking this method does not change this NetClient's state.
+     *
+     * @throws IllegalStateException if this NetClient's state is inadequate
+     */
+    public synchronized void createParty()
+    {
+        assertState(State.IDLE);
+
+        messenger.sendCreateParty();
+    }
+
+    /**
+     * Asynchronously sends a request to invite the specified player to the
+     * user's party to the server.
+     * <p>
+     * This method may only be called when this NetClient's state is IDLE.
+     * Invoking this method does not change this NetClient's state.
+     *
+     * @param username the invited player's username
+     *
+     * @throws IllegalStateException if this NetClient's state is inadequate
+     * @throws NullPointerException if username is null
+     * @throws IllegalArgumentException if username is invalid
+     */
+    public synchronized void inviteToParty(String username)
+    {
+        assertState(State.IDLE);
+
+        messenger.sendInviteToParty(username);
+    }
+
+    /**
+     * Asynchronously sends a request to accept an invitation to the party led
+     * by the specified player to the server.
+     * <p>
+     * This method may only be called when this NetClient's state is IDLE.
+     * Invoking this method does not change this NetClient's state.
+     *
+     * @param leaderUsername the username of the party's leader
+     *
+     * @throws IllegalStateException if this NetClient's state is inadequate
+     * @throws NullPointerException if leaderUsername is null
+     * @throws IllegalArgumentException if leaderUsername is invalid
+     */
+    public synchronized void acceptPartyInvite(String leaderUsername)
+    {
+        assertState(State.IDLE);
+
+        messenger.sendAcceptPartyInvite(leaderUsername);
+    }
+
+    /**
+     * Asynchronously sends a request to leave the user's party to the server.
+     * <p>
+     * This method may only be called when this NetClient's state is IDLE.
+     * Invoking this method does not change this NetClient's state.
+     *
+     * @throws IllegalStateException if this NetClient's state is inadequate
+     */
+    public synchronized void leaveParty()
+    {
+        assertState(State.IDLE);
+
+        messenger.sendLeaveParty();
+    }
+
+    /**
+     * Asynchronously sends a request for the user's party, which the user
+     * must lead, to join matchmaking to the server.
+     * <p>
+     * This method may only be called when this NetClient's state is IDLE.
+     * Invoking this method changes this NetClient's state to
+     * JOINING_MATCHMAKING. All other members of the party transition directly
+     * from IDLE to IN_MATCHMAKING.
+     *
+     * @throws IllegalStateException if this NetClient's state is inadequate
+     */
+    public synchronized void joinMatchmakingAsParty()
+    {
+        assertState(State.IDLE);
+
+        messenger.sendJoinMatchmakingAsParty();
+
+        state = State.JOINING_MATCHMAKING;
+    }
+
     /* ---------------------------------------------------------------------- */
 
     /**
@@ -1025,6 +1287,11 @@ public class NetClient
         onChatMessageReceived.set(null);
 
         onMatchPlayed.set(null);
+
+        onPartyUpdated.set(null);
+        onLeftParty.set(null);
+        onPartyInviteReceived.set(null);
+        onPartyRequestFailed.set(null);
     }
 
     /**
@@ -1304,6 +1571,57 @@ public class NetClient
     {
         onMatchPlayed.set(callback);
     }
+
+    /**
+     * Sets the callback to be run whenever the user's party is created or its
+     * members change.
+     * <p>
+     * The callback's parameter gives information about the party.
+     *
+     * @param callback the callback; null disables this callback
+     */
+    public void setOnPartyUpdated(Consumer< PartyInfo > callback)
+    {
+        onPartyUpdated.set(callback);
+    }
+
+    /**
+     * Sets the callback to be run upon leaving the user's party.
+     *
+     * @param callback the callback; null disables this callback
+     */
+    public void setOnLeftParty(Runnable callback)
+    {
+        onLeftParty.set(callback);
+    }
+
+    /**
+     * Sets the callback to be run whenever the user is invited to a party.
+     * <p>
+     * The callback's parameter specifies the username of the party's leader,
+     * to be given to {@link #acceptPartyInvite(String)}.
+     *
+     * @param callback the callback; null disables this callback
+     */
+    public void setOnPartyInviteReceived(Consumer< String > callback)
+    {
+        onPartyInviteReceived.set(callback);
+    }
+
+    /**
+     * Sets the callback to be run whenever a party-related request fails.
+     * <p>
+     * The callback's parameter specifies the reason why the request failed.
+     * If the request was to join matchmaking, this callback is invoked as
+     * result of the transition of this NetClient's state from
+     * JOINING_MATCHMAKING to IDLE.
+     *
+     * @param callback the callback; null disables this callback
+     */
+    public void setOnPartyRequestFailed(Consumer< PartyError > callback)
+    {
+        onPartyRequestFailed.set(callback);
+    }
 }
 
 /* -------------------------------------------------------------------------- */
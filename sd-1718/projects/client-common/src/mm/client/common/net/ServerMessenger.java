@@ -10,6 +10,8 @@ import mm.common.data.LeftMatchmakingCause;
 import mm.common.data.LobbyCauseOfDeath;
 import mm.common.data.LoginError;
 import mm.common.data.MatchSummary;
+import mm.common.data.PartyError;
+import mm.common.data.PartyInfo;
 import mm.common.data.ServerStats;
 import mm.common.data.SignUpError;
 import mm.common.data.TeamInfo;
@@ -18,6 +20,7 @@ import mm.common.net.MessengerBase;
 import mm.common.net.MsgReader;
 import mm.common.net.MsgWriter;
 import mm.common.net.ServerToClientMsgId;
+import mm.common.net.WireFormat;
 
 /* -------------------------------------------------------------------------- */
 
@@ -41,17 +44,33 @@ public abstract class ServerMessenger extends MessengerBase
      * @throws NullPointerException if socket is null
      */
     public ServerMessenger(Socket socket)
+    {
+        this(socket, WireFormat.TEXT);
+    }
+
+    /**
+     * Creates a new ServerMessenger that uses the specified socket, through
+     * which the specified wire format was already agreed upon with the server.
+     *
+     * @param socket the socket holding the connection to the server
+     * @param wireFormat the format in which messages are exchanged
+     *
+     * @throws NullPointerException if socket or wireFormat are null
+     *
+     * @see mm.common.net.Handshake#request(Socket, WireFormat)
+     */
+    public ServerMessenger(Socket socket, WireFormat wireFormat)
     {
         super(socket);
+
+        setWireFormat(wireFormat);
     }
 
     /* ---------------------------------------------------------------------- */
 
     @Override
-    protected void onMessageReceived(String msg)
+    protected void onMessageReceived(MsgReader reader)
     {
-        MsgReader reader = new MsgReader(msg);
-
         ServerToClientMsgId msgId = reader.readServerToClientMsgId();
 
         switch (msgId)
@@ -174,6 +193,43 @@ public abstract class ServerMessenger extends MessengerBase
                 onMatchPlayedReceived(matchSummary, newRank);
             }
             break;
+
+        case HELLO:
+            {
+                // replies to hello messages are consumed by Handshake
+
+                throw new RuntimeException("unexpected hello message");
+            }
+
+        case PARTY_UPDATED:
+            {
+                PartyInfo partyInfo = reader.readPartyInfo();
+
+                onPartyUpdatedReceived(partyInfo);
+            }
+            break;
+
+        case LEFT_PARTY:
+            {
+                onLeftPartyReceived();
+            }
+            break;
+
+        case PARTY_INVITE_RECEIVED:
+            {
+                String leaderUsername = reader.readUsername();
+
+                onPartyInviteReceived(leaderUsername);
+            }
+            break;
+
+        case PARTY_REQUEST_FAILED:
+            {
+                PartyError error = reader.readPartyError();
+
+                onPartyRequestFailedReceived(error);
+            }
+            break;
         }
 
         if (!reader.isEmpty())
@@ -197,13 +253,13 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendLogin(String username, String password)
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.LOGIN);
         writer.writeUsername(username);
         writer.writePassword(password);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -217,13 +273,13 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendSignUp(String username, String password)
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.SIGN_UP);
         writer.writeUsername(username);
         writer.writePassword(password);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -231,11 +287,11 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendLogout()
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.LOGOUT);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -243,11 +299,11 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendJoinMatchmaking()
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.JOIN_MATCHMAKING);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -255,11 +311,11 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendLeaveMatchmaking()
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.LEAVE_MATCHMAKING);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -267,11 +323,11 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendAcceptMatch()
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.ACCEPT_MATCH);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -279,11 +335,11 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendDeclineMatch()
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.DECLINE_MATCH);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -295,12 +351,12 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendSelectHero(Hero hero)
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.SELECT_HERO);
         writer.writeHero(hero);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -314,12 +370,12 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendChatMessage(String chatMessage)
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.CHAT_MESSAGE);
         writer.writeChatMessage(chatMessage);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
     }
 
     /**
@@ -327,11 +383,90 @@ public abstract class ServerMessenger extends MessengerBase
      */
     public void sendLeaveLobby()
     {
-        MsgWriter writer = new MsgWriter();
+        MsgWriter writer = newMsgWriter();
 
         writer.writeClientToServerMsgId(ClientToServerMsgId.LEAVE_LOBBY);
 
-        sendMessage(writer.toString());
+        sendMessage(writer);
+    }
+
+    /**
+     * Asynchronously sends a request to create a party to the server.
+     */
+    public void sendCreateParty()
+    {
+        MsgWriter writer = newMsgWriter();
+
+        writer.writeClientToServerMsgId(ClientToServerMsgId.CREATE_PARTY);
+
+        sendMessage(writer);
+    }
+
+    /**
+     * Asynchronously sends a request to invite a player to the party to the
+     * server.
+     *
+     * @param username the invited player's username
+     *
+     * @throws NullPointerException if username is null
+     * @throws IllegalArgumentException if username is invalid
+     */
+    public void sendInviteToParty(String username)
+    {
+        MsgWriter writer = newMsgWriter();
+
+        writer.writeClientToServerMsgId(ClientToServerMsgId.INVITE_TO_PARTY);
+        writer.writeUsername(username);
+
+        sendMessage(writer);
+    }
+
+    /**
+     * Asynchronously sends a request to accept an invitation to a party to the
+     * server.
+     *
+     * @param leaderUsername the username of the party's leader
+     *
+     * @throws NullPointerException if leaderUsername is null
+     * @throws IllegalArgumentException if leaderUsername is invalid
+     */
+    public void sendAcceptPartyInvite(String leaderUsername)
+    {
+        MsgWriter writer = newMsgWriter();
+
+        writer.writeClientToServerMsgId(
+            ClientToServerMsgId.ACCEPT_PARTY_INVITE
+            );
+        writer.writeUsername(leaderUsername);
+
+        sendMessage(writer);
+    }
+
+    /**
+     * Asynchronously sends a request to leave the party to the server.
+     */
+    public void sendLeaveParty()
+    {
+        MsgWriter writer = newMsgWriter();
+
+        writer.writeClientToServerMsgId(ClientToServerMsgId.LEAVE_PARTY);
+
+        sendMessage(writer);
+    }
+
+    /**
+     * Asynchronously sends a request for the party to join matchmaking to the
+     * server.
+     */
+    public void sendJoinMatchmakingAsParty()
+    {
+        MsgWriter writer = newMsgWriter();
+
+        writer.writeClientToServerMsgId(
+            ClientToServerMsgId.JOIN_MATCHMAKING_AS_PARTY
+            );
+
+        sendMessage(writer);
     }
 
     /* ---------------------------------------------------------------------- */
@@ -465,6 +600,36 @@ public abstract class ServerMessenger extends MessengerBase
     protected abstract void onMatchPlayedReceived(
         MatchSummary matchSummary, int newRank
         );
+
+    /**
+     * Called upon receiving a notification from the server stating that the
+     * party was created or that its members changed.
+     *
+     * @param partyInfo information about the party
+     */
+    protected abstract void onPartyUpdatedReceived(PartyInfo partyInfo);
+
+    /**
+     * Called upon receiving a notification from the server stating that the
+     * party was left.
+     */
+    protected abstract void onLeftPartyReceived();
+
+    /**
+     * Called upon receiving a notification from the server stating that the
+     * user was invited to a party.
+     *
+     * @param leaderUsername the username of the party's leader
+     */
+    protected abstract void onPartyInviteReceived(String leaderUsername);
+
+    /**
+     * Called upon receiving a notification from the server stating that a
+     * previous party-related request failed.
+     *
+     * @param error why the request failed
+     */
+    protected abstract void onPartyRequestFailedReceived(PartyError error);
 }
 
 /* -------------------------------------------------------------------------- */
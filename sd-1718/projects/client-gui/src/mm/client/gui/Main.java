@@ -9,6 +9,7 @@ import mm.client.common.net.NetClient;
 import mm.client.gui.base.Window;
 import mm.client.gui.menu.MenuConnect;
 import mm.client.gui.menu.MenuLogin;
+import mm.common.net.WireFormat;
 
 /* -------------------------------------------------------------------------- */
 
@@ -55,7 +56,9 @@ public class Main extends Application
                     System.exit(1);
                 });
 
-                netClient.connect(arguments.getServerEndpoint());
+                netClient.connect(
+                    arguments.getServerEndpoint(), WireFormat.BINARY
+                    );
             }
         }
         catch (Exception e)
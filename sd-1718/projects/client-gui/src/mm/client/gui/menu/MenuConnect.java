@@ -9,6 +9,7 @@ import javafx.scene.control.TextField;
 import mm.client.common.net.NetClient;
 import mm.client.gui.base.Menu;
 import mm.client.gui.base.Window;
+import mm.common.net.WireFormat;
 import mm.common.util.Util;
 
 /* -------------------------------------------------------------------------- */
@@ -75,7 +76,10 @@ public class MenuConnect extends Menu
         {
             // let the NetClient resolve the hostname asynchronously
 
-            netClient.connect(Util.parseEndpointUnresolved(endpoint));
+            netClient.connect(
+                Util.parseEndpointUnresolved(endpoint),
+                WireFormat.BINARY
+                );
         }
         catch (Throwable t)
         {
@@ -3,8 +3,10 @@
 package mm.client.test;
 
 import java.net.InetSocketAddress;
+import java.util.Locale;
 import java.util.Objects;
 
+import mm.common.net.WireFormat;
 import mm.common.util.Util;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -56,6 +58,17 @@ public class Arguments
                 + " seconds. If 0-0, select the \"random\" hero immediately and"
                 + " never reselect."
                 );
+
+        PARSER
+            .addArgument("-w")
+            .metavar("wire-format")
+            .choices("text", "binary")
+            .setDefault("binary")
+            .help(
+                "Wire format requested from the server: \"text\" exchanges"
+                + " colon-separated lines, \"binary\" exchanges"
+                + " length-prefixed binary messages."
+                );
     }
 
     /* ---------------------------------------------------------------------- */
@@ -71,7 +84,8 @@ public class Arguments
                 ns.getInt("num_clients"),
                 DurationRange.parse(ns.getString("j")),
                 DurationRange.parse(ns.getString("m")),
-                DurationRange.parse(ns.getString("s"))
+                DurationRange.parse(ns.getString("s")),
+                WireFormat.valueOf(ns.getString("w").toUpperCase(Locale.ROOT))
                 );
         }
         catch (ArgumentParserException e)
@@ -99,6 +113,8 @@ public class Arguments
     private final DurationRange acceptMatchDelay;
     private final DurationRange selectHeroDelay;
 
+    private final WireFormat wireFormat;
+
     /* ---------------------------------------------------------------------- */
 
     public Arguments(
@@ -106,7 +122,8 @@ public class Arguments
         int numClients,
         DurationRange joinMatchmakingDelay,
         DurationRange acceptMatchDelay,
-        DurationRange selectHeroDelay
+        DurationRange selectHeroDelay,
+        WireFormat wireFormat
         )
     {
         if (numClients < 1)
@@ -123,6 +140,8 @@ public class Arguments
         this.joinMatchmakingDelay = Objects.requireNonNull(joinMatchmakingDelay);
         this.acceptMatchDelay     = Objects.requireNonNull(acceptMatchDelay);
         this.selectHeroDelay      = Objects.requireNonNull(selectHeroDelay);
+
+        this.wireFormat = Objects.requireNonNull(wireFormat);
     }
 
     /* ---------------------------------------------------------------------- */
@@ -151,6 +170,11 @@ public class Arguments
     {
         return selectHeroDelay;
     }
+
+    public WireFormat getWireFormat()
+    {
+        return wireFormat;
+    }
 }
 
 /* -------------------------------------------------------------------------- */
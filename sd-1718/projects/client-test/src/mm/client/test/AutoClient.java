@@ -5,8 +5,6 @@ package mm.client.test;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Objects;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 
@@ -14,6 +12,9 @@ import mm.client.common.net.NetClient;
 import mm.common.data.Hero;
 import mm.common.data.LoginError;
 import mm.common.data.RandomHero;
+import mm.common.data.SignUpError;
+import mm.common.net.WireFormat;
+import mm.common.util.TimerWheel;
 
 /* -------------------------------------------------------------------------- */
 
@@ -25,6 +26,12 @@ import mm.common.data.RandomHero;
  */
 public class AutoClient
 {
+    // delay before retrying to log in when the server is busy, in seconds
+    private static final DurationRange RETRY_DELAY =
+        new DurationRange(0.5, 2.0);
+
+    /* ---------------------------------------------------------------------- */
+
     private final int id;
 
     private final NetClient netClient;
@@ -34,17 +41,31 @@ public class AutoClient
     private final DurationRange acceptMatchDelay;
     private final DurationRange selectHeroDelay;
 
+    private final WireFormat wireFormat;
+
     private final Consumer< Throwable > onError;
 
-    private Timer timer;
+    private final TimerWheel timerWheel;
+
+    // Accesses to timeout must be synchronized on this.
+    private TimerWheel.Timeout timeout;
 
     private boolean ignoreErrors;
 
     /* ---------------------------------------------------------------------- */
 
+    private synchronized void cancelTimeout()
+    {
+        if (timeout != null)
+        {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
     private void onDisconnect(Throwable cause)
     {
-        timer.cancel();
+        cancelTimeout();
 
         synchronized (this)
         {
@@ -67,7 +88,7 @@ public class AutoClient
                 return;
 
             ignoreErrors = true;
-            timer.cancel();
+            cancelTimeout();
         }
 
         netClient.disconnect();
@@ -80,18 +101,14 @@ public class AutoClient
         Runnable task
         )
     {
-        TimerTask timerTask = new TimerTask() {
-            @Override
-            public void run()
+        Runnable timerTask = () -> {
+            try
             {
-                try
-                {
-                    task.run();
-                }
-                catch (Throwable t)
-                {
-                    fail(t);
-                }
+                task.run();
+            }
+            catch (Throwable t)
+            {
+                fail(t);
             }
         };
 
@@ -99,13 +116,18 @@ public class AutoClient
 
         synchronized (this)
         {
-            timer.cancel();
-            timer = new Timer();
+            cancelTimeout();
 
             if (repeat)
-                timer.schedule(timerTask, period, period);
+            {
+                timeout = timerWheel.scheduleAtFixedRate(
+                    timerTask, period, period
+                    );
+            }
             else
-                timer.schedule(timerTask, period);
+            {
+                timeout = timerWheel.schedule(timerTask, period);
+            }
         }
     }
 
@@ -127,7 +149,7 @@ public class AutoClient
 
         // connect
 
-        netClient.connect(serverEndpoint);
+        netClient.connect(serverEndpoint, wireFormat);
     }
 
     private void login()
@@ -147,12 +169,17 @@ public class AutoClient
         netClient.setOnLoginFailed(error -> {
             if (error == LoginError.USERNAME_DOESNT_EXIST)
                 netClient.signUp(username, password);
+            else if (error == LoginError.SERVER_BUSY)
+                schedule(RETRY_DELAY, false, this::login);
             else
                 fail(new RuntimeException("login failed with error " + error));
         });
 
         netClient.setOnSignUpFailed(error -> {
-            fail(new RuntimeException("sign up failed with error " + error));
+            if (error == SignUpError.SERVER_BUSY)
+                schedule(RETRY_DELAY, false, this::login);
+            else
+                fail(new RuntimeException("sign up failed: " + error));
         });
 
         // login
@@ -202,12 +229,12 @@ public class AutoClient
         netClient.setOnDisconnect(this::onDisconnect);
 
         netClient.setOnMatchCanceled(() -> {
-            timer.cancel();
+            cancelTimeout();
             awaitMatch();
         });
 
         netClient.setOnLeftMatchmaking(cause -> {
-            timer.cancel();
+            cancelTimeout();
             fail(new RuntimeException("left matchmaking with cause " + cause));
         });
 
@@ -236,12 +263,12 @@ public class AutoClient
         netClient.setOnDisconnect(this::onDisconnect);
 
         netClient.setOnLobbyDied(cause -> {
-            timer.cancel();
+            cancelTimeout();
             joinMatchmaking();
         });
 
         netClient.setOnMatchPlayed((matchSummary, oldRank, newRank) -> {
-            timer.cancel();
+            cancelTimeout();
             joinMatchmaking();
         });
 
@@ -280,6 +307,8 @@ public class AutoClient
      * @param joinMatchmakingDelay delay range for joining matchmaking
      * @param acceptMatchDelay delay range for accepting a match
      * @param selectHeroDelay delay range for selecting a hero
+     * @param wireFormat wire format requested from the server
+     * @param timerWheel timer wheel on which to schedule the client's actions
      * @param onError callback to be run when the AutoClient encounters an error
      */
     public AutoClient(
@@ -288,6 +317,8 @@ public class AutoClient
         DurationRange joinMatchmakingDelay,
         DurationRange acceptMatchDelay,
         DurationRange selectHeroDelay,
+        WireFormat wireFormat,
+        TimerWheel timerWheel,
         Consumer< Throwable > onError
         )
     {
@@ -300,9 +331,12 @@ public class AutoClient
         this.acceptMatchDelay     = Objects.requireNonNull(acceptMatchDelay);
         this.selectHeroDelay      = Objects.requireNonNull(selectHeroDelay);
 
+        this.wireFormat = Objects.requireNonNull(wireFormat);
+
         this.onError = Objects.requireNonNull(onError);
 
-        this.timer = new Timer();
+        this.timerWheel = Objects.requireNonNull(timerWheel);
+        this.timeout    = null;
 
         ignoreErrors = false;
     }
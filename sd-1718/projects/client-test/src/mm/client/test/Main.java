@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import mm.common.util.TimerWheel;
+
 /* -------------------------------------------------------------------------- */
 
 public class Main
@@ -28,7 +30,9 @@ public class Main
 
         Arguments arguments = Arguments.parse(args);
 
-        // create clients
+        // create clients, all sharing a single timer wheel
+
+        TimerWheel timerWheel = new TimerWheel();
 
         List< AutoClient > clients = new ArrayList<>();
 
@@ -40,6 +44,8 @@ public class Main
                 arguments.getJoinMatchmakingDelay(),
                 arguments.getAcceptMatchDelay(),
                 arguments.getSelectHeroDelay(),
+                arguments.getWireFormat(),
+                timerWheel,
                 Main::printStackTrace
                 ));
         }
@@ -31,7 +31,17 @@ public class Config
     public static final int TEAM_SIZE  = 5;
     public static final int LOBBY_SIZE = 2 * TEAM_SIZE;
 
+    // parties always play in the same team, so they may not be larger
+    public static final int MAX_PARTY_SIZE = TEAM_SIZE;
+
     public static final int NUM_HEROES = 30;
+
+    // networking
+
+    // version 2 added parties
+    public static final int PROTOCOL_VERSION = 2;
+
+    public static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
 }
 
 /* -------------------------------------------------------------------------- */
@@ -25,7 +25,13 @@ public enum LeftMatchmakingCause
     /**
      * The player declined a found match.
      */
-    DECLINED_MATCH
+    DECLINED_MATCH,
+
+    /**
+     * Another member of the player's party left matchmaking, declined a
+     * found match, or failed to accept it in time.
+     */
+    PARTY_MEMBER_LEFT
 }
 
 /* -------------------------------------------------------------------------- */
@@ -35,7 +35,13 @@ public enum LoginError
     /**
      * The account is already in use.
      */
-    ALREADY_LOGGED_IN
+    ALREADY_LOGGED_IN,
+
+    /**
+     * The server is verifying too many credentials, and the login should be
+     * retried later.
+     */
+    SERVER_BUSY
 }
 
 /* -------------------------------------------------------------------------- */
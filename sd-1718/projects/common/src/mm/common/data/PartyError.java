@@ -0,0 +1,67 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.data;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Enumerates possible errors of party-related requests.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public enum PartyError
+{
+    /**
+     * The player is already in a party.
+     */
+    ALREADY_IN_PARTY,
+
+    /**
+     * The player is not in a party.
+     */
+    NOT_IN_PARTY,
+
+    /**
+     * The player is not the leader of the party.
+     */
+    NOT_PARTY_LEADER,
+
+    /**
+     * The invited player is not logged in.
+     */
+    PLAYER_NOT_LOGGED_IN,
+
+    /**
+     * The invited player is already in a party.
+     */
+    PLAYER_ALREADY_IN_PARTY,
+
+    /**
+     * The party already has the maximum number of players.
+     */
+    PARTY_FULL,
+
+    /**
+     * The player was not invited to the party, or the party no longer exists.
+     */
+    NOT_INVITED,
+
+    /**
+     * Some member of the party is in matchmaking, a match or a lobby.
+     */
+    PARTY_BUSY,
+
+    /**
+     * The server's matchmaker does not support parties of more than one
+     * player.
+     */
+    PARTIES_NOT_SUPPORTED,
+
+    /**
+     * The invited player's client does not support parties.
+     */
+    PLAYER_DOES_NOT_SUPPORT_PARTIES
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,85 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import mm.common.Config;
+import mm.common.util.Validation;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Holds information about a party.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class PartyInfo
+{
+    private final List< String > memberUsernames;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a new instance of PartyInfo.
+     *
+     * @param memberUsernames the usernames of the party's members, starting
+     *        with its leader
+     *
+     * @throws NullPointerException if memberUsernames or any of its elements
+     *         are null
+     * @throws IllegalArgumentException if there are no members, more than
+     *         {@link Config#MAX_PARTY_SIZE} members, repeated members, or
+     *         invalid usernames
+     */
+    public PartyInfo(List< String > memberUsernames)
+    {
+        if (memberUsernames.isEmpty()
+            || memberUsernames.size() > Config.MAX_PARTY_SIZE)
+        {
+            throw new IllegalArgumentException(String.format(
+                "parties must have 1 to %d players",
+                Config.MAX_PARTY_SIZE
+                ));
+        }
+
+        for (String username : memberUsernames)
+            Validation.validateUsername(username);
+
+        if (new HashSet<>(memberUsernames).size() != memberUsernames.size())
+            throw new IllegalArgumentException("repeated party member");
+
+        // ---
+
+        this.memberUsernames =
+            Collections.unmodifiableList(new ArrayList<>(memberUsernames));
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Returns the username of the party's leader.
+     *
+     * @return the username of the party's leader
+     */
+    public String getLeaderUsername()
+    {
+        return memberUsernames.get(0);
+    }
+
+    /**
+     * Returns the usernames of the party's members, starting with its leader.
+     *
+     * @return the usernames of the party's members
+     */
+    public List< String > getMemberUsernames()
+    {
+        return memberUsernames;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
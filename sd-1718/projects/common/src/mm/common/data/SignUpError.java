@@ -25,7 +25,13 @@ public enum SignUpError
     /**
      * The username is already in use.
      */
-    USERNAME_EXISTS
+    USERNAME_EXISTS,
+
+    /**
+     * The server is verifying too many credentials, and the sign up should be
+     * retried later.
+     */
+    SERVER_BUSY
 }
 
 /* -------------------------------------------------------------------------- */
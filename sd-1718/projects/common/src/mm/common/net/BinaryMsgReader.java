@@ -0,0 +1,162 @@
+/* ------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import mm.common.data.ConcreteHero;
+import mm.common.data.Hero;
+import mm.common.data.RandomHero;
+
+/* ------------------------------------------------------------------------- */
+
+/**
+ * Decodes messages in the {@link WireFormat#BINARY} format.
+ * <p>
+ * A BinaryMsgReader reads directly from the buffer holding the message, which
+ * must not be modified while it is being decoded.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class BinaryMsgReader extends MsgReader
+{
+    private final ByteBuffer message;
+
+    /* --------------------------------------------------------------------- */
+
+    private void require(int numBytes)
+    {
+        if (message.remaining() < numBytes)
+            throw new IllegalStateException("message exhausted");
+    }
+
+    private int decodeUnsignedVarInt()
+    {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            require(1);
+
+            byte b = message.get();
+
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0)
+                return value;
+        }
+
+        throw new IllegalArgumentException("malformed variable-length integer");
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Creates a new instance of BinaryMsgReader for decoding the message
+     * contained in the specified buffer, between its position and its limit.
+     * <p>
+     * The buffer's position is advanced as the message is decoded.
+     *
+     * @param message the buffer containing the message to be decoded
+     *
+     * @throws NullPointerException if message is null
+     */
+    public BinaryMsgReader(ByteBuffer message)
+    {
+        if (message == null)
+            throw new NullPointerException();
+
+        this.message = message;
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    @Override
+    public boolean isEmpty()
+    {
+        return !message.hasRemaining();
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    @Override
+    String decodeString(boolean terminal)
+    {
+        int length = decodeUnsignedVarInt();
+
+        if (length < 0)
+            throw new IllegalArgumentException("invalid string length");
+
+        require(length);
+
+        String str;
+
+        if (message.hasArray())
+        {
+            str = new String(
+                message.array(), message.arrayOffset() + message.position(),
+                length,
+                StandardCharsets.UTF_8
+                );
+
+            message.position(message.position() + length);
+        }
+        else
+        {
+            byte[] bytes = new byte[length];
+            message.get(bytes);
+
+            str = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return str;
+    }
+
+    @Override
+    int decodeInt()
+    {
+        int zigzag = decodeUnsignedVarInt();
+
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    @Override
+    double decodeDouble()
+    {
+        require(8);
+
+        return message.getDouble();
+    }
+
+    @Override
+    < E extends Enum< E > > E decodeEnum(E[] constants)
+    {
+        int ordinal = decodeUnsignedVarInt();
+
+        if (ordinal < 0 || ordinal >= constants.length)
+        {
+            throw new IllegalArgumentException(
+                "No enum constant "
+                + constants[0].getDeclaringClass().getCanonicalName()
+                + " with ordinal " + Integer.toUnsignedString(ordinal)
+                );
+        }
+
+        return constants[ordinal];
+    }
+
+    @Override
+    Hero decodeHero()
+    {
+        int index = decodeInt();
+
+        if (index == BinaryMsgWriter.RANDOM_HERO_INDEX)
+            return new RandomHero();
+        else
+            return new ConcreteHero(index);
+    }
+}
+
+/* ------------------------------------------------------------------------- */
@@ -0,0 +1,227 @@
+/* ------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.util.Arrays;
+
+import mm.common.data.ConcreteHero;
+import mm.common.data.Hero;
+
+/* ------------------------------------------------------------------------- */
+
+/**
+ * Encodes messages in the {@link WireFormat#BINARY} format.
+ * <p>
+ * A frame consists of the length of the message, as an unsigned
+ * variable-length integer, followed by the message itself. Within a message:
+ * <ul>
+ * <li>integers are zigzag-encoded variable-length integers;</li>
+ * <li>doubles are 8-byte big-endian IEEE 754 values;</li>
+ * <li>strings are their UTF-8 length, as an unsigned variable-length
+ * integer, followed by their UTF-8 bytes;</li>
+ * <li>enumeration constants are their ordinal, as an unsigned variable-length
+ * integer;</li>
+ * <li>heroes are encoded as the integer -1 if random, or as their index.</li>
+ * </ul>
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class BinaryMsgWriter extends MsgWriter
+{
+    static final int RANDOM_HERO_INDEX = -1;
+
+    /* --------------------------------------------------------------------- */
+
+    static int varIntSize(int value)
+    {
+        int size = 1;
+
+        while ((value & ~0x7F) != 0)
+        {
+            value >>>= 7;
+            ++size;
+        }
+
+        return size;
+    }
+
+    static int putVarInt(byte[] buffer, int offset, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buffer[offset++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        buffer[offset++] = (byte)value;
+
+        return offset;
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    private byte[] buffer;
+    private int length;
+
+    /* --------------------------------------------------------------------- */
+
+    private void ensureCapacity(int extra)
+    {
+        if (length + extra > buffer.length)
+        {
+            buffer = Arrays.copyOf(
+                buffer,
+                Math.max(length + extra, 2 * buffer.length)
+                );
+        }
+    }
+
+    private void putUnsignedVarInt(int value)
+    {
+        ensureCapacity(5);
+
+        length = putVarInt(buffer, length, value);
+    }
+
+    @Override
+    void encodeString(String str)
+    {
+        // compute the UTF-8 length first so that the string can be encoded
+        // directly into the buffer, replacing unpaired surrogates with '?' as
+        // String.getBytes() does
+
+        int numChars = str.length();
+        int utf8Length = 0;
+
+        for (int i = 0; i < numChars; ++i)
+        {
+            char c = str.charAt(i);
+
+            if (c < 0x80)
+            {
+                utf8Length += 1;
+            }
+            else if (c < 0x800)
+            {
+                utf8Length += 2;
+            }
+            else if (Character.isHighSurrogate(c)
+                && i + 1 < numChars
+                && Character.isLowSurrogate(str.charAt(i + 1)))
+            {
+                utf8Length += 4;
+                ++i;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                utf8Length += 1;
+            }
+            else
+            {
+                utf8Length += 3;
+            }
+        }
+
+        putUnsignedVarInt(utf8Length);
+
+        ensureCapacity(utf8Length);
+
+        for (int i = 0; i < numChars; ++i)
+        {
+            char c = str.charAt(i);
+
+            if (c < 0x80)
+            {
+                buffer[length++] = (byte)c;
+            }
+            else if (c < 0x800)
+            {
+                buffer[length++] = (byte)(0xC0 | (c >> 6));
+                buffer[length++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c)
+                && i + 1 < numChars
+                && Character.isLowSurrogate(str.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+
+                buffer[length++] = (byte)(0xF0 | (cp >> 18));
+                buffer[length++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                buffer[length++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                buffer[length++] = (byte)(0x80 | (cp & 0x3F));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                buffer[length++] = (byte)'?';
+            }
+            else
+            {
+                buffer[length++] = (byte)(0xE0 | (c >> 12));
+                buffer[length++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    @Override
+    void encodeInt(int value)
+    {
+        putUnsignedVarInt((value << 1) ^ (value >> 31));
+    }
+
+    @Override
+    void encodeDouble(double value)
+    {
+        long bits = Double.doubleToLongBits(value);
+
+        ensureCapacity(8);
+
+        for (int shift = 56; shift >= 0; shift -= 8)
+            buffer[length++] = (byte)(bits >>> shift);
+    }
+
+    @Override
+    void encodeEnum(Enum< ? > constant)
+    {
+        putUnsignedVarInt(constant.ordinal());
+    }
+
+    @Override
+    void encodeHero(Hero hero)
+    {
+        if (hero instanceof ConcreteHero)
+            encodeInt(((ConcreteHero)hero).getIndex());
+        else
+            encodeInt(RANDOM_HERO_INDEX);
+    }
+
+    @Override
+    byte[] toFrame()
+    {
+        if (length == 0)
+            throw new IllegalArgumentException("message may not be empty");
+
+        int headerSize = varIntSize(length);
+
+        byte[] frame = new byte[headerSize + length];
+
+        putVarInt(frame, 0, length);
+        System.arraycopy(buffer, 0, frame, headerSize, length);
+
+        return frame;
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Creates a new instance of BinaryMsgWriter for encoding a new message.
+     */
+    public BinaryMsgWriter()
+    {
+        buffer = new byte[64];
+        length = 0;
+    }
+}
+
+/* ------------------------------------------------------------------------- */
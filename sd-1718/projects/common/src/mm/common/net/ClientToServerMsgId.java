@@ -61,7 +61,40 @@ public enum ClientToServerMsgId
     /**
      * Identifies a message requesting to leave a lobby.
      */
-    LEAVE_LOBBY
+    LEAVE_LOBBY,
+
+    /**
+     * Identifies a message stating the protocol version spoken by the client
+     * and the wire format it requests. May only be sent as the very first
+     * message.
+     */
+    HELLO,
+
+    /**
+     * Identifies a message requesting to create a party led by the client.
+     */
+    CREATE_PARTY,
+
+    /**
+     * Identifies a message inviting a player to the client's party.
+     */
+    INVITE_TO_PARTY,
+
+    /**
+     * Identifies a message accepting an invitation to a party.
+     */
+    ACCEPT_PARTY_INVITE,
+
+    /**
+     * Identifies a message requesting to leave the client's party.
+     */
+    LEAVE_PARTY,
+
+    /**
+     * Identifies a message requesting that the client's party, of which the
+     * client must be the leader, joins matchmaking.
+     */
+    JOIN_MATCHMAKING_AS_PARTY
 }
 
 /* -------------------------------------------------------------------------- */
@@ -0,0 +1,121 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * An immutable message that may be sent to any number of peers while being
+ * encoded at most once per {@link WireFormat}.
+ * <p>
+ * The message is encoded lazily, the first time it is sent through a
+ * connection using a given format. The resulting frame is then shared by all
+ * connections using that format.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class EncodedMessage
+{
+    private static final WireFormat[] WIRE_FORMATS = WireFormat.values();
+
+    /* ---------------------------------------------------------------------- */
+
+    private final Consumer< MsgWriter > encoder;
+
+    private final boolean coalescible;
+
+    // indexed by WireFormat ordinal, null until encoded in that format
+    private final AtomicReferenceArray< byte[] > frames;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a new EncodedMessage whose contents are written by the specified
+     * encoder.
+     * <p>
+     * The encoder is invoked at most once per format, possibly concurrently
+     * and on any thread, and must always write the same items. Any exception
+     * it throws is propagated to the sender.
+     *
+     * @param encoder writes the items of the message to a given MsgWriter
+     *
+     * @throws NullPointerException if encoder is null
+     */
+    public EncodedMessage(Consumer< MsgWriter > encoder)
+    {
+        this(encoder, false);
+    }
+
+    /**
+     * Creates a new EncodedMessage whose contents are written by the specified
+     * encoder, and which may be dropped in favor of later messages of the same
+     * kind if coalescible is true.
+     *
+     * @param encoder writes the items of the message to a given MsgWriter
+     * @param coalescible whether the message may be dropped when the
+     *        recipient's outbound queue is congested
+     *
+     * @throws NullPointerException if encoder is null
+     *
+     * @see OutboundLimits.OverflowPolicy#DROP_COALESCIBLE
+     */
+    public EncodedMessage(Consumer< MsgWriter > encoder, boolean coalescible)
+    {
+        this.encoder     = Objects.requireNonNull(encoder);
+        this.coalescible = coalescible;
+        this.frames      = new AtomicReferenceArray<>(WIRE_FORMATS.length);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Checks whether this message may be dropped in favor of later messages of
+     * the same kind.
+     *
+     * @return true if this message is coalescible
+     */
+    public boolean isCoalescible()
+    {
+        return coalescible;
+    }
+
+    /**
+     * Returns this message framed in the specified format, encoding it if
+     * necessary.
+     * <p>
+     * The returned array must not be modified.
+     *
+     * @param wireFormat the format
+     *
+     * @return the framed message
+     *
+     * @throws IllegalArgumentException if the message cannot be framed
+     */
+    byte[] getFrame(WireFormat wireFormat)
+    {
+        byte[] frame = frames.get(wireFormat.ordinal());
+
+        if (frame == null)
+        {
+            MsgWriter writer = wireFormat.newMsgWriter();
+
+            encoder.accept(writer);
+
+            frame = writer.toFrame();
+
+            // if another thread won the race, use its (identical) frame
+
+            if (!frames.compareAndSet(wireFormat.ordinal(), null, frame))
+                frame = frames.get(wireFormat.ordinal());
+        }
+
+        return frame;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
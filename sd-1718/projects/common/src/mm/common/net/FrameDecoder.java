@@ -0,0 +1,291 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Splits the bytes received by a {@link Transport} into frames and delivers
+ * each of them, as a {@link MsgReader}, to the transport's MessengerBase.
+ * <p>
+ * The {@link WireFormat} of each frame is determined when its first byte is
+ * received, so a format change made while handling a message applies to the
+ * very next frame, even if it was received together with that message.
+ * <p>
+ * Frames that are fully contained in the buffer being fed are decoded directly
+ * from that buffer. A FrameDecoder with no partially received frame holds no
+ * buffers.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class FrameDecoder
+{
+    // frames longer than this are rejected
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /* ---------------------------------------------------------------------- */
+
+    private final Transport transport;
+
+    // format of the frame being received, or null if between frames
+    private WireFormat format;
+
+    // bytes of a frame that was not yet fully received
+    private byte[] partialFrame;
+    private int partialFrameLength;
+
+    // true if the last text frame was terminated by '\r'
+    private boolean skipLineFeed;
+
+    // length of the binary frame being received, or -1 if its header was not
+    // yet fully received
+    private int frameLength;
+
+    // value and number of bits of the binary frame header received so far
+    private int headerValue;
+    private int headerShift;
+
+    /* ---------------------------------------------------------------------- */
+
+    private void feedText(ByteBuffer buffer) throws ProtocolException
+    {
+        int start = buffer.position();
+        int limit = buffer.limit();
+
+        for (int i = start; i < limit; ++i)
+        {
+            byte b = buffer.get(i);
+
+            if (b == '\n' || b == '\r')
+            {
+                skipLineFeed = (b == '\r');
+
+                buffer.position(i + 1);
+
+                String message;
+
+                if (partialFrameLength == 0 && buffer.hasArray())
+                {
+                    message = new String(
+                        buffer.array(), buffer.arrayOffset() + start, i - start,
+                        StandardCharsets.UTF_8
+                        );
+                }
+                else
+                {
+                    appendPartial(buffer, start, i);
+
+                    message = new String(
+                        partialFrame, 0, partialFrameLength,
+                        StandardCharsets.UTF_8
+                        );
+
+                    discardPartial();
+                }
+
+                format = null;
+
+                transport.deliverMessage(new TextMsgReader(message));
+
+                return;
+            }
+        }
+
+        appendPartial(buffer, start, limit);
+
+        buffer.position(limit);
+    }
+
+    private void feedBinary(ByteBuffer buffer) throws ProtocolException
+    {
+        // header
+
+        while (frameLength < 0)
+        {
+            if (!buffer.hasRemaining())
+                return;
+
+            byte b = buffer.get();
+
+            if (headerShift == 35)
+                throw new ProtocolException("Malformed frame length.");
+
+            headerValue |= (b & 0x7F) << headerShift;
+            headerShift += 7;
+
+            if (b >= 0)
+            {
+                if (headerValue <= 0 || headerValue > MAX_FRAME_LENGTH)
+                    throw new ProtocolException("Invalid frame length.");
+
+                frameLength = headerValue;
+
+                headerValue = 0;
+                headerShift = 0;
+            }
+        }
+
+        // payload
+
+        ByteBuffer frame;
+
+        if (partialFrameLength == 0 && buffer.remaining() >= frameLength)
+        {
+            frame = buffer.slice();
+            frame.limit(frameLength);
+
+            buffer.position(buffer.position() + frameLength);
+        }
+        else
+        {
+            // the buffer grows as the payload arrives, rather than being
+            // sized from the header, so that announcing a long frame without
+            // sending it costs no memory
+
+            int from = buffer.position();
+            int to   = from + Math.min(
+                frameLength - partialFrameLength,
+                buffer.remaining()
+                );
+
+            appendPartial(buffer, from, to);
+
+            buffer.position(to);
+
+            if (partialFrameLength < frameLength)
+                return;
+
+            frame = ByteBuffer.wrap(partialFrame, 0, partialFrameLength);
+
+            discardPartial();
+        }
+
+        format = null;
+        frameLength = -1;
+
+        transport.deliverMessage(new BinaryMsgReader(frame));
+    }
+
+    private void appendPartial(ByteBuffer buffer, int from, int to)
+        throws ProtocolException
+    {
+        int length = to - from;
+
+        if (length == 0)
+            return;
+
+        if (partialFrameLength + length > MAX_FRAME_LENGTH)
+            throw new ProtocolException("Frame exceeds maximum length.");
+
+        if (partialFrame == null)
+        {
+            partialFrame = new byte[Math.max(length, 64)];
+        }
+        else if (partialFrameLength + length > partialFrame.length)
+        {
+            partialFrame = Arrays.copyOf(
+                partialFrame,
+                Math.max(
+                    partialFrameLength + length,
+                    Math.min(2 * partialFrame.length, MAX_FRAME_LENGTH)
+                    )
+                );
+        }
+
+        ByteBuffer src = buffer.duplicate();
+        src.limit(to);
+        src.position(from);
+        src.get(partialFrame, partialFrameLength, length);
+
+        partialFrameLength += length;
+    }
+
+    private void discardPartial()
+    {
+        partialFrame = null;
+        partialFrameLength = 0;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a new FrameDecoder that delivers messages through the specified
+     * transport.
+     *
+     * @param transport the transport whose MessengerBase receives the messages
+     */
+    FrameDecoder(Transport transport)
+    {
+        this.transport = transport;
+
+        this.format = null;
+
+        this.partialFrame       = null;
+        this.partialFrameLength = 0;
+
+        this.skipLineFeed = false;
+
+        this.frameLength = -1;
+        this.headerValue = 0;
+        this.headerShift = 0;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Consumes all remaining bytes of the specified buffer, delivering every
+     * frame that they complete.
+     * <p>
+     * Messages are decoded directly from the buffer, which must thus not be
+     * modified until this method returns.
+     *
+     * @param buffer the received bytes
+     *
+     * @throws ProtocolException if a malformed or overly long frame is received
+     */
+    void feed(ByteBuffer buffer) throws ProtocolException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (format == null)
+            {
+                // a "\r\n" terminator is consumed as a whole regardless of the
+                // format of the next frame
+
+                if (skipLineFeed)
+                {
+                    skipLineFeed = false;
+
+                    if (buffer.get(buffer.position()) == '\n')
+                    {
+                        buffer.get();
+                        continue;
+                    }
+                }
+
+                format = transport.getWireFormat();
+            }
+
+            if (format == WireFormat.TEXT)
+                feedText(buffer);
+            else
+                feedBinary(buffer);
+        }
+    }
+
+    /**
+     * Discards any partially received frame.
+     */
+    void clear()
+    {
+        discardPartial();
+    }
+}
+
+/* -------------------------------------------------------------------------- */
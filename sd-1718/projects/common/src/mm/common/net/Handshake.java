@@ -0,0 +1,194 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import mm.common.Config;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Implements the exchange of hello messages through which a client and the
+ * server agree on the {@link WireFormat} of a connection.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class Handshake
+{
+    /**
+     * The protocol version assumed for clients that do not send a hello
+     * message, which is also the first version to support handshakes.
+     */
+    public static final int INITIAL_PROTOCOL_VERSION = 1;
+
+    /**
+     * The first protocol version supporting parties.
+     */
+    public static final int PARTIES_PROTOCOL_VERSION = 2;
+
+    // replies longer than this are rejected
+    private static final int MAX_REPLY_LENGTH = 256;
+
+    /* ---------------------------------------------------------------------- */
+
+    private Handshake()
+    {
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Determines the wire format that the server agrees to use with a client
+     * speaking the specified protocol version and requesting the specified
+     * format.
+     * <p>
+     * Clients speaking a protocol version unknown to the server are only ever
+     * granted {@link WireFormat#TEXT}.
+     *
+     * @param protocolVersion the protocol version spoken by the client
+     * @param requested the format requested by the client
+     *
+     * @return the format to be used
+     *
+     * @throws NullPointerException if requested is null
+     */
+    public static WireFormat choose(int protocolVersion, WireFormat requested)
+    {
+        if (requested == null)
+            throw new NullPointerException();
+
+        if (protocolVersion < INITIAL_PROTOCOL_VERSION
+            || protocolVersion > Config.PROTOCOL_VERSION)
+        {
+            return WireFormat.TEXT;
+        }
+
+        return requested;
+    }
+
+    /**
+     * Returns the protocol version that the server speaks with a client that
+     * announced the specified version, which is the lowest of the two.
+     *
+     * @param protocolVersion the protocol version spoken by the client
+     *
+     * @return the protocol version to be used
+     */
+    public static int negotiate(int protocolVersion)
+    {
+        return Math.min(protocolVersion, Config.PROTOCOL_VERSION);
+    }
+
+    /**
+     * Returns whether the specified negotiated protocol version supports
+     * parties, and thus whether party messages may be exchanged.
+     *
+     * @param protocolVersion the negotiated protocol version
+     *
+     * @return whether the protocol version supports parties
+     */
+    public static boolean supportsParties(int protocolVersion)
+    {
+        return protocolVersion >= PARTIES_PROTOCOL_VERSION;
+    }
+
+    /**
+     * Synchronously requests the specified wire format from the server on the
+     * other end of the specified socket.
+     * <p>
+     * Must be invoked before any other message is exchanged through the socket.
+     * The handshake is performed even if the requested format is
+     * {@link WireFormat#TEXT}, as the server only sends party messages to
+     * clients that announced a protocol version supporting them.
+     *
+     * @param socket the socket holding the connection to the server
+     * @param requested the requested format
+     *
+     * @return the format that the server agreed to use
+     *
+     * @throws NullPointerException if socket or requested are null
+     * @throws IOException if an I/O error occurs, the server does not reply in
+     *         time, or the reply is malformed
+     */
+    public static WireFormat request(Socket socket, WireFormat requested)
+        throws IOException
+    {
+        if (socket == null || requested == null)
+            throw new NullPointerException();
+
+        // send hello
+
+        MsgWriter writer = new TextMsgWriter();
+
+        writer.writeClientToServerMsgId(ClientToServerMsgId.HELLO);
+        writer.writeInt(Config.PROTOCOL_VERSION);
+        writer.writeWireFormat(requested);
+
+        socket.getOutputStream().write(writer.toFrame());
+        socket.getOutputStream().flush();
+
+        // receive reply, reading one byte at a time so as to leave subsequent
+        // messages in the socket for the messenger
+
+        int previousTimeout = socket.getSoTimeout();
+
+        socket.setSoTimeout(Config.HANDSHAKE_TIMEOUT_MILLIS);
+
+        byte[] reply = new byte[MAX_REPLY_LENGTH];
+        int replyLength = 0;
+
+        try
+        {
+            InputStream input = socket.getInputStream();
+
+            for (int b; (b = input.read()) != '\n'; )
+            {
+                if (b < 0)
+                    throw new IOException("Connection lost.");
+
+                if (replyLength == reply.length)
+                    throw new ProtocolException("Hello reply too long.");
+
+                reply[replyLength++] = (byte)b;
+            }
+        }
+        finally
+        {
+            socket.setSoTimeout(previousTimeout);
+        }
+
+        // decode reply
+
+        try
+        {
+            MsgReader reader = new TextMsgReader(new String(
+                reply, 0, replyLength,
+                StandardCharsets.UTF_8
+                ));
+
+            if (reader.readServerToClientMsgId() != ServerToClientMsgId.HELLO)
+                throw new ProtocolException("Expected hello reply.");
+
+            reader.readInt(); // server's protocol version
+
+            WireFormat chosen = reader.readWireFormat();
+
+            if (!reader.isEmpty())
+                throw new ProtocolException("Malformed hello reply.");
+
+            return chosen;
+        }
+        catch (IllegalArgumentException | IllegalStateException e)
+        {
+            throw new ProtocolException("Malformed hello reply.");
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
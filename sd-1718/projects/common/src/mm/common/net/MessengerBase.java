@@ -2,15 +2,11 @@
 
 package mm.common.net;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
-import mm.common.util.BlockingQueue;
 import mm.common.util.Util;
 
 /* -------------------------------------------------------------------------- */
@@ -24,102 +20,113 @@ import mm.common.util.Util;
  */
 public abstract class MessengerBase
 {
-    private static interface Proc
-    {
-        void run() throws Exception;
-    }
+    private final Transport transport;
 
-    /* ---------------------------------------------------------------------- */
+    // guards the following fields
+    private final ReentrantLock lock;
 
-    // null if disconnected
-    private Socket socket;
+    // false once the transport has been closed
+    private volatile boolean connected;
 
-    private boolean userRequestedDisconnect;
-    private Throwable userDisconnectionCause;
-    private Throwable internalDisconnectionCause;
+    // format of messages sent and received from now on
+    private volatile WireFormat wireFormat;
 
-    private final Thread readerThread;
+    // null if the outbound queue is unbounded
+    private volatile OutboundLimits outboundLimits;
 
-    private final Thread writerThread;
-    private final BlockingQueue< String > writerMsgQueue;
+    // Updated without synchronization by concurrent senders, which only
+    // makes congestion detection approximate.
+    private volatile boolean outboundCongested;
+
+    private final AtomicLong numDroppedMessages;
+
+    private boolean userRequestedDisconnect;
+    private Throwable userDisconnectionCause;
 
     /* ---------------------------------------------------------------------- */
 
-    private void runProc(Proc proc)
+    // Called by the transport, exactly once, after it delivers its last
+    // message.
+    void onTransportClosed(Throwable internalDisconnectionCause)
     {
+        Throwable disconnectionCause;
+
+        lock.lock();
+
         try
         {
-            proc.run();
+            connected = false;
 
-            throw new RuntimeException(
-                "MessengerBase reader or writer thread terminated"
-                + " unexpectedly"
-                );
+            disconnectionCause =
+                userRequestedDisconnect ?
+                    userDisconnectionCause :
+                    internalDisconnectionCause;
         }
-        catch (Throwable t)
+        finally
         {
-            try
-            {
-                socket.close();
-            }
-            catch (Throwable t2)
-            {
-            }
-
-            synchronized (this)
-            {
-                writerMsgQueue.setPopBlocks(false);
-
-                if (internalDisconnectionCause == null)
-                {
-                    internalDisconnectionCause = t;
-                }
-                else
-                {
-                    socket = null;
+            lock.unlock();
+        }
 
-                    Throwable disconnectionCause =
-                        userRequestedDisconnect ?
-                            userDisconnectionCause :
-                            internalDisconnectionCause;
+        // the callback is not run while holding this instance's lock, as it
+        // may need to send messages to (and thus lock) other instances
 
-                    Util.runCallback(this::onDisconnect, disconnectionCause);
-                }
-            }
-        }
+        Util.runCallback(this::onDisconnect, disconnectionCause);
     }
 
-    private void readerProc() throws IOException
+    // Decides whether a message of the specified length may be queued,
+    // disconnecting the peer if the limits require it.
+    private boolean admitOutbound(int length, boolean coalescible)
     {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(
-            socket.getInputStream(),
-            StandardCharsets.UTF_8
-            ));
+        OutboundLimits limits = outboundLimits;
 
-        for (String msg; (msg = reader.readLine()) != null; )
-            onMessageReceived(msg);
+        if (limits == null)
+            return true;
 
-        throw new RuntimeException("Connection lost.");
-    }
+        long depth = transport.getNumPendingBytes();
 
-    private void writerProc() throws IOException
-    {
-        OutputStreamWriter writer = new OutputStreamWriter(
-            socket.getOutputStream(),
-            StandardCharsets.UTF_8
-            );
+        if (outboundCongested)
+        {
+            if (depth <= limits.getLowWatermark())
+                outboundCongested = false;
+        }
+        else if (depth + length > limits.getHighWatermark())
+        {
+            outboundCongested = true;
+        }
 
-        for (String msg; (msg = writerMsgQueue.pop()) != null; )
+        if (!outboundCongested)
+            return true;
+
+        switch (limits.getOverflowPolicy())
         {
-            writer.write(msg);
-            writer.flush();
+        case DROP_COALESCIBLE:
+            {
+                if (coalescible)
+                {
+                    numDroppedMessages.incrementAndGet();
+                    return false;
+                }
+
+                if (depth + length <= 2 * limits.getHighWatermark())
+                    return true;
+            }
+            break;
+
+        case DISCONNECT:
+            break;
         }
+
+        disconnect(new SlowConsumerException(depth));
+
+        return false;
     }
 
     /* ---------------------------------------------------------------------- */
 
     /**
      * Creates a new MessengerBase that uses the specified socket.
+     * <p>
+     * Messages are exchanged through a {@link SocketTransport}.
      *
      * @param socket the socket holding the connection to be used
      *
@@ -127,16 +134,36 @@ public abstract class MessengerBase
      */
     public MessengerBase(Socket socket)
     {
-        this.socket = Objects.requireNonNull(socket);
+        this(new SocketTransport(socket));
+    }
+
+    /**
+     * Creates a new MessengerBase that exchanges messages through the
+     * specified transport.
+     *
+     * @param transport the transport to be used
+     *
+     * @throws NullPointerException if transport is null
+     * @throws IllegalStateException if transport is already in use by another
+     *         MessengerBase
+     */
+    public MessengerBase(Transport transport)
+    {
+        this.transport = Objects.requireNonNull(transport);
+        this.transport.bind(this);
+
+        lock = new ReentrantLock();
 
-        userRequestedDisconnect    = false;
-        userDisconnectionCause     = null;
-        internalDisconnectionCause = null;
+        connected = true;
 
-        readerThread = new Thread(() -> runProc(this::readerProc));
+        wireFormat = WireFormat.TEXT;
 
-        writerThread   = new Thread(() -> runProc(this::writerProc));
-        writerMsgQueue = new BlockingQueue<>();
+        outboundLimits     = null;
+        outboundCongested  = false;
+        numDroppedMessages = new AtomicLong(0);
+
+        userRequestedDisconnect = false;
+        userDisconnectionCause  = null;
     }
 
     /* ---------------------------------------------------------------------- */
@@ -146,15 +173,89 @@ public abstract class MessengerBase
      *
      * @return true if this MessengerBase is currently connected
      */
-    public synchronized boolean isConnected()
+    public boolean isConnected()
+    {
+        return connected;
+    }
+
+    /**
+     * Returns the number of times that pending messages were flushed to the
+     * connection so far.
+     * <p>
+     * Messages submitted while a previous flush is in progress are coalesced
+     * into the next one, so the ratio between {@link #getNumMessagesFlushed()}
+     * and this value measures how well messages are being batched.
+     *
+     * @return the number of flushes performed so far
+     */
+    public long getNumFlushes()
+    {
+        return transport.getNumFlushes();
+    }
+
+    /**
+     * Returns the number of messages fully written to the connection so far.
+     *
+     * @return the number of messages fully written to the connection so far
+     */
+    public long getNumMessagesFlushed()
+    {
+        return transport.getNumMessagesFlushed();
+    }
+
+    /**
+     * Returns the number of bytes of messages submitted but not yet written to
+     * the connection.
+     *
+     * @return the depth of the outbound queue, in bytes
+     */
+    public long getOutboundQueueDepth()
+    {
+        return transport.getNumPendingBytes();
+    }
+
+    /**
+     * Returns the number of coalescible messages that were dropped because the
+     * outbound queue was congested.
+     *
+     * @return the number of dropped messages
+     *
+     * @see OutboundLimits
+     */
+    public long getNumDroppedMessages()
+    {
+        return numDroppedMessages.get();
+    }
+
+    /**
+     * Bounds the amount of outbound data held for the peer.
+     * <p>
+     * By default, the outbound queue is unbounded.
+     *
+     * @param outboundLimits the limits to be applied, or null to make the
+     *        outbound queue unbounded
+     */
+    public void setOutboundLimits(OutboundLimits outboundLimits)
     {
-        return socket != null;
+        this.outboundLimits = outboundLimits;
+    }
+
+    /**
+     * Returns the format in which messages are currently being exchanged.
+     * <p>
+     * Every connection starts out using {@link WireFormat#TEXT}.
+     *
+     * @return the format in which messages are currently being exchanged
+     */
+    public WireFormat getWireFormat()
+    {
+        return wireFormat;
     }
 
     /* ---------------------------------------------------------------------- */
 
     /**
-     * Starts this MessengerBase's internal threads.
+     * Starts this MessengerBase's transport.
      * <p>
      * No callback is run before this function is invoked.
      * <p>
@@ -171,8 +272,7 @@ public abstract class MessengerBase
      */
     public void start()
     {
-        readerThread.start();
-        writerThread.start();
+        transport.start();
     }
 
     /**
@@ -213,23 +313,24 @@ public abstract class MessengerBase
      * @see #onDisconnect(Throwable)
      * @see #waitUntilDisconnected()
      */
-    public synchronized void disconnect(Throwable cause)
+    public void disconnect(Throwable cause)
     {
-        if (socket != null)
-        {
-            userRequestedDisconnect = true;
-            userDisconnectionCause = cause;
+        lock.lock();
 
-            writerMsgQueue.setPopBlocks(false);
-
-            try
-            {
-                socket.close();
-            }
-            catch (Throwable t)
+        try
+        {
+            if (connected)
             {
+                userRequestedDisconnect = true;
+                userDisconnectionCause = cause;
+
+                transport.close();
             }
         }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     /**
@@ -249,63 +350,83 @@ public abstract class MessengerBase
      */
     public void waitUntilDisconnected()
     {
-        // join readerThread
-
-        while (true)
-        {
-            try
-            {
-                readerThread.join();
-                break;
-            }
-            catch (InterruptedException e)
-            {
-            }
-        }
+        transport.awaitTermination();
+    }
 
-        // join writerThread
+    /* ---------------------------------------------------------------------- */
 
-        while (true)
-        {
-            try
-            {
-                writerThread.join();
-                break;
-            }
-            catch (InterruptedException e)
-            {
-            }
-        }
+    /**
+     * Changes the format in which messages are exchanged.
+     * <p>
+     * The new format applies to messages encoded by writers subsequently
+     * obtained from {@link #newMsgWriter()} and to every message received
+     * after the one currently being handled, if any. The peer must switch
+     * formats at the same point in the stream.
+     *
+     * @param wireFormat the new format
+     *
+     * @throws NullPointerException if wireFormat is null
+     */
+    protected void setWireFormat(WireFormat wireFormat)
+    {
+        this.wireFormat = Objects.requireNonNull(wireFormat);
     }
 
-    /* ---------------------------------------------------------------------- */
+    /**
+     * Creates a new MsgWriter that encodes a message in the current format.
+     *
+     * @return a new MsgWriter
+     */
+    protected MsgWriter newMsgWriter()
+    {
+        return wireFormat.newMsgWriter();
+    }
 
     /**
      * Asynchronously sends a message.
      * <p>
-     * If this MessengerBase is disconnected, this method has no effect.
+     * If this MessengerBase is disconnected, this method has no effect. If
+     * the outbound queue is congested, the peer may be disconnected instead.
+     *
+     * @param message the writer holding the message to be sent
+     *
+     * @throws NullPointerException if message is null
+     * @throws IllegalArgumentException if the message is empty or cannot be
+     *         framed in its format
+     */
+    protected void sendMessage(MsgWriter message)
+    {
+        byte[] frame = message.toFrame();
+
+        if (isConnected() && admitOutbound(frame.length, false))
+            transport.send(frame);
+    }
+
+    /**
+     * Asynchronously sends a pre-encoded message.
+     * <p>
+     * The message is encoded in the current format only if it has not yet
+     * been encoded in that format, and the resulting frame is shared with
+     * every other MessengerBase to which the same message is sent.
+     * <p>
+     * If this MessengerBase is disconnected, this method has no effect. If
+     * the outbound queue is congested, the message may be dropped if it is
+     * coalescible, or the peer may be disconnected instead.
      *
      * @param message the message to be sent
      *
      * @throws NullPointerException if message is null
-     * @throws IllegalArgumentException if the message contains carriage return
-     *         (\r) or line feed (\n) characters
+     * @throws IllegalArgumentException if the message is empty or cannot be
+     *         framed in the current format
      */
-    protected void sendMessage(String message)
+    protected void sendMessage(EncodedMessage message)
     {
-        if (message.isEmpty())
-            throw new IllegalArgumentException("message may not be empty");
+        byte[] frame = message.getFrame(wireFormat);
 
-        if (message.contains("\r") || message.contains("\r"))
-        {
-            throw new IllegalArgumentException(
-                "message may not contain carriage return (\r) or line feed (\n)"
-                + " characters"
-                );
-        }
+        boolean coalescible = message.isCoalescible();
 
-        if (isConnected())
-            writerMsgQueue.push(message + '\n');
+        if (isConnected() && admitOutbound(frame.length, coalescible))
+            transport.send(frame);
     }
 
     /* ---------------------------------------------------------------------- */
@@ -318,8 +439,8 @@ public abstract class MessengerBase
      * MessengerBase instance.
      * <p>
      * From the instant this method is called, the
-     * {@link #onMessageReceived(String)} method is never invoked again on this
-     * instance of MessengerBase. This method is invoked at most once on the
+     * {@link #onMessageReceived(MsgReader)} method is never invoked again on
+     * this instance of MessengerBase. This method is invoked at most once on the
      * same MessengerBase instance.
      * <p>
      * If the implementation of this method throws an exception, the application
@@ -345,10 +466,13 @@ public abstract class MessengerBase
      * If the implementation of this method throws an exception, the connection
      * will be closed and {@link #onDisconnect(Throwable)} will eventually be
      * called with the aforementioned exception as its argument.
+     * <p>
+     * The reader may decode the message directly from the transport's buffers
+     * and must thus not be used after this method returns.
      *
-     * @param message the message that was received
+     * @param message a reader over the message that was received
      */
-    protected abstract void onMessageReceived(String message);
+    protected abstract void onMessageReceived(MsgReader message);
 }
 
 /* -------------------------------------------------------------------------- */
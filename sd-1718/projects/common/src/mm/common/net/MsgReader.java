@@ -4,7 +4,6 @@ package mm.common.net;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
 import mm.common.Config;
 import mm.common.data.AccountInfo;
@@ -14,6 +13,8 @@ import mm.common.data.LeftMatchmakingCause;
 import mm.common.data.LobbyCauseOfDeath;
 import mm.common.data.LoginError;
 import mm.common.data.MatchSummary;
+import mm.common.data.PartyError;
+import mm.common.data.PartyInfo;
 import mm.common.data.ServerStats;
 import mm.common.data.SignUpError;
 import mm.common.data.Team;
@@ -24,26 +25,56 @@ import mm.common.util.Validation;
 
 /**
  * Helper class for decoding messages.
+ * <p>
+ * Subclasses define how the items of a message are decoded from the wire,
+ * mirroring the subclasses of {@link MsgWriter}.
  *
  * @author Alberto Faria
  * @author Fábio Fontes
  */
-public class MsgReader
+public abstract class MsgReader
 {
-    private final StringBuilder remainingMessage;
+    static final ClientToServerMsgId[] CLIENT_TO_SERVER_MSG_IDS =
+        ClientToServerMsgId.values();
+
+    static final ServerToClientMsgId[] SERVER_TO_CLIENT_MSG_IDS =
+        ServerToClientMsgId.values();
+
+    static final LoginError[] LOGIN_ERRORS = LoginError.values();
+
+    static final SignUpError[] SIGN_UP_ERRORS = SignUpError.values();
+
+    static final LeftMatchmakingCause[] LEFT_MATCHMAKING_CAUSES =
+        LeftMatchmakingCause.values();
+
+    static final LobbyCauseOfDeath[] LOBBY_CAUSES_OF_DEATH =
+        LobbyCauseOfDeath.values();
+
+    static final PartyError[] PARTY_ERRORS = PartyError.values();
+
+    static final WireFormat[] WIRE_FORMATS = WireFormat.values();
+
+    static final Team[] TEAMS = Team.values();
+
+    /* --------------------------------------------------------------------- */
+
+    abstract String decodeString(boolean terminal);
+
+    abstract int decodeInt();
+
+    abstract double decodeDouble();
+
+    abstract < E extends Enum< E > > E decodeEnum(E[] constants);
+
+    abstract Hero decodeHero();
 
     /* --------------------------------------------------------------------- */
 
     /**
-     * Creates a new instance of MsgReader for decoding the specified message.
-     *
-     * @param message the message to be decoded
-     *
-     * @throws NullPointerException if message is null
+     * Creates a new instance of MsgReader.
      */
-    public MsgReader(String message)
+    MsgReader()
     {
-        remainingMessage = new StringBuilder(Objects.requireNonNull(message));
     }
 
     /* --------------------------------------------------------------------- */
@@ -53,48 +84,28 @@ public class MsgReader
      *
      * @return true if the original message has been fully consumed
      */
-    public boolean isEmpty()
-    {
-        return remainingMessage.length() == 0;
-    }
+    public abstract boolean isEmpty();
 
     /* --------------------------------------------------------------------- */
 
     public String readString()
     {
-        if (remainingMessage.length() == 0)
-            throw new IllegalStateException("message exhausted");
-
-        int nextColon = remainingMessage.indexOf(":");
-
-        if (nextColon == -1)
-        {
-            String str = remainingMessage.toString();
-
-            remainingMessage.setLength(0);
-
-            return str;
-        }
-        else
-        {
-            String str = remainingMessage.substring(0, nextColon);
-
-            remainingMessage.delete(0, nextColon + 1);
-
-            return str;
-        }
+        return decodeString(false);
     }
 
     public String readTerminalString()
     {
-        if (remainingMessage.length() == 0)
-            throw new IllegalStateException("message exhausted");
-
-        String str = remainingMessage.toString();
+        return decodeString(true);
+    }
 
-        remainingMessage.setLength(0);
+    public int readInt()
+    {
+        return decodeInt();
+    }
 
-        return str;
+    public double readDouble()
+    {
+        return decodeDouble();
     }
 
     public String readUsername()
@@ -114,61 +125,76 @@ public class MsgReader
 
     public double readDuration()
     {
-        return Validation.validateDuration(Double.valueOf(readString()));
+        return Validation.validateDuration(readDouble());
     }
 
     public int readIntegerRank()
     {
-        return Validation.validateIntegerRank(Integer.valueOf(readString()));
+        return Validation.validateIntegerRank(readInt());
     }
 
     public int readPlayerIndex()
     {
-        return Validation.validatePlayerIndex(Integer.valueOf(readString()));
+        return Validation.validatePlayerIndex(readInt());
     }
 
     public ClientToServerMsgId readClientToServerMsgId()
     {
-        return ClientToServerMsgId.valueOf(readString());
+        return decodeEnum(CLIENT_TO_SERVER_MSG_IDS);
     }
 
     public ServerToClientMsgId readServerToClientMsgId()
     {
-        return ServerToClientMsgId.valueOf(readString());
+        return decodeEnum(SERVER_TO_CLIENT_MSG_IDS);
     }
 
     public LoginError readLoginError()
     {
-        return LoginError.valueOf(readString());
+        return decodeEnum(LOGIN_ERRORS);
     }
 
     public SignUpError readSignUpError()
     {
-        return SignUpError.valueOf(readString());
+        return decodeEnum(SIGN_UP_ERRORS);
     }
 
     public LeftMatchmakingCause readLeftMatchmakingCause()
     {
-        return LeftMatchmakingCause.valueOf(readString());
+        return decodeEnum(LEFT_MATCHMAKING_CAUSES);
     }
 
     public LobbyCauseOfDeath readLobbyCauseOfDeath()
     {
-        return LobbyCauseOfDeath.valueOf(readString());
+        return decodeEnum(LOBBY_CAUSES_OF_DEATH);
+    }
+
+    public PartyError readPartyError()
+    {
+        return decodeEnum(PARTY_ERRORS);
+    }
+
+    public WireFormat readWireFormat()
+    {
+        return decodeEnum(WIRE_FORMATS);
+    }
+
+    public Team readTeam()
+    {
+        return decodeEnum(TEAMS);
     }
 
     public Hero readHero()
     {
-        return Hero.fromString(readString());
+        return decodeHero();
     }
 
     public ServerStats readServerStats()
     {
         return new ServerStats(
-            Integer.valueOf(readString()),
-            Integer.valueOf(readString()),
-            Integer.valueOf(readString()),
-            Integer.valueOf(readString())
+            readInt(),
+            readInt(),
+            readInt(),
+            readInt()
             );
     }
 
@@ -176,47 +202,66 @@ public class MsgReader
     {
         return new AccountInfo(
             readString(),
-            Integer.valueOf(readString()),
-            Integer.valueOf(readString()),
-            Integer.valueOf(readString())
+            readInt(),
+            readInt(),
+            readInt()
             );
     }
 
     public TeamInfo readTeamInfo()
     {
-        Team team = Team.valueOf(readString());
+        Team team = readTeam();
 
-        List< TeamInfo.Player > players = new ArrayList<>();
+        List< TeamInfo.Player > players = new ArrayList<>(Config.TEAM_SIZE);
 
         for (int i = 0; i < Config.TEAM_SIZE; ++i)
         {
             players.add(new TeamInfo.Player(
                 readString(),
-                Integer.valueOf(readString())
+                readInt()
                 ));
         }
 
         return new TeamInfo(team, players);
     }
 
+    public PartyInfo readPartyInfo()
+    {
+        int numMembers = readInt();
+
+        if (numMembers < 1 || numMembers > Config.MAX_PARTY_SIZE)
+        {
+            throw new IllegalArgumentException(
+                "invalid number of party members: " + numMembers
+                );
+        }
+
+        List< String > memberUsernames = new ArrayList<>(numMembers);
+
+        for (int i = 0; i < numMembers; ++i)
+            memberUsernames.add(readString());
+
+        return new PartyInfo(memberUsernames);
+    }
+
     public MatchSummary readMatchSummary()
     {
-        Team winner = Team.valueOf(readString());
+        Team winner = readTeam();
 
-        List< List< MatchSummary.Player > > players = new ArrayList<>();
+        List< List< MatchSummary.Player > > players = new ArrayList<>(2);
 
         for (int i = 0; i < 2; ++i)
         {
-            players.add(new ArrayList<>());
+            players.add(new ArrayList<>(Config.TEAM_SIZE));
 
             for (int j = 0; j < Config.TEAM_SIZE; ++j)
             {
                 players.get(i).add(new MatchSummary.Player(
                     readString(),
-                    new ConcreteHero(Integer.valueOf(readString())),
-                    Integer.valueOf(readString()),
-                    Integer.valueOf(readString()),
-                    Integer.valueOf(readString())
+                    new ConcreteHero(readInt()),
+                    readInt(),
+                    readInt(),
+                    readInt()
                     ));
             }
         }
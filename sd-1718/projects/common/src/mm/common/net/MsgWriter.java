@@ -8,6 +8,8 @@ import mm.common.data.LeftMatchmakingCause;
 import mm.common.data.LobbyCauseOfDeath;
 import mm.common.data.LoginError;
 import mm.common.data.MatchSummary;
+import mm.common.data.PartyError;
+import mm.common.data.PartyInfo;
 import mm.common.data.ServerStats;
 import mm.common.data.SignUpError;
 import mm.common.data.Team;
@@ -18,52 +20,69 @@ import mm.common.util.Validation;
 
 /**
  * Helper class for encoding messages.
+ * <p>
+ * Subclasses define how the items of a message are encoded on the wire. A new
+ * instance for a given {@link WireFormat} is obtained through
+ * {@link WireFormat#newMsgWriter()}.
  *
  * @author Alberto Faria
  * @author Fábio Fontes
  */
-public class MsgWriter
+public abstract class MsgWriter
 {
-    private final StringBuilder message;
-
     private boolean wroteTerminalItem;
 
     /* --------------------------------------------------------------------- */
 
-    /**
-     * Creates a new instance of MsgWriter for encoding a new message.
-     */
-    public MsgWriter()
+    private void beginItem()
+    {
+        if (wroteTerminalItem)
+            throw new IllegalStateException("terminal item written");
+    }
+
+    private void writeEnum(Enum< ? > constant)
     {
-        message = new StringBuilder();
+        beginItem();
 
-        wroteTerminalItem = false;
+        encodeEnum(constant);
     }
 
-    /* --------------------------------------------------------------------- */
+    abstract void encodeString(String str);
+
+    abstract void encodeInt(int value);
+
+    abstract void encodeDouble(double value);
+
+    abstract void encodeEnum(Enum< ? > constant);
+
+    abstract void encodeHero(Hero hero);
 
     /**
-     * Returns the currently encoded message.
+     * Returns the encoded message, framed so that it can be transmitted as is.
      *
-     * @return the currently encoded message
+     * @return the framed message
+     *
+     * @throws IllegalArgumentException if the message cannot be framed
+     */
+    abstract byte[] toFrame();
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Creates a new instance of MsgWriter for encoding a new message.
      */
-    @Override
-    public String toString()
+    MsgWriter()
     {
-        return message.toString();
+        wroteTerminalItem = false;
     }
 
     /* --------------------------------------------------------------------- */
 
     public void writeString(String str)
     {
-        if (wroteTerminalItem)
-            throw new IllegalStateException("terminal item written");
-
-        if (message.length() > 0)
-            message.append(':');
+        beginItem();
 
-        message.append(str);
+        encodeString(str);
     }
 
     public void writeTerminalString(String str)
@@ -73,6 +92,20 @@ public class MsgWriter
         wroteTerminalItem = true;
     }
 
+    public void writeInt(int value)
+    {
+        beginItem();
+
+        encodeInt(value);
+    }
+
+    public void writeDouble(double value)
+    {
+        beginItem();
+
+        encodeDouble(value);
+    }
+
     public void writeUsername(String username)
     {
         writeString(Validation.validateUsername(username));
@@ -90,101 +123,126 @@ public class MsgWriter
 
     public void writeDuration(double duration)
     {
-        writeString(Double.toString(Validation.validateDuration(duration)));
+        writeDouble(Validation.validateDuration(duration));
     }
 
     public void writeIntegerRank(int rank)
     {
-        writeString(Integer.toString(Validation.validateIntegerRank(rank)));
+        writeInt(Validation.validateIntegerRank(rank));
     }
 
     public void writePlayerIndex(int playerIndex)
     {
-        writeString(Integer.toString(Validation.validatePlayerIndex(playerIndex)));
+        writeInt(Validation.validatePlayerIndex(playerIndex));
     }
 
     public void writeClientToServerMsgId(ClientToServerMsgId id)
     {
-        writeString(id.toString());
+        writeEnum(id);
     }
 
     public void writeServerToClientMsgId(ServerToClientMsgId id)
     {
-        writeString(id.toString());
+        writeEnum(id);
     }
 
     public void writeLoginError(LoginError error)
     {
-        writeString(error.toString());
+        writeEnum(error);
     }
 
     public void writeSignUpError(SignUpError error)
     {
-        writeString(error.toString());
+        writeEnum(error);
     }
 
     public void writeLeftMatchmakingCause(LeftMatchmakingCause error)
     {
-        writeString(error.toString());
+        writeEnum(error);
     }
 
     public void writeLobbyCauseOfDeath(LobbyCauseOfDeath error)
     {
-        writeString(error.toString());
+        writeEnum(error);
+    }
+
+    public void writePartyError(PartyError error)
+    {
+        writeEnum(error);
+    }
+
+    public void writeWireFormat(WireFormat wireFormat)
+    {
+        writeEnum(wireFormat);
+    }
+
+    public void writeTeam(Team team)
+    {
+        writeEnum(team);
     }
 
     public void writeHero(Hero hero)
     {
-        writeString(hero.toString());
+        beginItem();
+
+        encodeHero(hero);
     }
 
     public void writeServerStats(ServerStats serverStats)
     {
-        writeString(Integer.toString(serverStats.getNumRegisteredPlayers()));
-        writeString(Integer.toString(serverStats.getNumPlayersLoggedIn()));
-        writeString(Integer.toString(serverStats.getNumPlayersInMatchmaking()));
-        writeString(Integer.toString(serverStats.getNumLobbies()));
+        writeInt(serverStats.getNumRegisteredPlayers());
+        writeInt(serverStats.getNumPlayersLoggedIn());
+        writeInt(serverStats.getNumPlayersInMatchmaking());
+        writeInt(serverStats.getNumLobbies());
     }
 
     public void writeAccountInfo(AccountInfo accountInfo)
     {
         writeString(accountInfo.getUsername());
-        writeString(Integer.toString(accountInfo.getNumWonMatches()));
-        writeString(Integer.toString(accountInfo.getNumLostMatches()));
-        writeString(Integer.toString(accountInfo.getRank()));
+        writeInt(accountInfo.getNumWonMatches());
+        writeInt(accountInfo.getNumLostMatches());
+        writeInt(accountInfo.getRank());
     }
 
     public void writeTeamInfo(TeamInfo teamInfo)
     {
-        writeString(teamInfo.getTeam().toString());
+        writeTeam(teamInfo.getTeam());
 
         for (TeamInfo.Player p : teamInfo.getPlayers())
         {
             writeString(p.getUsername());
-            writeString(Integer.toString(p.getRank()));
+            writeInt(p.getRank());
         }
     }
 
+    public void writePartyInfo(PartyInfo partyInfo)
+    {
+        writeInt(partyInfo.getMemberUsernames().size());
+
+        for (String username : partyInfo.getMemberUsernames())
+            writeString(username);
+    }
+
     public void writeMatchSummary(MatchSummary matchSummary)
     {
-        writeString(matchSummary.getWinner().toString());
+        writeTeam(matchSummary.getWinner());
 
         for (MatchSummary.Player p : matchSummary.getPlayers(Team.BLUE))
         {
             writeString(p.getUsername());
-            writeString(Integer.toString(p.getHero().getIndex()));
-            writeString(Integer.toString(p.getKills()));
-            writeString(Integer.toString(p.getAssists()));
-            writeString(Integer.toString(p.getDeaths()));
+            writeInt(p.getHero().getIndex());
+            writeInt(p.getKills());
+            writeInt(p.getAssists());
+            writeInt(p.getDeaths());
         }
 
         for (MatchSummary.Player p : matchSummary.getPlayers(Team.RED))
         {
             writeString(p.getUsername());
-            writeString(Integer.toString(p.getHero().getIndex()));
-            writeString(Integer.toString(p.getKills()));
-            writeString(Integer.toString(p.getAssists()));
-            writeString(Integer.toString(p.getDeaths()));
+            writeInt(p.getHero().getIndex());
+            writeInt(p.getKills());
+            writeInt(p.getAssists());
+            writeInt(p.getDeaths());
         }
     }
 }
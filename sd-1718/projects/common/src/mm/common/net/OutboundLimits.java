@@ -0,0 +1,124 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.util.Objects;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Bounds on the amount of outbound data that a {@link MessengerBase} may hold
+ * for a peer that does not read it fast enough.
+ * <p>
+ * The depth of the outbound queue is the number of bytes submitted but not
+ * yet written to the connection. The queue becomes congested once its depth
+ * would exceed the high watermark, and stops being congested once its depth
+ * falls to the low watermark. What happens while congested is determined by
+ * the {@link OverflowPolicy}.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class OutboundLimits
+{
+    /**
+     * Enumerates what may happen when a message is sent through a congested
+     * outbound queue.
+     */
+    public static enum OverflowPolicy
+    {
+        /**
+         * Coalescible messages, i.e. messages superseded by later messages of
+         * the same kind, are dropped. Other messages are still queued, unless
+         * the queue's depth would exceed twice the high watermark, in which
+         * case the peer is disconnected.
+         */
+        DROP_COALESCIBLE,
+
+        /**
+         * The peer is disconnected.
+         */
+        DISCONNECT
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final long highWatermark;
+    private final long lowWatermark;
+
+    private final OverflowPolicy overflowPolicy;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a new OutboundLimits.
+     *
+     * @param highWatermark the depth above which the queue is congested, in
+     *        bytes
+     * @param lowWatermark the depth at or below which the queue is no longer
+     *        congested, in bytes
+     * @param overflowPolicy what happens while the queue is congested
+     *
+     * @throws NullPointerException if overflowPolicy is null
+     * @throws IllegalArgumentException if highWatermark is not positive, or if
+     *         lowWatermark is negative or greater than highWatermark
+     */
+    public OutboundLimits(
+        long highWatermark, long lowWatermark,
+        OverflowPolicy overflowPolicy
+        )
+    {
+        if (highWatermark <= 0)
+        {
+            throw new IllegalArgumentException(
+                "High watermark must be positive."
+                );
+        }
+
+        if (lowWatermark < 0 || lowWatermark > highWatermark)
+        {
+            throw new IllegalArgumentException(
+                "Low watermark must be between 0 and the high watermark."
+                );
+        }
+
+        this.highWatermark  = highWatermark;
+        this.lowWatermark   = lowWatermark;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Returns the depth above which the queue is congested, in bytes.
+     *
+     * @return the high watermark
+     */
+    public long getHighWatermark()
+    {
+        return highWatermark;
+    }
+
+    /**
+     * Returns the depth at or below which the queue is no longer congested,
+     * in bytes.
+     *
+     * @return the low watermark
+     */
+    public long getLowWatermark()
+    {
+        return lowWatermark;
+    }
+
+    /**
+     * Returns what happens while the queue is congested.
+     *
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,243 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A fixed pool of threads, each running a {@link Selector}-driven event loop
+ * that services the {@link SelectorTransport}s assigned to it.
+ * <p>
+ * Each loop owns a single read buffer and a single write batch which are
+ * shared by all of its transports, so that an idle connection holds no
+ * buffers of its own.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class SelectorLoopGroup
+{
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // maximum number of messages transmitted by a single gathering write
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    /* ---------------------------------------------------------------------- */
+
+    static final class Loop
+    {
+        private final Selector selector;
+
+        private final Queue< Runnable > tasks;
+
+        // false only while the loop is (about to be) blocked in select()
+        private final AtomicBoolean awake;
+
+        private volatile boolean running;
+
+        // a heap buffer, so that FrameDecoder decodes text frames directly
+        // from its array
+        private final ByteBuffer readBuffer;
+        private final ByteBuffer[] writeBatch;
+
+        private final Thread thread;
+
+        /* ------------------------------------------------------------------ */
+
+        private Loop(int index) throws IOException
+        {
+            this.selector = Selector.open();
+
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.awake = new AtomicBoolean(true);
+
+            this.running = true;
+
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+            this.thread = new Thread(this::run, "selector-loop-" + index);
+        }
+
+        private void runTasks()
+        {
+            for (Runnable task; (task = tasks.poll()) != null; )
+                task.run();
+        }
+
+        private void run()
+        {
+            try
+            {
+                while (running)
+                {
+                    awake.set(false);
+
+                    if (tasks.isEmpty())
+                        selector.select();
+                    else
+                        selector.selectNow();
+
+                    awake.set(true);
+
+                    runTasks();
+
+                    Iterator< SelectionKey > it =
+                        selector.selectedKeys().iterator();
+
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        ((SelectorTransport)key.attachment()).onReady(key);
+                    }
+                }
+            }
+            catch (IOException | ClosedSelectorException e)
+            {
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                runTasks();
+
+                IOException cause = new IOException("Selector loop stopped.");
+
+                for (SelectionKey key : selector.keys())
+                    ((SelectorTransport)key.attachment()).closeNow(cause);
+
+                try
+                {
+                    selector.close();
+                }
+                catch (Throwable t)
+                {
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------------ */
+
+        Selector getSelector()
+        {
+            return selector;
+        }
+
+        // Must only be used from this loop's thread.
+        ByteBuffer getReadBuffer()
+        {
+            return readBuffer;
+        }
+
+        // Must only be used from this loop's thread, and must be cleared
+        // after each use.
+        ByteBuffer[] getWriteBatch()
+        {
+            return writeBatch;
+        }
+
+        // Runs task on this loop's thread.
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+
+            if (!awake.getAndSet(true))
+                selector.wakeup();
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final Loop[] loops;
+    private final AtomicInteger nextLoopIndex;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates and starts a SelectorLoopGroup with one loop per available
+     * processor.
+     *
+     * @throws IOException if a selector could not be opened
+     */
+    public SelectorLoopGroup() throws IOException
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates and starts a SelectorLoopGroup with the specified number of
+     * loops.
+     *
+     * @param numLoops the number of loops
+     *
+     * @throws IllegalArgumentException if numLoops is not positive
+     * @throws IOException if a selector could not be opened
+     */
+    public SelectorLoopGroup(int numLoops) throws IOException
+    {
+        if (numLoops < 1)
+            throw new IllegalArgumentException("numLoops must be positive");
+
+        this.loops = new Loop[numLoops];
+        this.nextLoopIndex = new AtomicInteger(0);
+
+        for (int i = 0; i < numLoops; ++i)
+            loops[i] = new Loop(i);
+
+        for (Loop loop : loops)
+            loop.thread.start();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    // Returns the loop to which the next transport should be assigned.
+    Loop next()
+    {
+        int i = nextLoopIndex.getAndIncrement();
+
+        return loops[Math.floorMod(i, loops.length)];
+    }
+
+    /**
+     * Synchronously stops all loops.
+     * <p>
+     * Transports still assigned to this group are closed.
+     */
+    public void shutdown()
+    {
+        for (Loop loop : loops)
+        {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+
+        for (Loop loop : loops)
+        {
+            while (true)
+            {
+                try
+                {
+                    loop.thread.join();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,303 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A {@link Transport} that uses non-blocking I/O on a {@link SocketChannel},
+ * serviced by one of the loops of a {@link SelectorLoopGroup}.
+ * <p>
+ * All I/O and all callbacks happen on the loop's thread. Messages are decoded
+ * directly from the loop's read buffer, so a connection with no partially
+ * received or pending outbound messages holds no buffers.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class SelectorTransport extends Transport
+{
+    private static final int NEW     = 0;
+    private static final int STARTED = 1;
+    private static final int CLOSED  = 2;
+
+    /* ---------------------------------------------------------------------- */
+
+    private final SocketChannel channel;
+    private final SelectorLoopGroup.Loop loop;
+
+    private final AtomicInteger lifecycle;
+    private final CountDownLatch terminated;
+
+    // The following fields must only be accessed from the loop's thread.
+
+    private SelectionKey key;
+    private boolean closed;
+
+    private final FrameDecoder decoder;
+
+    // The following fields may be accessed from any thread.
+
+    private final Queue< ByteBuffer > outbound;
+    private final AtomicBoolean flushScheduled;
+
+    /* ---------------------------------------------------------------------- */
+
+    private void register()
+    {
+        try
+        {
+            channel.configureBlocking(false);
+
+            key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+
+            // messages may have been submitted before registration
+
+            flush();
+        }
+        catch (Throwable t)
+        {
+            closeNow(t);
+        }
+    }
+
+    // Must only be called from the loop's thread.
+    void onReady(SelectionKey key)
+    {
+        try
+        {
+            if (key.isValid() && key.isReadable())
+                read();
+
+            if (key.isValid() && key.isWritable())
+                flush();
+        }
+        catch (Throwable t)
+        {
+            closeNow(t);
+        }
+    }
+
+    // Must only be called from the loop's thread.
+    void closeNow(Throwable cause)
+    {
+        if (closed)
+            return;
+
+        closed = true;
+
+        if (key != null)
+            key.cancel();
+
+        try
+        {
+            channel.close();
+        }
+        catch (Throwable t)
+        {
+        }
+
+        outbound.clear();
+        decoder.clear();
+
+        try
+        {
+            deliverClose(cause);
+        }
+        finally
+        {
+            terminated.countDown();
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private void read() throws IOException
+    {
+        ByteBuffer buffer = loop.getReadBuffer();
+
+        buffer.clear();
+
+        if (channel.read(buffer) < 0)
+            throw new RuntimeException("Connection lost.");
+
+        buffer.flip();
+
+        decoder.feed(buffer);
+    }
+
+    private void flush() throws IOException
+    {
+        if (closed || key == null)
+            return;
+
+        ByteBuffer[] batch = loop.getWriteBatch();
+
+        while (true)
+        {
+            while (true)
+            {
+                // gather pending messages, which only this thread removes
+
+                int numMessages = 0;
+
+                for (ByteBuffer buffer : outbound)
+                {
+                    batch[numMessages++] = buffer;
+
+                    if (numMessages == batch.length)
+                        break;
+                }
+
+                if (numMessages == 0)
+                    break;
+
+                recordDequeued(channel.write(batch, 0, numMessages));
+
+                int numWritten = 0;
+
+                while (numWritten < numMessages
+                    && !batch[numWritten].hasRemaining())
+                {
+                    outbound.poll();
+                    ++numWritten;
+                }
+
+                Arrays.fill(batch, 0, numMessages, null);
+
+                recordFlush(numWritten);
+
+                if (numWritten < numMessages)
+                {
+                    // socket send buffer is full, resume when writable
+
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
+                key.interestOps(SelectionKey.OP_READ);
+
+            flushScheduled.set(false);
+
+            // a message may have been queued after the queue was found empty
+            // but before flushScheduled was cleared
+
+            if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    private void scheduledFlush()
+    {
+        try
+        {
+            flush();
+        }
+        catch (Throwable t)
+        {
+            closeNow(t);
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a new SelectorTransport that uses the specified channel and is
+     * serviced by one of the loops of the specified group.
+     *
+     * @param channel the channel holding the connection to be used
+     * @param loopGroup the group one of whose loops will service the channel
+     *
+     * @throws NullPointerException if channel or loopGroup are null
+     */
+    public SelectorTransport(SocketChannel channel, SelectorLoopGroup loopGroup)
+    {
+        this.channel = Objects.requireNonNull(channel);
+        this.loop    = loopGroup.next();
+
+        this.lifecycle  = new AtomicInteger(NEW);
+        this.terminated = new CountDownLatch(1);
+
+        this.key    = null;
+        this.closed = false;
+
+        this.decoder = new FrameDecoder(this);
+
+        this.outbound       = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean(false);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    @Override
+    void start()
+    {
+        if (lifecycle.compareAndSet(NEW, STARTED))
+            loop.execute(this::register);
+    }
+
+    @Override
+    void send(byte[] message)
+    {
+        recordEnqueued(message.length);
+
+        outbound.add(ByteBuffer.wrap(message));
+
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(this::scheduledFlush);
+    }
+
+    @Override
+    void close()
+    {
+        if (lifecycle.compareAndSet(NEW, CLOSED))
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (Throwable t)
+            {
+            }
+        }
+        else if (lifecycle.get() == STARTED)
+        {
+            loop.execute(() -> closeNow(null));
+        }
+    }
+
+    @Override
+    void awaitTermination()
+    {
+        if (lifecycle.get() != STARTED)
+            return;
+
+        while (true)
+        {
+            try
+            {
+                terminated.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -90,7 +90,36 @@ public enum ServerToClientMsgId
     /**
      * Identifies a message indicating that a match was played.
      */
-    MATCH_PLAYED
+    MATCH_PLAYED,
+
+    /**
+     * Identifies a message replying to a client's hello message, stating the
+     * protocol version spoken by the server and the wire format to be used
+     * from then on.
+     */
+    HELLO,
+
+    /**
+     * Identifies a message indicating that the client's party was created or
+     * its members changed.
+     */
+    PARTY_UPDATED,
+
+    /**
+     * Identifies a message indicating that the client is no longer in a party.
+     */
+    LEFT_PARTY,
+
+    /**
+     * Identifies a message indicating that the client was invited to a party.
+     */
+    PARTY_INVITE_RECEIVED,
+
+    /**
+     * Identifies a message indicating that a previous party-related request
+     * failed.
+     */
+    PARTY_REQUEST_FAILED
 }
 
 /* -------------------------------------------------------------------------- */
@@ -0,0 +1,33 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Passed to {@link MessengerBase#onDisconnect(Throwable)} when the peer was
+ * disconnected for not reading its messages fast enough.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ *
+ * @see OutboundLimits
+ */
+@SuppressWarnings("serial")
+public class SlowConsumerException extends RuntimeException
+{
+    /**
+     * Creates a new SlowConsumerException.
+     *
+     * @param queueDepth the depth of the outbound queue that triggered the
+     *        disconnection, in bytes
+     */
+    public SlowConsumerException(long queueDepth)
+    {
+        super(String.format(
+            "Slow consumer: %d bytes pending in outbound queue.", queueDepth
+            ));
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,260 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mm.common.util.MpscQueue;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A {@link Transport} that uses blocking socket I/O, with one thread reading
+ * from and one thread writing to the socket.
+ * <p>
+ * The threads are obtained from a {@link ThreadFactory}, which may create
+ * virtual threads.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class SocketTransport extends Transport
+{
+    private static final int READ_BUFFER_SIZE  = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    /* ---------------------------------------------------------------------- */
+
+    private static interface Proc
+    {
+        void run() throws Exception;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final Socket socket;
+
+    // set by whichever of the reader and writer threads terminates first
+    private final AtomicReference< Throwable > internalDisconnectionCause;
+
+    private final Thread readerThread;
+
+    private final Thread writerThread;
+    private final MpscQueue< byte[] > writerMsgQueue;
+
+    /* ---------------------------------------------------------------------- */
+
+    private void runProc(Proc proc)
+    {
+        try
+        {
+            proc.run();
+
+            throw new RuntimeException(
+                "SocketTransport reader or writer thread terminated"
+                + " unexpectedly"
+                );
+        }
+        catch (Throwable t)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (Throwable t2)
+            {
+            }
+
+            boolean first = internalDisconnectionCause.compareAndSet(null, t);
+
+            writerMsgQueue.setPopBlocks(false);
+
+            if (!first)
+                deliverClose(internalDisconnectionCause.get());
+        }
+    }
+
+    private void readerProc() throws IOException
+    {
+        InputStream input = socket.getInputStream();
+
+        byte[] chunk = new byte[READ_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+        FrameDecoder decoder = new FrameDecoder(this);
+
+        for (int n; (n = input.read(chunk)) >= 0; )
+        {
+            buffer.clear();
+            buffer.limit(n);
+
+            decoder.feed(buffer);
+        }
+
+        throw new RuntimeException("Connection lost.");
+    }
+
+    private void writerProc() throws IOException
+    {
+        OutputStream output = socket.getOutputStream();
+
+        List< byte[] > batch = new ArrayList<>();
+
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+
+        // drain every queued message at once, coalescing them into as few
+        // writes as possible
+
+        while (writerMsgQueue.popAll(batch) > 0)
+        {
+            int length = 0;
+            long batchLength = 0;
+
+            for (byte[] msg : batch)
+            {
+                batchLength += msg.length;
+
+                if (length + msg.length > buffer.length && length > 0)
+                {
+                    output.write(buffer, 0, length);
+                    length = 0;
+                }
+
+                if (msg.length > buffer.length)
+                {
+                    output.write(msg);
+                }
+                else
+                {
+                    System.arraycopy(msg, 0, buffer, length, msg.length);
+                    length += msg.length;
+                }
+            }
+
+            if (length > 0)
+                output.write(buffer, 0, length);
+
+            output.flush();
+
+            recordDequeued(batchLength);
+            recordFlush(batch.size());
+
+            batch.clear();
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a new SocketTransport that uses the specified socket and
+     * platform threads.
+     *
+     * @param socket the socket holding the connection to be used
+     *
+     * @throws NullPointerException if socket is null
+     */
+    public SocketTransport(Socket socket)
+    {
+        this(socket, Thread::new);
+    }
+
+    /**
+     * Creates a new SocketTransport that uses the specified socket and threads
+     * created by the specified factory.
+     *
+     * @param socket the socket holding the connection to be used
+     * @param threadFactory the factory for the reader and writer threads
+     *
+     * @throws NullPointerException if socket or threadFactory are null
+     */
+    public SocketTransport(Socket socket, ThreadFactory threadFactory)
+    {
+        this.socket = Objects.requireNonNull(socket);
+
+        this.internalDisconnectionCause = new AtomicReference<>(null);
+
+        this.readerThread = threadFactory.newThread(
+            () -> runProc(this::readerProc)
+            );
+
+        this.writerThread = threadFactory.newThread(
+            () -> runProc(this::writerProc)
+            );
+
+        this.writerMsgQueue = new MpscQueue<>();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    @Override
+    void start()
+    {
+        readerThread.start();
+        writerThread.start();
+    }
+
+    @Override
+    void send(byte[] message)
+    {
+        recordEnqueued(message.length);
+
+        writerMsgQueue.push(message);
+    }
+
+    @Override
+    void close()
+    {
+        writerMsgQueue.setPopBlocks(false);
+
+        try
+        {
+            socket.close();
+        }
+        catch (Throwable t)
+        {
+        }
+    }
+
+    @Override
+    void awaitTermination()
+    {
+        // join readerThread
+
+        while (true)
+        {
+            try
+            {
+                readerThread.join();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+
+        // join writerThread
+
+        while (true)
+        {
+            try
+            {
+                writerThread.join();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
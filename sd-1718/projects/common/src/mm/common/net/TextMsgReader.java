@@ -0,0 +1,314 @@
+/* ------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import mm.common.data.ConcreteHero;
+import mm.common.data.Hero;
+import mm.common.data.RandomHero;
+
+/* ------------------------------------------------------------------------- */
+
+/**
+ * Decodes messages in the {@link WireFormat#TEXT} format.
+ * <p>
+ * A TextMsgReader walks a cursor over the message without copying or
+ * modifying it. Numeric fields are parsed in place and enumeration fields are
+ * matched against the constants' names in place, so only string fields
+ * allocate.
+ * <p>
+ * The message must not be modified while it is being decoded.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class TextMsgReader extends MsgReader
+{
+    private static final String RANDOM_HERO = "random";
+
+    // 10^n for every n such that 10^n is exactly representable as a double
+    private static final double[] POWERS_OF_TEN = {
+        1e0 , 1e1 , 1e2 , 1e3 , 1e4 , 1e5 , 1e6 , 1e7 , 1e8 , 1e9 , 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+    // up to this many digits always fit in the 53-bit mantissa of a double
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    /* --------------------------------------------------------------------- */
+
+    private final CharSequence message;
+
+    private final int end;
+
+    // start of the next field
+    private int position;
+
+    // bounds of the field consumed by the last call to nextField
+    private int fieldStart;
+    private int fieldEnd;
+
+    /* --------------------------------------------------------------------- */
+
+    // Consumes the next field, setting fieldStart and fieldEnd.
+    private void nextField(boolean terminal)
+    {
+        if (position >= end)
+            throw new IllegalStateException("message exhausted");
+
+        fieldStart = position;
+        fieldEnd   = end;
+
+        if (!terminal)
+        {
+            for (int i = position; i < end; ++i)
+            {
+                if (message.charAt(i) == ':')
+                {
+                    fieldEnd = i;
+                    break;
+                }
+            }
+        }
+
+        position = (fieldEnd == end) ? end : fieldEnd + 1;
+    }
+
+    private String fieldToString()
+    {
+        return message.subSequence(fieldStart, fieldEnd).toString();
+    }
+
+    private boolean fieldEquals(String str)
+    {
+        int length = fieldEnd - fieldStart;
+
+        if (length != str.length())
+            return false;
+
+        for (int i = 0; i < length; ++i)
+            if (message.charAt(fieldStart + i) != str.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    // Same semantics as Integer.parseInt(), applied to the current field.
+    private int parseIntField()
+    {
+        int i = fieldStart;
+
+        if (i == fieldEnd)
+            throw new NumberFormatException("For input string: \"\"");
+
+        boolean negative = false;
+        int limit = -Integer.MAX_VALUE;
+
+        char first = message.charAt(i);
+
+        if (first == '-' || first == '+')
+        {
+            if (first == '-')
+            {
+                negative = true;
+                limit = Integer.MIN_VALUE;
+            }
+
+            if (++i == fieldEnd)
+                throw numberFormatException();
+        }
+
+        // accumulate negatively to be able to represent Integer.MIN_VALUE
+
+        int multMin = limit / 10;
+        int result = 0;
+
+        while (i < fieldEnd)
+        {
+            int digit = Character.digit(message.charAt(i++), 10);
+
+            if (digit < 0 || result < multMin)
+                throw numberFormatException();
+
+            result *= 10;
+
+            if (result < limit + digit)
+                throw numberFormatException();
+
+            result -= digit;
+        }
+
+        return negative ? result : -result;
+    }
+
+    // Same semantics as Double.parseDouble(), applied to the current field.
+    private double parseDoubleField()
+    {
+        // fast path for plain decimals such as those produced by
+        // Double.toString() for durations, e.g. "10.0": a mantissa and a power
+        // of ten that are both exact yield a correctly rounded quotient
+
+        int i = fieldStart;
+
+        boolean negative = false;
+
+        if (i < fieldEnd && (message.charAt(i) == '-' || message.charAt(i) == '+'))
+            negative = (message.charAt(i++) == '-');
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int numFractionDigits = -1; // -1 until '.' is found
+
+        for (; i < fieldEnd; ++i)
+        {
+            char c = message.charAt(i);
+
+            if (c >= '0' && c <= '9')
+            {
+                mantissa = 10 * mantissa + (c - '0');
+
+                ++numDigits;
+
+                if (numFractionDigits >= 0)
+                    ++numFractionDigits;
+            }
+            else if (c == '.' && numFractionDigits < 0)
+            {
+                numFractionDigits = 0;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        boolean fastPath =
+            i == fieldEnd &&
+            numDigits > 0 &&
+            numDigits <= MAX_EXACT_DIGITS;
+
+        if (!fastPath)
+            return Double.parseDouble(fieldToString());
+
+        double value = mantissa;
+
+        if (numFractionDigits > 0)
+            value /= POWERS_OF_TEN[numFractionDigits];
+
+        return negative ? -value : value;
+    }
+
+    private NumberFormatException numberFormatException()
+    {
+        return new NumberFormatException(
+            "For input string: \"" + fieldToString() + "\""
+            );
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Creates a new instance of TextMsgReader for decoding the specified
+     * message.
+     *
+     * @param message the message to be decoded
+     *
+     * @throws NullPointerException if message is null
+     */
+    public TextMsgReader(CharSequence message)
+    {
+        this(message, 0, message.length());
+    }
+
+    /**
+     * Creates a new instance of TextMsgReader for decoding the message
+     * contained in the specified range of a character sequence.
+     *
+     * @param message the sequence containing the message to be decoded
+     * @param start the index of the first character of the message
+     * @param end the index following the last character of the message
+     *
+     * @throws NullPointerException if message is null
+     * @throws IndexOutOfBoundsException if the range is invalid
+     */
+    public TextMsgReader(CharSequence message, int start, int end)
+    {
+        if (start < 0 || end < start || end > message.length())
+            throw new IndexOutOfBoundsException();
+
+        this.message  = message;
+        this.end      = end;
+        this.position = start;
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    @Override
+    public boolean isEmpty()
+    {
+        return position >= end;
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    @Override
+    String decodeString(boolean terminal)
+    {
+        nextField(terminal);
+
+        return fieldToString();
+    }
+
+    @Override
+    int decodeInt()
+    {
+        nextField(false);
+
+        return parseIntField();
+    }
+
+    @Override
+    double decodeDouble()
+    {
+        nextField(false);
+
+        return parseDoubleField();
+    }
+
+    @Override
+    < E extends Enum< E > > E decodeEnum(E[] constants)
+    {
+        nextField(false);
+
+        for (E constant : constants)
+            if (fieldEquals(constant.name()))
+                return constant;
+
+        throw new IllegalArgumentException(
+            "No enum constant "
+            + constants[0].getDeclaringClass().getCanonicalName()
+            + "." + fieldToString()
+            );
+    }
+
+    @Override
+    Hero decodeHero()
+    {
+        nextField(false);
+
+        if (fieldEquals(RANDOM_HERO))
+            return new RandomHero();
+
+        try
+        {
+            return new ConcreteHero(parseIntField());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(
+                String.format("invalid hero string format: %s", fieldToString())
+                );
+        }
+    }
+}
+
+/* ------------------------------------------------------------------------- */
@@ -0,0 +1,108 @@
+/* ------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.nio.charset.StandardCharsets;
+
+import mm.common.data.Hero;
+
+/* ------------------------------------------------------------------------- */
+
+/**
+ * Encodes messages in the {@link WireFormat#TEXT} format.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class TextMsgWriter extends MsgWriter
+{
+    private final StringBuilder message;
+
+    /* --------------------------------------------------------------------- */
+
+    @Override
+    void encodeString(String str)
+    {
+        if (message.length() > 0)
+            message.append(':');
+
+        message.append(str);
+    }
+
+    @Override
+    void encodeInt(int value)
+    {
+        encodeString(Integer.toString(value));
+    }
+
+    @Override
+    void encodeDouble(double value)
+    {
+        encodeString(Double.toString(value));
+    }
+
+    @Override
+    void encodeEnum(Enum< ? > constant)
+    {
+        encodeString(constant.name());
+    }
+
+    @Override
+    void encodeHero(Hero hero)
+    {
+        encodeString(hero.toString());
+    }
+
+    @Override
+    byte[] toFrame()
+    {
+        if (message.length() == 0)
+            throw new IllegalArgumentException("message may not be empty");
+
+        for (int i = 0; i < message.length(); ++i)
+        {
+            char c = message.charAt(i);
+
+            if (c == '\r' || c == '\n')
+            {
+                throw new IllegalArgumentException(
+                    "message may not contain carriage return (\\r) or line feed"
+                    + " (\\n) characters"
+                    );
+            }
+        }
+
+        message.append('\n');
+
+        byte[] frame = message.toString().getBytes(StandardCharsets.UTF_8);
+
+        message.setLength(message.length() - 1);
+
+        return frame;
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Creates a new instance of TextMsgWriter for encoding a new message.
+     */
+    public TextMsgWriter()
+    {
+        message = new StringBuilder();
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Returns the currently encoded message.
+     *
+     * @return the currently encoded message
+     */
+    @Override
+    public String toString()
+    {
+        return message.toString();
+    }
+}
+
+/* ------------------------------------------------------------------------- */
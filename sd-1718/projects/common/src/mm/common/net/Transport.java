@@ -0,0 +1,148 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Moves encoded messages between a {@link MessengerBase} and its peer.
+ * <p>
+ * A Transport is bound to exactly one MessengerBase. It delivers every
+ * received message to that MessengerBase and, once it stops delivering
+ * messages, notifies it exactly once that the connection was closed. Received
+ * bytes are split into messages by a {@link FrameDecoder}, according to the
+ * MessengerBase's current {@link WireFormat}.
+ * <p>
+ * Received messages are never delivered concurrently.
+ * <p>
+ * Transports may deliver messages on virtual threads (see
+ * {@link SocketTransport}). Code that runs on them, in this package and in
+ * the server's handlers, therefore guards state with the locks of
+ * {@link java.util.concurrent.locks} rather than object monitors, so that a
+ * virtual thread that blocks never pins its carrier thread.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public abstract class Transport
+{
+    private MessengerBase messenger;
+
+    // bytes submitted but not yet written to the connection
+    private final AtomicLong numPendingBytes;
+
+    // Only ever updated by the thread that writes to the connection.
+    private volatile long numFlushes;
+    private volatile long numMessagesFlushed;
+
+    /* ---------------------------------------------------------------------- */
+
+    Transport()
+    {
+        this.messenger = null;
+
+        this.numPendingBytes = new AtomicLong(0);
+
+        this.numFlushes         = 0;
+        this.numMessagesFlushed = 0;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    final void bind(MessengerBase messenger)
+    {
+        if (this.messenger != null)
+            throw new IllegalStateException("transport already bound");
+
+        this.messenger = Objects.requireNonNull(messenger);
+    }
+
+    final WireFormat getWireFormat()
+    {
+        return messenger.getWireFormat();
+    }
+
+    final void deliverMessage(MsgReader message)
+    {
+        messenger.onMessageReceived(message);
+    }
+
+    final void deliverClose(Throwable cause)
+    {
+        messenger.onTransportClosed(cause);
+    }
+
+    // Must be called by implementations of send() before queuing a message.
+    final void recordEnqueued(int numBytes)
+    {
+        numPendingBytes.addAndGet(numBytes);
+    }
+
+    // Must be called after bytes of queued messages are written to the
+    // connection or discarded.
+    final void recordDequeued(long numBytes)
+    {
+        numPendingBytes.addAndGet(-numBytes);
+    }
+
+    final long getNumPendingBytes()
+    {
+        return numPendingBytes.get();
+    }
+
+    // Must only be called by the thread that writes to the connection, after
+    // each flush of the messages that were pending.
+    final void recordFlush(int numMessages)
+    {
+        numFlushes         = numFlushes + 1;
+        numMessagesFlushed = numMessagesFlushed + numMessages;
+    }
+
+    final long getNumFlushes()
+    {
+        return numFlushes;
+    }
+
+    final long getNumMessagesFlushed()
+    {
+        return numMessagesFlushed;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Starts receiving and transmitting messages.
+     * <p>
+     * Invoked at most once.
+     */
+    abstract void start();
+
+    /**
+     * Asynchronously transmits a framed message.
+     * <p>
+     * Messages are transmitted in the order in which they were submitted. The
+     * array may be shared with other transports and must not be modified.
+     *
+     * @param message the framed message
+     */
+    abstract void send(byte[] message);
+
+    /**
+     * Asynchronously closes the connection.
+     * <p>
+     * If this Transport was never started, the connection is closed but the
+     * MessengerBase is not notified.
+     */
+    abstract void close();
+
+    /**
+     * Waits until the MessengerBase has been notified that the connection was
+     * closed, or returns immediately if this Transport was never started.
+     */
+    abstract void awaitTermination();
+}
+
+/* -------------------------------------------------------------------------- */
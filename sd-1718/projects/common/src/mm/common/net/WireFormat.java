@@ -0,0 +1,58 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.net;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Enumerates the formats in which messages may be encoded on the wire.
+ * <p>
+ * Every connection starts out using {@link #TEXT}. A client may request a
+ * different format by sending a {@link ClientToServerMsgId#HELLO} message as
+ * its very first message, to which the server replies with a
+ * {@link ServerToClientMsgId#HELLO} message stating the format to be used from
+ * then on by both parties.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public enum WireFormat
+{
+    /**
+     * Messages are colon-separated UTF-8 text terminated by a line feed.
+     * Enumeration constants are encoded by name and numbers in decimal.
+     */
+    TEXT
+    {
+        @Override
+        public MsgWriter newMsgWriter()
+        {
+            return new TextMsgWriter();
+        }
+    },
+
+    /**
+     * Messages are prefixed by their length. Enumeration constants are encoded
+     * by ordinal, integers as variable-length integers and strings as
+     * length-prefixed UTF-8.
+     */
+    BINARY
+    {
+        @Override
+        public MsgWriter newMsgWriter()
+        {
+            return new BinaryMsgWriter();
+        }
+    };
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a new MsgWriter that encodes a message in this format.
+     *
+     * @return a new MsgWriter
+     */
+    public abstract MsgWriter newMsgWriter();
+}
+
+/* -------------------------------------------------------------------------- */
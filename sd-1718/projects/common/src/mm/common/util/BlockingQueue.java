@@ -3,13 +3,19 @@
 package mm.common.util;
 
 import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /* -------------------------------------------------------------------------- */
 
 /**
  * A simple thread-safe queue with support for blocking pop.
+ * <p>
+ * Blocking is implemented with a {@link ReentrantLock} and a
+ * {@link Condition}, so {@link #pop()} may be invoked from virtual threads.
  *
  * @author Alberto Faria
  * @author Fábio Fontes
@@ -18,6 +24,9 @@ import java.util.Queue;
  */
 public class BlockingQueue<T>
 {
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
     private final Queue<T> queue;
 
     private boolean popBlocks;
@@ -29,6 +38,9 @@ public class BlockingQueue<T>
      */
     public BlockingQueue()
     {
+        lock     = new ReentrantLock();
+        notEmpty = lock.newCondition();
+
         queue = new ArrayDeque<>();
 
         popBlocks = true;
@@ -41,9 +53,18 @@ public class BlockingQueue<T>
      *
      * @return true if whether this queue's pop method blocks.
      */
-    public synchronized boolean getPopBlocks()
+    public boolean getPopBlocks()
     {
-        return popBlocks;
+        lock.lock();
+
+        try
+        {
+            return popBlocks;
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     /**
@@ -54,12 +75,21 @@ public class BlockingQueue<T>
      *
      * @param popBlocks true if this queue's pop method should block
      */
-    public synchronized void setPopBlocks(boolean popBlocks)
+    public void setPopBlocks(boolean popBlocks)
     {
-        this.popBlocks = popBlocks;
+        lock.lock();
+
+        try
+        {
+            this.popBlocks = popBlocks;
 
-        if (!popBlocks)
-            this.notifyAll();
+            if (!popBlocks)
+                notEmpty.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     /**
@@ -69,11 +99,22 @@ public class BlockingQueue<T>
      *
      * @throws NullPointerException if item is null
      */
-    public synchronized void push(T item)
+    public void push(T item)
     {
-        queue.add(Objects.requireNonNull(item));
+        Objects.requireNonNull(item);
 
-        this.notify();
+        lock.lock();
+
+        try
+        {
+            queue.add(item);
+
+            notEmpty.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     /**
@@ -90,29 +131,75 @@ public class BlockingQueue<T>
      *
      * @return an item or null
      */
-    public synchronized T pop()
+    public T pop()
     {
-        while (true)
+        lock.lock();
+
+        try
         {
-            T item = queue.poll();
+            while (true)
+            {
+                T item = queue.poll();
 
-            if (item != null)
-                return item;
+                if (item != null)
+                    return item;
 
-            if (popBlocks)
-            {
-                try
-                {
-                    this.wait();
-                }
-                catch (InterruptedException e)
-                {
-                }
+                if (popBlocks)
+                    notEmpty.awaitUninterruptibly();
+                else
+                    return null;
             }
-            else
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pops all items from this queue.
+     * <p>
+     * If there is at least one item in this queue, all items are removed and
+     * added to the specified collection, oldest first.
+     * <p>
+     * If the queue is empty and {@link #getPopBlocks()} returns true, this
+     * method blocks until at least one item is available to be popped.
+     * <p>
+     * If the queue is empty and {@link #getPopBlocks()} return false, this
+     * method returns 0.
+     *
+     * @param items the collection to which the popped items are added
+     *
+     * @return the number of popped items
+     *
+     * @throws NullPointerException if items is null
+     */
+    public int popAll(Collection< ? super T > items)
+    {
+        Objects.requireNonNull(items);
+
+        lock.lock();
+
+        try
+        {
+            while (queue.isEmpty())
             {
-                return null;
+                if (popBlocks)
+                    notEmpty.awaitUninterruptibly();
+                else
+                    return 0;
             }
+
+            int numItems = queue.size();
+
+            items.addAll(queue);
+            queue.clear();
+
+            return numItems;
+        }
+        finally
+        {
+            lock.unlock();
         }
     }
 }
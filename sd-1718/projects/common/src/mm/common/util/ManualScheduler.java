@@ -0,0 +1,334 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.util;
+
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A {@link Scheduler} whose clock only advances when told to, running the
+ * tasks that become due on the thread that advances it.
+ * <p>
+ * Tasks run in order of their deadlines, and tasks with the same deadline in
+ * order of scheduling, with the clock set to each task's deadline while it
+ * runs. Runs are therefore deterministic, and timeouts of any length take no
+ * real time, which lets tests, benchmarks and simulations exercise them
+ * thousands of times faster than on wall time.
+ * <p>
+ * Tasks may be scheduled and canceled from any thread, but only one thread
+ * may advance the clock at a time. Exceptions thrown by tasks propagate to
+ * the thread advancing the clock, after which the remaining due tasks stay
+ * pending.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class ManualScheduler implements Scheduler
+{
+    private static final class Task
+        implements Scheduler.Timeout, Comparable< Task >
+    {
+        private static final int PENDING  = 0;
+        private static final int CANCELED = 1;
+        private static final int EXPIRED  = 2;
+
+        /* ------------------------------------------------------------------ */
+
+        private final Runnable task;
+
+        // zero for one-shot tasks
+        private final long periodMillis;
+
+        private final AtomicInteger state;
+
+        // the following are guarded by the scheduler's lock
+
+        private long deadlineMillis;
+        private long sequence;
+
+        /* ------------------------------------------------------------------ */
+
+        private Task(Runnable task, long periodMillis)
+        {
+            this.task         = task;
+            this.periodMillis = periodMillis;
+            this.state        = new AtomicInteger(PENDING);
+        }
+
+        /* ------------------------------------------------------------------ */
+
+        @Override
+        public boolean cancel()
+        {
+            // left in the queue, and skipped once due
+
+            return state.compareAndSet(PENDING, CANCELED);
+        }
+
+        @Override
+        public boolean isCanceled()
+        {
+            return state.get() == CANCELED;
+        }
+
+        @Override
+        public int compareTo(Task other)
+        {
+            int c = Long.compare(deadlineMillis, other.deadlineMillis);
+
+            return (c != 0) ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final ReentrantLock lock;
+
+    // the following are guarded by lock
+
+    private final PriorityQueue< Task > tasks;
+    private long nextSequence;
+
+    private boolean stopped;
+
+    // written only while holding lock
+    private volatile long nowMillis;
+
+    /* ---------------------------------------------------------------------- */
+
+    private void enqueue(Task task, long deadlineMillis)
+    {
+        task.deadlineMillis = deadlineMillis;
+        task.sequence       = nextSequence++;
+
+        tasks.add(task);
+    }
+
+    private Task schedule(Runnable task, long delayMillis, long periodMillis)
+    {
+        Objects.requireNonNull(task);
+
+        if (delayMillis < 0)
+            throw new IllegalArgumentException("Delay must be non-negative.");
+
+        Task t = new Task(task, periodMillis);
+
+        lock.lock();
+
+        try
+        {
+            if (!stopped)
+                enqueue(t, nowMillis + delayMillis);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return t;
+    }
+
+    // Removes the next pending task due at or before the specified time and
+    // sets the clock to its deadline, or returns null if there is none.
+    private Task pollDue(long timeMillis)
+    {
+        lock.lock();
+
+        try
+        {
+            while (true)
+            {
+                Task t = tasks.peek();
+
+                if (t == null || t.deadlineMillis > timeMillis)
+                    return null;
+
+                tasks.poll();
+
+                if (t.state.get() != Task.PENDING)
+                    continue;
+
+                nowMillis = t.deadlineMillis;
+
+                if (t.periodMillis == 0)
+                {
+                    if (!t.state.compareAndSet(Task.PENDING, Task.EXPIRED))
+                        continue;
+                }
+                else
+                {
+                    enqueue(t, t.deadlineMillis + t.periodMillis);
+                }
+
+                return t;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a ManualScheduler whose clock starts at zero.
+     */
+    public ManualScheduler()
+    {
+        this.lock = new ReentrantLock();
+
+        this.tasks        = new PriorityQueue<>();
+        this.nextSequence = 0;
+
+        this.stopped = false;
+
+        this.nowMillis = 0;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    @Override
+    public long nowMillis()
+    {
+        return nowMillis;
+    }
+
+    @Override
+    public Scheduler.Timeout schedule(Runnable task, long delayMillis)
+    {
+        return schedule(task, delayMillis, 0);
+    }
+
+    @Override
+    public Scheduler.Timeout scheduleAtFixedRate(
+        Runnable task, long delayMillis, long periodMillis
+        )
+    {
+        if (periodMillis <= 0)
+            throw new IllegalArgumentException("Period must be positive.");
+
+        return schedule(task, delayMillis, periodMillis);
+    }
+
+    @Override
+    public void stop()
+    {
+        lock.lock();
+
+        try
+        {
+            stopped = true;
+            tasks.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Advances the clock by the specified amount of time, running all tasks
+     * that become due, including those they schedule.
+     *
+     * @param millis the amount of time, in milliseconds
+     *
+     * @throws IllegalArgumentException if millis is negative
+     */
+    public void advanceBy(long millis)
+    {
+        if (millis < 0)
+            throw new IllegalArgumentException("Time must be non-negative.");
+
+        advanceTo(nowMillis + millis);
+    }
+
+    /**
+     * Advances the clock to the specified time, running all tasks that become
+     * due, including those they schedule. Has no effect on the clock if the
+     * time has already passed.
+     *
+     * @param timeMillis the time, in milliseconds
+     */
+    public void advanceTo(long timeMillis)
+    {
+        for (Task t; (t = pollDue(timeMillis)) != null; )
+        {
+            if (t.periodMillis == 0 || t.state.get() == Task.PENDING)
+                t.task.run();
+        }
+
+        lock.lock();
+
+        try
+        {
+            nowMillis = Math.max(nowMillis, timeMillis);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Advances the clock to the deadline of the next pending task and runs all
+     * tasks due at that time, including those they schedule with no delay.
+     *
+     * @return false if there were no pending tasks, in which case the clock
+     *         is not advanced
+     */
+    public boolean runNext()
+    {
+        long deadlineMillis;
+
+        lock.lock();
+
+        try
+        {
+            while (!tasks.isEmpty()
+                && tasks.peek().state.get() != Task.PENDING)
+            {
+                tasks.poll();
+            }
+
+            if (tasks.isEmpty())
+                return false;
+
+            deadlineMillis = tasks.peek().deadlineMillis;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        advanceTo(deadlineMillis);
+
+        return true;
+    }
+
+    /**
+     * Returns the number of pending tasks, including canceled tasks that were
+     * not yet discarded.
+     *
+     * @return the number of pending tasks
+     */
+    public int getNumPendingTasks()
+    {
+        lock.lock();
+
+        try
+        {
+            return tasks.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
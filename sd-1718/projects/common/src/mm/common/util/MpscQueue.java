@@ -0,0 +1,263 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.util;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A lock-free multi-producer, single-consumer queue with support for blocking
+ * pop.
+ * <p>
+ * Any number of threads may push items concurrently, but {@link #pop()} and
+ * {@link #popAll(Collection)} must never be invoked concurrently with each
+ * other. Pushing never blocks, and only wakes up the consumer if it is blocked
+ * waiting for items.
+ * <p>
+ * Blocking is implemented with {@link LockSupport}, without any lock.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ *
+ * @param <T> The type of the queue's elements.
+ */
+public class MpscQueue<T>
+{
+    // times the consumer re-checks an empty queue before blocking
+    private static final int NUM_SPINS = 64;
+
+    /* ---------------------------------------------------------------------- */
+
+    private static final class Node<T>
+    {
+        T item;
+
+        volatile Node<T> next;
+
+        Node(T item)
+        {
+            this.item = item;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    // most recently pushed node, swapped in by producers
+    private final AtomicReference< Node<T> > tail;
+
+    // node preceding the oldest item, only accessed by the consumer
+    private Node<T> head;
+
+    // the consumer while it is blocked and not yet woken up, null otherwise
+    private final AtomicReference< Thread > waiter;
+
+    private volatile boolean popBlocks;
+
+    /* ---------------------------------------------------------------------- */
+
+    // Must only be invoked by the consumer. Returns null if the queue is
+    // empty.
+    private T poll()
+    {
+        Node<T> next = head.next;
+
+        if (next == null)
+        {
+            if (tail.get() == head)
+                return null;
+
+            // a producer has swapped tail but not yet linked its node
+
+            while ((next = head.next) == null)
+                Thread.yield();
+        }
+
+        T item = next.item;
+
+        next.item = null;
+        head      = next;
+
+        return item;
+    }
+
+    // Must only be invoked by the consumer. Returns false if the queue is
+    // empty and pop does not block.
+    private boolean awaitItem()
+    {
+        // items often arrive in bursts, so spin briefly before blocking
+
+        for (int i = 0; i < NUM_SPINS; ++i)
+        {
+            if (tail.get() != head)
+                return true;
+
+            if (!popBlocks)
+                return false;
+        }
+
+        Thread current = Thread.currentThread();
+
+        boolean interrupted = false;
+
+        try
+        {
+            while (true)
+            {
+                // publish waiter before checking the queue again, so that a
+                // producer either sees it or its item is seen here
+
+                waiter.set(current);
+
+                if (tail.get() != head)
+                    return true;
+
+                if (!popBlocks)
+                    return false;
+
+                LockSupport.park(this);
+
+                // block uninterruptibly, restoring the interrupt status later
+
+                if (Thread.interrupted())
+                    interrupted = true;
+            }
+        }
+        finally
+        {
+            waiter.set(null);
+
+            if (interrupted)
+                current.interrupt();
+        }
+    }
+
+    // Unparks the consumer if it is blocked. Only the first caller to observe
+    // a blocked consumer pays for the unpark.
+    private void wakeUpConsumer()
+    {
+        Thread w = waiter.get();
+
+        if (w != null && waiter.compareAndSet(w, null))
+            LockSupport.unpark(w);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates an empty MpscQueue.
+     */
+    public MpscQueue()
+    {
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+
+        waiter = new AtomicReference<>(null);
+
+        popBlocks = true;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Checks whether this queue's {@link #pop()} method blocks.
+     *
+     * @return true if whether this queue's pop method blocks.
+     */
+    public boolean getPopBlocks()
+    {
+        return popBlocks;
+    }
+
+    /**
+     * Sets whether this queue's {@link #pop()} method should block.
+     * <p>
+     * If popBlocks if false, any ongoing blocked invocation of pop() is
+     * unblocked.
+     *
+     * @param popBlocks true if this queue's pop method should block
+     */
+    public void setPopBlocks(boolean popBlocks)
+    {
+        this.popBlocks = popBlocks;
+
+        if (!popBlocks)
+            wakeUpConsumer();
+    }
+
+    /**
+     * Pushes an item into this queue.
+     *
+     * @param item the item to be pushed to this queue
+     *
+     * @throws NullPointerException if item is null
+     */
+    public void push(T item)
+    {
+        Node<T> node = new Node<>(Objects.requireNonNull(item));
+
+        tail.getAndSet(node).next = node;
+
+        wakeUpConsumer();
+    }
+
+    /**
+     * Pops an item from this queue.
+     * <p>
+     * If there is at least one item in this queue, the oldest item is removed
+     * and returned.
+     * <p>
+     * If the queue is empty and {@link #getPopBlocks()} returns true, this
+     * method blocks until an item is available to be popped.
+     * <p>
+     * If the queue is empty and {@link #getPopBlocks()} return false, this
+     * method returns null.
+     *
+     * @return an item or null
+     */
+    public T pop()
+    {
+        return awaitItem() ? poll() : null;
+    }
+
+    /**
+     * Pops all items from this queue.
+     * <p>
+     * If there is at least one item in this queue, all items are removed and
+     * added to the specified collection, oldest first.
+     * <p>
+     * If the queue is empty and {@link #getPopBlocks()} returns true, this
+     * method blocks until at least one item is available to be popped.
+     * <p>
+     * If the queue is empty and {@link #getPopBlocks()} return false, this
+     * method returns 0.
+     *
+     * @param items the collection to which the popped items are added
+     *
+     * @return the number of popped items
+     *
+     * @throws NullPointerException if items is null
+     */
+    public int popAll(Collection< ? super T > items)
+    {
+        Objects.requireNonNull(items);
+
+        if (!awaitItem())
+            return 0;
+
+        int numItems = 0;
+
+        for (T item; (item = poll()) != null; )
+        {
+            items.add(item);
+            ++numItems;
+        }
+
+        return numItems;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,93 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.util;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A clock together with a means of running delayed and periodic tasks
+ * according to it.
+ * <p>
+ * Components that only read time and schedule timeouts through a Scheduler
+ * run unchanged on wall time, with {@link TimerWheel}, or on a virtual clock
+ * advanced explicitly, with {@link ManualScheduler}.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public interface Scheduler
+{
+    /**
+     * Handle to a task scheduled on a {@link Scheduler}.
+     */
+    interface Timeout
+    {
+        /**
+         * Cancels the task, so that it is not run again.
+         * <p>
+         * Has no effect if the task was already canceled or, for one-shot
+         * tasks, has already started running.
+         *
+         * @return true if this invocation canceled the task
+         */
+        boolean cancel();
+
+        /**
+         * Checks whether the task was canceled.
+         *
+         * @return true if the task was canceled
+         */
+        boolean isCanceled();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Returns the current time of this scheduler's clock, in milliseconds
+     * since an arbitrary origin that never changes for the same scheduler.
+     *
+     * @return the current time, in milliseconds
+     */
+    long nowMillis();
+
+    /**
+     * Schedules the specified task to run once after the specified delay.
+     * <p>
+     * If this scheduler is stopped before the delay elapses, the task never
+     * runs.
+     *
+     * @param task the task
+     * @param delayMillis the delay, in milliseconds
+     *
+     * @return a handle through which the task may be canceled
+     *
+     * @throws NullPointerException if task is null
+     * @throws IllegalArgumentException if delayMillis is negative
+     */
+    Timeout schedule(Runnable task, long delayMillis);
+
+    /**
+     * Schedules the specified task to run repeatedly, first after the
+     * specified delay and then once every period, until canceled.
+     *
+     * @param task the task
+     * @param delayMillis the delay before the first run, in milliseconds
+     * @param periodMillis the period between runs, in milliseconds
+     *
+     * @return a handle through which the task may be canceled
+     *
+     * @throws NullPointerException if task is null
+     * @throws IllegalArgumentException if delayMillis is negative or
+     *         periodMillis is not positive
+     */
+    Timeout scheduleAtFixedRate(
+        Runnable task, long delayMillis, long periodMillis
+        );
+
+    /**
+     * Stops this scheduler, discarding pending tasks.
+     */
+    void stop();
+}
+
+/* -------------------------------------------------------------------------- */
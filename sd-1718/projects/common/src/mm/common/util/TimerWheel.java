@@ -0,0 +1,440 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A hashed timing wheel that runs delayed and periodic tasks on a single
+ * thread, according to wall time.
+ * <p>
+ * Scheduling and canceling a task take constant time and allocate a single
+ * {@link Timeout}, so that a large number of short-lived timeouts can share one
+ * thread instead of each owning a {@link java.util.Timer}.
+ * <p>
+ * Time advances in ticks of fixed duration, and a task runs on the first tick
+ * at or after its deadline. Tasks are run on the wheel's thread and should
+ * therefore be short. Exceptions thrown by tasks are passed to the thread's
+ * uncaught exception handler, and do not stop the wheel.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class TimerWheel implements Scheduler
+{
+    /**
+     * Handle to a task scheduled on a {@link TimerWheel}.
+     */
+    public static final class Timeout implements Scheduler.Timeout
+    {
+        private static final int PENDING  = 0;
+        private static final int CANCELED = 1;
+        private static final int EXPIRED  = 2;
+
+        /* ------------------------------------------------------------------ */
+
+        private final TimerWheel wheel;
+
+        private final Runnable task;
+
+        // zero for one-shot tasks
+        private final long periodNanos;
+
+        private final AtomicInteger state;
+
+        // the following are only accessed by the wheel's thread
+
+        private long deadlineNanos; // relative to the wheel's start time
+        private long remainingRounds;
+
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        /* ------------------------------------------------------------------ */
+
+        private Timeout(
+            TimerWheel wheel, Runnable task,
+            long deadlineNanos, long periodNanos
+            )
+        {
+            this.wheel         = wheel;
+            this.task          = task;
+            this.periodNanos   = periodNanos;
+            this.state         = new AtomicInteger(PENDING);
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /* ------------------------------------------------------------------ */
+
+        @Override
+        public boolean cancel()
+        {
+            if (!state.compareAndSet(PENDING, CANCELED))
+                return false;
+
+            // let the wheel's thread unlink it from its bucket
+
+            wheel.canceledTimeouts.add(this);
+
+            return true;
+        }
+
+        @Override
+        public boolean isCanceled()
+        {
+            return state.get() == CANCELED;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    // Doubly-linked list of timeouts, only accessed by the wheel's thread.
+    private static final class Bucket
+    {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            timeout.prev   = tail;
+            timeout.next   = null;
+
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+
+            tail = timeout;
+        }
+
+        private void remove(Timeout timeout)
+        {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+
+            timeout.bucket = null;
+            timeout.prev   = null;
+            timeout.next   = null;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private static final long DEFAULT_TICK_MILLIS = 10;
+    private static final int DEFAULT_NUM_BUCKETS = 512;
+
+    /* ---------------------------------------------------------------------- */
+
+    private final long tickNanos;
+
+    private final Bucket[] buckets;
+    private final int bucketMask;
+
+    private final long startTimeNanos;
+
+    private final Queue< Timeout > newTimeouts;
+    private final Queue< Timeout > canceledTimeouts;
+
+    // only accessed by the wheel's thread
+    private final List< Timeout > expiredTimeouts;
+
+    private final Thread thread;
+
+    private volatile boolean running;
+
+    /* ---------------------------------------------------------------------- */
+
+    private void threadProc()
+    {
+        long tick = 0;
+
+        while (running)
+        {
+            // wait for the end of the current tick
+
+            long tickEndNanos = (tick + 1) * tickNanos;
+
+            for (long wait; running && (wait = tickEndNanos - now()) > 0; )
+                LockSupport.parkNanos(this, wait);
+
+            if (!running)
+                break;
+
+            // update buckets
+
+            removeCanceledTimeouts();
+            addNewTimeouts(tick);
+
+            // run expired tasks
+
+            expireTimeouts(buckets[(int)(tick & bucketMask)], tick);
+
+            ++tick;
+        }
+    }
+
+    private void removeCanceledTimeouts()
+    {
+        for (Timeout t; (t = canceledTimeouts.poll()) != null; )
+        {
+            if (t.bucket != null)
+                t.bucket.remove(t);
+        }
+    }
+
+    private void addNewTimeouts(long currentTick)
+    {
+        for (Timeout t; (t = newTimeouts.poll()) != null; )
+        {
+            if (t.state.get() == Timeout.PENDING)
+                addTimeout(t, currentTick);
+        }
+    }
+
+    private void addTimeout(Timeout timeout, long currentTick)
+    {
+        long deadlineTick = timeout.deadlineNanos / tickNanos;
+
+        // timeouts whose deadline has passed expire on the current tick
+
+        long tick = Math.max(deadlineTick, currentTick);
+
+        timeout.remainingRounds = (tick - currentTick) / buckets.length;
+
+        buckets[(int)(tick & bucketMask)].add(timeout);
+    }
+
+    private void expireTimeouts(Bucket bucket, long currentTick)
+    {
+        // unlink all expired timeouts before running any task, so that
+        // rescheduled periodic tasks are not seen again in this tick
+
+        Timeout t = bucket.head;
+
+        while (t != null)
+        {
+            Timeout next = t.next;
+
+            if (t.remainingRounds > 0)
+            {
+                --t.remainingRounds;
+            }
+            else
+            {
+                bucket.remove(t);
+                expiredTimeouts.add(t);
+            }
+
+            t = next;
+        }
+
+        for (Timeout expired : expiredTimeouts)
+            runTask(expired, currentTick);
+
+        expiredTimeouts.clear();
+    }
+
+    private void runTask(Timeout timeout, long currentTick)
+    {
+        if (timeout.periodNanos == 0)
+        {
+            if (!timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+                return;
+        }
+        else if (timeout.state.get() != Timeout.PENDING)
+        {
+            return;
+        }
+
+        try
+        {
+            timeout.task.run();
+        }
+        catch (Throwable t)
+        {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+        }
+
+        // reschedule periodic tasks, without falling behind if late
+
+        if (timeout.periodNanos != 0
+            && timeout.state.get() == Timeout.PENDING)
+        {
+            timeout.deadlineNanos = Math.max(
+                timeout.deadlineNanos + timeout.periodNanos,
+                (currentTick + 1) * tickNanos
+                );
+
+            addTimeout(timeout, currentTick + 1);
+        }
+    }
+
+    private long now()
+    {
+        return System.nanoTime() - startTimeNanos;
+    }
+
+    private Timeout schedule(
+        Runnable task, long delayMillis, long periodMillis
+        )
+    {
+        Objects.requireNonNull(task);
+
+        if (delayMillis < 0)
+            throw new IllegalArgumentException("Delay must be non-negative.");
+
+        Timeout timeout = new Timeout(
+            this, task,
+            now() + TimeUnit.MILLISECONDS.toNanos(delayMillis),
+            TimeUnit.MILLISECONDS.toNanos(periodMillis)
+            );
+
+        newTimeouts.add(timeout);
+
+        return timeout;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates and starts a TimerWheel with a tick duration of 10 milliseconds
+     * and 512 buckets.
+     */
+    public TimerWheel()
+    {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_NUM_BUCKETS);
+    }
+
+    /**
+     * Creates and starts a TimerWheel with the specified tick duration and
+     * number of buckets.
+     * <p>
+     * The wheel's thread is a daemon thread.
+     *
+     * @param tickMillis the duration of each tick, in milliseconds
+     * @param numBuckets the number of buckets, rounded up to a power of two
+     *
+     * @throws IllegalArgumentException if tickMillis or numBuckets are not
+     *         positive, or if numBuckets is too large
+     */
+    public TimerWheel(long tickMillis, int numBuckets)
+    {
+        if (tickMillis <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Tick duration must be positive."
+                );
+        }
+
+        if (numBuckets <= 0 || numBuckets > (1 << 30))
+        {
+            throw new IllegalArgumentException(
+                "Number of buckets must be positive and at most 2^30."
+                );
+        }
+
+        int size = Integer.highestOneBit(numBuckets);
+
+        if (size < numBuckets)
+            size <<= 1;
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        this.buckets    = new Bucket[size];
+        this.bucketMask = size - 1;
+
+        for (int i = 0; i < size; ++i)
+            this.buckets[i] = new Bucket();
+
+        this.startTimeNanos = System.nanoTime();
+
+        this.newTimeouts      = new ConcurrentLinkedQueue<>();
+        this.canceledTimeouts = new ConcurrentLinkedQueue<>();
+        this.expiredTimeouts  = new ArrayList<>();
+
+        this.running = true;
+
+        this.thread = new Thread(this::threadProc, "TimerWheel");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The origin is the time at which this wheel was created.
+     */
+    @Override
+    public long nowMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(now());
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delayMillis)
+    {
+        return schedule(task, delayMillis, 0);
+    }
+
+    @Override
+    public Timeout scheduleAtFixedRate(
+        Runnable task, long delayMillis, long periodMillis
+        )
+    {
+        if (periodMillis <= 0)
+            throw new IllegalArgumentException("Period must be positive.");
+
+        return schedule(task, delayMillis, periodMillis);
+    }
+
+    /**
+     * Synchronously stops this wheel.
+     * <p>
+     * Pending tasks are discarded. If invoked from a task, this method returns
+     * without waiting for the wheel's thread to terminate.
+     */
+    @Override
+    public void stop()
+    {
+        running = false;
+
+        LockSupport.unpark(thread);
+
+        if (Thread.currentThread() == thread)
+            return;
+
+        while (true)
+        {
+            try
+            {
+                thread.join();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -5,6 +5,7 @@ package mm.common.util;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -66,6 +67,37 @@ public class Util
 
     /* ---------------------------------------------------------------------- */
 
+    /**
+     * Returns a factory that creates virtual threads.
+     * <p>
+     * Virtual threads are only available on Java 21 or later, so the factory
+     * is obtained reflectively.
+     *
+     * @return a factory that creates virtual threads
+     *
+     * @throws UnsupportedOperationException if the running JVM does not
+     *         support virtual threads
+     */
+    public static ThreadFactory newVirtualThreadFactory()
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            Class< ? > builderClass = Class.forName("java.lang.Thread$Builder");
+
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new UnsupportedOperationException(
+                "Virtual threads require Java 21 or later.", e
+                );
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
     public static void runCallback(Runnable callback)
     {
         if (callback != null)
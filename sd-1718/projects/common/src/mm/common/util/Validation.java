@@ -97,6 +97,18 @@ public class Validation
         return rank;
     }
 
+    public static int validateSessionId(int sessionId)
+    {
+        if (sessionId < 0)
+        {
+            throw new IllegalArgumentException(
+                "invalid session id: " + sessionId
+                );
+        }
+
+        return sessionId;
+    }
+
     public static int validatePlayerIndex(int playerIndex)
     {
         if (playerIndex < 0 || playerIndex >= Config.TEAM_SIZE)
@@ -4,7 +4,11 @@ package mm.server;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Objects;
 
+import mm.common.net.OutboundLimits;
+import mm.server.auth.AccountManager;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
@@ -14,6 +18,77 @@ import net.sourceforge.argparse4j.inf.Namespace;
 
 public class Arguments
 {
+    /**
+     * Enumerates the ways in which the server may keep player accounts.
+     */
+    public static enum AccountStoreMode
+    {
+        /**
+         * All accounts are kept on the heap, loaded from the accounts file on
+         * startup, and changes are appended to a journal next to it.
+         */
+        HEAP,
+
+        /**
+         * Accounts are kept in fixed-size records in the accounts file, which
+         * is memory-mapped and indexed by username, and are only read while
+         * in use.
+         */
+        MAPPED
+    }
+
+    /**
+     * Enumerates the ways in which the server may service its connections.
+     */
+    public static enum TransportMode
+    {
+        /**
+         * Each connection is serviced by a reader and a writer thread using
+         * blocking I/O.
+         */
+        THREADS,
+
+        /**
+         * Each connection is serviced by a reader and a writer virtual thread
+         * using blocking I/O. Requires Java 21 or later.
+         */
+        VIRTUAL_THREADS,
+
+        /**
+         * All connections are serviced by a pool of selector loops, one per
+         * available processor, using non-blocking I/O.
+         */
+        NIO
+    }
+
+    /**
+     * Enumerates the algorithms with which the server may group players into
+     * lobbies.
+     */
+    public static enum MatchmakerMode
+    {
+        /**
+         * Players are grouped by integer rank into fixed buckets, and a lobby
+         * forms as soon as one bucket fills.
+         */
+        BUCKETS,
+
+        /**
+         * Players are grouped by continuous rank, with acceptable rank
+         * differences that widen with the time spent waiting.
+         */
+        RATING,
+
+        /**
+         * Players are grouped by continuous rank as in {@link #RATING}, but
+         * lobbies are only formed periodically, choosing the best set of
+         * lobbies among all waiting players.
+         */
+        BATCH
+    }
+
+    /* ---------------------------------------------------------------------- */
+
     private static final ArgumentParser PARSER;
 
     static
@@ -37,6 +112,54 @@ public class Arguments
                 + " accounts are not saved."
                 );
 
+        PARSER
+            .addArgument("-d")
+            .metavar("account_store")
+            .choices("heap", "mapped")
+            .setDefault("heap")
+            .help(
+                "How player accounts are kept: \"heap\" loads all accounts"
+                + " into memory and journals changes, \"mapped\" keeps them in"
+                + " fixed-size records in a memory-mapped accounts file, which"
+                + " is not compatible with the \"heap\" format. Ignored if no"
+                + " accounts file is specified."
+                );
+
+        PARSER
+            .addArgument("-p")
+            .metavar("hash_iterations")
+            .type(Integer.class)
+            .setDefault(AccountManager.DEFAULT_HASH_ITERATIONS)
+            .help(
+                "Number of PBKDF2 iterations used to hash passwords. Existing"
+                + " hashes with fewer iterations are replaced when their"
+                + " accounts log in."
+                );
+
+        PARSER
+            .addArgument("-j")
+            .metavar("auth_workers")
+            .type(Integer.class)
+            .setDefault(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
+                )
+            .help(
+                "Number of threads that verify credentials on login and sign"
+                + " up, which is kept below the number of processors so that"
+                + " login storms leave processors for gameplay."
+                );
+
+        PARSER
+            .addArgument("-b")
+            .metavar("auth_backlog")
+            .type(Integer.class)
+            .setDefault(256)
+            .help(
+                "Number of logins and sign ups that may wait for a free"
+                + " authentication thread. Further ones fail immediately and"
+                + " should be retried by clients."
+                );
+
         PARSER
             .addArgument("-m")
             .metavar("time_to_accept_match")
@@ -63,6 +186,120 @@ public class Arguments
                 "Interval between resending server statistics to clients, in"
                 + " seconds"
                 );
+
+        PARSER
+            .addArgument("-n")
+            .metavar("transport")
+            .choices("threads", "virtual-threads", "nio")
+            .setDefault("threads")
+            .help(
+                "How connections are serviced: \"threads\" uses two threads"
+                + " per connection, \"virtual-threads\" uses two virtual"
+                + " threads per connection, \"nio\" uses one selector loop per"
+                + " processor for all connections."
+                );
+
+        PARSER
+            .addArgument("-q")
+            .metavar("high-low")
+            .setDefault("1024-256")
+            .help(
+                "High and low watermarks of each client's outbound queue, in"
+                + " KiB, or \"unbounded\". A queue becomes congested once it"
+                + " holds more than high KiB, and stops being congested once it"
+                + " holds at most low KiB."
+                );
+
+        PARSER
+            .addArgument("-o")
+            .metavar("overflow_policy")
+            .choices("drop-coalescible", "disconnect")
+            .setDefault("drop-coalescible")
+            .help(
+                "What happens to clients with a congested outbound queue:"
+                + " \"drop-coalescible\" drops messages such as server"
+                + " statistics and only disconnects the client if its queue"
+                + " reaches twice the high watermark, \"disconnect\""
+                + " disconnects the client immediately."
+                );
+
+        PARSER
+            .addArgument("-k")
+            .metavar("matchmaker")
+            .choices("buckets", "rating", "batch")
+            .setDefault("buckets")
+            .help(
+                "How players are grouped into lobbies: \"buckets\" groups"
+                + " players whose integer ranks differ by at most one, as soon"
+                + " as enough of them are waiting, \"rating\" groups players"
+                + " by continuous rank within windows that widen while they"
+                + " wait, \"batch\" does the same but forms lobbies only"
+                + " periodically, choosing the best lobbies among all waiting"
+                + " players."
+                );
+
+        PARSER
+            .addArgument("-w")
+            .metavar("initial-growth")
+            .setDefault("0.5-0.1")
+            .help(
+                "For the \"rating\" and \"batch\" matchmakers, the largest"
+                + " rank difference accepted by players that just joined"
+                + " matchmaking, and how much it grows per second of waiting."
+                );
+
+        PARSER
+            .addArgument("-i")
+            .metavar("matchmaking_interval")
+            .type(Double.class)
+            .setDefault(0.25)
+            .help(
+                "For the \"rating\" and \"batch\" matchmakers, the interval"
+                + " (in seconds) between attempts to form lobbies that did not"
+                + " form when players joined matchmaking."
+                );
+    }
+
+    private static double[] parseWindow(String window)
+    {
+        String[] parts = window.split("-", -1);
+
+        if (parts.length != 2)
+        {
+            throw new IllegalArgumentException(
+                "Matchmaking window must be in the format initial-growth."
+                );
+        }
+
+        return new double[] {
+            Double.parseDouble(parts[0]),
+            Double.parseDouble(parts[1])
+            };
+    }
+
+    private static OutboundLimits parseOutboundLimits(
+        String watermarks, String overflowPolicy
+        )
+    {
+        if (watermarks.equals("unbounded"))
+            return null;
+
+        String[] parts = watermarks.split("-", -1);
+
+        if (parts.length != 2)
+        {
+            throw new IllegalArgumentException(
+                "Outbound queue watermarks must be in the format high-low."
+                );
+        }
+
+        return new OutboundLimits(
+            1024 * Long.parseLong(parts[0]),
+            1024 * Long.parseLong(parts[1]),
+            OutboundLimits.OverflowPolicy.valueOf(
+                overflowPolicy.toUpperCase(Locale.ROOT).replace('-', '_')
+                )
+            );
     }
 
     /* ---------------------------------------------------------------------- */
@@ -75,12 +312,29 @@ public class Arguments
 
             String accountsFile = ns.getString("a");
 
+            double[] window = parseWindow(ns.getString("w"));
+
             return new Arguments(
                 ns.getInt("port"),
                 (accountsFile == null) ? null : Paths.get(accountsFile),
+                AccountStoreMode.valueOf(
+                    ns.getString("d").toUpperCase(Locale.ROOT)
+                    ),
+                ns.getInt("p"),
+                ns.getInt("j"),
+                ns.getInt("b"),
                 ns.getDouble("m"),
                 ns.getDouble("s"),
-                ns.getDouble("t")
+                ns.getDouble("t"),
+                TransportMode.valueOf(
+                    ns.getString("n").toUpperCase(Locale.ROOT).replace('-', '_')
+                    ),
+                parseOutboundLimits(ns.getString("q"), ns.getString("o")),
+                MatchmakerMode.valueOf(
+                    ns.getString("k").toUpperCase(Locale.ROOT)
+                    ),
+                window[0], window[1],
+                ns.getDouble("i")
                 );
         }
         catch (ArgumentParserException e)
@@ -104,18 +358,44 @@ public class Arguments
 
     private final Path playerAccountsFile;
 
+    private final AccountStoreMode accountStoreMode;
+
+    private final int passwordHashIterations;
+
+    private final int numAuthWorkers;
+    private final int authBacklog;
+
     private final double timeToAcceptMatch;
     private final double timeToSelectHero;
 
     private final double serverStatsInterval;
 
+    private final TransportMode transportMode;
+
+    private final OutboundLimits outboundLimits;
+
+    private final MatchmakerMode matchmakerMode;
+
+    private final double initialMatchmakingWindow;
+    private final double matchmakingWindowGrowth;
+
+    private final double matchmakingInterval;
+
     /* ---------------------------------------------------------------------- */
 
     public Arguments(
         int port,
         Path playerAccountsFile,
+        AccountStoreMode accountStoreMode,
+        int passwordHashIterations,
+        int numAuthWorkers, int authBacklog,
         double timeToAcceptMatch, double timeToSelectHero,
-        double serverStatsInterval
+        double serverStatsInterval,
+        TransportMode transportMode,
+        OutboundLimits outboundLimits,
+        MatchmakerMode matchmakerMode,
+        double initialMatchmakingWindow, double matchmakingWindowGrowth,
+        double matchmakingInterval
         )
     {
         if (timeToAcceptMatch < 1)
@@ -143,10 +423,56 @@ public class Arguments
 
         this.playerAccountsFile = playerAccountsFile;
 
+        this.accountStoreMode = Objects.requireNonNull(accountStoreMode);
+
+        if (passwordHashIterations <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Number of password hash iterations must be positive."
+                );
+        }
+
+        if (numAuthWorkers <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Number of authentication workers must be positive."
+                );
+        }
+
+        if (authBacklog <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Authentication backlog must be positive."
+                );
+        }
+
+        this.passwordHashIterations = passwordHashIterations;
+
+        this.numAuthWorkers = numAuthWorkers;
+        this.authBacklog    = authBacklog;
+
         this.timeToAcceptMatch = timeToAcceptMatch;
         this.timeToSelectHero  = timeToSelectHero;
 
         this.serverStatsInterval = serverStatsInterval;
+
+        this.transportMode = Objects.requireNonNull(transportMode);
+
+        this.outboundLimits = outboundLimits;
+
+        if (!(matchmakingInterval > 0))
+        {
+            throw new IllegalArgumentException(
+                "Matchmaking interval must be positive."
+                );
+        }
+
+        this.matchmakerMode = Objects.requireNonNull(matchmakerMode);
+
+        this.initialMatchmakingWindow = initialMatchmakingWindow;
+        this.matchmakingWindowGrowth  = matchmakingWindowGrowth;
+
+        this.matchmakingInterval = matchmakingInterval;
     }
 
     /* ---------------------------------------------------------------------- */
@@ -161,6 +487,27 @@ public class Arguments
         return playerAccountsFile;
     }
 
+    public AccountStoreMode getAccountStoreMode()
+    {
+        return accountStoreMode;
+    }
+
+    public int getPasswordHashIterations()
+    {
+        return passwordHashIterations;
+    }
+
+    public int getNumAuthWorkers()
+    {
+        return numAuthWorkers;
+    }
+
+    // maximum number of authentications waiting for a worker
+    public int getAuthBacklog()
+    {
+        return authBacklog;
+    }
+
     public double getTimeToAcceptMatch()
     {
         return timeToAcceptMatch;
@@ -175,6 +522,42 @@ public class Arguments
     {
         return serverStatsInterval;
     }
+
+    public TransportMode getTransportMode()
+    {
+        return transportMode;
+    }
+
+    // null if outbound queues are unbounded
+    public OutboundLimits getOutboundLimits()
+    {
+        return outboundLimits;
+    }
+
+    public MatchmakerMode getMatchmakerMode()
+    {
+        return matchmakerMode;
+    }
+
+    // largest rank difference accepted by players that just joined
+    // matchmaking, for MatchmakerMode.RATING and MatchmakerMode.BATCH
+    public double getInitialMatchmakingWindow()
+    {
+        return initialMatchmakingWindow;
+    }
+
+    // growth of the above per second of waiting, for MatchmakerMode.RATING
+    // and MatchmakerMode.BATCH
+    public double getMatchmakingWindowGrowth()
+    {
+        return matchmakingWindowGrowth;
+    }
+
+    // in seconds, for MatchmakerMode.RATING and MatchmakerMode.BATCH
+    public double getMatchmakingInterval()
+    {
+        return matchmakingInterval;
+    }
 }
 
 /* -------------------------------------------------------------------------- */
@@ -38,6 +38,16 @@ public class Main
 
             server = new NetServer(arguments, Main::onServerStop);
 
+            if (server.getNumAccounts() > 0)
+            {
+                System.out.println(String.format(
+                    "Loaded %d accounts in %.2f seconds (%.0f accounts/s).",
+                    server.getNumAccounts(),
+                    server.getAccountLoadTime(),
+                    server.getNumAccounts() / server.getAccountLoadTime()
+                    ));
+            }
+
             // wait for user input
 
             System.out.println(
@@ -54,6 +64,27 @@ public class Main
         {
             // stop server
 
+            if (server != null)
+            {
+                System.out.println(String.format(
+                    "Messages per flush: %.2f", server.getMessagesPerFlush()
+                    ));
+
+                System.out.println(String.format(
+                    "Outbound queues: %d bytes pending, %d messages dropped,"
+                    + " %d slow clients evicted",
+                    server.getOutboundQueueDepth(),
+                    server.getNumDroppedMessages(),
+                    server.getNumSlowConsumersEvicted()
+                    ));
+
+                System.out.println(String.format(
+                    "Authentication: %d pending, %d turned away",
+                    server.getAuthQueueDepth(),
+                    server.getNumAuthRejections()
+                    ));
+            }
+
             System.out.println("Stopping server...");
 
             if (server != null)
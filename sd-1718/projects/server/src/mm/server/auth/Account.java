@@ -3,6 +3,8 @@
 package mm.server.auth;
 
 import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import mm.common.Config;
 import mm.common.data.AccountInfo;
@@ -10,36 +12,103 @@ import mm.common.util.Validation;
 
 /* -------------------------------------------------------------------------- */
 
+/**
+ * A player account.
+ * <p>
+ * Accounts are read without locking, so that logins never contend with each
+ * other. Changes are serialized by the account's own lock, and each change is
+ * persisted while holding it, so that persisted states follow the order of
+ * changes. Changes may be made while holding NetServer's locks, and persisting
+ * them takes the store's locks, so an account's lock is always taken after the
+ * former and before the latter.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
 public class Account
 {
     private final String username;
-    private final String password;
 
-    private int numWonMatches;
-    private int numLostMatches;
+    // a hash (see Passwords), or a plain text password in accounts created
+    // before passwords were hashed; written only while holding lock
+    private volatile String passwordHash;
 
-    private double rank;
+    // written only while holding lock
+
+    private volatile int numWonMatches;
+    private volatile int numLostMatches;
+
+    private volatile double rank;
+
+    // persists changes, null if changes are not persisted
+    private Consumer< Account > onChange;
+
+    // serializes changes
+    private final ReentrantLock lock;
 
     /* ---------------------------------------------------------------------- */
 
-    public Account(String username, String password)
+    public Account(String username, String passwordHash)
     {
-        this(username, password, 0, 0, Config.INITIAL_RANK);
+        this(username, passwordHash, 0, 0, Config.INITIAL_RANK);
     }
 
     public Account(
-        String username, String password,
+        String username, String passwordHash,
         int numWonMatches, int numLostMatches,
         double rank
         )
     {
-        this.username = Validation.validateUsername(username);
-        this.password = Validation.validatePassword(password);
+        this(
+            Validation.validateUsername(username),
+            validatePasswordHash(passwordHash),
+            Validation.validateCount(numWonMatches),
+            Validation.validateCount(numLostMatches),
+            Validation.validateDoubleRank(rank),
+            null
+            );
+    }
+
+    private Account(
+        String username, String passwordHash,
+        int numWonMatches, int numLostMatches,
+        double rank,
+        Consumer< Account > onChange
+        )
+    {
+        this.username     = username;
+        this.passwordHash = passwordHash;
+
+        this.numWonMatches  = numWonMatches;
+        this.numLostMatches = numLostMatches;
+
+        this.rank = rank;
+
+        this.onChange = onChange;
+
+        this.lock = new ReentrantLock();
+    }
+
+    // Creates an account from fields that the caller already validated,
+    // skipping the regular expressions that dominate the cost of loading
+    // large accounts files.
+    static Account ofValidFields(
+        String username, String passwordHash,
+        int numWonMatches, int numLostMatches,
+        double rank
+        )
+    {
+        return new Account(
+            username, passwordHash, numWonMatches, numLostMatches, rank, null
+            );
+    }
 
-        this.numWonMatches  = Validation.validateCount(numWonMatches);
-        this.numLostMatches = Validation.validateCount(numLostMatches);
+    private static String validatePasswordHash(String passwordHash)
+    {
+        if (!Passwords.isValidStored(passwordHash))
+            throw new IllegalArgumentException("invalid password hash");
 
-        this.rank = Validation.validateDoubleRank(rank);
+        return passwordHash;
     }
 
     /* ---------------------------------------------------------------------- */
@@ -49,9 +118,9 @@ public class Account
         return username;
     }
 
-    public String getPassword()
+    public String getPasswordHash()
     {
-        return password;
+        return passwordHash;
     }
 
     public int getNumWonMatches()
@@ -86,19 +155,132 @@ public class Account
 
     /* ---------------------------------------------------------------------- */
 
+    // Locks this account, so that no other thread changes it until it is
+    // unlocked.
+    void lock()
+    {
+        lock.lock();
+    }
+
+    void unlock()
+    {
+        lock.unlock();
+    }
+
     public void incrementNumWonMatches()
     {
-        ++numWonMatches;
+        lock.lock();
+
+        try
+        {
+            ++numWonMatches;
+            changed();
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     public void incrementNumLostMatches()
     {
-        ++numLostMatches;
+        lock.lock();
+
+        try
+        {
+            ++numLostMatches;
+            changed();
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     public void setDoubleRank(double rank)
     {
-        this.rank = Validation.validateDoubleRank(rank);
+        Validation.validateDoubleRank(rank);
+
+        lock.lock();
+
+        try
+        {
+            this.rank = rank;
+            changed();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Replaces the password hash, unless it changed since it was read.
+    void replacePasswordHash(String oldHash, String newHash)
+    {
+        validatePasswordHash(newHash);
+
+        lock.lock();
+
+        try
+        {
+            if (passwordHash.equals(oldHash))
+            {
+                passwordHash = newHash;
+                changed();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically records the result of a match, incrementing the number of
+     * won or lost matches and changing the rank by the specified amount,
+     * without leaving the allowed range of ranks.
+     * <p>
+     * The change is persisted as a whole.
+     *
+     * @param won whether the match was won
+     * @param rankChange the amount by which to change the rank
+     */
+    public void recordMatch(boolean won, double rankChange)
+    {
+        lock.lock();
+
+        try
+        {
+            if (won)
+                ++numWonMatches;
+            else
+                ++numLostMatches;
+
+            rank = Math.max(
+                Config.MIN_RANK,
+                Math.min(Config.MAX_RANK, rank + rankChange)
+                );
+
+            changed();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Sets the callback that persists the account after each change. Must be
+    // invoked before the account is shared with other threads.
+    void setOnChange(Consumer< Account > onChange)
+    {
+        this.onChange = onChange;
+    }
+
+    // Must be invoked while holding lock.
+    private void changed()
+    {
+        if (onChange != null)
+            onChange.accept(this);
     }
 
     /* ---------------------------------------------------------------------- */
@@ -114,8 +296,8 @@ public class Account
 
         // gather data
 
-        String username = parts[0];
-        String password = parts[1];
+        String username     = parts[0];
+        String passwordHash = parts[1];
 
         int numWonMatches  = Integer.parseInt(parts[2]);
         int numLostMatches = Integer.parseInt(parts[3]);
@@ -125,7 +307,7 @@ public class Account
         // validate data and return account
 
         return new Account(
-            username, password,
+            username, passwordHash,
             numWonMatches, numLostMatches,
             rank
             );
@@ -137,7 +319,7 @@ public class Account
         return String.format(
             Locale.ENGLISH,
             "%s:%s:%d:%d:%f",
-            username, password,
+            username, passwordHash,
             numWonMatches, numLostMatches,
             rank
             );
@@ -0,0 +1,522 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.auth;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Persists changes to accounts as they happen, by appending the full state of
+ * each changed account to a journal next to the accounts file.
+ * <p>
+ * Records are appended to an in-memory buffer, which a writer thread
+ * periodically writes and forces to disk, so that concurrent changes share a
+ * single write and sync (group commit). Callers that must not acknowledge a
+ * change before it is durable wait for it with {@link #awaitDurable(long)}.
+ * <p>
+ * The journal is split into numbered segments. Once the current segment grows
+ * larger than both the accounts file and a few megabytes, the writer thread
+ * moves on to a new segment and a background thread folds all accounts into a
+ * new accounts file, whose first line records the first segment it does not
+ * include, and deletes the older segments. As records hold the full state of
+ * accounts, replaying them over any later state of the accounts yields the
+ * latest state, so accounts keep changing during compaction.
+ * <p>
+ * If writing fails, the journal stops, and subsequent invocations of
+ * {@link #awaitDurable(long)} and {@link #close()} fail.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class AccountJournal
+{
+    // prefix of the first line of accounts files written by compaction,
+    // followed by the number of the first segment they do not include
+    static final String HEADER_PREFIX = "# journal ";
+
+    // compaction only runs once the current segment reaches this size
+    private static final long MIN_COMPACTION_BYTES = 4L << 20;
+
+    /* ---------------------------------------------------------------------- */
+
+    private static Path getSegmentPath(Path accountFilePath, int segment)
+    {
+        return accountFilePath.resolveSibling(
+            accountFilePath.getFileName() + ".journal." + segment
+            );
+    }
+
+    // Returns the numbers of the existing segments, in ascending order.
+    private static List< Integer > listSegments(Path accountFilePath)
+        throws IOException
+    {
+        String prefix = accountFilePath.getFileName() + ".journal.";
+
+        Path directory = accountFilePath.toAbsolutePath().getParent();
+
+        try (Stream< Path > files = Files.list(directory))
+        {
+            return
+                files
+                .map(p -> p.getFileName().toString())
+                .filter(n -> n.startsWith(prefix))
+                .map(n -> n.substring(prefix.length()))
+                .filter(n -> n.matches("[0-9]+"))
+                .map(Integer::valueOf)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Loads the accounts file and replays the journal over it, putting the
+     * resulting accounts into the specified map.
+     * <p>
+     * The accounts file is loaded in parallel (see {@link AccountLoader}),
+     * while the journal is replayed in order. A record that was being written
+     * when the server stopped is ignored.
+     *
+     * @param accountFilePath the path to the accounts file
+     * @param accounts the map to which accounts are added, by username
+     * @return the number of the segment to which new records should be
+     *         appended
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the files are malformed
+     */
+    static int recover(
+        Path accountFilePath, ConcurrentMap< String, Account > accounts
+        ) throws IOException
+    {
+        int firstSegment =
+            AccountLoader.loadAccountFile(accountFilePath, accounts);
+
+        int nextSegment = firstSegment;
+
+        for (int segment : listSegments(accountFilePath))
+        {
+            nextSegment = Math.max(nextSegment, segment + 1);
+
+            // segments already folded into the accounts file, which were not
+            // deleted as compaction was interrupted
+
+            if (segment < firstSegment)
+                continue;
+
+            byte[] contents =
+                Files.readAllBytes(getSegmentPath(accountFilePath, segment));
+
+            // ignore a partially written last record
+
+            int end = contents.length;
+
+            while (end > 0 && contents[end - 1] != '\n')
+                --end;
+
+            AccountLoader.parse(
+                contents, 0, end, a -> accounts.put(a.getUsername(), a), null
+                );
+        }
+
+        return nextSegment;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final Path accountFilePath;
+
+    // returns all accounts, in no particular order
+    private final Supplier< List< Account > > accountsSupplier;
+
+    private final ReentrantLock lock;
+    private final Condition recordsAppended;
+    private final Condition recordsDurable;
+
+    // the following are guarded by lock
+
+    private StringBuilder pendingRecords;
+
+    private long numAppendedRecords;
+    private long numDurableRecords;
+
+    private boolean closed;
+
+    private Throwable failure;
+
+    // the following are only accessed by the writer thread
+
+    private FileChannel segmentChannel;
+    private int segment;
+    private long segmentSize;
+
+    // written by the writer thread, read and cleared by the compaction thread
+    private volatile Thread compactionThread;
+
+    private volatile long compactionThresholdBytes;
+
+    private final Thread writerThread;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a journal and starts its writer thread.
+     *
+     * @param accountFilePath the path to the accounts file
+     * @param firstSegment the number of the segment to which new records are
+     *        appended, as returned by {@link #recover(Path, ConcurrentMap)}
+     * @param accountsSupplier returns all accounts, for compaction
+     *
+     * @throws IOException if the first segment cannot be created
+     */
+    AccountJournal(
+        Path accountFilePath,
+        int firstSegment,
+        Supplier< List< Account > > accountsSupplier
+        ) throws IOException
+    {
+        this.accountFilePath  = accountFilePath;
+        this.accountsSupplier = accountsSupplier;
+
+        this.lock            = new ReentrantLock();
+        this.recordsAppended = this.lock.newCondition();
+        this.recordsDurable  = this.lock.newCondition();
+
+        this.pendingRecords     = new StringBuilder();
+        this.numAppendedRecords = 0;
+        this.numDurableRecords  = 0;
+        this.closed             = false;
+        this.failure            = null;
+
+        this.segment        = firstSegment;
+        this.segmentChannel = openSegment(firstSegment);
+        this.segmentSize    = 0;
+
+        this.compactionThread = null;
+
+        this.compactionThresholdBytes = Math.max(
+            MIN_COMPACTION_BYTES,
+            Files.exists(accountFilePath) ? Files.size(accountFilePath) : 0
+            );
+
+        this.writerThread = new Thread(this::writerProc, "AccountJournal");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private FileChannel openSegment(int segment) throws IOException
+    {
+        return FileChannel.open(
+            getSegmentPath(accountFilePath, segment),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE
+            );
+    }
+
+    private void writerProc()
+    {
+        try
+        {
+            while (true)
+            {
+                // take all pending records
+
+                String records;
+                long numRecords;
+
+                lock.lock();
+
+                try
+                {
+                    while (pendingRecords.length() == 0 && !closed)
+                        recordsAppended.awaitUninterruptibly();
+
+                    if (pendingRecords.length() == 0)
+                        break;
+
+                    records    = pendingRecords.toString();
+                    numRecords = numAppendedRecords;
+
+                    pendingRecords.setLength(0);
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+
+                // write and sync them at once
+
+                ByteBuffer buffer =
+                    ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+
+                segmentSize += buffer.remaining();
+
+                while (buffer.hasRemaining())
+                    segmentChannel.write(buffer);
+
+                segmentChannel.force(false);
+
+                lock.lock();
+
+                try
+                {
+                    numDurableRecords = numRecords;
+                    recordsDurable.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+
+                // compact if the segment is large enough and no compaction
+                // is running
+
+                if (segmentSize >= compactionThresholdBytes
+                    && compactionThread == null)
+                {
+                    segmentChannel.close();
+
+                    segmentChannel = openSegment(++segment);
+                    segmentSize    = 0;
+
+                    int firstSegment = segment;
+
+                    compactionThread = new Thread(
+                        () -> compactionProc(firstSegment),
+                        "AccountJournal-compaction"
+                        );
+
+                    compactionThread.setDaemon(true);
+                    compactionThread.start();
+                }
+            }
+
+            segmentChannel.close();
+
+            // avoid leaving an empty segment behind on every restart
+
+            if (segmentSize == 0)
+                Files.delete(getSegmentPath(accountFilePath, segment));
+        }
+        catch (Throwable t)
+        {
+            fail(t);
+        }
+    }
+
+    // Writes all accounts to a new accounts file that replaces the current
+    // one, and deletes the segments before the specified one. All records in
+    // those segments were taken by the writer thread before it started this
+    // thread, so their changes are visible here.
+    private void compactionProc(int firstSegment)
+    {
+        try
+        {
+            Path tempPath = accountFilePath.resolveSibling(
+                accountFilePath.getFileName() + ".tmp"
+                );
+
+            try (BufferedWriter writer =
+                     Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8))
+            {
+                writer.write(HEADER_PREFIX + firstSegment);
+                writer.newLine();
+
+                for (Account a : accountsSupplier.get())
+                {
+                    writer.write(a.toString());
+                    writer.newLine();
+                }
+            }
+
+            try (FileChannel channel =
+                     FileChannel.open(tempPath, StandardOpenOption.WRITE))
+            {
+                channel.force(true);
+            }
+
+            Files.move(
+                tempPath, accountFilePath,
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING
+                );
+
+            for (int s : listSegments(accountFilePath))
+            {
+                if (s < firstSegment)
+                    Files.deleteIfExists(getSegmentPath(accountFilePath, s));
+            }
+
+            compactionThresholdBytes = Math.max(
+                MIN_COMPACTION_BYTES, Files.size(accountFilePath)
+                );
+        }
+        catch (Throwable t)
+        {
+            fail(t);
+        }
+        finally
+        {
+            compactionThread = null;
+        }
+    }
+
+    private void fail(Throwable t)
+    {
+        lock.lock();
+
+        try
+        {
+            if (failure == null)
+                failure = t;
+
+            closed = true;
+
+            recordsAppended.signalAll();
+            recordsDurable.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Appends the current state of the specified account to the journal.
+     * <p>
+     * Must be invoked after each change to the account, by the thread that
+     * made the change.
+     *
+     * @param account the account
+     * @return a number to be given to {@link #awaitDurable(long)}
+     */
+    long append(Account account)
+    {
+        String record = account.toString() + "\n";
+
+        lock.lock();
+
+        try
+        {
+            // changes after closing are lost, as are those after a failure,
+            // which is reported by awaitDurable() and close()
+
+            if (!closed)
+            {
+                pendingRecords.append(record);
+                ++numAppendedRecords;
+
+                recordsAppended.signal();
+            }
+
+            return numAppendedRecords;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record appended by the invocation of
+     * {@link #append(Account)} that returned the specified number, and all
+     * previous records, were forced to disk.
+     *
+     * @param record the number returned by {@link #append(Account)}
+     *
+     * @throws RuntimeException if the journal failed
+     */
+    void awaitDurable(long record)
+    {
+        lock.lock();
+
+        try
+        {
+            while (numDurableRecords < record && failure == null)
+                recordsDurable.awaitUninterruptibly();
+
+            if (failure != null)
+                throw new RuntimeException(failure);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces all appended records to disk and stops the journal, waiting for
+     * any running compaction to finish.
+     *
+     * @throws RuntimeException if the journal failed
+     */
+    void close()
+    {
+        lock.lock();
+
+        try
+        {
+            closed = true;
+            recordsAppended.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        joinUninterruptibly(writerThread);
+
+        Thread compaction = compactionThread;
+
+        if (compaction != null)
+            joinUninterruptibly(compaction);
+
+        lock.lock();
+
+        try
+        {
+            if (failure != null)
+                throw new RuntimeException(failure);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread)
+    {
+        while (true)
+        {
+            try
+            {
+                thread.join();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
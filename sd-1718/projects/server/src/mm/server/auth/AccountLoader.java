@@ -0,0 +1,492 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.auth;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import mm.common.util.Validation;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Parses accounts in the text format of {@link Account#toString()}.
+ * <p>
+ * Accounts files are split into ranges of whole lines, which are read and
+ * parsed in parallel on the common {@link ForkJoinPool}. Lines are parsed
+ * directly from the bytes read, checking credentials without regular
+ * expressions, so that each account costs little more than its two strings.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class AccountLoader
+{
+    // accounts files are parsed in ranges of about this many bytes
+    private static final int RANGE_SIZE = 4 << 20;
+
+    // used to estimate the number of accounts in a file from its size
+    private static final int AVERAGE_LINE_SIZE = 32;
+
+    private static final byte[] HEADER_PREFIX =
+        AccountJournal.HEADER_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+        1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+        };
+
+    /* ---------------------------------------------------------------------- */
+
+    private static final class LoadTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int lo;
+        private final int hi;
+
+        private final ConcurrentMap< String, Account > accounts;
+        private final AtomicInteger firstSegment;
+
+        private LoadTask(
+            FileChannel channel, long[] bounds, int lo, int hi,
+            ConcurrentMap< String, Account > accounts,
+            AtomicInteger firstSegment
+            )
+        {
+            this.channel      = channel;
+            this.bounds       = bounds;
+            this.lo           = lo;
+            this.hi           = hi;
+            this.accounts     = accounts;
+            this.firstSegment = firstSegment;
+        }
+
+        // Parses the ranges from lo (inclusive) to hi (exclusive).
+        @Override
+        protected void compute()
+        {
+            if (hi - lo > 1)
+            {
+                int mid = (lo + hi) >>> 1;
+
+                invokeAll(
+                    new LoadTask(
+                        channel, bounds, lo, mid, accounts, firstSegment
+                        ),
+                    new LoadTask(
+                        channel, bounds, mid, hi, accounts, firstSegment
+                        )
+                    );
+
+                return;
+            }
+
+            byte[] bytes = read(channel, bounds[lo], bounds[hi]);
+
+            parse(bytes, 0, bytes.length, this::add, firstSegment::set);
+        }
+
+        private void add(Account account)
+        {
+            // accounts files never hold the same account twice, as loading
+            // them in parallel would make the result depend on timing
+
+            if (accounts.putIfAbsent(account.getUsername(), account) != null)
+            {
+                throw new IllegalArgumentException(
+                    "duplicate account: " + account.getUsername()
+                    );
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private static byte[] read(FileChannel channel, long from, long to)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int)(to - from));
+
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, from + buffer.position()) < 0)
+                    throw new IOException("file truncated while loading");
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        return buffer.array();
+    }
+
+    // Returns the offsets at which the file is split, starting with 0 and
+    // ending with its size, each one at the start of a line.
+    private static long[] split(FileChannel channel, long size)
+        throws IOException
+    {
+        int numRanges = (int)Math.max(1, (size + RANGE_SIZE - 1) / RANGE_SIZE);
+
+        long[] bounds = new long[numRanges + 1];
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        for (int i = 1; i < numRanges; ++i)
+        {
+            // move each bound past the end of the line it falls on
+
+            long bound = Math.max(bounds[i - 1], i * size / numRanges);
+
+            search: while (bound < size)
+            {
+                buffer.clear();
+
+                int n = channel.read(buffer, bound);
+
+                for (int j = 0; j < n; ++j)
+                {
+                    if (buffer.get(j) == '\n')
+                    {
+                        bound += j + 1;
+                        break search;
+                    }
+                }
+
+                if (n <= 0)
+                    break;
+
+                bound += n;
+            }
+
+            bounds[i] = Math.min(bound, size);
+        }
+
+        bounds[numRanges] = size;
+
+        return bounds;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Returns an estimate of the number of accounts in the specified accounts
+     * file, for presizing maps.
+     *
+     * @param accountFilePath the path to the accounts file
+     * @return the estimated number of accounts, or 0 if the file does not exist
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    static int estimateNumAccounts(Path accountFilePath) throws IOException
+    {
+        if (!Files.exists(accountFilePath))
+            return 0;
+
+        return (int)Math.min(
+            Files.size(accountFilePath) / AVERAGE_LINE_SIZE,
+            Integer.MAX_VALUE / 2
+            );
+    }
+
+    /**
+     * Loads all accounts in the specified accounts file into the specified
+     * map, in parallel.
+     *
+     * @param accountFilePath the path to the accounts file
+     * @param accounts the map, by username
+     * @return the first journal segment given by the file's header, or 0 if
+     *         the file has no header or does not exist
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the file is malformed or holds the
+     *         same account twice
+     */
+    static int loadAccountFile(
+        Path accountFilePath, ConcurrentMap< String, Account > accounts
+        ) throws IOException
+    {
+        if (!Files.exists(accountFilePath))
+            return 0;
+
+        AtomicInteger firstSegment = new AtomicInteger(0);
+
+        try (FileChannel channel =
+             FileChannel.open(accountFilePath, StandardOpenOption.READ))
+        {
+            long[] bounds = split(channel, channel.size());
+
+            ForkJoinPool.commonPool().invoke(new LoadTask(
+                channel, bounds, 0, bounds.length - 1, accounts, firstSegment
+                ));
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        return firstSegment.get();
+    }
+
+    /**
+     * Parses the lines in the specified range of bytes, in order.
+     * <p>
+     * Leading and trailing whitespace, including a trailing carriage return,
+     * is ignored in each line, as by {@link String#trim()}, and blank lines
+     * are skipped.
+     *
+     * @param bytes the bytes
+     * @param from the start of the range, at the start of a line
+     * @param to the end of the range, at the end of a line
+     * @param onAccount receives each account
+     * @param onHeader receives the first journal segment given by each
+     *        header line, or null if header lines are not allowed
+     *
+     * @throws IllegalArgumentException if a line is malformed
+     */
+    static void parse(
+        byte[] bytes, int from, int to,
+        Consumer< Account > onAccount, IntConsumer onHeader
+        )
+    {
+        int start = from;
+
+        while (start < to)
+        {
+            int end = start;
+
+            while (end < to && bytes[end] != '\n')
+                ++end;
+
+            int lineStart = start;
+            int lineEnd   = end;
+
+            while (lineStart < lineEnd && isWhitespace(bytes[lineStart]))
+                ++lineStart;
+
+            while (lineEnd > lineStart && isWhitespace(bytes[lineEnd - 1]))
+                --lineEnd;
+
+            if (onHeader != null && isHeader(bytes, lineStart, lineEnd))
+            {
+                onHeader.accept(parseCount(
+                    bytes, lineStart + HEADER_PREFIX.length, lineEnd
+                    ));
+            }
+            else if (lineStart < lineEnd)
+            {
+                onAccount.accept(parseAccount(bytes, lineStart, lineEnd));
+            }
+
+            start = end + 1;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private static boolean isHeader(byte[] bytes, int from, int to)
+    {
+        if (to - from < HEADER_PREFIX.length)
+            return false;
+
+        for (int i = 0; i < HEADER_PREFIX.length; ++i)
+        {
+            if (bytes[from + i] != HEADER_PREFIX[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    // Returns whether String#trim() would remove the specified byte, which
+    // is never part of a multi-byte UTF-8 character.
+    private static boolean isWhitespace(byte b)
+    {
+        return b >= 0 && b <= ' ';
+    }
+
+    // Parses a line of the form "username:password:won:lost:rank". Legacy
+    // plain text passwords may contain colons, as the other fields cannot.
+    private static Account parseAccount(byte[] bytes, int from, int to)
+    {
+        // find separators
+
+        int usernameEnd = indexOf(bytes, from, to, (byte)':');
+
+        if (usernameEnd < 0)
+            throw new IllegalArgumentException("invalid format");
+
+        int rankStart = lastIndexOf(bytes, usernameEnd + 1, to) + 1;
+        int lostStart = lastIndexOf(bytes, usernameEnd + 1, rankStart - 1) + 1;
+        int wonStart  = lastIndexOf(bytes, usernameEnd + 1, lostStart - 1) + 1;
+
+        if (wonStart <= usernameEnd + 1)
+            throw new IllegalArgumentException("invalid format");
+
+        // parse and validate fields
+
+        String username = parseUsername(bytes, from, usernameEnd);
+
+        String passwordHash = new String(
+            bytes, usernameEnd + 1, wonStart - usernameEnd - 2,
+            StandardCharsets.UTF_8
+            );
+
+        if (!Passwords.isValidStored(passwordHash))
+            throw new IllegalArgumentException("invalid password hash");
+
+        int numWonMatches  = parseCount(bytes, wonStart, lostStart - 1);
+        int numLostMatches = parseCount(bytes, lostStart, rankStart - 1);
+
+        double rank = Validation.validateDoubleRank(
+            parseDouble(bytes, rankStart, to)
+            );
+
+        return Account.ofValidFields(
+            username, passwordHash, numWonMatches, numLostMatches, rank
+            );
+    }
+
+    // Checks usernames as mm.common.Config.USERNAME_PATTERN does.
+    private static String parseUsername(byte[] bytes, int from, int to)
+    {
+        boolean valid = to - from >= 4 && to - from <= 20;
+
+        for (int i = from; valid && i < to; ++i)
+        {
+            byte b = bytes[i];
+
+            valid =
+                (b >= 'a' && b <= 'z')
+                || (b >= 'A' && b <= 'Z')
+                || (b >= '0' && b <= '9');
+        }
+
+        String username =
+            new String(bytes, from, to - from, StandardCharsets.US_ASCII);
+
+        if (!valid)
+            throw new IllegalArgumentException("invalid username: " + username);
+
+        return username;
+    }
+
+    private static int parseCount(byte[] bytes, int from, int to)
+    {
+        if (from >= to)
+            throw new IllegalArgumentException("invalid format");
+
+        long value = 0;
+
+        for (int i = from; i < to; ++i)
+        {
+            int digit = bytes[i] - '0';
+
+            if (digit < 0 || digit > 9)
+                throw new IllegalArgumentException("invalid format");
+
+            value = 10 * value + digit;
+
+            if (value > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("invalid count");
+        }
+
+        return (int)value;
+    }
+
+    // Parses plain decimals exactly as Double.parseDouble does, as long as
+    // they have at most 15 digits, and anything else with it.
+    private static double parseDouble(byte[] bytes, int from, int to)
+    {
+        int i = from;
+
+        boolean negative = i < to && bytes[i] == '-';
+
+        if (negative)
+            ++i;
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int numFractionDigits = -1;
+
+        for (; i < to; ++i)
+        {
+            byte b = bytes[i];
+
+            if (b >= '0' && b <= '9')
+            {
+                mantissa = 10 * mantissa + (b - '0');
+                ++numDigits;
+
+                if (numFractionDigits >= 0)
+                    ++numFractionDigits;
+            }
+            else if (b == '.' && numFractionDigits < 0)
+            {
+                numFractionDigits = 0;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        if (i < to || numDigits == 0 || numDigits > 15)
+        {
+            return Double.parseDouble(
+                new String(bytes, from, to - from, StandardCharsets.US_ASCII)
+                );
+        }
+
+        // both operands are exact, so the quotient is correctly rounded
+
+        double value = mantissa;
+
+        if (numFractionDigits > 0)
+            value /= POWERS_OF_TEN[numFractionDigits];
+
+        return negative ? -value : value;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b)
+    {
+        for (int i = from; i < to; ++i)
+        {
+            if (bytes[i] == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    // Returns the index of the last colon in the range, or from - 1 if there
+    // is none.
+    private static int lastIndexOf(byte[] bytes, int from, int to)
+    {
+        for (int i = to - 1; i >= from; --i)
+        {
+            if (bytes[i] == ':')
+                return i;
+        }
+
+        return from - 1;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -3,11 +3,7 @@
 package mm.server.auth;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Stream;
 
 import mm.common.data.LoginError;
 import mm.common.data.SignUpError;
@@ -17,76 +13,155 @@ import mm.server.error.SignUpErrorException;
 
 /* -------------------------------------------------------------------------- */
 
+/**
+ * Holds all player accounts.
+ * <p>
+ * Credentials are validated here, while accounts themselves are kept by an
+ * {@link AccountStore}. By default, all accounts are kept on the heap and
+ * persisted through a journal (see {@link HeapAccountStore}); {@link
+ * #openMapped(Path, int)} instead keeps them in a memory-mapped file (see
+ * {@link MappedAccountStore}), so that startup time and heap usage do not
+ * grow with the number of accounts.
+ * <p>
+ * Passwords are stored as salted PBKDF2 hashes (see {@link Passwords}), so
+ * logging in and registering take as long as hashing a password, and should
+ * not be done on threads that serve other work. Plain text passwords left by
+ * earlier versions are replaced by hashes when their accounts log in.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
 public class AccountManager
 {
-    private final Path accountFilePath;
+    /**
+     * The default number of PBKDF2 iterations used to hash passwords.
+     */
+    public static final int DEFAULT_HASH_ITERATIONS = 100_000;
+
+    /**
+     * Creates an AccountManager whose accounts are kept in a memory-mapped
+     * file, created if it does not exist.
+     *
+     * @param accountFilePath the path to the accounts file
+     * @param hashIterations the number of PBKDF2 iterations used to hash
+     *        passwords
+     * @return the AccountManager
+     *
+     * @throws IllegalArgumentException if the file exists and is not a mapped
+     *         accounts file, or if hashIterations is not positive
+     */
+    public static AccountManager openMapped(
+        Path accountFilePath, int hashIterations
+        )
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            return new AccountManager(
+                new MappedAccountStore(accountFilePath),
+                System.nanoTime() - start,
+                hashIterations
+                );
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final AccountStore store;
 
-    private final Map< String, Account > accounts;
+    private final long loadTimeNanos;
+
+    private final int hashIterations;
 
     /* ---------------------------------------------------------------------- */
 
     public AccountManager()
     {
-        this(null);
+        this((Path)null);
     }
 
     public AccountManager(Path accountFilePath)
     {
-        this.accountFilePath = accountFilePath;
+        this(accountFilePath, DEFAULT_HASH_ITERATIONS);
+    }
+
+    public AccountManager(Path accountFilePath, int hashIterations)
+    {
+        if (hashIterations <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Number of hash iterations must be positive."
+                );
+        }
 
-        this.accounts = new HashMap<>();
+        long start = System.nanoTime();
 
-        if (accountFilePath != null && Files.exists(accountFilePath))
+        try
+        {
+            this.store = new HeapAccountStore(accountFilePath);
+        }
+        catch (IOException e)
         {
-            try
-            {
-                Files.lines(accountFilePath)
-                    .map(String::trim)
-                    .filter(s -> !s.isEmpty())
-                    .map(Account::fromString)
-                    .forEachOrdered(a -> accounts.put(a.getUsername(), a));
-            }
-            catch (IOException e)
-            {
-                throw new RuntimeException(e);
-            }
+            throw new RuntimeException(e);
         }
+
+        this.loadTimeNanos  = System.nanoTime() - start;
+        this.hashIterations = hashIterations;
+    }
+
+    private AccountManager(
+        AccountStore store, long loadTimeNanos, int hashIterations
+        )
+    {
+        if (hashIterations <= 0)
+        {
+            store.close();
+
+            throw new IllegalArgumentException(
+                "Number of hash iterations must be positive."
+                );
+        }
+
+        this.store          = store;
+        this.loadTimeNanos  = loadTimeNanos;
+        this.hashIterations = hashIterations;
     }
 
     /* ---------------------------------------------------------------------- */
 
-    public synchronized int getNumAccounts()
+    public int getNumAccounts()
     {
-        return accounts.size();
+        return store.size();
     }
 
-    public synchronized void saveToAccountFile()
+    /**
+     * Returns the time it took to load accounts when this AccountManager was
+     * created.
+     *
+     * @return the load time, in seconds
+     */
+    public double getLoadTime()
     {
-        if (accountFilePath != null)
-        {
-            Stream< String > lines =
-                accounts
-                .values()
-                .stream()
-                .map(Account::toString);
-
-            try
-            {
-                Files.write(
-                    accountFilePath,
-                    (Iterable< String >)lines::iterator
-                    );
-            }
-            catch (IOException e)
-            {
-                throw new RuntimeException(e);
-            }
-        }
+        return loadTimeNanos / 1e9;
+    }
+
+    /**
+     * Makes all changes to accounts durable and stops persisting further
+     * changes.
+     */
+    public void close()
+    {
+        store.close();
     }
 
     /* ---------------------------------------------------------------------- */
 
-    public synchronized Account login(String username, String password)
+    public Account login(String username, String password)
     {
         // validate credentials
 
@@ -98,22 +173,33 @@ public class AccountManager
 
         // check if username exists
 
-        Account account = accounts.get(username);
+        Account account = store.get(username);
 
         if (account == null)
             throw new LoginErrorException(LoginError.USERNAME_DOESNT_EXIST);
 
         // check if password is correct
 
-        if (!password.equals(account.getPassword()))
+        String passwordHash = account.getPasswordHash();
+
+        if (!Passwords.verify(password, passwordHash))
             throw new LoginErrorException(LoginError.WRONG_PASSWORD);
 
+        // upgrade plain text passwords and outdated hashes
+
+        if (Passwords.needsRehash(passwordHash, hashIterations))
+        {
+            account.replacePasswordHash(
+                passwordHash, Passwords.hash(password, hashIterations)
+                );
+        }
+
         // return account
 
         return account;
     }
 
-    public synchronized Account register(String username, String password)
+    public Account register(String username, String password)
     {
         // validate credentials
 
@@ -123,16 +209,17 @@ public class AccountManager
         if (!Validation.isValidPassword(password))
             throw new SignUpErrorException(SignUpError.INVALID_PASSWORD);
 
-        // check if username is already in use
+        // add new account, unless username is already in use, checking it
+        // first so as not to hash the password in vain
 
-        if (accounts.containsKey(username))
+        if (store.get(username) != null)
             throw new SignUpErrorException(SignUpError.USERNAME_EXISTS);
 
-        // add new account
-
-        Account account = new Account(username, password);
+        Account account =
+            store.add(username, Passwords.hash(password, hashIterations));
 
-        accounts.put(username, account);
+        if (account == null)
+            throw new SignUpErrorException(SignUpError.USERNAME_EXISTS);
 
         // return new account
 
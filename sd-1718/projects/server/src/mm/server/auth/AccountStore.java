@@ -0,0 +1,58 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.auth;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Stores player accounts for an {@link AccountManager}, which validates
+ * credentials before handing them to the store.
+ * <p>
+ * Implementations are thread-safe, and persist changes made to the accounts
+ * they return.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+interface AccountStore
+{
+    /**
+     * Returns the number of accounts.
+     *
+     * @return the number of accounts
+     */
+    int size();
+
+    /**
+     * Returns the account with the specified username, or null if there is
+     * none.
+     *
+     * @param username the account's username, which must be valid
+     * @return the account, or null if there is none
+     */
+    Account get(String username);
+
+    /**
+     * Creates an account with the specified credentials and no matches, and
+     * returns once the account is durable. Returns null if an account with the
+     * same username exists.
+     * <p>
+     * Making the account durable may block the calling thread for a disk
+     * sync, so this method must not be invoked on threads that service
+     * connections, such as selector loops.
+     *
+     * @param username the account's username, which must be valid
+     * @param passwordHash the hash of the account's password (see {@link
+     *        Passwords})
+     * @return the new account, or null if the username is in use
+     */
+    Account add(String username, String passwordHash);
+
+    /**
+     * Makes all changes to accounts durable and stops persisting further
+     * changes.
+     */
+    void close();
+}
+
+/* -------------------------------------------------------------------------- */
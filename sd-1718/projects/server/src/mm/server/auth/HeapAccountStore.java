@@ -0,0 +1,148 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.auth;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Keeps all accounts on the heap.
+ * <p>
+ * If an accounts file is given, accounts are loaded from it on creation, and
+ * every subsequent change to an account, including its creation, is appended
+ * to a journal next to it (see {@link AccountJournal}), so that changes
+ * survive crashes without rewriting the whole file. New accounts are only
+ * returned once durable.
+ * <p>
+ * Accounts are kept in a concurrent map, so that logins, registrations and
+ * counting accounts take no global lock.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+class HeapAccountStore implements AccountStore
+{
+    private final ConcurrentHashMap< String, Account > accounts;
+
+    // null if accounts are not persisted
+    private final AccountJournal journal;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a HeapAccountStore, loading accounts from the specified file and
+     * its journal.
+     *
+     * @param accountFilePath the path to the accounts file, or null if
+     *        accounts are not to be persisted
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the files are malformed
+     */
+    HeapAccountStore(Path accountFilePath) throws IOException
+    {
+        if (accountFilePath == null)
+        {
+            this.accounts = new ConcurrentHashMap<>();
+            this.journal  = null;
+        }
+        else
+        {
+            // presize the map, as it is filled in parallel
+
+            this.accounts = new ConcurrentHashMap<>(
+                AccountLoader.estimateNumAccounts(accountFilePath)
+                );
+
+            int segment = AccountJournal.recover(accountFilePath, accounts);
+
+            this.journal = new AccountJournal(
+                accountFilePath, segment, this::getAccounts
+                );
+
+            for (Account a : accounts.values())
+                a.setOnChange(journal::append);
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private List< Account > getAccounts()
+    {
+        return new ArrayList<>(accounts.values());
+    }
+
+    // The map keeps a striped count of its entries, so that registrations
+    // do not contend on it, and summing it does not block them.
+    @Override
+    public int size()
+    {
+        return accounts.size();
+    }
+
+    @Override
+    public Account get(String username)
+    {
+        return accounts.get(username);
+    }
+
+    @Override
+    public Account add(String username, String passwordHash)
+    {
+        Account account = new Account(username, passwordHash);
+
+        if (journal != null)
+            account.setOnChange(journal::append);
+
+        if (accounts.putIfAbsent(username, account) != null)
+            return null;
+
+        if (journal == null)
+            return account;
+
+        // append the account only once it is in the map, so that compaction
+        // does not miss it, and under its lock, like any other change
+
+        long record;
+
+        account.lock();
+
+        try
+        {
+            record = journal.append(account);
+        }
+        finally
+        {
+            account.unlock();
+        }
+
+        // wait for the account to be durable without blocking other logins
+        // and registrations, which thus share the same sync, but blocking
+        // this thread (which is why NetServer registers accounts on its
+        // authentication workers)
+
+        journal.awaitDurable(record);
+
+        return account;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Does not rewrite the accounts file, whose pending changes are in the
+     * journal and are replayed when accounts are next loaded.
+     */
+    @Override
+    public void close()
+    {
+        if (journal != null)
+            journal.close();
+    }
+}
+
+/* -------------------------------------------------------------------------- */
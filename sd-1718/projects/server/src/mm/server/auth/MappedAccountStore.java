@@ -0,0 +1,591 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.auth;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Keeps accounts in fixed-size records in a memory-mapped file, found through
+ * a memory-mapped open-addressing hash index keyed by username.
+ * <p>
+ * Opening a store only maps its files, so its cost does not grow with the
+ * number of accounts, and accounts are only read into the heap while they are
+ * in use. Logging in is a hash probe plus a record read, and changes to the
+ * statistics of an account are written in place to its record.
+ * <p>
+ * New accounts are forced to disk before being returned. Other changes reach
+ * the file immediately, and are therefore preserved if the server crashes,
+ * but are only forced to disk when the store is closed. The index is rebuilt
+ * from the records if the store was not closed.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class MappedAccountStore implements AccountStore
+{
+    private static final long RECORDS_MAGIC = 0x6d6d2d6163636f75L;
+    private static final long INDEX_MAGIC   = 0x6d6d2d696e646578L;
+
+    private static final int VERSION = 1;
+
+    // both files start with a header of this size, with the magic number at
+    // offset 0 and the version at offset 8
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int HEADER_MAGIC   = 0;
+    private static final int HEADER_VERSION = 8;
+
+    // records file header
+
+    private static final int HEADER_RECORD_SIZE = 12;
+    private static final int HEADER_NUM_RECORDS = 16;
+
+    // index file header
+
+    private static final int HEADER_CAPACITY    = 12;
+    private static final int HEADER_NUM_ENTRIES = 16;
+    private static final int HEADER_CLEAN       = 20;
+
+    // record layout (usernames are ASCII, password hashes UTF-8), with room
+    // for the longest usernames allowed by mm.common.Config and for both
+    // password hashes and legacy plain text passwords
+
+    private static final int MAX_USERNAME_BYTES = 20;
+    private static final int MAX_PASSWORD_BYTES = 4 * 40;
+
+    private static final int RECORD_USERNAME_LENGTH = 0;
+    private static final int RECORD_USERNAME        = 1;
+    private static final int RECORD_PASSWORD_LENGTH = 21;
+    private static final int RECORD_PASSWORD        = 22;
+    private static final int RECORD_NUM_WON         = 184;
+    private static final int RECORD_NUM_LOST        = 188;
+    private static final int RECORD_RANK            = 192;
+
+    private static final int RECORD_SIZE = 200;
+
+    // records are mapped in chunks of this many records, so that the file
+    // grows without remapping existing records
+    private static final int RECORDS_PER_CHUNK = 1 << 16;
+
+    private static final long CHUNK_SIZE =
+        (long)RECORDS_PER_CHUNK * RECORD_SIZE;
+
+    // index entries hold the record number plus one (zero if the entry is
+    // free) followed by the username's hash code
+    private static final int ENTRY_SIZE = 8;
+
+    // the index is kept at most half full
+    private static final int MIN_INDEX_CAPACITY = 1 << 12;
+
+    /* ---------------------------------------------------------------------- */
+
+    private static int getSlot(int hash, int capacity)
+    {
+        int h = hash * 0x9e3779b9;
+
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    private static int getIndexCapacity(int numRecords)
+    {
+        int capacity = MIN_INDEX_CAPACITY;
+
+        while (capacity < 2L * numRecords + 2)
+            capacity *= 2;
+
+        return capacity;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final ReentrantLock lock;
+
+    private final FileChannel recordsChannel;
+    private final FileChannel indexChannel;
+
+    // the following are guarded by lock
+
+    private final MappedByteBuffer recordsHeader;
+
+    private int numRecords;
+
+    private MappedByteBuffer index;
+    private int indexCapacity;
+
+    // written only while holding lock, replaced by a longer copy when a
+    // chunk is added
+    private volatile MappedByteBuffer[] chunks;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Opens or creates a store whose records are in the specified file and
+     * whose index is in a file with the same name plus ".index".
+     *
+     * @param recordsPath the path to the records file
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the records file is not a store of
+     *         this version
+     */
+    MappedAccountStore(Path recordsPath) throws IOException
+    {
+        this.lock = new ReentrantLock();
+
+        // map records
+
+        this.recordsChannel = FileChannel.open(
+            recordsPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+            );
+
+        boolean isNew = recordsChannel.size() == 0;
+
+        this.recordsHeader = recordsChannel.map(
+            FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE
+            );
+
+        if (isNew)
+        {
+            recordsHeader.putLong(HEADER_MAGIC, RECORDS_MAGIC);
+            recordsHeader.putInt(HEADER_VERSION, VERSION);
+            recordsHeader.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+            recordsHeader.putInt(HEADER_NUM_RECORDS, 0);
+            recordsHeader.force();
+        }
+        else if (recordsHeader.getLong(HEADER_MAGIC) != RECORDS_MAGIC
+            || recordsHeader.getInt(HEADER_VERSION) != VERSION
+            || recordsHeader.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE)
+        {
+            recordsChannel.close();
+
+            throw new IllegalArgumentException(
+                "not a mapped account store: " + recordsPath
+                );
+        }
+
+        this.numRecords = recordsHeader.getInt(HEADER_NUM_RECORDS);
+
+        int numChunks =
+            (numRecords + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK;
+
+        MappedByteBuffer[] chunks = new MappedByteBuffer[numChunks];
+
+        for (int i = 0; i < numChunks; ++i)
+            chunks[i] = mapChunk(i);
+
+        this.chunks = chunks;
+
+        // map index, rebuilding it if the store was not closed
+
+        this.indexChannel = FileChannel.open(
+            recordsPath.resolveSibling(recordsPath.getFileName() + ".index"),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+            );
+
+        MappedByteBuffer header = indexChannel.map(
+            FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE
+            );
+
+        boolean isValid =
+            header.getLong(HEADER_MAGIC) == INDEX_MAGIC
+            && header.getInt(HEADER_VERSION) == VERSION
+            && header.getInt(HEADER_CLEAN) == 1
+            && header.getInt(HEADER_NUM_ENTRIES) == numRecords;
+
+        if (isValid)
+        {
+            this.indexCapacity = header.getInt(HEADER_CAPACITY);
+            this.index         = mapIndex(indexCapacity);
+        }
+        else
+        {
+            this.indexCapacity = getIndexCapacity(numRecords);
+            this.index         = mapIndex(indexCapacity);
+
+            clearIndex();
+
+            for (int r = 0; r < numRecords; ++r)
+                insertIntoIndex(r, readUsername(r).hashCode());
+
+            index.putLong(HEADER_MAGIC, INDEX_MAGIC);
+            index.putInt(HEADER_VERSION, VERSION);
+            index.putInt(HEADER_NUM_ENTRIES, numRecords);
+        }
+
+        // mark the index as not clean until the store is closed
+
+        index.putInt(HEADER_CLEAN, 0);
+        index.force();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private MappedByteBuffer mapChunk(int chunk) throws IOException
+    {
+        return recordsChannel.map(
+            FileChannel.MapMode.READ_WRITE,
+            HEADER_SIZE + chunk * CHUNK_SIZE,
+            CHUNK_SIZE
+            );
+    }
+
+    private MappedByteBuffer mapIndex(int capacity) throws IOException
+    {
+        MappedByteBuffer buffer = indexChannel.map(
+            FileChannel.MapMode.READ_WRITE,
+            0,
+            HEADER_SIZE + (long)capacity * ENTRY_SIZE
+            );
+
+        buffer.putInt(HEADER_CAPACITY, capacity);
+
+        return buffer;
+    }
+
+    private void clearIndex()
+    {
+        for (int slot = 0; slot < indexCapacity; ++slot)
+            index.putLong(HEADER_SIZE + slot * ENTRY_SIZE, 0);
+    }
+
+    private void insertIntoIndex(int record, int hash)
+    {
+        int slot = getSlot(hash, indexCapacity);
+
+        while (index.getInt(HEADER_SIZE + slot * ENTRY_SIZE) != 0)
+            slot = (slot + 1) & (indexCapacity - 1);
+
+        index.putInt(HEADER_SIZE + slot * ENTRY_SIZE, record + 1);
+        index.putInt(HEADER_SIZE + slot * ENTRY_SIZE + 4, hash);
+    }
+
+    // Doubles the capacity of the index, reinserting all entries.
+    private void growIndex() throws IOException
+    {
+        int[] records = new int[numRecords];
+        int[] hashes  = new int[numRecords];
+
+        int n = 0;
+
+        for (int slot = 0; slot < indexCapacity; ++slot)
+        {
+            int ref = index.getInt(HEADER_SIZE + slot * ENTRY_SIZE);
+
+            if (ref != 0)
+            {
+                records[n] = ref - 1;
+                hashes[n]  = index.getInt(HEADER_SIZE + slot * ENTRY_SIZE + 4);
+                ++n;
+            }
+        }
+
+        // the new mapping starts with the same header
+
+        indexCapacity *= 2;
+        index = mapIndex(indexCapacity);
+
+        clearIndex();
+
+        for (int i = 0; i < n; ++i)
+            insertIntoIndex(records[i], hashes[i]);
+    }
+
+    // Returns the number of the record of the specified username, or -1 if
+    // there is none.
+    private int find(String username)
+    {
+        int hash = username.hashCode();
+
+        for (int slot = getSlot(hash, indexCapacity); ;
+             slot = (slot + 1) & (indexCapacity - 1))
+        {
+            int ref = index.getInt(HEADER_SIZE + slot * ENTRY_SIZE);
+
+            if (ref == 0)
+                return -1;
+
+            if (index.getInt(HEADER_SIZE + slot * ENTRY_SIZE + 4) == hash
+                && readUsername(ref - 1).equals(username))
+            {
+                return ref - 1;
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private MappedByteBuffer getChunk(int record)
+    {
+        return chunks[record / RECORDS_PER_CHUNK];
+    }
+
+    private static int getOffset(int record)
+    {
+        return (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+    }
+
+    private String readString(int record, int lengthOffset, int offset)
+    {
+        MappedByteBuffer chunk = getChunk(record);
+        int base = getOffset(record);
+
+        byte[] bytes = new byte[chunk.get(base + lengthOffset) & 0xff];
+
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = chunk.get(base + offset + i);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeString(
+        int record, int lengthOffset, int offset, byte[] bytes
+        )
+    {
+        MappedByteBuffer chunk = getChunk(record);
+        int base = getOffset(record);
+
+        chunk.put(base + lengthOffset, (byte)bytes.length);
+
+        for (int i = 0; i < bytes.length; ++i)
+            chunk.put(base + offset + i, bytes[i]);
+    }
+
+    private String readUsername(int record)
+    {
+        return readString(
+            record, RECORD_USERNAME_LENGTH, RECORD_USERNAME
+            );
+    }
+
+    private Account readAccount(int record)
+    {
+        MappedByteBuffer chunk = getChunk(record);
+        int base = getOffset(record);
+
+        Account account = new Account(
+            readUsername(record),
+            readString(record, RECORD_PASSWORD_LENGTH, RECORD_PASSWORD),
+            chunk.getInt(base + RECORD_NUM_WON),
+            chunk.getInt(base + RECORD_NUM_LOST),
+            chunk.getDouble(base + RECORD_RANK)
+            );
+
+        account.setOnChange(a -> writeChanges(record, a));
+
+        return account;
+    }
+
+    // Invoked by the thread changing the account, while holding the
+    // account's lock, and only touches that account's record.
+    private void writeChanges(int record, Account account)
+    {
+        MappedByteBuffer chunk = getChunk(record);
+        int base = getOffset(record);
+
+        chunk.putInt(base + RECORD_NUM_WON, account.getNumWonMatches());
+        chunk.putInt(base + RECORD_NUM_LOST, account.getNumLostMatches());
+        chunk.putDouble(base + RECORD_RANK, account.getDoubleRank());
+
+        // password hashes rarely change, and are read while holding lock
+
+        byte[] passwordHash =
+            account.getPasswordHash().getBytes(StandardCharsets.UTF_8);
+
+        if (!stringEquals(record, RECORD_PASSWORD_LENGTH,
+                          RECORD_PASSWORD, passwordHash))
+        {
+            lock.lock();
+
+            try
+            {
+                writeString(
+                    record, RECORD_PASSWORD_LENGTH, RECORD_PASSWORD,
+                    passwordHash
+                    );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean stringEquals(
+        int record, int lengthOffset, int offset, byte[] bytes
+        )
+    {
+        MappedByteBuffer chunk = getChunk(record);
+        int base = getOffset(record);
+
+        if ((chunk.get(base + lengthOffset) & 0xff) != bytes.length)
+            return false;
+
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            if (chunk.get(base + offset + i) != bytes[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    @Override
+    public int size()
+    {
+        lock.lock();
+
+        try
+        {
+            return numRecords;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns a distinct object on each invocation, all of which write their
+     * changes to the same record.
+     */
+    @Override
+    public Account get(String username)
+    {
+        lock.lock();
+
+        try
+        {
+            int record = find(username);
+
+            return (record < 0) ? null : readAccount(record);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Account add(String username, String passwordHash)
+    {
+        byte[] usernameBytes = username.getBytes(StandardCharsets.US_ASCII);
+        byte[] passwordBytes = passwordHash.getBytes(StandardCharsets.UTF_8);
+
+        if (usernameBytes.length > MAX_USERNAME_BYTES
+            || passwordBytes.length > MAX_PASSWORD_BYTES)
+        {
+            throw new IllegalArgumentException("credentials too long");
+        }
+
+        lock.lock();
+
+        try
+        {
+            if (find(username) >= 0)
+                return null;
+
+            int record = numRecords;
+
+            // make room for the record and its index entry
+
+            if (record % RECORDS_PER_CHUNK == 0
+                && record / RECORDS_PER_CHUNK == chunks.length)
+            {
+                MappedByteBuffer[] grown =
+                    Arrays.copyOf(chunks, chunks.length + 1);
+
+                grown[chunks.length] = mapChunk(chunks.length);
+
+                chunks = grown;
+            }
+
+            if (2L * (record + 1) + 2 > indexCapacity)
+                growIndex();
+
+            // write and force the record, then make it part of the store
+
+            writeString(
+                record, RECORD_USERNAME_LENGTH, RECORD_USERNAME, usernameBytes
+                );
+
+            writeString(
+                record, RECORD_PASSWORD_LENGTH, RECORD_PASSWORD, passwordBytes
+                );
+
+            Account account = new Account(username, passwordHash);
+
+            writeChanges(record, account);
+
+            getChunk(record).force();
+
+            numRecords = record + 1;
+
+            recordsHeader.putInt(HEADER_NUM_RECORDS, numRecords);
+            recordsHeader.force();
+
+            insertIntoIndex(record, username.hashCode());
+            index.putInt(HEADER_NUM_ENTRIES, numRecords);
+
+            account.setOnChange(a -> writeChanges(record, a));
+
+            return account;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        lock.lock();
+
+        try
+        {
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+
+            recordsHeader.force();
+
+            index.putInt(HEADER_CLEAN, 1);
+            index.force();
+
+            recordsChannel.close();
+            indexChannel.close();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
+
+/* -------------------------------------------------------------------------- */
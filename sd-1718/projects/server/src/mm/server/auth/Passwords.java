@@ -0,0 +1,237 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Hashes and verifies passwords with PBKDF2-HMAC-SHA256 and a random salt per
+ * password.
+ * <p>
+ * Hashes are stored as "pbkdf2-sha256$iterations$salt$hash", with the salt and
+ * hash in Base64, so that they never contain the colons that separate fields
+ * of accounts files. Stored passwords that are not in this format are legacy
+ * plain text passwords, which are still accepted and should be replaced by a
+ * hash once the password is known (see {@link #needsRehash(String, int)}).
+ * <p>
+ * Hashing and verifying take as long as the iteration count makes them, which
+ * is what makes guessing passwords from stolen hashes expensive, and should
+ * therefore not be done on threads that serve other work.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class Passwords
+{
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final String PREFIX = "pbkdf2-sha256$";
+
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_SIZE = 32;
+
+    // lengths of the salt and hash in Base64
+    private static final int SALT_CHARS = 24;
+    private static final int HASH_CHARS = 44;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /* ---------------------------------------------------------------------- */
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations)
+    {
+        PBEKeySpec spec =
+            new PBEKeySpec(password, salt, iterations, 8 * HASH_SIZE);
+
+        try
+        {
+            return
+                SecretKeyFactory
+                .getInstance(ALGORITHM)
+                .generateSecret(spec)
+                .getEncoded();
+        }
+        catch (GeneralSecurityException e)
+        {
+            // every Java 8 or later runtime provides the algorithm
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    // Returns the index of the '$' that follows the iteration count of a
+    // well-formed hash, or -1 if the string is not one. Does not allocate, as
+    // it is invoked for every account loaded.
+    private static int parseHash(String stored)
+    {
+        if (!stored.startsWith(PREFIX))
+            return -1;
+
+        int start = PREFIX.length();
+        int end   = start;
+
+        while (end < stored.length() && end - start <= 9
+            && stored.charAt(end) >= '0' && stored.charAt(end) <= '9')
+        {
+            ++end;
+        }
+
+        boolean valid =
+            end > start && end - start <= 9
+            && stored.charAt(start) != '0'
+            && stored.length() == end + 2 + SALT_CHARS + HASH_CHARS
+            && isBase64(stored, end, SALT_CHARS)
+            && isBase64(stored, end + 1 + SALT_CHARS, HASH_CHARS);
+
+        return valid ? end : -1;
+    }
+
+    // Checks whether the string has a '$' at the specified index followed by
+    // the specified number of Base64 characters.
+    private static boolean isBase64(String str, int dollarIndex, int length)
+    {
+        if (str.charAt(dollarIndex) != '$')
+            return false;
+
+        for (int i = dollarIndex + 1; i <= dollarIndex + length; ++i)
+        {
+            char c = str.charAt(i);
+
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+                || (c >= '0' && c <= '9') || c == '+' || c == '/' || c == '='))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Checks plain text passwords as mm.common.Config.PASSWORD_PATTERN does.
+    private static boolean isValidPlainText(String password)
+    {
+        int length = password.codePointCount(0, password.length());
+
+        return
+            length >= 6 && length <= 40
+            && password.indexOf('\r') < 0
+            && password.indexOf('\n') < 0;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Hashes the specified password with a new random salt.
+     *
+     * @param password the password
+     * @param iterations the number of PBKDF2 iterations
+     * @return the hash, in the stored format
+     *
+     * @throws IllegalArgumentException if iterations is not positive
+     */
+    static String hash(String password, int iterations)
+    {
+        if (iterations <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Number of iterations must be positive."
+                );
+        }
+
+        byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+
+        byte[] hash = pbkdf2(password.toCharArray(), salt, iterations);
+
+        Base64.Encoder encoder = Base64.getEncoder();
+
+        return
+            PREFIX + iterations
+            + "$" + encoder.encodeToString(salt)
+            + "$" + encoder.encodeToString(hash);
+    }
+
+    /**
+     * Checks whether the specified password matches the specified stored
+     * password, in time that does not depend on where they differ.
+     *
+     * @param password the password
+     * @param stored the stored password, either a hash or legacy plain text
+     * @return true if the password matches
+     */
+    static boolean verify(String password, String stored)
+    {
+        int end = parseHash(stored);
+
+        byte[] expected;
+        byte[] actual;
+
+        if (end < 0)
+        {
+            expected = stored.getBytes(StandardCharsets.UTF_8);
+            actual   = password.getBytes(StandardCharsets.UTF_8);
+        }
+        else
+        {
+            Base64.Decoder decoder = Base64.getDecoder();
+
+            int iterations = Integer.parseInt(
+                stored.substring(PREFIX.length(), end)
+                );
+
+            byte[] salt = decoder.decode(
+                stored.substring(end + 1, end + 1 + SALT_CHARS)
+                );
+
+            expected = decoder.decode(stored.substring(end + 2 + SALT_CHARS));
+            actual   = pbkdf2(password.toCharArray(), salt, iterations);
+        }
+
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Checks whether the specified stored password should be replaced by a new
+     * hash, which is the case for legacy plain text passwords and hashes with
+     * fewer iterations than currently used.
+     *
+     * @param stored the stored password
+     * @param iterations the number of PBKDF2 iterations currently used
+     * @return true if the stored password should be replaced
+     */
+    static boolean needsRehash(String stored, int iterations)
+    {
+        int end = parseHash(stored);
+
+        return
+            end < 0
+            || Integer.parseInt(stored.substring(PREFIX.length(), end))
+                < iterations;
+    }
+
+    /**
+     * Checks whether the specified string is a well-formed stored password,
+     * either a hash or a legacy plain text password.
+     *
+     * @param stored the string
+     * @return true if the string is a well-formed stored password
+     */
+    static boolean isValidStored(String stored)
+    {
+        return parseHash(stored) >= 0 || isValidPlainText(stored);
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,560 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.game;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+import mm.common.Config;
+import mm.common.util.Validation;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A matchmaker that forms lobbies in periodic batches, choosing the best set of
+ * lobbies among all waiting players instead of greedily forming the first
+ * possible lobby.
+ * <p>
+ * Adding a player never forms a lobby. Instead, each invocation of
+ * {@link #planLobbies(long)} takes a snapshot of the waiting players, sorted
+ * by rank, and splits it into partitions of players whose ranks are too far
+ * apart to ever share a lobby. Partitions are solved in parallel on the common
+ * {@link ForkJoinPool}, and the queue is only locked while taking the
+ * snapshot. {@link #formLobbies(LobbyPlan)} then removes the chosen players
+ * from the queue, skipping lobbies with players that left in the meantime.
+ * <p>
+ * As with {@link RatingMatchmaker}, the rank difference accepted by each player
+ * widens with the time spent waiting. A lobby spans a range of players in rank
+ * order, from its lowest to its highest ranked player, and takes players in
+ * between whose windows fit it, leaving the others waiting. Each partition is
+ * solved by forming as many lobbies with disjoint ranges as possible and,
+ * among those solutions, minimizing the sum of the lobbies' rank differences.
+ * Solutions in which the ranges of lobbies overlap are not considered.
+ * Partitions larger than a fixed size are split further, which may lose a
+ * lobby at each split.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class BatchMatchmaker implements MatchmakingQueue
+{
+    // partitions with more players are split, so that large queues with
+    // densely distributed ranks are still solved in parallel
+    private static final int MAX_PARTITION_SIZE = 2048;
+
+    /* ---------------------------------------------------------------------- */
+
+    private static final class Entry
+    {
+        private final int sessionId;
+        private final double rank;
+        private final long enqueuedMillis;
+
+        private Entry(int sessionId, double rank, long enqueuedMillis)
+        {
+            this.sessionId      = sessionId;
+            this.rank           = rank;
+            this.enqueuedMillis = enqueuedMillis;
+        }
+    }
+
+    private static final class BatchPlan extends LobbyPlan
+    {
+        // the entries of each chosen lobby, which are only formed if they are
+        // all still in the queue
+        private final List< Entry[] > lobbies;
+
+        private BatchPlan(long nowMillis, List< Entry[] > lobbies)
+        {
+            super(nowMillis);
+
+            this.lobbies = lobbies;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    // Solves a range of partitions, splitting the range in halves until it
+    // holds a single partition.
+    @SuppressWarnings("serial")
+    private static final class SolveTask
+        extends RecursiveTask< List< Entry[] > >
+    {
+        private final Entry[] entries;
+        private final double[] windows;
+        private final int[] bounds;
+        private final int firstPartition;
+        private final int lastPartition;
+
+        // Partition i spans entries bounds[i] (inclusive) to bounds[i + 1]
+        // (exclusive).
+        private SolveTask(
+            Entry[] entries, double[] windows, int[] bounds,
+            int firstPartition, int lastPartition
+            )
+        {
+            this.entries        = entries;
+            this.windows        = windows;
+            this.bounds         = bounds;
+            this.firstPartition = firstPartition;
+            this.lastPartition  = lastPartition;
+        }
+
+        @Override
+        protected List< Entry[] > compute()
+        {
+            if (firstPartition == lastPartition)
+            {
+                return solvePartition(
+                    entries, windows,
+                    bounds[firstPartition], bounds[firstPartition + 1]
+                    );
+            }
+
+            int middle = (firstPartition + lastPartition) / 2;
+
+            SolveTask low = new SolveTask(
+                entries, windows, bounds, firstPartition, middle
+                );
+
+            SolveTask high = new SolveTask(
+                entries, windows, bounds, middle + 1, lastPartition
+                );
+
+            low.fork();
+
+            List< Entry[] > lobbies = new ArrayList<>(high.compute());
+            lobbies.addAll(low.join());
+
+            return lobbies;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final double initialWindow;
+    private final double windowGrowthPerSecond;
+
+    private final ReentrantLock lock;
+
+    // the following are guarded by lock
+
+    // indexed by session id, null for players not in the queue
+    private Entry[] entriesBySessionId;
+
+    private int numEntries;
+
+    /* ---------------------------------------------------------------------- */
+
+    // Returns the entry of the specified player, or null if the player is not
+    // in the queue.
+    private Entry getEntry(int sessionId)
+    {
+        return (sessionId < entriesBySessionId.length)
+            ? entriesBySessionId[sessionId]
+            : null;
+    }
+
+    // Returns the window of a player that enqueued at the specified time.
+    private double getWindow(long enqueuedMillis, long nowMillis)
+    {
+        long waitedMillis = Math.max(nowMillis - enqueuedMillis, 0);
+
+        return initialWindow + windowGrowthPerSecond * waitedMillis / 1000.;
+    }
+
+    // Returns the bounds of the partitions of the specified entries, which
+    // must be sorted by rank, given their windows. Consecutive entries are in
+    // different partitions if their rank difference exceeds the widest
+    // window.
+    private static int[] partition(Entry[] sortedEntries, double[] windows)
+    {
+        double widestWindow = 0;
+
+        for (double w : windows)
+            widestWindow = Math.max(widestWindow, w);
+
+        int[] bounds = new int[sortedEntries.length + 1];
+        int numBounds = 0;
+
+        bounds[numBounds++] = 0;
+
+        for (int i = 1; i < sortedEntries.length; ++i)
+        {
+            int partitionSize = i - bounds[numBounds - 1];
+
+            double gap = sortedEntries[i].rank - sortedEntries[i - 1].rank;
+
+            if (gap > widestWindow || partitionSize == MAX_PARTITION_SIZE)
+                bounds[numBounds++] = i;
+        }
+
+        bounds[numBounds++] = sortedEntries.length;
+
+        return Arrays.copyOf(bounds, numBounds);
+    }
+
+    // Returns the highest ranked entry, from the specified index on, that
+    // may be the lowest ranked member of a lobby whose highest ranked member
+    // is the specified last entry, or -1 if there is none. Entries must be
+    // sorted by rank.
+    private static int findFirst(
+        Entry[] sortedEntries, double[] windows, int from, int last
+        )
+    {
+        // the largest windows of the entries between first and last
+        double[] inner = new double[Config.LOBBY_SIZE - 2];
+        int numInner = 0;
+
+        for (int first = last - 1; first >= from; --first)
+        {
+            double spread =
+                sortedEntries[last].rank - sortedEntries[first].rank;
+
+            if (spread > windows[last])
+                break;
+
+            boolean fits =
+                spread <= windows[first]
+                && numInner == inner.length
+                && (numInner == 0 || inner[0] >= spread);
+
+            if (fits)
+                return first;
+
+            numInner = RankWindows.addLargest(inner, numInner, windows[first]);
+        }
+
+        return -1;
+    }
+
+    // Solves the partition spanning the specified entries, which must be
+    // sorted by rank, given their windows, with a dynamic program over
+    // prefixes of the partition.
+    //
+    // The best solution for a prefix is never worse than that for a shorter
+    // prefix, and a lobby's spread only grows as its lowest ranked member
+    // moves down, so the best lobby ending at a given entry is the one whose
+    // lowest ranked member is ranked highest.
+    private static List< Entry[] > solvePartition(
+        Entry[] sortedEntries, double[] windows, int from, int to
+        )
+    {
+        int n = to - from;
+
+        // best solution for the first i players of the partition: number of
+        // lobbies, sum of rank differences, and the index of the first
+        // player of the lobby that player i - 1 ends, or -1 if none
+
+        int[] numLobbies = new int[n + 1];
+        double[] cost = new double[n + 1];
+        int[] lobbyFirst = new int[n + 1];
+
+        for (int i = 1; i <= n; ++i)
+        {
+            numLobbies[i] = numLobbies[i - 1];
+            cost[i]       = cost[i - 1];
+            lobbyFirst[i] = -1;
+
+            int last  = from + i - 1;
+            int first = findFirst(sortedEntries, windows, from, last);
+
+            if (first < 0)
+                continue;
+
+            double spread =
+                sortedEntries[last].rank - sortedEntries[first].rank;
+
+            int withLobby = numLobbies[first - from] + 1;
+            double withLobbyCost = cost[first - from] + spread;
+
+            if (withLobby > numLobbies[i]
+                || (withLobby == numLobbies[i] && withLobbyCost < cost[i]))
+            {
+                numLobbies[i] = withLobby;
+                cost[i]       = withLobbyCost;
+                lobbyFirst[i] = first;
+            }
+        }
+
+        // reconstruct solution
+
+        List< Entry[] > lobbies = new ArrayList<>(numLobbies[n]);
+
+        int[] members = new int[Config.LOBBY_SIZE];
+
+        for (int i = n; i > 0; )
+        {
+            int first = lobbyFirst[i];
+
+            if (first < 0)
+            {
+                --i;
+                continue;
+            }
+
+            int last = from + i - 1;
+
+            double spread =
+                sortedEntries[last].rank - sortedEntries[first].rank;
+
+            RankWindows.chooseMembers(
+                windows, null, first, last, spread, members
+                );
+
+            Entry[] lobby = new Entry[Config.LOBBY_SIZE];
+
+            for (int j = 0; j < Config.LOBBY_SIZE; ++j)
+                lobby[j] = sortedEntries[members[j]];
+
+            lobbies.add(lobby);
+
+            i = first - from;
+        }
+
+        return lobbies;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates an empty BatchMatchmaker.
+     *
+     * @param initialWindow the largest rank difference accepted by a player
+     *        that just joined
+     * @param windowGrowthPerSecond how much the largest rank difference
+     *        accepted by a player grows per second of waiting
+     *
+     * @throws IllegalArgumentException if initialWindow or
+     *         windowGrowthPerSecond are negative or not finite
+     */
+    public BatchMatchmaker(double initialWindow, double windowGrowthPerSecond)
+    {
+        if (!(initialWindow >= 0) || Double.isInfinite(initialWindow))
+        {
+            throw new IllegalArgumentException(
+                "Initial window must be non-negative and finite."
+                );
+        }
+
+        if (!(windowGrowthPerSecond >= 0)
+            || Double.isInfinite(windowGrowthPerSecond))
+        {
+            throw new IllegalArgumentException(
+                "Window growth must be non-negative and finite."
+                );
+        }
+
+        this.initialWindow         = initialWindow;
+        this.windowGrowthPerSecond = windowGrowthPerSecond;
+
+        this.lock = new ReentrantLock();
+
+        this.entriesBySessionId = new Entry[0];
+        this.numEntries         = 0;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    @Override
+    public int getPlayerCount()
+    {
+        lock.lock();
+
+        try
+        {
+            return numEntries;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation never forms a lobby when a player is added.
+     */
+    @Override
+    public int[] addPlayer(int sessionId, double rank, long nowMillis)
+    {
+        Validation.validateSessionId(sessionId);
+        Validation.validateDoubleRank(rank);
+
+        lock.lock();
+
+        try
+        {
+            if (getEntry(sessionId) != null)
+            {
+                throw new IllegalStateException(
+                    "the player is already in matchmaking"
+                    );
+            }
+
+            if (sessionId >= entriesBySessionId.length)
+            {
+                entriesBySessionId = Arrays.copyOf(
+                    entriesBySessionId,
+                    Math.max(sessionId + 1, 2 * entriesBySessionId.length)
+                    );
+            }
+
+            entriesBySessionId[sessionId] =
+                new Entry(sessionId, rank, nowMillis);
+
+            ++numEntries;
+
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removePlayer(int sessionId, double rank)
+    {
+        Validation.validateSessionId(sessionId);
+        Validation.validateDoubleRank(rank);
+
+        lock.lock();
+
+        try
+        {
+            if (getEntry(sessionId) == null)
+            {
+                throw new IllegalStateException(
+                    "the player is not in matchmaking"
+                    );
+            }
+
+            entriesBySessionId[sessionId] = null;
+
+            --numEntries;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The queue is only locked while taking a snapshot of the waiting
+     * players, not while solving it.
+     */
+    @Override
+    public LobbyPlan planLobbies(long nowMillis)
+    {
+        Entry[] snapshot;
+
+        lock.lock();
+
+        try
+        {
+            if (numEntries < Config.LOBBY_SIZE)
+                return new BatchPlan(nowMillis, new ArrayList<>());
+
+            snapshot = new Entry[numEntries];
+
+            int n = 0;
+
+            for (Entry e : entriesBySessionId)
+            {
+                if (e != null)
+                    snapshot[n++] = e;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        Arrays.sort(snapshot, Comparator.comparingDouble(e -> e.rank));
+
+        double[] windows = new double[snapshot.length];
+
+        for (int i = 0; i < snapshot.length; ++i)
+            windows[i] = getWindow(snapshot[i].enqueuedMillis, nowMillis);
+
+        // solve partitions in parallel
+
+        int[] bounds = partition(snapshot, windows);
+
+        List< Entry[] > lobbies = ForkJoinPool.commonPool().invoke(
+            new SolveTask(snapshot, windows, bounds, 0, bounds.length - 2)
+            );
+
+        return new BatchPlan(nowMillis, lobbies);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Plans not made by a BatchMatchmaker are made again.
+     */
+    @Override
+    public List< int[] > formLobbies(LobbyPlan plan)
+    {
+        if (!(plan instanceof BatchPlan))
+            plan = planLobbies(plan.getNowMillis());
+
+        List< Entry[] > planned = ((BatchPlan)plan).lobbies;
+
+        List< int[] > lobbies = new ArrayList<>(planned.size());
+
+        lock.lock();
+
+        try
+        {
+            for (Entry[] lobby : planned)
+            {
+                // players that left, even if they joined again, void the
+                // lobby
+
+                boolean valid = true;
+
+                for (Entry e : lobby)
+                    valid = valid && getEntry(e.sessionId) == e;
+
+                if (!valid)
+                    continue;
+
+                int[] sessionIds = new int[lobby.length];
+
+                for (int i = 0; i < lobby.length; ++i)
+                {
+                    sessionIds[i] = lobby[i].sessionId;
+                    entriesBySessionId[sessionIds[i]] = null;
+                }
+
+                numEntries -= lobby.length;
+
+                lobbies.add(sessionIds);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return lobbies;
+    }
+
+    @Override
+    public List< int[] > pollLobbies(long nowMillis)
+    {
+        return formLobbies(planLobbies(nowMillis));
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -12,14 +12,12 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import mm.common.Config;
 import mm.common.data.ConcreteHero;
@@ -27,6 +25,7 @@ import mm.common.data.Hero;
 import mm.common.data.MatchSummary;
 import mm.common.data.Team;
 import mm.common.data.TeamInfo;
+import mm.common.util.Scheduler;
 import mm.common.util.Validation;
 
 /* -------------------------------------------------------------------------- */
@@ -82,27 +81,75 @@ public class Lobby
 
     /* ---------------------------------------------------------------------- */
 
+    // Splits the players into two teams whose rank sums are as close as
+    // possible, keeping each team sorted by rank.
     private static void createBalancedTeams(
         Collection< Player > players,
         List< Player > teamBlue, List< Player > teamRed
         )
     {
-        Stream< Player > sortedPlayers =
+        Player[] sortedPlayers =
             players
             .stream()
-            .sorted((p1, p2) -> Integer.compare(p1.getRank(), p2.getRank()));
+            .sorted((p1, p2) -> Integer.compare(p1.getRank(), p2.getRank()))
+            .toArray(Player[]::new);
 
-        boolean pTeamBlue = false;
+        int[] ranks = new int[sortedPlayers.length];
 
-        for(Player player : (Iterable< Player >)sortedPlayers::iterator)
+        for (int i = 0; i < sortedPlayers.length; ++i)
+            ranks[i] = sortedPlayers[i].getRank();
+
+        boolean[] inTeamBlue = TeamBalancer.balance(ranks);
+
+        for (int i = 0; i < sortedPlayers.length; ++i)
         {
-            if (pTeamBlue)
-                teamBlue.add(player);
+            if (inTeamBlue[i])
+                teamBlue.add(sortedPlayers[i]);
             else
-                teamRed.add(player);
+                teamRed.add(sortedPlayers[i]);
+        }
+    }
+
+    // Splits the groups of players into two teams whose rank sums are as
+    // close as possible, keeping each group in a single team and each team
+    // sorted by rank.
+    private static void createBalancedTeams(
+        List< ? extends Collection< Player > > groups,
+        List< Player > teamBlue, List< Player > teamRed
+        )
+    {
+        if (groups.stream().allMatch(g -> g.size() == 1))
+        {
+            createBalancedTeams(
+                groups
+                .stream()
+                .flatMap(Collection::stream)
+                .collect(Collectors.toList()),
+                teamBlue, teamRed
+                );
+
+            return;
+        }
+
+        int[] groupSizes    = new int[groups.size()];
+        int[] groupRankSums = new int[groups.size()];
+
+        for (int g = 0; g < groups.size(); ++g)
+        {
+            groupSizes[g] = groups.get(g).size();
 
-            pTeamBlue = !pTeamBlue;
+            for (Player p : groups.get(g))
+                groupRankSums[g] += p.getRank();
         }
+
+        boolean[] inTeamBlue =
+            TeamBalancer.balanceGroups(groupSizes, groupRankSums);
+
+        for (int g = 0; g < groups.size(); ++g)
+            (inTeamBlue[g] ? teamBlue : teamRed).addAll(groups.get(g));
+
+        teamBlue.sort((p1, p2) -> Integer.compare(p1.getRank(), p2.getRank()));
+        teamRed.sort((p1, p2) -> Integer.compare(p1.getRank(), p2.getRank()));
     }
 
     /* ---------------------------------------------------------------------- */
@@ -111,23 +158,43 @@ public class Lobby
 
     private final Set< Integer > selectedChampionIndices;
 
-    private final Timer timer;
+    private final ReentrantLock lock;
+
+    private final Scheduler scheduler;
+    private Scheduler.Timeout timeout;
     private final long timerPeriod;
     private final AtomicBoolean timerCanceled;
     private final Consumer< Lobby > onFailureToSelectHero;
 
     /* ---------------------------------------------------------------------- */
 
+    /**
+     * Creates a lobby for the specified groups of players, which are split
+     * into two teams without splitting any group.
+     * <p>
+     * Solo players are given as groups of one player.
+     *
+     * @param groups the groups of players
+     * @param timeToAcceptMatch the time players have to select a hero, in
+     *        seconds
+     * @param scheduler the scheduler that runs the lobby's timeout
+     * @param onFailureToSelectHero callback to be run if some player does not
+     *        select a hero in time
+     *
+     * @throws IllegalArgumentException if the groups cannot be split into two
+     *         teams of equal size
+     */
     public Lobby(
-        Collection< Player > players,
+        List< ? extends Collection< Player > > groups,
         double timeToAcceptMatch,
+        Scheduler scheduler,
         Consumer< Lobby > onFailureToSelectHero
         )
     {
         List< Player > teamBluePlayers = new ArrayList<>();
         List< Player > teamRedPlayers  = new ArrayList<>();
 
-        createBalancedTeams(players, teamBluePlayers, teamRedPlayers);
+        createBalancedTeams(groups, teamBluePlayers, teamRedPlayers);
 
         teamPlayers = new HashMap<>();
         teamPlayers.put(Team.BLUE, teamBluePlayers);
@@ -135,9 +202,12 @@ public class Lobby
 
         selectedChampionIndices = new HashSet<>();
 
+        lock = new ReentrantLock();
+
         // ---
 
-        this.timer = new Timer();
+        this.scheduler = Objects.requireNonNull(scheduler);
+        this.timeout = null;
         this.timerPeriod = (long)(timeToAcceptMatch * 1000.);
         this.timerCanceled = new AtomicBoolean(false);
         this.onFailureToSelectHero = onFailureToSelectHero;
@@ -145,6 +215,23 @@ public class Lobby
 
     /* ---------------------------------------------------------------------- */
 
+    /**
+     * Acquires the lock that serializes all transitions of this lobby and of
+     * the states of its players.
+     */
+    public void lock()
+    {
+        lock.lock();
+    }
+
+    /**
+     * Releases the lock acquired by {@link #lock()}.
+     */
+    public void unlock()
+    {
+        lock.unlock();
+    }
+
     public Set< String > getAllPlayerUsernames()
     {
         return
@@ -280,20 +367,17 @@ public class Lobby
 
     public void startTimer()
     {
-        TimerTask timerTask = new TimerTask() {
-            @Override
-            public void run()
-            {
-                onFailureToSelectHero.accept(Lobby.this);
-            }
-        };
-
-        timer.schedule(timerTask, timerPeriod);
+        timeout = scheduler.schedule(
+            () -> onFailureToSelectHero.accept(this),
+            timerPeriod
+            );
     }
 
     public void cancelTimer()
     {
-        timer.cancel();
+        if (timeout != null)
+            timeout.cancel();
+
         timerCanceled.set(true);
     }
 }
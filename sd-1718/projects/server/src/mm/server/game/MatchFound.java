@@ -5,14 +5,15 @@ package mm.server.game;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import mm.common.Config;
+import mm.common.util.Scheduler;
 
 /* -------------------------------------------------------------------------- */
 
@@ -32,7 +33,10 @@ public class MatchFound
     // The number of players that have accepted the match.
     private int numPlayersAccepted;
 
-    private final Timer timer;
+    private final ReentrantLock lock;
+
+    private final Scheduler scheduler;
+    private Scheduler.Timeout timeout;
     private final long timerPeriod;
     private final AtomicBoolean timerCanceled;
     private final Consumer< MatchFound > onFailureToAcceptMatch;
@@ -42,6 +46,7 @@ public class MatchFound
     public MatchFound(
         Set< String > playerUsernames,
         double timeToAcceptMatch,
+        Scheduler scheduler,
         Consumer< MatchFound > onFailureToAcceptMatch
         )
     {
@@ -57,9 +62,12 @@ public class MatchFound
 
         this.numPlayersAccepted = 0;
 
+        this.lock = new ReentrantLock();
+
         // ---
 
-        this.timer = new Timer();
+        this.scheduler = Objects.requireNonNull(scheduler);
+        this.timeout = null;
         this.timerPeriod = (long)(timeToAcceptMatch * 1000.);
         this.timerCanceled = new AtomicBoolean(false);
         this.onFailureToAcceptMatch = onFailureToAcceptMatch;
@@ -67,6 +75,23 @@ public class MatchFound
 
     /* ---------------------------------------------------------------------- */
 
+    /**
+     * Acquires the lock that serializes all transitions of this match and of
+     * the states of its players.
+     */
+    public void lock()
+    {
+        lock.lock();
+    }
+
+    /**
+     * Releases the lock acquired by {@link #lock()}.
+     */
+    public void unlock()
+    {
+        lock.unlock();
+    }
+
     /**
      * Returns the set of the usernames of all the players that are in this
      * lobby.
@@ -132,20 +157,17 @@ public class MatchFound
 
     public void startTimer()
     {
-        TimerTask timerTask = new TimerTask() {
-            @Override
-            public void run()
-            {
-                onFailureToAcceptMatch.accept(MatchFound.this);
-            }
-        };
-
-        timer.schedule(timerTask, timerPeriod);
+        timeout = scheduler.schedule(
+            () -> onFailureToAcceptMatch.accept(this),
+            timerPeriod
+            );
     }
 
     public void cancelTimer()
     {
-        timer.cancel();
+        if (timeout != null)
+            timeout.cancel();
+
         timerCanceled.set(true);
     }
 }
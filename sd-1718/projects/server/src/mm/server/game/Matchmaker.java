@@ -4,9 +4,12 @@ package mm.server.game;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import mm.common.Config;
 import mm.common.util.Validation;
@@ -15,48 +18,528 @@ import mm.common.util.Validation;
 
 /**
  * This class implements the matchmaking algorithm.
+ * <p>
+ * Players are kept in buckets spanning two consecutive integer ranks, and a
+ * lobby forms as soon as one bucket holds enough players to fill it. Lobbies
+ * therefore only form when players are added, and {@link #pollLobbies(long)}
+ * never returns any.
+ * <p>
+ * Parties of up to {@link Config#MAX_PARTY_SIZE} players are queued as single
+ * groups, whose rank is the mean of their members' ranks. A bucket fills when
+ * its groups match one of the precomputed lobby compositions, which are the
+ * ways of filling a lobby with groups that can be split into two full teams
+ * without splitting any group.
+ * <p>
+ * The remaining players of a lobby whose match could not start are kept
+ * together as a reserved lobby, in the bucket they were matched from. Its
+ * missing slots are filled first by groups already waiting in that bucket,
+ * and then by groups added to the bucket, before any other lobby forms.
+ * <p>
+ * Instances of this class are thread-safe. Each bucket has its own lock, and
+ * each operation only locks the buckets that it may touch, always in
+ * increasing order of index, so that operations on players with distant ranks
+ * run in parallel and operations on adjacent buckets cannot deadlock.
  *
  * @author Alberto Faria
  * @author Fábio Fontes
  */
-public class Matchmaker
+public class Matchmaker implements MatchmakingQueue
 {
     private static final int NUM_BUCKETS = Config.MAX_RANK - Config.MIN_RANK;
 
-    private static List< Integer > getAppropriateBucketIndices(int rank)
+    // the slot of players in a reserved lobby of a bucket
+    private static final int RESERVED = -1;
+
+    // LOBBY_COMPOSITIONS[c][s - 1] is the number of groups of s players in
+    // lobby composition c. Lobbies of solo players are the first composition
+    // checked, so that they form exactly as before parties existed.
+    private static final int[][] LOBBY_COMPOSITIONS = getLobbyCompositions();
+
+    // Adds to the specified list every team composition that completes the
+    // specified counts with groups of at most maxSize players.
+    private static void addTeamCompositions(
+        List< int[] > compositions, int[] counts, int remaining, int maxSize
+        )
     {
-        if (rank == Config.MIN_RANK)
+        if (remaining == 0)
         {
-            return Arrays.asList(0);
+            compositions.add(counts.clone());
+            return;
         }
-        else if (rank == Config.MAX_RANK)
+
+        for (int s = 1; s <= Math.min(remaining, maxSize); ++s)
         {
-            return Arrays.asList(NUM_BUCKETS - 1);
+            ++counts[s - 1];
+            addTeamCompositions(compositions, counts, remaining - s, s);
+            --counts[s - 1];
         }
-        else
+    }
+
+    private static int[][] getLobbyCompositions()
+    {
+        List< int[] > teams = new ArrayList<>();
+
+        addTeamCompositions(
+            teams, new int[Config.MAX_PARTY_SIZE],
+            Config.TEAM_SIZE, Config.MAX_PARTY_SIZE
+            );
+
+        // a lobby composition is the sum of two team compositions, and may be
+        // obtained from several pairs
+
+        Set< List< Integer > > seen = new HashSet<>();
+        List< int[] > lobbies = new ArrayList<>();
+
+        for (int a = 0; a < teams.size(); ++a)
         {
-            int i = rank - Config.MIN_RANK;
+            for (int b = a; b < teams.size(); ++b)
+            {
+                int[] lobby = new int[Config.MAX_PARTY_SIZE];
 
-            return Arrays.asList(i - 1, i);
+                for (int s = 0; s < lobby.length; ++s)
+                    lobby[s] = teams.get(a)[s] + teams.get(b)[s];
+
+                List< Integer > key = new ArrayList<>(lobby.length);
+
+                for (int count : lobby)
+                    key.add(count);
+
+                if (seen.add(key))
+                    lobbies.add(lobby);
+            }
         }
+
+        return lobbies.toArray(new int[0][]);
     }
 
+    // A player with some rank is in every bucket between the indices returned
+    // by getFirstBucketIndex(rank) and getLastBucketIndex(rank), which are
+    // either the same bucket or two adjacent ones.
+
+    private static int getFirstBucketIndex(int rank)
+    {
+        return Math.max(rank - Config.MIN_RANK - 1, 0);
+    }
+
+    private static int getLastBucketIndex(int rank)
+    {
+        return Math.min(rank - Config.MIN_RANK, NUM_BUCKETS - 1);
+    }
+
+    // Returns the index of the first bucket that must be locked to add a
+    // player with the specified rank. Filling a bucket removes its players
+    // from the adjacent buckets, so these must be locked too.
+    private static int getFirstLockedBucketIndex(int rank)
+    {
+        return Math.max(getFirstBucketIndex(rank) - 1, 0);
+    }
+
+    // Returns the index of the last bucket that must be locked to add a
+    // player with the specified rank.
+    private static int getLastLockedBucketIndex(int rank)
+    {
+        return Math.min(getLastBucketIndex(rank) + 1, NUM_BUCKETS - 1);
+    }
+
+    // The remaining groups of a lobby whose match could not start, and the
+    // groups that were added to fill its missing slots.
+    private static final class ReservedLobby
+    {
+        // the session ids of the first numMembers players, with the members
+        // of each group consecutive and starting with its leader
+        private final int[] members = new int[Config.LOBBY_SIZE];
+        private int numMembers = 0;
+
+        // the sizes of the first numGroups groups, in the same order
+        private final int[] groupSizes = new int[Config.LOBBY_SIZE];
+        private int numGroups = 0;
+
+        private boolean isEmpty()
+        {
+            return numMembers == 0;
+        }
+
+        private boolean isFull()
+        {
+            return numMembers == Config.LOBBY_SIZE;
+        }
+
+        // Returns whether a group of s players may be added, which requires
+        // that all groups can still be split into two teams. The remaining
+        // slots can then always be filled by solo players.
+        private boolean canAdd(int s)
+        {
+            int total = numMembers + s;
+
+            if (total > Config.LOBBY_SIZE)
+                return false;
+
+            // bit t is set if some subset of the groups has t players
+
+            long sums = 1L | (1L << s);
+
+            for (int g = 0; g < numGroups; ++g)
+                sums |= sums << groupSizes[g];
+
+            for (int t = total - Config.TEAM_SIZE; t <= Config.TEAM_SIZE; ++t)
+            {
+                if (t >= 0 && (sums & (1L << t)) != 0)
+                    return true;
+            }
+
+            return false;
+        }
+
+        // Must only be invoked if canAdd(sessionIds.length) returns true.
+        private void add(int[] sessionIds)
+        {
+            System.arraycopy(
+                sessionIds, 0, members, numMembers, sessionIds.length
+                );
+
+            numMembers += sessionIds.length;
+            groupSizes[numGroups++] = sessionIds.length;
+        }
+
+        // Removes the group of s players with the specified leader, returning
+        // its session ids, or null if there is no such group.
+        private int[] remove(int leaderSessionId, int s)
+        {
+            for (int g = 0, p = 0; g < numGroups; p += groupSizes[g++])
+            {
+                if (groupSizes[g] != s || members[p] != leaderSessionId)
+                    continue;
+
+                int[] sessionIds = Arrays.copyOfRange(members, p, p + s);
+
+                System.arraycopy(
+                    members, p + s, members, p, numMembers - p - s
+                    );
+
+                System.arraycopy(
+                    groupSizes, g + 1, groupSizes, g, numGroups - g - 1
+                    );
+
+                numMembers -= s;
+                --numGroups;
+
+                return sessionIds;
+            }
+
+            return null;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private static void validateParty(int[] sessionIds)
+    {
+        if (sessionIds.length < 1 || sessionIds.length > Config.MAX_PARTY_SIZE)
+            throw new IllegalArgumentException("invalid party size");
+
+        for (int i = 0; i < sessionIds.length; ++i)
+        {
+            Validation.validateSessionId(sessionIds[i]);
+
+            for (int j = 0; j < i; ++j)
+            {
+                if (sessionIds[j] == sessionIds[i])
+                {
+                    throw new IllegalArgumentException(
+                        "repeated party member"
+                        );
+                }
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    // Bucket i holds groupCounts[i][s - 1] groups of s players in the first
+    // groupCounts[i][s - 1] * s elements of groupMembers[i][s - 1], in no
+    // particular order. The session ids of a group are consecutive, starting
+    // with its leader's, which identifies the group. Solo players are groups
+    // of one player.
+    private final int[][][] groupMembers;
+    private final int[][] groupCounts;
+
+    // groupSlots[i][id] locates the player with session id id in bucket i,
+    // so that no bucket is ever scanned: it is 0 if the player is not in the
+    // bucket, RESERVED if the player is in one of its reserved lobbies, and
+    // otherwise groupSlot(s, g) if the player is in its g-th group of s
+    // players. Larger groups may pile up in a bucket without bound while no
+    // smaller groups arrive to complete a lobby.
+    private final int[][] groupSlots;
+
+    // number of players in each bucket, so that the lobby compositions are
+    // only checked when a bucket holds enough players to fill a lobby
+    private final int[] bucketSizes;
+
+    // Bucket i also holds the reserved lobbies in reservedLobbies.get(i),
+    // oldest first. Groups in a reserved lobby are not in groupMembers.
+    private final List< List< ReservedLobby > > reservedLobbies;
+
+    // bucketLocks[i] guards groupMembers[i], groupCounts[i], groupSlots[i],
+    // bucketSizes[i] and reservedLobbies.get(i)
+    private final ReentrantLock[] bucketLocks;
+
+    private final AtomicInteger playerCount;
+
     /* ---------------------------------------------------------------------- */
 
-    private final List< Set< String > > buckets;
+    // Locks buckets first through last, in increasing order of index.
+    private void lockBuckets(int first, int last)
+    {
+        for (int i = first; i <= last; ++i)
+            bucketLocks[i].lock();
+    }
+
+    // Unlocks buckets first through last.
+    private void unlockBuckets(int first, int last)
+    {
+        for (int i = last; i >= first; --i)
+            bucketLocks[i].unlock();
+    }
+
+    // Returns the slot of the g-th group of s players in a bucket.
+    private static int groupSlot(int s, int g)
+    {
+        return g * Config.MAX_PARTY_SIZE + s;
+    }
+
+    // Returns the slot of the specified player in bucket i.
+    private int getSlot(int i, int sessionId)
+    {
+        int[] slots = groupSlots[i];
+
+        return (sessionId < slots.length) ? slots[sessionId] : 0;
+    }
+
+    // Sets the slot of the specified player in bucket i.
+    private void setSlot(int i, int sessionId, int slot)
+    {
+        if (sessionId >= groupSlots[i].length)
+        {
+            groupSlots[i] = Arrays.copyOf(
+                groupSlots[i],
+                Math.max(sessionId + 1, 2 * groupSlots[i].length)
+                );
+        }
+
+        groupSlots[i][sessionId] = slot;
+    }
+
+    // Sets the slots of the members of the g-th group of s players in bucket
+    // i to the specified slot.
+    private void setGroupSlots(int i, int s, int g, int slot)
+    {
+        int[] members = groupMembers[i][s - 1];
+
+        for (int p = g * s; p < (g + 1) * s; ++p)
+            setSlot(i, members[p], slot);
+    }
+
+    // Returns whether the specified player is in bucket i.
+    private boolean contains(int i, int sessionId)
+    {
+        return getSlot(i, sessionId) != 0;
+    }
+
+    // Returns the position of the group of s players with the specified
+    // leader in bucket i, or -1 if there is no such group in that bucket.
+    private int indexOf(int i, int s, int leaderSessionId)
+    {
+        int slot = getSlot(i, leaderSessionId);
+
+        if (slot <= 0 || (slot - s) % Config.MAX_PARTY_SIZE != 0)
+            return -1;
+
+        int g = (slot - s) / Config.MAX_PARTY_SIZE;
+
+        return (groupMembers[i][s - 1][g * s] == leaderSessionId) ? g : -1;
+    }
+
+    // Appends a group to bucket i.
+    private void append(int i, int[] sessionIds)
+    {
+        int s = sessionIds.length;
+        int count = groupCounts[i][s - 1];
+
+        if ((count + 1) * s > groupMembers[i][s - 1].length)
+        {
+            groupMembers[i][s - 1] = Arrays.copyOf(
+                groupMembers[i][s - 1], 2 * groupMembers[i][s - 1].length
+                );
+        }
+
+        System.arraycopy(sessionIds, 0, groupMembers[i][s - 1], count * s, s);
+        setGroupSlots(i, s, count, groupSlot(s, count));
+
+        groupCounts[i][s - 1] = count + 1;
+        bucketSizes[i] += s;
+    }
+
+    // Removes the group of s players at the specified position of bucket i,
+    // moving the last group of s players to that position.
+    private void removeAt(int i, int s, int g)
+    {
+        int last = --groupCounts[i][s - 1];
+
+        bucketSizes[i] -= s;
+
+        setGroupSlots(i, s, g, 0);
+
+        if (g != last)
+        {
+            int[] members = groupMembers[i][s - 1];
+            System.arraycopy(members, last * s, members, g * s, s);
+
+            setGroupSlots(i, s, g, groupSlot(s, g));
+        }
+    }
+
+    // Sets the slots of the members of the specified reserved lobby in bucket
+    // i to the specified slot, either RESERVED or 0.
+    private void setLobbySlots(int i, ReservedLobby lobby, int slot)
+    {
+        for (int p = 0; p < lobby.numMembers; ++p)
+            setSlot(i, lobby.members[p], slot);
+    }
+
+    // Returns the index of a lobby composition whose groups are all in bucket
+    // i and which includes a group of s players, or -1 if there is none.
+    private int findLobbyComposition(int i, int s)
+    {
+        if (bucketSizes[i] < Config.LOBBY_SIZE)
+            return -1;
+
+        int[] counts = groupCounts[i];
+
+        for (int c = 0; c < LOBBY_COMPOSITIONS.length; ++c)
+        {
+            int[] composition = LOBBY_COMPOSITIONS[c];
+
+            if (composition[s - 1] == 0)
+                continue;
+
+            boolean fits = true;
+
+            for (int k = 0; k < counts.length && fits; ++k)
+                fits = composition[k] <= counts[k];
+
+            if (fits)
+                return c;
+        }
+
+        return -1;
+    }
+
+    // Removes the groups of the specified lobby composition from bucket i,
+    // and from the adjacent buckets, returning their session ids with the
+    // members of each group consecutive.
+    private int[] takeLobby(int i, int[] composition)
+    {
+        int[] sessionIds = new int[Config.LOBBY_SIZE];
+        int n = 0;
+
+        for (int s = 1; s <= Config.MAX_PARTY_SIZE; ++s)
+        {
+            int taken = composition[s - 1];
+
+            if (taken == 0)
+                continue;
+
+            int[] members = groupMembers[i][s - 1];
+
+            System.arraycopy(members, 0, sessionIds, n, taken * s);
+
+            // remove every group taken from adjacent buckets
+
+            for (int g = 0; g < taken; ++g)
+            {
+                int leader = members[g * s];
+
+                for (int j = i - 1; j <= i + 1; j += 2)
+                {
+                    if (j < 0 || j >= NUM_BUCKETS)
+                        continue;
+
+                    int p = indexOf(j, s, leader);
+
+                    if (p >= 0)
+                        removeAt(j, s, p);
+                }
+            }
+
+            // remove groups taken from this bucket, last first so that each
+            // removal moves a group that is not taken
+
+            for (int g = taken - 1; g >= 0; --g)
+                removeAt(i, s, g);
+
+            n += taken * s;
+        }
+
+        return sessionIds;
+    }
+
+    // Moves groups waiting in bucket i to the specified reserved lobby,
+    // largest groups first, until it is full or no other group fits. The
+    // groups are also removed from the adjacent buckets, and their slots are
+    // left for the caller to set.
+    private void fill(int i, ReservedLobby lobby)
+    {
+        for (int s = Config.MAX_PARTY_SIZE; s >= 1 && !lobby.isFull(); --s)
+        {
+            while (groupCounts[i][s - 1] > 0 && lobby.canAdd(s))
+            {
+                int g = groupCounts[i][s - 1] - 1;
+
+                int[] sessionIds = Arrays.copyOfRange(
+                    groupMembers[i][s - 1], g * s, (g + 1) * s
+                    );
+
+                removeAt(i, s, g);
 
-    private int playerCount;
+                for (int j = i - 1; j <= i + 1; j += 2)
+                {
+                    if (j < 0 || j >= NUM_BUCKETS)
+                        continue;
+
+                    int p = indexOf(j, s, sessionIds[0]);
+
+                    if (p >= 0)
+                        removeAt(j, s, p);
+                }
+
+                lobby.add(sessionIds);
+            }
+        }
+    }
 
     /* ---------------------------------------------------------------------- */
 
     public Matchmaker()
     {
-        buckets = new ArrayList<>();
+        groupMembers = new int[NUM_BUCKETS][Config.MAX_PARTY_SIZE][];
+        groupCounts  = new int[NUM_BUCKETS][Config.MAX_PARTY_SIZE];
+        groupSlots   = new int[NUM_BUCKETS][0];
+        bucketSizes  = new int[NUM_BUCKETS];
+        bucketLocks  = new ReentrantLock[NUM_BUCKETS];
+
+        reservedLobbies = new ArrayList<>(NUM_BUCKETS);
 
         for (int i = 0; i < NUM_BUCKETS; ++i)
-            buckets.add(new HashSet<>());
+        {
+            reservedLobbies.add(new ArrayList<>());
+
+            for (int s = 1; s <= Config.MAX_PARTY_SIZE; ++s)
+                groupMembers[i][s - 1] = new int[Config.LOBBY_SIZE * s];
+
+            bucketLocks[i] = new ReentrantLock();
+        }
 
-        this.playerCount = 0;
+        this.playerCount = new AtomicInteger(0);
     }
 
     /* ---------------------------------------------------------------------- */
@@ -66,86 +549,170 @@ public class Matchmaker
      *
      * @return the number of players currently in matchmaking
      */
-    public synchronized int getPlayerCount()
+    @Override
+    public int getPlayerCount()
+    {
+        return playerCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation supports parties.
+     */
+    @Override
+    public boolean supportsParties()
     {
-        return playerCount;
+        return true;
     }
 
     /* ---------------------------------------------------------------------- */
 
     /**
      * Adds a player to matchmaking. If a lobby could be formed, returns the
-     * usernames of the players in that lobby.
+     * session ids of the players in that lobby.
      *
-     * @param username the player's username
+     * @param sessionId the player's session id
      * @param rank the player's rank
-     * @return the usernames of the players in that lobby, if a lobby could be
-     *         formed; otherwise, null
+     * @return the session ids of the players in that lobby, if a lobby could
+     *         be formed; otherwise, null
      *
-     * @throws NullPointerException if username is null
      * @throws IllegalArgumentException if any of the arguments is invalid
      * @throws IllegalStateException if the player is already in matchmaking
      */
-    public synchronized Set< String > addPlayer(String username, int rank)
+    public int[] addPlayer(int sessionId, int rank)
+    {
+        Validation.validateSessionId(sessionId);
+
+        return addValidatedParty(new int[] { sessionId }, rank);
+    }
+
+    /**
+     * Adds a party to matchmaking. If a lobby could be formed, returns the
+     * session ids of the players in that lobby, with the members of each party
+     * consecutive.
+     *
+     * @param sessionIds the session ids of the party's members, its leader
+     *        first
+     * @param rank the party's rank
+     * @return the session ids of the players in that lobby, if a lobby could
+     *         be formed; otherwise, null
+     *
+     * @throws NullPointerException if sessionIds is null
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     * @throws IllegalStateException if any member is already in matchmaking
+     */
+    public int[] addParty(int[] sessionIds, int rank)
+    {
+        validateParty(sessionIds);
+
+        return addValidatedParty(sessionIds, rank);
+    }
+
+    private int[] addValidatedParty(int[] sessionIds, int rank)
     {
-        Validation.validateUsername(username);
         Validation.validateIntegerRank(rank);
 
+        int first = getFirstLockedBucketIndex(rank);
+        int last  = getLastLockedBucketIndex(rank);
+
+        lockBuckets(first, last);
+
+        try
+        {
+            return addPartyLocked(sessionIds, rank);
+        }
+        finally
+        {
+            unlockBuckets(first, last);
+        }
+    }
+
+    // Must be invoked while holding the locks of all buckets between the
+    // indices returned by getFirstLockedBucketIndex(rank) and
+    // getLastLockedBucketIndex(rank).
+    private int[] addPartyLocked(int[] sessionIds, int rank)
+    {
         // get appropriate buckets
 
-        List< Integer > appropriateBuckets = getAppropriateBucketIndices(rank);
+        int first = getFirstBucketIndex(rank);
+        int last  = getLastBucketIndex(rank);
 
-        // check if player isn't already in matchmaking
-        for (int i : appropriateBuckets)
+        // check if no member is already in matchmaking
+        for (int i = first; i <= last; ++i)
         {
-            if (buckets.get(i).contains(username))
+            for (int sessionId : sessionIds)
             {
-                throw new IllegalStateException(
-                    "the player is already in matchmaking"
-                    );
+                if (contains(i, sessionId))
+                {
+                    throw new IllegalStateException(
+                        "the player is already in matchmaking"
+                        );
+                }
             }
         }
 
         // increment player count
 
-        ++playerCount;
+        playerCount.addAndGet(sessionIds.length);
 
-        // for all appropriate buckets
-        for (int i : appropriateBuckets)
+        // fill the missing slots of reserved lobbies first
+        for (int i = first; i <= last; ++i)
         {
-            Set< String > bucket = buckets.get(i);
+            List< ReservedLobby > reserved = reservedLobbies.get(i);
 
-            // add player to this bucket
+            for (int r = 0; r < reserved.size(); ++r)
+            {
+                ReservedLobby lobby = reserved.get(r);
 
-            bucket.add(username);
+                if (!lobby.canAdd(sessionIds.length))
+                    continue;
 
-            // if this bucket if now full
+                lobby.add(sessionIds);
 
-            if (bucket.size() == Config.LOBBY_SIZE)
-            {
-                // remove every player in this bucket from adjacent buckets
+                if (!lobby.isFull())
+                {
+                    for (int sessionId : sessionIds)
+                        setSlot(i, sessionId, RESERVED);
+
+                    return null;
+                }
 
-                if (i - 1 >= 0)
-                    buckets.get(i - 1).removeAll(bucket);
+                reserved.remove(r);
+                setLobbySlots(i, lobby, 0);
 
-                if (i + 1 < NUM_BUCKETS)
-                    buckets.get(i + 1).removeAll(bucket);
+                playerCount.addAndGet(-Config.LOBBY_SIZE);
 
-                // copy bucket
+                return lobby.members;
+            }
+        }
+
+        // for all appropriate buckets
+        for (int i = first; i <= last; ++i)
+        {
+            // add group to this bucket
 
-                Set< String > usernames = new HashSet<>(bucket);
+            append(i, sessionIds);
 
-                // clear this bucket
+            // if this bucket can now fill a lobby (no lobby could be formed
+            // before the group was added, so every composition that fits
+            // includes all groups of its size, and thus the new group)
 
-                bucket.clear();
+            int c = findLobbyComposition(i, sessionIds.length);
+
+            if (c >= 0)
+            {
+                // remove the lobby's groups from this and adjacent buckets
+
+                int[] lobby = takeLobby(i, LOBBY_COMPOSITIONS[c]);
 
                 // update player count
 
-                playerCount -= Config.LOBBY_SIZE;
+                playerCount.addAndGet(-Config.LOBBY_SIZE);
 
-                // return bucket copy
+                // return lobby
 
-                return usernames;
+                return lobby;
             }
         }
 
@@ -157,33 +724,294 @@ public class Matchmaker
     /**
      * Removes a player from matchmaking.
      *
-     * @param username the player's username
+     * @param sessionId the player's session id
      * @param rank the player's rank
      *
-     * @throws NullPointerException if username is null
      * @throws IllegalArgumentException if any of the arguments is invalid
      * @throws IllegalStateException if the player is not in matchmaking
      */
-    public synchronized void removePlayer(String username, int rank)
+    public void removePlayer(int sessionId, int rank)
+    {
+        Validation.validateSessionId(sessionId);
+
+        removeGroup(sessionId, 1, rank);
+    }
+
+    /**
+     * Removes a party from matchmaking.
+     *
+     * @param sessionIds the session ids of the party's members, as given when
+     *        the party was added
+     * @param rank the party's rank
+     *
+     * @throws NullPointerException if sessionIds is null
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     * @throws IllegalStateException if the party is not in matchmaking
+     */
+    public void removeParty(int[] sessionIds, int rank)
+    {
+        validateParty(sessionIds);
+
+        removeGroup(sessionIds[0], sessionIds.length, rank);
+    }
+
+    // Removes the group of the specified size with the specified leader.
+    private void removeGroup(int leaderSessionId, int size, int rank)
     {
-        Validation.validateUsername(username);
         Validation.validateIntegerRank(rank);
 
-        // remove player from appropriate buckets
+        // remove group from appropriate buckets, locking only those
 
-        boolean removedPlayers = false;
+        int first = getFirstBucketIndex(rank);
+        int last  = getLastBucketIndex(rank);
+
+        boolean removedGroups = false;
+
+        lockBuckets(first, last);
+
+        try
+        {
+            for (int i = first; i <= last; ++i)
+            {
+                int g = indexOf(i, size, leaderSessionId);
 
-        for (int i : getAppropriateBucketIndices(rank))
-            removedPlayers |= buckets.get(i).remove(username);
+                if (g >= 0)
+                {
+                    removeAt(i, size, g);
+                    removedGroups = true;
+                }
+            }
+
+            // groups in reserved lobbies are in no bucket's groups
+
+            for (int i = first; i <= last && !removedGroups; ++i)
+            {
+                if (getSlot(i, leaderSessionId) != RESERVED)
+                    continue;
+
+                List< ReservedLobby > reserved = reservedLobbies.get(i);
+
+                for (int r = 0; r < reserved.size(); ++r)
+                {
+                    int[] sessionIds = reserved.get(r).remove(
+                        leaderSessionId, size
+                        );
+
+                    if (sessionIds != null)
+                    {
+                        if (reserved.get(r).isEmpty())
+                            reserved.remove(r);
+
+                        for (int sessionId : sessionIds)
+                            setSlot(i, sessionId, 0);
+
+                        removedGroups = true;
+                        break;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            unlockBuckets(first, last);
+        }
 
-        // check if player was indeed in matchmaking
+        // check if party was indeed in matchmaking
 
-        if (!removedPlayers)
-            throw new IllegalStateException("the player is not in matchmaking");
+        if (!removedGroups)
+        {
+            throw new IllegalStateException(
+                (size == 1)
+                    ? "the player is not in matchmaking"
+                    : "the party is not in matchmaking"
+                );
+        }
 
         // decrement player count
 
-        --playerCount;
+        playerCount.addAndGet(-size);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Adds a player to matchmaking, rounding the player's rank to the nearest
+     * integer.
+     *
+     * @see #addPlayer(int, int)
+     */
+    @Override
+    public int[] addPlayer(int sessionId, double rank, long nowMillis)
+    {
+        Validation.validateDoubleRank(rank);
+
+        return addPlayer(sessionId, (int)Math.round(rank));
+    }
+
+    /**
+     * Removes a player from matchmaking, rounding the player's rank to the
+     * nearest integer.
+     *
+     * @see #removePlayer(int, int)
+     */
+    @Override
+    public void removePlayer(int sessionId, double rank)
+    {
+        Validation.validateDoubleRank(rank);
+
+        removePlayer(sessionId, (int)Math.round(rank));
+    }
+
+    /**
+     * Adds a party to matchmaking, rounding the party's rank to the nearest
+     * integer.
+     *
+     * @see #addParty(int[], int)
+     */
+    @Override
+    public int[] addParty(int[] sessionIds, double rank, long nowMillis)
+    {
+        Validation.validateDoubleRank(rank);
+
+        return addParty(sessionIds, (int)Math.round(rank));
+    }
+
+    /**
+     * Removes a party from matchmaking, rounding the party's rank to the
+     * nearest integer.
+     *
+     * @see #removeParty(int[], int)
+     */
+    @Override
+    public void removeParty(int[] sessionIds, double rank)
+    {
+        Validation.validateDoubleRank(rank);
+
+        removeParty(sessionIds, (int)Math.round(rank));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation keeps reserved lobbies together.
+     */
+    @Override
+    public boolean supportsReservedLobbies()
+    {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation keeps the groups together in the bucket that holds
+     * all of their ranks, rounded to the nearest integer, and immediately
+     * moves waiting groups of that bucket into the lobby's missing slots.
+     * Lobbies formed by this matchmaker always fit a single bucket, as ranks
+     * only change after playing.
+     *
+     * @throws IllegalArgumentException also if the groups' ranks do not fit a
+     *         single bucket, or if the groups cannot be split into two teams
+     */
+    @Override
+    public List< int[] > addReservedLobby(
+        List< int[] > groups, double[] ranks, long nowMillis
+        )
+    {
+        if (ranks.length != groups.size())
+            throw new IllegalArgumentException("ranks do not match groups");
+
+        ReservedLobby lobby = new ReservedLobby();
+
+        int minRank = Integer.MAX_VALUE;
+        int maxRank = Integer.MIN_VALUE;
+
+        for (int g = 0; g < ranks.length; ++g)
+        {
+            int[] sessionIds = groups.get(g);
+
+            validateParty(sessionIds);
+            Validation.validateDoubleRank(ranks[g]);
+
+            int rank = (int)Math.round(ranks[g]);
+
+            minRank = Math.min(minRank, rank);
+            maxRank = Math.max(maxRank, rank);
+
+            if (!lobby.canAdd(sessionIds.length))
+            {
+                throw new IllegalArgumentException(
+                    "groups cannot be split into two teams"
+                    );
+            }
+
+            lobby.add(sessionIds);
+        }
+
+        if (lobby.isFull())
+            throw new IllegalArgumentException("the lobby is already full");
+
+        if (maxRank - minRank > 1)
+            throw new IllegalArgumentException("ranks do not fit a bucket");
+
+        if (lobby.isEmpty())
+            return Collections.emptyList();
+
+        // the bucket holding ranks minRank and minRank + 1, or minRank - 1 and
+        // minRank if minRank is the highest rank
+
+        int i = getLastBucketIndex(minRank);
+
+        int first = Math.max(i - 1, 0);
+        int last  = Math.min(i + 1, NUM_BUCKETS - 1);
+
+        lockBuckets(first, last);
+
+        try
+        {
+            // check if no player is already in matchmaking (each group is in
+            // bucket i or in an adjacent one)
+            for (int p = 0; p < lobby.numMembers; ++p)
+            {
+                for (int j = first; j <= last; ++j)
+                {
+                    if (contains(j, lobby.members[p]))
+                    {
+                        throw new IllegalStateException(
+                            "the player is already in matchmaking"
+                            );
+                    }
+                }
+            }
+
+            playerCount.addAndGet(lobby.numMembers);
+
+            // fill missing slots with groups already waiting
+
+            fill(i, lobby);
+
+            if (lobby.isFull())
+            {
+                playerCount.addAndGet(-Config.LOBBY_SIZE);
+
+                return Collections.singletonList(lobby.members);
+            }
+
+            reservedLobbies.get(i).add(lobby);
+            setLobbySlots(i, lobby, RESERVED);
+
+            return Collections.emptyList();
+        }
+        finally
+        {
+            unlockBuckets(first, last);
+        }
+    }
+
+    @Override
+    public List< int[] > pollLobbies(long nowMillis)
+    {
+        return Collections.emptyList();
     }
 }
 
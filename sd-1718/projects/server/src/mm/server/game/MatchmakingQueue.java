@@ -0,0 +1,274 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.game;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A queue of players waiting for a match, which groups them into lobbies.
+ * <p>
+ * Players are identified by the session ids that the server assigns to
+ * authenticated clients. These are small non-negative integers, reused after
+ * their sessions end, so implementations may index arrays by them instead of
+ * hashing usernames.
+ * <p>
+ * Players may also be added as parties, which must be kept together in the
+ * same team. Only queues for which {@link #supportsParties()} returns true
+ * accept parties of more than one player.
+ * <p>
+ * Lobbies may form when a player is added, or later as the time players have
+ * spent waiting makes them acceptable to each other, in which case they are
+ * returned by {@link #pollLobbies(long)}. Polls may also be split in two steps,
+ * so that lobbies are chosen by {@link #planLobbies(long)} without holding the
+ * locks under which they are then formed by {@link #formLobbies(LobbyPlan)}.
+ * <p>
+ * Times are given by the caller, in milliseconds from an arbitrary origin that
+ * must remain the same for the lifetime of the queue.
+ * <p>
+ * Implementations are thread-safe.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public interface MatchmakingQueue
+{
+    /**
+     * Lobbies chosen by {@link MatchmakingQueue#planLobbies(long)} that are
+     * not yet formed.
+     */
+    class LobbyPlan
+    {
+        private final long nowMillis;
+
+        /**
+         * Creates a plan made at the specified time.
+         *
+         * @param nowMillis the time at which the plan was made, in
+         *        milliseconds
+         */
+        protected LobbyPlan(long nowMillis)
+        {
+            this.nowMillis = nowMillis;
+        }
+
+        /**
+         * Returns the time at which this plan was made.
+         *
+         * @return the time at which this plan was made, in milliseconds
+         */
+        public long getNowMillis()
+        {
+            return nowMillis;
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Returns the number of players currently waiting in this queue.
+     *
+     * @return the number of players currently waiting in this queue
+     */
+    int getPlayerCount();
+
+    /**
+     * Adds a player to this queue. If a lobby could be formed, returns the
+     * session ids of the players in that lobby, which are no longer in the
+     * queue.
+     *
+     * @param sessionId the player's session id
+     * @param rank the player's rank
+     * @param nowMillis the current time, in milliseconds
+     * @return the session ids of the players in that lobby, if a lobby could
+     *         be formed; otherwise, null
+     *
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     * @throws IllegalStateException if the player is already in the queue
+     */
+    int[] addPlayer(int sessionId, double rank, long nowMillis);
+
+    /**
+     * Removes a player from this queue.
+     *
+     * @param sessionId the player's session id
+     * @param rank the player's rank, as given when the player was added
+     *
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     * @throws IllegalStateException if the player is not in the queue
+     */
+    void removePlayer(int sessionId, double rank);
+
+    /**
+     * Returns whether this queue supports parties of more than one player.
+     * <p>
+     * The default implementation returns false.
+     *
+     * @return whether this queue supports parties of more than one player
+     */
+    default boolean supportsParties()
+    {
+        return false;
+    }
+
+    /**
+     * Adds a party to this queue, whose members must all end up in the same
+     * team. If a lobby could be formed, returns the session ids of the players
+     * in that lobby, which are no longer in the queue.
+     * <p>
+     * The default implementation only supports parties of one player, which it
+     * adds with {@link #addPlayer(int, double, long)}.
+     *
+     * @param sessionIds the session ids of the party's members, its leader
+     *        first
+     * @param rank the party's rank
+     * @param nowMillis the current time, in milliseconds
+     * @return the session ids of the players in that lobby, if a lobby could
+     *         be formed; otherwise, null
+     *
+     * @throws NullPointerException if sessionIds is null
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     * @throws IllegalStateException if any member is already in the queue
+     * @throws UnsupportedOperationException if the party has more than one
+     *         member and this queue does not support parties
+     */
+    default int[] addParty(int[] sessionIds, double rank, long nowMillis)
+    {
+        if (sessionIds.length != 1)
+            throw new UnsupportedOperationException("parties not supported");
+
+        return addPlayer(sessionIds[0], rank, nowMillis);
+    }
+
+    /**
+     * Removes a party from this queue.
+     * <p>
+     * The default implementation only supports parties of one player, which it
+     * removes with {@link #removePlayer(int, double)}.
+     *
+     * @param sessionIds the session ids of the party's members, as given when
+     *        the party was added
+     * @param rank the party's rank, as given when the party was added
+     *
+     * @throws NullPointerException if sessionIds is null
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     * @throws IllegalStateException if the party is not in the queue
+     * @throws UnsupportedOperationException if the party has more than one
+     *         member and this queue does not support parties
+     */
+    default void removeParty(int[] sessionIds, double rank)
+    {
+        if (sessionIds.length != 1)
+            throw new UnsupportedOperationException("parties not supported");
+
+        removePlayer(sessionIds[0], rank);
+    }
+
+    /**
+     * Returns whether this queue keeps the groups given to
+     * {@link #addReservedLobby(List, double[], long)} together, in which case
+     * they only leave the queue in the same lobby.
+     * <p>
+     * The default implementation returns false.
+     *
+     * @return whether this queue keeps reserved lobbies together
+     */
+    default boolean supportsReservedLobbies()
+    {
+        return false;
+    }
+
+    /**
+     * Adds the remaining players of a lobby whose match could not start, so
+     * that they are kept together and only the lobby's missing slots need to
+     * be filled. Returns the lobbies that could be formed, whose players are
+     * no longer in the queue.
+     * <p>
+     * The default implementation adds each group with
+     * {@link #addParty(int[], double, long)}, so that the players are matched
+     * again independently.
+     *
+     * @param groups the session ids of each solo player or party in the lobby,
+     *        with the leader of each party first
+     * @param ranks the rank of each group
+     * @param nowMillis the current time, in milliseconds
+     * @return the session ids of the players in each lobby, possibly none
+     *
+     * @throws NullPointerException if groups or ranks are null
+     * @throws IllegalArgumentException if any of the arguments is invalid
+     * @throws IllegalStateException if any player is already in the queue
+     * @throws UnsupportedOperationException if there are parties of more than
+     *         one player and this queue does not support parties
+     */
+    default List< int[] > addReservedLobby(
+        List< int[] > groups, double[] ranks, long nowMillis
+        )
+    {
+        if (ranks.length != groups.size())
+            throw new IllegalArgumentException("ranks do not match groups");
+
+        List< int[] > lobbies = new ArrayList<>();
+
+        for (int g = 0; g < ranks.length; ++g)
+        {
+            int[] lobby = addParty(groups.get(g), ranks[g], nowMillis);
+
+            if (lobby != null)
+                lobbies.add(lobby);
+        }
+
+        return lobbies;
+    }
+
+    /**
+     * Forms all lobbies that became possible since the last invocation of this
+     * method or of {@link #addPlayer(int, double, long)}.
+     * <p>
+     * The players in the returned lobbies are no longer in the queue.
+     *
+     * @param nowMillis the current time, in milliseconds
+     * @return the session ids of the players in each lobby, possibly none
+     */
+    List< int[] > pollLobbies(long nowMillis);
+
+    /**
+     * Chooses the lobbies that {@link #pollLobbies(long)} would form, without
+     * removing their players from the queue, so that the work of choosing
+     * them may be done without holding the locks under which they are formed.
+     * <p>
+     * The default implementation chooses nothing, leaving all the work to
+     * {@link #formLobbies(LobbyPlan)}.
+     *
+     * @param nowMillis the current time, in milliseconds
+     * @return the chosen lobbies, to be given to
+     *         {@link #formLobbies(LobbyPlan)}
+     */
+    default LobbyPlan planLobbies(long nowMillis)
+    {
+        return new LobbyPlan(nowMillis);
+    }
+
+    /**
+     * Forms the lobbies of a plan made by this queue's
+     * {@link #planLobbies(long)}, except those with players that left the
+     * queue since, which remain in the queue.
+     * <p>
+     * The players in the returned lobbies are no longer in the queue.
+     * <p>
+     * The default implementation invokes {@link #pollLobbies(long)} with the
+     * time at which the plan was made.
+     *
+     * @param plan the plan
+     * @return the session ids of the players in each lobby, possibly none
+     *
+     * @throws NullPointerException if plan is null
+     */
+    default List< int[] > formLobbies(LobbyPlan plan)
+    {
+        return pollLobbies(plan.getNowMillis());
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,141 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.game;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mm.common.Config;
+import mm.common.data.PartyInfo;
+import mm.common.util.Validation;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Holds the members of a pre-made party, which queues for matches as a whole
+ * and always plays in the same team, and the players invited to it.
+ * <p>
+ * The first member is the party's leader, who alone may invite players and
+ * queue the party. If the leader leaves, the next member becomes the leader.
+ * <p>
+ * Instances of this class are not thread-safe.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class Party
+{
+    // leader first, in order of joining
+    private final List< String > memberUsernames;
+
+    private final Set< String > invitedUsernames;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates a party whose only member is the specified player.
+     *
+     * @param leaderUsername the username of the party's leader
+     *
+     * @throws NullPointerException if leaderUsername is null
+     * @throws IllegalArgumentException if leaderUsername is invalid
+     */
+    public Party(String leaderUsername)
+    {
+        this.memberUsernames = new ArrayList<>(Config.MAX_PARTY_SIZE);
+        this.invitedUsernames = new HashSet<>();
+
+        this.memberUsernames.add(Validation.validateUsername(leaderUsername));
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    public String getLeaderUsername()
+    {
+        return memberUsernames.get(0);
+    }
+
+    public List< String > getMemberUsernames()
+    {
+        return Collections.unmodifiableList(memberUsernames);
+    }
+
+    public int getSize()
+    {
+        return memberUsernames.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return memberUsernames.isEmpty();
+    }
+
+    public boolean isFull()
+    {
+        return memberUsernames.size() == Config.MAX_PARTY_SIZE;
+    }
+
+    public boolean isInvited(String username)
+    {
+        return invitedUsernames.contains(username);
+    }
+
+    public void invite(String username)
+    {
+        invitedUsernames.add(Validation.validateUsername(username));
+    }
+
+    /**
+     * Adds an invited player to this party, consuming the invitation.
+     *
+     * @param username the player's username
+     *
+     * @throws IllegalStateException if the player was not invited or if this
+     *         party is full
+     */
+    public void join(String username)
+    {
+        if (!invitedUsernames.contains(username))
+            throw new IllegalStateException("the player was not invited");
+
+        if (isFull())
+            throw new IllegalStateException("the party is full");
+
+        invitedUsernames.remove(username);
+        memberUsernames.add(username);
+    }
+
+    /**
+     * Removes a member from this party. If the member was the leader, the next
+     * member becomes the leader.
+     *
+     * @param username the member's username
+     *
+     * @throws IllegalStateException if the player is not a member
+     */
+    public void leave(String username)
+    {
+        if (!memberUsernames.remove(username))
+            throw new IllegalStateException("the player is not a member");
+    }
+
+    /**
+     * Returns information about this party, to be sent to its members.
+     *
+     * @return information about this party
+     *
+     * @throws IllegalStateException if this party is empty
+     */
+    public PartyInfo toPartyInfo()
+    {
+        if (isEmpty())
+            throw new IllegalStateException("the party is empty");
+
+        return new PartyInfo(memberUsernames);
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,131 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.game;
+
+import java.util.Arrays;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Helpers shared by the matchmakers whose players accept rank differences up
+ * to a window that widens with the time spent waiting.
+ * <p>
+ * Players are given by their indices in arrays sorted by rank, and their
+ * windows by a parallel array. A group of players may form a lobby if its
+ * spread, the difference between its highest and lowest ranks, fits in the
+ * window of every player in the group.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class RankWindows
+{
+    private RankWindows()
+    {
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Adds a window to an array that holds the largest windows added so far,
+     * in increasing order.
+     * <p>
+     * Used to check, while a group's range grows one player at a time, whether
+     * enough of the players in the range fit a given spread, which is the case
+     * if the array is full and its first window fits the spread.
+     *
+     * @param largest the largest windows added so far
+     * @param count the number of windows in largest
+     * @param window the window to add
+     * @return the new number of windows in largest
+     */
+    static int addLargest(double[] largest, int count, double window)
+    {
+        int i;
+
+        if (count < largest.length)
+        {
+            for (i = count++; i > 0 && largest[i - 1] > window; --i)
+                largest[i] = largest[i - 1];
+        }
+        else if (count > 0 && window > largest[0])
+        {
+            for (i = 0; i + 1 < count && largest[i + 1] < window; ++i)
+                largest[i] = largest[i + 1];
+        }
+        else
+        {
+            return count;
+        }
+
+        largest[i] = window;
+
+        return count;
+    }
+
+    /**
+     * Chooses the members of a group whose lowest and highest ranked players
+     * are first and last, among the players between them that are not taken
+     * and whose windows fit the group's spread.
+     * <p>
+     * Players with wider windows, who have waited longer, are preferred.
+     * Members are stored in rank order, with first and last at the ends.
+     *
+     * @param windows the windows of the players
+     * @param taken which players are taken, or null if none is
+     * @param first the lowest ranked player of the group
+     * @param last the highest ranked player of the group
+     * @param spread the group's spread
+     * @param members receives the group's members, and whose length is the
+     *        size of the group
+     * @return false if there are not enough players to choose from
+     */
+    static boolean chooseMembers(
+        double[] windows, boolean[] taken,
+        int first, int last, double spread, int[] members
+        )
+    {
+        int numEligible = 0;
+        int[] eligible = new int[Math.max(last - first - 1, 0)];
+
+        for (int i = first + 1; i < last; ++i)
+        {
+            if ((taken == null || !taken[i]) && windows[i] >= spread)
+                eligible[numEligible++] = i;
+        }
+
+        int numInner = members.length - 2;
+
+        if (numEligible < numInner)
+            return false;
+
+        // move the widest windows to the front of eligible
+
+        for (int m = 0; m < numInner; ++m)
+        {
+            int widest = m;
+
+            for (int e = m + 1; e < numEligible; ++e)
+            {
+                if (windows[eligible[e]] > windows[eligible[widest]])
+                    widest = e;
+            }
+
+            int chosen = eligible[widest];
+
+            eligible[widest] = eligible[m];
+            eligible[m]      = chosen;
+        }
+
+        Arrays.sort(eligible, 0, numInner);
+
+        members[0] = first;
+        members[members.length - 1] = last;
+
+        System.arraycopy(eligible, 0, members, 1, numInner);
+
+        return true;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
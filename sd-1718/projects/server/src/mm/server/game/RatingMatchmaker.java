@@ -0,0 +1,542 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.game;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import mm.common.Config;
+import mm.common.util.Validation;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * A matchmaker keyed on players' continuous ranks, whose acceptable rank
+ * differences widen with the time spent waiting.
+ * <p>
+ * Each player's window starts at a configurable width and grows linearly with
+ * the time the player has been waiting. A group of players may form a lobby if
+ * the difference between its highest and lowest ranks fits in the window of
+ * every player in the group. Among the groups that may form a lobby, the one
+ * with the smallest difference is chosen.
+ * <p>
+ * Players are kept in an index ordered by rank, so adding and removing a
+ * player takes O(log n) time, where n is the number of waiting players. Adding
+ * a player only considers the groups that include the new player, while
+ * {@link #pollLobbies(long)} searches, for each player, for the tightest group
+ * in which it has the lowest rank. Groups need not be consecutive in rank
+ * order, as players whose windows are narrower than a group's spread are
+ * skipped, so polling takes O(n k) time in the worst case, where k is the
+ * number of players within a player's window. Each search ends at the first
+ * group that fits, so polling takes O(n) time when windows are similar. The
+ * queue is only locked while polling takes a snapshot of it and removes the
+ * chosen players, so that searching does not hold up other operations (see
+ * {@link #planLobbies(long)}).
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public class RatingMatchmaker implements MatchmakingQueue
+{
+    private static final class Entry
+    {
+        private final int sessionId;
+        private final double rank;
+        private final long enqueuedMillis;
+
+        // breaks ties between players with the same rank
+        private final long sequence;
+
+        private Entry(
+            int sessionId, double rank, long enqueuedMillis, long sequence
+            )
+        {
+            this.sessionId      = sessionId;
+            this.rank           = rank;
+            this.enqueuedMillis = enqueuedMillis;
+            this.sequence       = sequence;
+        }
+    }
+
+    private static final class RatingPlan extends LobbyPlan
+    {
+        // the entries of each chosen lobby, which are only formed if they are
+        // all still in the queue
+        private final List< Entry[] > lobbies;
+
+        private RatingPlan(long nowMillis, List< Entry[] > lobbies)
+        {
+            super(nowMillis);
+
+            this.lobbies = lobbies;
+        }
+    }
+
+    private static final Comparator< Entry > BY_RANK =
+        Comparator
+        .comparingDouble((Entry e) -> e.rank)
+        .thenComparingLong(e -> e.sequence);
+
+    /* ---------------------------------------------------------------------- */
+
+    private final double initialWindow;
+    private final double windowGrowthPerSecond;
+
+    private final ReentrantLock lock;
+
+    // the following are guarded by lock
+
+    private final TreeSet< Entry > entriesByRank;
+
+    // indexed by session id, null for players not in the queue
+    private Entry[] entriesBySessionId;
+
+    private long nextSequence;
+
+    // whether players were added or removed since the last poll
+    private boolean changedSinceLastPoll;
+
+    /* ---------------------------------------------------------------------- */
+
+    // Returns the window of a player that enqueued at the specified time.
+    private double getWindow(long enqueuedMillis, long nowMillis)
+    {
+        long waitedMillis = Math.max(nowMillis - enqueuedMillis, 0);
+
+        return initialWindow + windowGrowthPerSecond * waitedMillis / 1000.;
+    }
+
+    // Returns the difference between the highest and lowest ranks of the
+    // group of Config.LOBBY_SIZE entries starting at the specified index of
+    // the specified array, which must be sorted by rank, or NaN if the group
+    // may not form a lobby.
+    private double getSpread(Entry[] entries, int first, long nowMillis)
+    {
+        int last = first + Config.LOBBY_SIZE - 1;
+
+        double spread = entries[last].rank - entries[first].rank;
+
+        for (int i = first; i <= last; ++i)
+        {
+            if (spread > getWindow(entries[i].enqueuedMillis, nowMillis))
+                return Double.NaN;
+        }
+
+        return spread;
+    }
+
+    // Returns the entry of the specified player, or null if the player is not
+    // in the queue.
+    private Entry getEntry(int sessionId)
+    {
+        return (sessionId < entriesBySessionId.length)
+            ? entriesBySessionId[sessionId]
+            : null;
+    }
+
+    // Removes the specified entries, returning their session ids.
+    private int[] removeGroup(Entry[] group)
+    {
+        int[] sessionIds = new int[group.length];
+
+        for (int i = 0; i < group.length; ++i)
+        {
+            Entry entry = group[i];
+
+            entriesByRank.remove(entry);
+            entriesBySessionId[entry.sessionId] = null;
+
+            sessionIds[i] = entry.sessionId;
+        }
+
+        return sessionIds;
+    }
+
+    // Returns the entries neighboring the specified entry, in increasing
+    // order of rank, that might be in a lobby together with it.
+    private Entry[] getNeighborhood(Entry entry)
+    {
+        List< Entry > below = new ArrayList<>();
+        List< Entry > above = new ArrayList<>();
+
+        Iterator< Entry > it;
+
+        it = entriesByRank.headSet(entry, false).descendingIterator();
+
+        while (it.hasNext() && below.size() < Config.LOBBY_SIZE - 1)
+            below.add(it.next());
+
+        it = entriesByRank.tailSet(entry, false).iterator();
+
+        while (it.hasNext() && above.size() < Config.LOBBY_SIZE - 1)
+            above.add(it.next());
+
+        Entry[] neighborhood = new Entry[below.size() + 1 + above.size()];
+
+        int i = 0;
+
+        for (int j = below.size() - 1; j >= 0; --j)
+            neighborhood[i++] = below.get(j);
+
+        neighborhood[i++] = entry;
+
+        for (Entry e : above)
+            neighborhood[i++] = e;
+
+        return neighborhood;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates an empty RatingMatchmaker.
+     *
+     * @param initialWindow the largest rank difference accepted by a player
+     *        that just joined
+     * @param windowGrowthPerSecond how much the largest rank difference
+     *        accepted by a player grows per second of waiting
+     *
+     * @throws IllegalArgumentException if initialWindow or
+     *         windowGrowthPerSecond are negative or not finite
+     */
+    public RatingMatchmaker(double initialWindow, double windowGrowthPerSecond)
+    {
+        if (!(initialWindow >= 0) || Double.isInfinite(initialWindow))
+        {
+            throw new IllegalArgumentException(
+                "Initial window must be non-negative and finite."
+                );
+        }
+
+        if (!(windowGrowthPerSecond >= 0)
+            || Double.isInfinite(windowGrowthPerSecond))
+        {
+            throw new IllegalArgumentException(
+                "Window growth must be non-negative and finite."
+                );
+        }
+
+        this.initialWindow         = initialWindow;
+        this.windowGrowthPerSecond = windowGrowthPerSecond;
+
+        this.lock = new ReentrantLock();
+
+        this.entriesByRank      = new TreeSet<>(BY_RANK);
+        this.entriesBySessionId = new Entry[0];
+
+        this.nextSequence = 0;
+
+        this.changedSinceLastPoll = false;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    @Override
+    public int getPlayerCount()
+    {
+        lock.lock();
+
+        try
+        {
+            return entriesByRank.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the groups that include the new player are considered, and the one
+     * with the smallest rank difference is chosen.
+     * <p>
+     * As the new player has the narrowest window of all, every other player
+     * within it accepts any group that the new player accepts, and so only
+     * groups of players consecutive in rank order need to be considered.
+     */
+    @Override
+    public int[] addPlayer(int sessionId, double rank, long nowMillis)
+    {
+        Validation.validateSessionId(sessionId);
+        Validation.validateDoubleRank(rank);
+
+        lock.lock();
+
+        try
+        {
+            if (getEntry(sessionId) != null)
+            {
+                throw new IllegalStateException(
+                    "the player is already in matchmaking"
+                    );
+            }
+
+            if (sessionId >= entriesBySessionId.length)
+            {
+                entriesBySessionId = Arrays.copyOf(
+                    entriesBySessionId,
+                    Math.max(sessionId + 1, 2 * entriesBySessionId.length)
+                    );
+            }
+
+            Entry entry = new Entry(sessionId, rank, nowMillis, nextSequence++);
+
+            entriesByRank.add(entry);
+            entriesBySessionId[sessionId] = entry;
+
+            changedSinceLastPoll = true;
+
+            // find the tightest group that includes the new player
+
+            Entry[] neighborhood = getNeighborhood(entry);
+
+            int bestFirst = -1;
+            double bestSpread = Double.POSITIVE_INFINITY;
+
+            for (int first = 0;
+                 first + Config.LOBBY_SIZE <= neighborhood.length;
+                 ++first)
+            {
+                double spread = getSpread(neighborhood, first, nowMillis);
+
+                if (spread < bestSpread)
+                {
+                    bestFirst  = first;
+                    bestSpread = spread;
+                }
+            }
+
+            if (bestFirst == -1)
+                return null;
+
+            return removeGroup(Arrays.copyOfRange(
+                neighborhood, bestFirst, bestFirst + Config.LOBBY_SIZE
+                ));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removePlayer(int sessionId, double rank)
+    {
+        Validation.validateSessionId(sessionId);
+        Validation.validateDoubleRank(rank);
+
+        lock.lock();
+
+        try
+        {
+            Entry entry = getEntry(sessionId);
+
+            if (entry == null)
+            {
+                throw new IllegalStateException(
+                    "the player is not in matchmaking"
+                    );
+            }
+
+            entriesByRank.remove(entry);
+            entriesBySessionId[sessionId] = null;
+
+            changedSinceLastPoll = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * For each player, the tightest group in which it has the lowest rank is
+     * found, skipping players whose windows do not fit that group. Lobbies are
+     * chosen from the tightest groups first, each taking the players that
+     * have waited longest among those that fit it.
+     * <p>
+     * The queue is only locked while taking a snapshot of the waiting
+     * players, not while searching it.
+     */
+    @Override
+    public LobbyPlan planLobbies(long nowMillis)
+    {
+        Entry[] entries;
+
+        lock.lock();
+
+        try
+        {
+            // unless windows grow, groups only change when players are
+            // added or removed
+
+            boolean changed = changedSinceLastPoll;
+
+            changedSinceLastPoll = false;
+
+            if (entriesByRank.size() < Config.LOBBY_SIZE
+                || (windowGrowthPerSecond == 0 && !changed))
+            {
+                return new RatingPlan(nowMillis, new ArrayList<>());
+            }
+
+            entries = entriesByRank.toArray(new Entry[0]);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        double[] windows = new double[entries.length];
+
+        for (int i = 0; i < entries.length; ++i)
+            windows[i] = getWindow(entries[i].enqueuedMillis, nowMillis);
+
+        // for each player, find the tightest group in which it has the
+        // lowest rank, which is the first group whose ends fit it and that
+        // has enough players in between whose windows also fit it
+
+        // spread (as float bits, which preserve the order of non-negative
+        // floats) in the high half, index of the group's first player in the
+        // low half
+        long[] candidates = new long[entries.length];
+        int numCandidates = 0;
+
+        // index of the last player of each candidate, by first player
+        int[] lasts = new int[entries.length];
+
+        // the largest windows of the players between first and last
+        double[] inner = new double[Config.LOBBY_SIZE - 2];
+
+        for (int first = 0; first < entries.length; ++first)
+        {
+            int numInner = 0;
+
+            for (int last = first + 1; last < entries.length; ++last)
+            {
+                double spread = entries[last].rank - entries[first].rank;
+
+                if (spread > windows[first])
+                    break;
+
+                boolean fits =
+                    spread <= windows[last]
+                    && numInner == inner.length
+                    && (numInner == 0 || inner[0] >= spread);
+
+                if (fits)
+                {
+                    candidates[numCandidates++] =
+                        ((long)Float.floatToIntBits((float)spread) << 32)
+                        | first;
+
+                    lasts[first] = last;
+
+                    break;
+                }
+
+                numInner =
+                    RankWindows.addLargest(inner, numInner, windows[last]);
+            }
+        }
+
+        // choose lobbies from the tightest groups first, skipping groups
+        // that no longer have enough players that are not taken
+
+        Arrays.sort(candidates, 0, numCandidates);
+
+        boolean[] taken = new boolean[entries.length];
+
+        List< Entry[] > lobbies = new ArrayList<>();
+
+        for (int c = 0; c < numCandidates; ++c)
+        {
+            int first = (int)candidates[c];
+            int last  = lasts[first];
+
+            if (taken[first] || taken[last])
+                continue;
+
+            double spread = entries[last].rank - entries[first].rank;
+
+            int[] members = new int[Config.LOBBY_SIZE];
+
+            if (!RankWindows.chooseMembers(
+                windows, taken, first, last, spread, members
+                ))
+            {
+                continue;
+            }
+
+            Entry[] lobby = new Entry[Config.LOBBY_SIZE];
+
+            for (int i = 0; i < members.length; ++i)
+            {
+                taken[members[i]] = true;
+                lobby[i] = entries[members[i]];
+            }
+
+            lobbies.add(lobby);
+        }
+
+        return new RatingPlan(nowMillis, lobbies);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Plans not made by a RatingMatchmaker are made again.
+     */
+    @Override
+    public List< int[] > formLobbies(LobbyPlan plan)
+    {
+        if (!(plan instanceof RatingPlan))
+            plan = planLobbies(plan.getNowMillis());
+
+        List< Entry[] > planned = ((RatingPlan)plan).lobbies;
+
+        List< int[] > lobbies = new ArrayList<>(planned.size());
+
+        lock.lock();
+
+        try
+        {
+            for (Entry[] lobby : planned)
+            {
+                // players that left, even if they joined again, void the
+                // lobby
+
+                boolean valid = true;
+
+                for (Entry e : lobby)
+                    valid = valid && getEntry(e.sessionId) == e;
+
+                if (valid)
+                    lobbies.add(removeGroup(lobby));
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return lobbies;
+    }
+
+    @Override
+    public List< int[] > pollLobbies(long nowMillis)
+    {
+        return formLobbies(planLobbies(nowMillis));
+    }
+}
+
+/* -------------------------------------------------------------------------- */
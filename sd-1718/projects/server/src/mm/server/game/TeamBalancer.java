@@ -0,0 +1,323 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.game;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Splits players into two teams of equal size whose rank sums are as close as
+ * possible.
+ * <p>
+ * Up to {@link #MAX_EXACT_PLAYERS} players, every split is considered and an
+ * optimal one is returned. The splits for each number of players are computed
+ * once, as bit masks, and shared by all invocations. With more players, a
+ * balanced variant of the Karmarkar-Karp differencing heuristic is used, which
+ * takes O(n log n) time and usually comes very close to the optimum.
+ * <p>
+ * Groups of players that must play in the same team, such as parties, are
+ * split with {@link #balanceGroups(int[], int[])} instead.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+public final class TeamBalancer
+{
+    /**
+     * Largest number of players for which an optimal split is computed.
+     */
+    public static final int MAX_EXACT_PLAYERS = 12;
+
+    // SPLITS[n] holds, for n players, one mask per split into two teams of
+    // n / 2 players, with bit i set if player i is in the first team. Player 0
+    // is always in the first team, so that each split appears only once.
+    private static final int[][] SPLITS = new int[MAX_EXACT_PLAYERS + 1][];
+
+    // SPLIT_MEMBERS[n] holds, for n players and for each split in SPLITS[n],
+    // the n / 2 indices of the players in the first team, so that team sums
+    // are computed without decoding masks.
+    private static final byte[][] SPLIT_MEMBERS =
+        new byte[MAX_EXACT_PLAYERS + 1][];
+
+    static
+    {
+        for (int n = 2; n <= MAX_EXACT_PLAYERS; n += 2)
+        {
+            int numSplits = 0;
+
+            int[] splits = new int[1 << (n - 1)];
+
+            for (int mask = 1; mask < (1 << n); mask += 2)
+            {
+                if (Integer.bitCount(mask) == n / 2)
+                    splits[numSplits++] = mask;
+            }
+
+            SPLITS[n] = Arrays.copyOf(splits, numSplits);
+
+            SPLIT_MEMBERS[n] = new byte[numSplits * (n / 2)];
+
+            int k = 0;
+
+            for (int s = 0; s < numSplits; ++s)
+            {
+                for (int m = splits[s]; m != 0; m &= m - 1)
+                {
+                    SPLIT_MEMBERS[n][k++] =
+                        (byte)Integer.numberOfTrailingZeros(m);
+                }
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private static boolean[] balanceExactly(int[] ranks)
+    {
+        int total = 0;
+
+        for (int rank : ranks)
+            total += rank;
+
+        int[] splits = SPLITS[ranks.length];
+        byte[] members = SPLIT_MEMBERS[ranks.length];
+
+        int teamSize = ranks.length / 2;
+
+        int bestSplit = 0;
+        int bestDifference = Integer.MAX_VALUE;
+
+        for (int s = 0, k = 0; s < splits.length; ++s)
+        {
+            int sum = 0;
+
+            for (int end = k + teamSize; k < end; ++k)
+                sum += ranks[members[k]];
+
+            int difference = Math.abs(total - 2 * sum);
+
+            if (difference < bestDifference)
+            {
+                bestSplit      = s;
+                bestDifference = difference;
+
+                // the difference has the parity of the total, so this is
+                // optimal
+
+                if (difference <= 1)
+                    break;
+            }
+        }
+
+        int bestMask = splits[bestSplit];
+
+        boolean[] inFirstTeam = new boolean[ranks.length];
+
+        for (int i = 0; i < ranks.length; ++i)
+            inFirstTeam[i] = (bestMask & (1 << i)) != 0;
+
+        return inFirstTeam;
+    }
+
+    // Balanced largest differencing method: players are sorted by rank and
+    // paired with their neighbor, the two players of a pair always going to
+    // opposite teams. Karmarkar-Karp differencing then decides the orientation
+    // of each pair, repeatedly replacing the two largest differences with
+    // their difference, which commits them to opposite orientations.
+    private static boolean[] balanceHeuristically(int[] ranks)
+    {
+        int n = ranks.length;
+
+        Integer[] order = new Integer[n];
+
+        for (int i = 0; i < n; ++i)
+            order[i] = i;
+
+        Arrays.sort(order, (a, b) -> Integer.compare(ranks[b], ranks[a]));
+
+        int numPairs = n / 2;
+
+        // each node is a set of pairs whose relative orientation is decided;
+        // a pair with flip[p] == true is reversed relative to its node's root
+
+        int[] parent = new int[numPairs];
+        boolean[] flip = new boolean[numPairs];
+
+        PriorityQueue< long[] > nodes = new PriorityQueue<>(
+            Math.max(numPairs, 1),
+            (a, b) -> Long.compare(b[0], a[0])
+            );
+
+        for (int p = 0; p < numPairs; ++p)
+        {
+            parent[p] = p;
+
+            long difference =
+                (long)ranks[order[2 * p]] - ranks[order[2 * p + 1]];
+
+            nodes.add(new long[] { difference, p });
+        }
+
+        while (nodes.size() > 1)
+        {
+            long[] largest = nodes.poll();
+            long[] second  = nodes.poll();
+
+            // put the second node's root in the opposite orientation of the
+            // largest node's root
+
+            int root = (int)second[1];
+
+            parent[root] = (int)largest[1];
+            flip[root]   = true;
+
+            nodes.add(new long[] { largest[0] - second[0], largest[1] });
+        }
+
+        // resolve each pair's orientation relative to the final root
+
+        boolean[] inFirstTeam = new boolean[n];
+
+        for (int p = 0; p < numPairs; ++p)
+        {
+            boolean reversed = false;
+
+            for (int q = p; parent[q] != q; q = parent[q])
+                reversed ^= flip[q];
+
+            inFirstTeam[order[2 * p]]     = !reversed;
+            inFirstTeam[order[2 * p + 1]] = reversed;
+        }
+
+        return inFirstTeam;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private TeamBalancer()
+    {
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Splits players with the specified ranks into two teams of equal size,
+     * minimizing the difference between the teams' rank sums.
+     * <p>
+     * The split is optimal if there are at most {@link #MAX_EXACT_PLAYERS}
+     * players.
+     *
+     * @param ranks the players' ranks
+     * @return an array whose element i is true if player i is in the first
+     *         team, and false if it is in the second team
+     *
+     * @throws NullPointerException if ranks is null
+     * @throws IllegalArgumentException if the number of players is odd
+     */
+    public static boolean[] balance(int[] ranks)
+    {
+        if (ranks.length % 2 != 0)
+        {
+            throw new IllegalArgumentException(
+                "Number of players must be even."
+                );
+        }
+
+        if (ranks.length == 0)
+            return new boolean[0];
+
+        if (ranks.length <= MAX_EXACT_PLAYERS)
+            return balanceExactly(ranks);
+        else
+            return balanceHeuristically(ranks);
+    }
+
+    /**
+     * Splits groups of players into two teams of equal size, without splitting
+     * any group, minimizing the difference between the teams' rank sums.
+     * <p>
+     * Every split is considered, so the number of groups must be small. The
+     * split is always optimal.
+     *
+     * @param groupSizes the number of players in each group
+     * @param groupRankSums the sum of the ranks of the players in each group
+     * @return an array whose element i is true if group i is in the first
+     *         team, and false if it is in the second team
+     *
+     * @throws NullPointerException if groupSizes or groupRankSums are null
+     * @throws IllegalArgumentException if the arrays have different lengths,
+     *         if there are more than {@link #MAX_EXACT_PLAYERS} groups, or if
+     *         the groups cannot be split into two teams of equal size
+     */
+    public static boolean[] balanceGroups(int[] groupSizes, int[] groupRankSums)
+    {
+        int n = groupSizes.length;
+
+        if (groupRankSums.length != n)
+            throw new IllegalArgumentException("Array lengths differ.");
+
+        if (n > MAX_EXACT_PLAYERS)
+            throw new IllegalArgumentException("Too many groups.");
+
+        if (n == 0)
+            return new boolean[0];
+
+        int totalSize = 0;
+        int totalRank = 0;
+
+        for (int g = 0; g < n; ++g)
+        {
+            totalSize += groupSizes[g];
+            totalRank += groupRankSums[g];
+        }
+
+        // group 0 is always in the first team, so that each split is only
+        // considered once
+
+        int bestMask = -1;
+        int bestDifference = Integer.MAX_VALUE;
+
+        for (int mask = 1; mask < (1 << n); mask += 2)
+        {
+            int size = 0;
+            int sum  = 0;
+
+            for (int m = mask; m != 0; m &= m - 1)
+            {
+                int g = Integer.numberOfTrailingZeros(m);
+
+                size += groupSizes[g];
+                sum  += groupRankSums[g];
+            }
+
+            if (2 * size != totalSize)
+                continue;
+
+            int difference = Math.abs(totalRank - 2 * sum);
+
+            if (difference < bestDifference)
+            {
+                bestMask       = mask;
+                bestDifference = difference;
+            }
+        }
+
+        if (bestMask == -1)
+        {
+            throw new IllegalArgumentException(
+                "Groups cannot be split into two teams of equal size."
+                );
+        }
+
+        boolean[] inFirstTeam = new boolean[n];
+
+        for (int g = 0; g < n; ++g)
+            inFirstTeam[g] = (bestMask & (1 << g)) != 0;
+
+        return inFirstTeam;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -3,21 +3,33 @@
 package mm.server.net;
 
 import java.net.Socket;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import mm.common.Config;
 import mm.common.data.AccountInfo;
 import mm.common.data.Hero;
 import mm.common.data.LeftMatchmakingCause;
 import mm.common.data.LobbyCauseOfDeath;
 import mm.common.data.LoginError;
 import mm.common.data.MatchSummary;
+import mm.common.data.PartyError;
+import mm.common.data.PartyInfo;
 import mm.common.data.ServerStats;
 import mm.common.data.SignUpError;
 import mm.common.data.TeamInfo;
 import mm.common.net.ClientToServerMsgId;
+import mm.common.net.EncodedMessage;
+import mm.common.net.Handshake;
 import mm.common.net.MessengerBase;
 import mm.common.net.MsgReader;
 import mm.common.net.MsgWriter;
 import mm.common.net.ServerToClientMsgId;
+import mm.common.net.Transport;
+import mm.common.net.WireFormat;
+import mm.common.util.Validation;
 
 /* ------------------------------------------------------------------------- */
 
@@ -27,12 +39,134 @@ import mm.common.net.ServerToClientMsgId;
  * <p>
  * Note that on* method are never invoked concurrently on the same instance of
  * ClientMessenger.
+ * <p>
+ * A hello message received as the client's first message is handled
+ * internally, switching to the wire format chosen by
+ * {@link Handshake#choose(int, WireFormat)} and recording the negotiated
+ * protocol version. Party requests from clients whose protocol version does
+ * not support parties are rejected, and party messages must not be sent to
+ * them, see {@link #supportsParties()}.
+ * <p>
+ * An {@link Outbox} is open while on*Received methods run, so messages sent
+ * from them, to this or any other client, are only encoded and delivered once
+ * they return.
  *
  * @author Alberto Faria
  * @author Fábio Fontes
  */
 public abstract class ClientMessenger extends MessengerBase
 {
+    private static final EncodedMessage LOGOUT_SUCCEEDED = new EncodedMessage(
+        writer -> writer.writeServerToClientMsgId(
+            ServerToClientMsgId.LOGOUT_SUCCEEDED
+            )
+        );
+
+    private static final EncodedMessage JOINED_MATCHMAKING =
+        new EncodedMessage(
+            writer -> writer.writeServerToClientMsgId(
+                ServerToClientMsgId.JOINED_MATCHMAKING
+                )
+            );
+
+    private static final EncodedMessage MATCH_CANCELED = new EncodedMessage(
+        writer -> writer.writeServerToClientMsgId(
+            ServerToClientMsgId.MATCH_CANCELED
+            )
+        );
+
+    private static final EncodedMessage PLAYER_ACCEPTED_MATCH =
+        new EncodedMessage(
+            writer -> writer.writeServerToClientMsgId(
+                ServerToClientMsgId.PLAYER_ACCEPTED_MATCH
+                )
+            );
+
+    private static final EncodedMessage LEFT_PARTY = new EncodedMessage(
+        writer -> writer.writeServerToClientMsgId(
+            ServerToClientMsgId.LEFT_PARTY
+            )
+        );
+
+    /* --------------------------------------------------------------------- */
+
+    // true once the first message from the client has been handled
+    private boolean receivedFirstMessage;
+
+    // the protocol version negotiated with the client
+    private volatile int protocolVersion;
+
+    // messages not yet delivered, in the order in which they were sent
+    private final Queue< EncodedMessage > deferredMessages;
+
+    // true while some thread is delivering deferred messages
+    private final AtomicBoolean flushingDeferredMessages;
+
+    /* --------------------------------------------------------------------- */
+
+    // Sends the specified message after all previously sent messages, once
+    // the current thread's outbox is closed, or immediately if none is open.
+    // Another thread may deliver it earlier, even before the current thread
+    // releases its locks, so the state it reports must already be written.
+    private void post(EncodedMessage message)
+    {
+        deferredMessages.add(message);
+
+        if (!Outbox.defer(this))
+            flushDeferredMessages();
+    }
+
+    /**
+     * Delivers all deferred messages, unless another thread is already doing
+     * so, in which case that thread delivers them.
+     */
+    void flushDeferredMessages()
+    {
+        while (flushingDeferredMessages.compareAndSet(false, true))
+        {
+            try
+            {
+                for (EncodedMessage m; (m = deferredMessages.poll()) != null; )
+                    sendMessage(m);
+            }
+            finally
+            {
+                flushingDeferredMessages.set(false);
+            }
+
+            // retry in case a message was added after the last poll but
+            // before the flag was cleared
+
+            if (deferredMessages.isEmpty())
+                break;
+        }
+    }
+
+    private void onHelloReceived(int protocolVersion, WireFormat wireFormat)
+    {
+        if (receivedFirstMessage)
+            throw new RuntimeException("unexpected hello message");
+
+        WireFormat chosen = Handshake.choose(protocolVersion, wireFormat);
+
+        this.protocolVersion = Handshake.negotiate(protocolVersion);
+
+        // the reply is sent in the original format, after which both parties
+        // switch to the chosen one
+
+        MsgWriter writer = newMsgWriter();
+
+        writer.writeServerToClientMsgId(ServerToClientMsgId.HELLO);
+        writer.writeInt(Config.PROTOCOL_VERSION);
+        writer.writeWireFormat(chosen);
+
+        sendMessage(writer);
+
+        setWireFormat(chosen);
+    }
+
+    /* --------------------------------------------------------------------- */
+
     /**
      * Creates a new ClientMessenger that uses the specified socket.
      *
@@ -43,18 +177,72 @@ public abstract class ClientMessenger extends MessengerBase
     public ClientMessenger(Socket socket)
     {
         super(socket);
+
+        receivedFirstMessage = false;
+        protocolVersion      = Handshake.INITIAL_PROTOCOL_VERSION;
+
+        deferredMessages         = new ConcurrentLinkedQueue<>();
+        flushingDeferredMessages = new AtomicBoolean(false);
+    }
+
+    /**
+     * Creates a new ClientMessenger that exchanges messages with the client
+     * through the specified transport.
+     *
+     * @param transport the transport holding the connection to the client
+     *
+     * @throws NullPointerException if transport is null
+     */
+    public ClientMessenger(Transport transport)
+    {
+        super(transport);
+
+        receivedFirstMessage = false;
+        protocolVersion      = Handshake.INITIAL_PROTOCOL_VERSION;
+
+        deferredMessages         = new ConcurrentLinkedQueue<>();
+        flushingDeferredMessages = new AtomicBoolean(false);
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Returns whether the protocol version negotiated with the client supports
+     * parties. Clients that did not send a hello message do not.
+     *
+     * @return whether the client supports parties
+     */
+    public boolean supportsParties()
+    {
+        return Handshake.supportsParties(protocolVersion);
     }
 
     /* --------------------------------------------------------------------- */
 
     @Override
-    protected void onMessageReceived(String msg)
+    protected void onMessageReceived(MsgReader reader)
     {
-        MsgReader reader = new MsgReader(msg);
+        Outbox.open();
 
-        ClientToServerMsgId msgId = ClientToServerMsgId.valueOf(
-            reader.readString()
-            );
+        try
+        {
+            dispatchMessage(reader);
+        }
+        finally
+        {
+            Outbox.close();
+        }
+    }
+
+    private void assertSupportsParties()
+    {
+        if (!supportsParties())
+            throw new RuntimeException("unexpected party message");
+    }
+
+    private void dispatchMessage(MsgReader reader)
+    {
+        ClientToServerMsgId msgId = reader.readClientToServerMsgId();
 
         switch (msgId)
         {
@@ -127,8 +315,63 @@ public abstract class ClientMessenger extends MessengerBase
                 onLeaveLobbyReceived();
             }
             break;
+
+        case HELLO:
+            {
+                int        protocolVersion = reader.readInt();
+                WireFormat wireFormat      = reader.readWireFormat();
+
+                onHelloReceived(protocolVersion, wireFormat);
+            }
+            break;
+
+        case CREATE_PARTY:
+            {
+                assertSupportsParties();
+
+                onCreatePartyReceived();
+            }
+            break;
+
+        case INVITE_TO_PARTY:
+            {
+                String username = reader.readUsername();
+
+                assertSupportsParties();
+
+                onInviteToPartyReceived(username);
+            }
+            break;
+
+        case ACCEPT_PARTY_INVITE:
+            {
+                String leaderUsername = reader.readUsername();
+
+                assertSupportsParties();
+
+                onAcceptPartyInviteReceived(leaderUsername);
+            }
+            break;
+
+        case LEAVE_PARTY:
+            {
+                assertSupportsParties();
+
+                onLeavePartyReceived();
+            }
+            break;
+
+        case JOIN_MATCHMAKING_AS_PARTY:
+            {
+                assertSupportsParties();
+
+                onJoinMatchmakingAsPartyReceived();
+            }
+            break;
         }
 
+        receivedFirstMessage = true;
+
         if (!reader.isEmpty())
         {
             throw new RuntimeException(
@@ -152,13 +395,16 @@ public abstract class ClientMessenger extends MessengerBase
         AccountInfo accountInfo, ServerStats serverStats
         )
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.LOGIN_SUCCEEDED);
-        writer.writeAccountInfo(accountInfo);
-        writer.writeServerStats(serverStats);
+        Objects.requireNonNull(accountInfo);
+        Objects.requireNonNull(serverStats);
 
-        sendMessage(writer.toString());
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(
+                ServerToClientMsgId.LOGIN_SUCCEEDED
+                );
+            writer.writeAccountInfo(accountInfo);
+            writer.writeServerStats(serverStats);
+        }));
     }
 
     /**
@@ -171,12 +417,12 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendLoginFailed(LoginError error)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.LOGIN_FAILED);
-        writer.writeLoginError(error);
+        Objects.requireNonNull(error);
 
-        sendMessage(writer.toString());
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.LOGIN_FAILED);
+            writer.writeLoginError(error);
+        }));
     }
 
     /**
@@ -189,12 +435,12 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendSignUpFailed(SignUpError error)
     {
-        MsgWriter writer = new MsgWriter();
+        Objects.requireNonNull(error);
 
-        writer.writeServerToClientMsgId(ServerToClientMsgId.SIGN_UP_FAILED);
-        writer.writeSignUpError(error);
-
-        sendMessage(writer.toString());
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.SIGN_UP_FAILED);
+            writer.writeSignUpError(error);
+        }));
     }
 
     /**
@@ -203,11 +449,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendLogoutSucceeded()
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.LOGOUT_SUCCEEDED);
-
-        sendMessage(writer.toString());
+        post(LOGOUT_SUCCEEDED);
     }
 
     /**
@@ -219,12 +461,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendServerStats(ServerStats serverStats)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.SERVER_STATS);
-        writer.writeServerStats(serverStats);
-
-        sendMessage(writer.toString());
+        post(encodeServerStats(serverStats));
     }
 
     /**
@@ -233,11 +470,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendJoinedMatchmaking()
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.JOINED_MATCHMAKING);
-
-        sendMessage(writer.toString());
+        post(JOINED_MATCHMAKING);
     }
 
     /**
@@ -250,12 +483,14 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendLeftMatchmaking(LeftMatchmakingCause cause)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.LEFT_MATCHMAKING);
-        writer.writeLeftMatchmakingCause(cause);
+        Objects.requireNonNull(cause);
 
-        sendMessage(writer.toString());
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(
+                ServerToClientMsgId.LEFT_MATCHMAKING
+                );
+            writer.writeLeftMatchmakingCause(cause);
+        }));
     }
 
     /**
@@ -269,12 +504,12 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendMatchFound(double timeToAcceptMatch)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.MATCH_FOUND);
-        writer.writeDuration(timeToAcceptMatch);
+        Validation.validateDuration(timeToAcceptMatch);
 
-        sendMessage(writer.toString());
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.MATCH_FOUND);
+            writer.writeDuration(timeToAcceptMatch);
+        }));
     }
 
     /**
@@ -283,11 +518,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendMatchCanceled()
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.MATCH_CANCELED);
-
-        sendMessage(writer.toString());
+        post(MATCH_CANCELED);
     }
 
     /**
@@ -296,11 +527,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendPlayerAcceptedMatch()
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.PLAYER_ACCEPTED_MATCH);
-
-        sendMessage(writer.toString());
+        post(PLAYER_ACCEPTED_MATCH);
     }
 
     /**
@@ -315,13 +542,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendJoinedLobby(TeamInfo teamInfo, double timeToSelectHero)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.JOINED_LOBBY);
-        writer.writeTeamInfo(teamInfo);
-        writer.writeDuration(timeToSelectHero);
-
-        sendMessage(writer.toString());
+        post(encodeJoinedLobby(teamInfo, timeToSelectHero));
     }
 
     /**
@@ -332,12 +553,12 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendLobbyDied(LobbyCauseOfDeath causeOfDeath)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.LOBBY_DIED);
-        writer.writeLobbyCauseOfDeath(causeOfDeath);
+        Objects.requireNonNull(causeOfDeath);
 
-        sendMessage(writer.toString());
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.LOBBY_DIED);
+            writer.writeLobbyCauseOfDeath(causeOfDeath);
+        }));
     }
 
     /**
@@ -352,13 +573,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendPlayerSelectedHero(int playerIndex, Hero hero)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.PLAYER_SELECTED_HERO);
-        writer.writePlayerIndex(playerIndex);
-        writer.writeHero(hero);
-
-        sendMessage(writer.toString());
+        post(encodePlayerSelectedHero(playerIndex, hero));
     }
 
     /**
@@ -374,13 +589,7 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendChatMessage(int playerIndex, String chatMessage)
     {
-        MsgWriter writer = new MsgWriter();
-
-        writer.writeServerToClientMsgId(ServerToClientMsgId.CHAT_MESSAGE);
-        writer.writePlayerIndex(playerIndex);
-        writer.writeChatMessage(chatMessage);
-
-        sendMessage(writer.toString());
+        post(encodeChatMessage(playerIndex, chatMessage));
     }
 
     /**
@@ -395,13 +604,267 @@ public abstract class ClientMessenger extends MessengerBase
      */
     public void sendMatchPlayed(MatchSummary matchSummary, int newRank)
     {
-        MsgWriter writer = new MsgWriter();
+        post(encodeMatchPlayed(matchSummary, newRank));
+    }
+
+    /**
+     * Asynchronously sends a notification to the client stating that its
+     * party was created or that its members changed.
+     *
+     * @param partyInfo information about the party
+     *
+     * @throws NullPointerException if partyInfo is null
+     */
+    public void sendPartyUpdated(PartyInfo partyInfo)
+    {
+        post(encodePartyUpdated(partyInfo));
+    }
+
+    /**
+     * Asynchronously sends a notification to the client stating that it is no
+     * longer in a party.
+     */
+    public void sendLeftParty()
+    {
+        post(LEFT_PARTY);
+    }
+
+    /**
+     * Asynchronously sends a notification to the client stating that it was
+     * invited to a party.
+     *
+     * @param leaderUsername the username of the party's leader
+     *
+     * @throws NullPointerException if leaderUsername is null
+     * @throws IllegalArgumentException if leaderUsername is invalid
+     */
+    public void sendPartyInviteReceived(String leaderUsername)
+    {
+        Validation.validateUsername(leaderUsername);
+
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(
+                ServerToClientMsgId.PARTY_INVITE_RECEIVED
+                );
+            writer.writeUsername(leaderUsername);
+        }));
+    }
+
+    /**
+     * Asynchronously sends a notification to the client stating that a
+     * previous party-related request failed.
+     *
+     * @param error why the request failed
+     *
+     * @throws NullPointerException if error is null
+     */
+    public void sendPartyRequestFailed(PartyError error)
+    {
+        Objects.requireNonNull(error);
+
+        post(new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(
+                ServerToClientMsgId.PARTY_REQUEST_FAILED
+                );
+            writer.writePartyError(error);
+        }));
+    }
+
+    /* --------------------------------------------------------------------- */
+
+    /**
+     * Encodes server statistics, to be sent to many clients.
+     *
+     * @param serverStats server statistics
+     *
+     * @return the encoded message
+     *
+     * @throws NullPointerException if serverStats is null
+     *
+     * @see #sendServerStats(ServerStats)
+     * @see #multicast(EncodedMessage, Iterable)
+     */
+    public static EncodedMessage encodeServerStats(ServerStats serverStats)
+    {
+        Objects.requireNonNull(serverStats);
+
+        // superseded by the next statistics, so may be dropped for clients
+        // that are not keeping up
+
+        return new EncodedMessage(
+            writer -> {
+                writer.writeServerToClientMsgId(ServerToClientMsgId.SERVER_STATS);
+                writer.writeServerStats(serverStats);
+            },
+            true
+            );
+    }
+
+    /**
+     * Encodes a notification stating that a lobby was joined, to be sent to
+     * all players of a team.
+     *
+     * @param teamInfo information about the team
+     * @param timeToSelectHero how much time the user has to select a champion,
+     *        in seconds
+     *
+     * @return the encoded message
+     *
+     * @throws NullPointerException if teamInfo is null
+     * @throws IllegalArgumentException if timeToSelectHero is negative
+     *
+     * @see #sendJoinedLobby(TeamInfo, double)
+     * @see #multicast(EncodedMessage, Iterable)
+     */
+    public static EncodedMessage encodeJoinedLobby(
+        TeamInfo teamInfo, double timeToSelectHero
+        )
+    {
+        Objects.requireNonNull(teamInfo);
+        Validation.validateDuration(timeToSelectHero);
+
+        return new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.JOINED_LOBBY);
+            writer.writeTeamInfo(teamInfo);
+            writer.writeDuration(timeToSelectHero);
+        });
+    }
+
+    /**
+     * Encodes a notification stating that a player selected a hero, to be
+     * sent to all players of a team.
+     *
+     * @param playerIndex the index of the player in the team
+     * @param hero the hero that the player selected
+     *
+     * @return the encoded message
+     *
+     * @throws NullPointerException if hero is null
+     * @throws IllegalArgumentException if playerIndex is invalid
+     *
+     * @see #sendPlayerSelectedHero(int, Hero)
+     * @see #multicast(EncodedMessage, Iterable)
+     */
+    public static EncodedMessage encodePlayerSelectedHero(
+        int playerIndex, Hero hero
+        )
+    {
+        Validation.validatePlayerIndex(playerIndex);
+        Objects.requireNonNull(hero);
+
+        return new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(
+                ServerToClientMsgId.PLAYER_SELECTED_HERO
+                );
+            writer.writePlayerIndex(playerIndex);
+            writer.writeHero(hero);
+        });
+    }
+
+    /**
+     * Encodes a chat message, to be sent to all players of a team.
+     *
+     * @param playerIndex the index of the player in the team who wrote the
+     *        message
+     * @param chatMessage the message
+     *
+     * @return the encoded message
+     *
+     * @throws NullPointerException if chatMessage is null
+     * @throws IllegalArgumentException if playerIndex or chatMessage are
+     *         invalid
+     *
+     * @see #sendChatMessage(int, String)
+     * @see #multicast(EncodedMessage, Iterable)
+     */
+    public static EncodedMessage encodeChatMessage(
+        int playerIndex, String chatMessage
+        )
+    {
+        Validation.validatePlayerIndex(playerIndex);
+        Validation.validateChatMessage(chatMessage);
+
+        return new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.CHAT_MESSAGE);
+            writer.writePlayerIndex(playerIndex);
+            writer.writeChatMessage(chatMessage);
+        });
+    }
+
+    /**
+     * Encodes a notification stating that a match was played, to be sent to
+     * all players of the match that have the same new rank.
+     *
+     * @param matchSummary summary of the match
+     * @param newRank the players' new rank after the match
+     *
+     * @return the encoded message
+     *
+     * @throws NullPointerException if matchSummary is null
+     * @throws IllegalArgumentException if newRank is invalid
+     *
+     * @see #sendMatchPlayed(MatchSummary, int)
+     * @see #multicast(EncodedMessage, Iterable)
+     */
+    public static EncodedMessage encodeMatchPlayed(
+        MatchSummary matchSummary, int newRank
+        )
+    {
+        Objects.requireNonNull(matchSummary);
+        Validation.validateIntegerRank(newRank);
+
+        return new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.MATCH_PLAYED);
+            writer.writeMatchSummary(matchSummary);
+            writer.writeIntegerRank(newRank);
+        });
+    }
+
+    /**
+     * Encodes a notification stating that a party was created or that its
+     * members changed, to be sent to all members of the party.
+     *
+     * @param partyInfo information about the party
+     *
+     * @return the encoded message
+     *
+     * @throws NullPointerException if partyInfo is null
+     *
+     * @see #sendPartyUpdated(PartyInfo)
+     * @see #multicast(EncodedMessage, Iterable)
+     */
+    public static EncodedMessage encodePartyUpdated(PartyInfo partyInfo)
+    {
+        Objects.requireNonNull(partyInfo);
 
-        writer.writeServerToClientMsgId(ServerToClientMsgId.MATCH_PLAYED);
-        writer.writeMatchSummary(matchSummary);
-        writer.writeIntegerRank(newRank);
+        return new EncodedMessage(writer -> {
+            writer.writeServerToClientMsgId(ServerToClientMsgId.PARTY_UPDATED);
+            writer.writePartyInfo(partyInfo);
+        });
+    }
+
+    /**
+     * Asynchronously sends the same pre-encoded message to several clients.
+     * <p>
+     * The message is encoded at most once per wire format in use by the
+     * recipients, and the resulting bytes are shared by all of them.
+     * Disconnected recipients are skipped.
+     *
+     * @param message the message to be sent
+     * @param recipients the clients to which the message is to be sent
+     *
+     * @throws NullPointerException if message or recipients are null
+     * @throws IllegalArgumentException if the message cannot be framed
+     */
+    public static void multicast(
+        EncodedMessage message,
+        Iterable< ? extends ClientMessenger > recipients
+        )
+    {
+        Objects.requireNonNull(message);
 
-        sendMessage(writer.toString());
+        for (ClientMessenger recipient : recipients)
+            recipient.post(message);
     }
 
     /* --------------------------------------------------------------------- */
@@ -465,6 +928,38 @@ public abstract class ClientMessenger extends MessengerBase
      * Called upon receiving a request to leave a lobby from the client.
      */
     protected abstract void onLeaveLobbyReceived();
+
+    /**
+     * Called upon receiving a request to create a party from the client.
+     */
+    protected abstract void onCreatePartyReceived();
+
+    /**
+     * Called upon receiving a request to invite a player to the client's
+     * party.
+     *
+     * @param username the invited player's username
+     */
+    protected abstract void onInviteToPartyReceived(String username);
+
+    /**
+     * Called upon receiving a request to accept an invitation to a party from
+     * the client.
+     *
+     * @param leaderUsername the username of the party's leader
+     */
+    protected abstract void onAcceptPartyInviteReceived(String leaderUsername);
+
+    /**
+     * Called upon receiving a request to leave the client's party.
+     */
+    protected abstract void onLeavePartyReceived();
+
+    /**
+     * Called upon receiving a request for the client's party to join
+     * matchmaking.
+     */
+    protected abstract void onJoinMatchmakingAsPartyReceived();
 }
 
 /* ------------------------------------------------------------------------- */
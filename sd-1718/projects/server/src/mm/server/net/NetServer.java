@@ -3,20 +3,33 @@
 package mm.server.net;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -27,17 +40,33 @@ import mm.common.data.LeftMatchmakingCause;
 import mm.common.data.LobbyCauseOfDeath;
 import mm.common.data.LoginError;
 import mm.common.data.MatchSummary;
+import mm.common.data.PartyError;
 import mm.common.data.ServerStats;
+import mm.common.data.SignUpError;
 import mm.common.data.Team;
 import mm.common.data.TeamInfo;
+import mm.common.net.EncodedMessage;
+import mm.common.net.OutboundLimits;
+import mm.common.net.SelectorLoopGroup;
+import mm.common.net.SelectorTransport;
+import mm.common.net.SlowConsumerException;
+import mm.common.net.SocketTransport;
+import mm.common.net.Transport;
+import mm.common.util.Scheduler;
+import mm.common.util.TimerWheel;
+import mm.common.util.Util;
 import mm.server.Arguments;
 import mm.server.auth.Account;
 import mm.server.auth.AccountManager;
 import mm.server.error.LoginErrorException;
 import mm.server.error.SignUpErrorException;
+import mm.server.game.BatchMatchmaker;
 import mm.server.game.Lobby;
 import mm.server.game.MatchFound;
 import mm.server.game.Matchmaker;
+import mm.server.game.MatchmakingQueue;
+import mm.server.game.Party;
+import mm.server.game.RatingMatchmaker;
 
 /* -------------------------------------------------------------------------- */
 
@@ -61,6 +90,8 @@ public class NetServer
 
         CONNECTED,   // Connected to the server, but not logged in.
 
+        AUTHENTICATING, // Connected, and logging in or signing up.
+
         IDLE,        // Logged in, but not in matchmaking nor in any lobby.
 
         IN_MATCHMAKING,   // In matchmaking.
@@ -74,19 +105,45 @@ public class NetServer
 
     private class Client extends ClientMessenger
     {
-        private ClientState state;
-
-        // null iff state = DISCONNECTED || state = CONNECTED
-        private Account account;
+        // The following fields may be read at any time. Transitions out of
+        // IN_MATCHMAKING, MATCH_FOUND and IN_LOBBY are performed while holding
+        // matchmakingLock, the match's lock and the lobby's lock,
+        // respectively, and transitions out of AUTHENTICATING and into
+        // DISCONNECTED while holding matchmakingLock. Clients in any other
+        // state are only modified by their own handlers, which never run
+        // concurrently with each other.
+        //
+        // When entering a match or lobby, its reference is written before the
+        // state. When leaving, the state is written before the reference is
+        // cleared.
+
+        private volatile ClientState state;
+
+        // null iff state is DISCONNECTED, CONNECTED or AUTHENTICATING
+        private volatile Account account;
+
+        // id in sessions, -1 iff state is DISCONNECTED, CONNECTED or
+        // AUTHENTICATING
+        private volatile int sessionId;
 
         // null iff state != MATCH_FOUND
-        private MatchFound matchFound;
+        private volatile MatchFound matchFound;
 
         // null iff state != IN_LOBBY
-        private Lobby lobby;
+        private volatile Lobby lobby;
 
         // null iff state != IN_LOBBY
-        private Team team;
+        private volatile Team team;
+
+        // null if not in a party, only written while holding matchmakingLock
+        // and with all of the party's members in the IDLE state
+        private volatile Party party;
+
+        // whether the client accepted a match that was canceled and is waiting
+        // in the matchmaker for the lobby's missing slots to be filled, in
+        // which case it also accepts the next match; only written while
+        // holding matchmakingLock
+        private volatile boolean acceptedMatch;
 
         /* ------------------------------------------------------------------ */
 
@@ -108,13 +165,54 @@ public class NetServer
             }
         }
 
+        private void assertLoggedIn()
+        {
+            // clients that believe they are idle may have been put in
+            // matchmaking by their party's leader
+
+            assertState(
+                ClientState.IDLE,
+                ClientState.IN_MATCHMAKING,
+                ClientState.MATCH_FOUND,
+                ClientState.IN_LOBBY
+                );
+        }
+
+        // Returns the clients that enter and leave matchmaking together with
+        // this client, which are its party's members, leader first, or only
+        // this client if it is not in a party.
+        private List< Client > getMatchmakingGroup()
+        {
+            Party party = this.party;
+
+            if (party == null)
+                return Collections.singletonList(this);
+
+            return
+                party
+                .getMemberUsernames()
+                .stream()
+                .map(authenticatedClients::get)
+                .collect(Collectors.toList());
+        }
+
         private void onFailedToAcceptMatch(MatchFound matchFound)
         {
-            synchronized (NetServer.this)
+            // deliver messages only after releasing the locks
+
+            Outbox.open();
+
+            matchFound.lock();
+
+            try
             {
                 if (matchFound.timerWasCanceled())
                     return;
 
+                // mark match as over
+
+                matchFound.cancelTimer();
+
                 // kick offending players out of matchmaking
 
                 matchFound
@@ -132,362 +230,905 @@ public class NetServer
 
                 // return other players to matchmaking
 
-                matchFound
+                returnToMatchmaking(
+                    matchFound,
+                    matchFound
                     .getPlayersThatAccepted()
                     .stream()
                     .map(authenticatedClients::get)
-                    .forEach(c -> {
-                        c.state = ClientState.IN_MATCHMAKING;
-                        c.matchFound = null;
-
-                        c.sendMatchCanceled();
+                    .collect(Collectors.toList())
+                    );
+            }
+            finally
+            {
+                matchFound.unlock();
 
-                        c.addThisPlayerToMatchmaking();
-                    });
+                Outbox.close();
             }
         }
 
         private void onFailedToSelectHero(Lobby lobby)
         {
-            synchronized (NetServer.this)
-            {
-                // inform all players that the lobby died
+            // deliver messages only after releasing the locks
 
-                lobby.getAllPlayerUsernames()
-                    .stream()
-                    .map(authenticatedClients::get)
-                    .forEach(c -> {
-                        c.state = ClientState.IDLE;
-                        c.lobby = null;
-                        c.team  = null;
+            Outbox.open();
 
-                        c.sendLobbyDied(
-                            LobbyCauseOfDeath.PLAYER_DIDNT_SELECT_HERO
-                            );
-                    });
-            }
-        }
+            lobby.lock();
 
-        private void addThisPlayerToMatchmaking()
-        {
-            Set< String > matchUsernames = matchmaker.addPlayer(
-                account.getUsername(),
-                account.getIntegerRank()
-                );
+            try
+            {
+                if (lobby.timerWasCanceled())
+                    return;
 
-            ++numPlayersInMatchmaking;
+                // mark lobby as dead
 
-            // if match was found
+                lobby.cancelTimer();
 
-            if (matchUsernames != null)
-            {
-                numPlayersInMatchmaking -= Config.LOBBY_SIZE;
+                lobbies.remove(lobby);
 
-                List< Client > matchClients =
-                    matchUsernames
-                    .stream()
-                    .map(authenticatedClients::get)
-                    .collect(Collectors.toList());
+                // inform all players that the lobby died (holding
+                // matchmakingLock to order this with respect to statistics
+                // broadcasts, which may see the players as idle)
 
-                MatchFound matchFound = new MatchFound(
-                    matchUsernames,
-                    timeToAcceptMatch,
-                    this::onFailedToAcceptMatch
-                    );
+                matchmakingLock.lock();
 
-                for (Client c : matchClients)
+                try
                 {
-                    c.state = ClientState.MATCH_FOUND;
-                    c.matchFound = matchFound;
+                    lobby.getAllPlayerUsernames()
+                        .stream()
+                        .map(authenticatedClients::get)
+                        .forEach(c -> {
+                            c.state = ClientState.IDLE;
+                            c.lobby = null;
+                            c.team  = null;
 
-                    c.sendMatchFound(timeToAcceptMatch);
+                            c.sendLobbyDied(
+                                LobbyCauseOfDeath.PLAYER_DIDNT_SELECT_HERO
+                                );
+                        });
                 }
+                finally
+                {
+                    matchmakingLock.unlock();
+                }
+            }
+            finally
+            {
+                lobby.unlock();
 
-                matchFound.startTimer();
+                Outbox.close();
             }
         }
 
-        /* ------------------------------------------------------------------ */
-
-        public Client(Socket socket)
+        // Must be invoked while holding the lock of the match that the
+        // specified clients are leaving. Parties only return to matchmaking if
+        // all of their members are among the specified clients, and the
+        // members of other parties are left in the IDLE state.
+        //
+        // The returning groups are kept together by the matchmaker if it
+        // supports reserved lobbies, so that only the slots of the players
+        // that left must be filled, and those that had already accepted the
+        // match also accept the next one.
+        private void returnToMatchmaking(
+            MatchFound matchFound,
+            List< Client > clients
+            )
         {
-            super(socket);
+            matchmakingLock.lock();
 
-            this.state = ClientState.CONNECTED;
-
-            this.account = null;
+            try
+            {
+                boolean keepAcceptance = matchmaker.supportsReservedLobbies();
 
-            this.matchFound = null;
+                List< int[] > groupSessionIds = new ArrayList<>();
+                List< Double > groupRanks = new ArrayList<>();
 
-            this.lobby = null;
-            this.team  = null;
-        }
+                int numReturning = 0;
 
-        /* ------------------------------------------------------------------ */
+                Set< Party > visitedParties = new HashSet<>();
 
-        @Override
-        protected void onDisconnect(Throwable cause)
-        {
-            synchronized (NetServer.this)
-            {
-                switch (state)
+                for (Client c : clients)
                 {
-                case IN_LOBBY:
-                    {
-                        lobby.cancelTimer();
-
-                        lobby
-                            .getAllPlayerUsernames()
-                            .stream()
-                            .map(authenticatedClients::get)
-                            .filter(c -> c != this)
-                            .forEach(c -> {
-                                c.state = ClientState.IDLE;
-                                c.lobby = null;
-                                c.team  = null;
+                    if (c.party != null && !visitedParties.add(c.party))
+                        continue;
 
-                                c.sendLobbyDied(LobbyCauseOfDeath.PLAYER_LEFT);
-                            });
-                    }
-                    break;
+                    List< Client > group = c.getMatchmakingGroup();
 
-                case MATCH_FOUND:
+                    if (clients.containsAll(group))
                     {
-                        matchFound.cancelTimer();
+                        for (Client m : group)
+                        {
+                            m.state = ClientState.IN_MATCHMAKING;
+                            m.matchFound = null;
 
-                        // return other players to matchmaking
+                            m.acceptedMatch = keepAcceptance
+                                && matchFound.playerAcceptedMatch(
+                                    m.account.getUsername()
+                                    );
 
-                        matchFound
-                            .getPlayerUsernames()
-                            .stream()
-                            .map(authenticatedClients::get)
-                            .filter(c -> c != this)
-                            .forEach(c -> {
-                                c.state = ClientState.IN_MATCHMAKING;
-                                c.matchFound = null;
+                            m.sendMatchCanceled();
+                        }
 
-                                c.sendMatchCanceled();
+                        groupSessionIds.add(getSessionIds(group));
+                        groupRanks.add(getRank(group));
 
-                                c.addThisPlayerToMatchmaking();
-                            });
+                        numReturning += group.size();
                     }
-                    break;
-
-                case IN_MATCHMAKING:
+                    else
                     {
-                        matchmaker.removePlayer(
-                            account.getUsername(),
-                            account.getIntegerRank()
-                            );
+                        for (Client m : group)
+                        {
+                            if (!clients.contains(m))
+                                continue;
 
-                        --numPlayersInMatchmaking;
-                    }
-                    break;
+                            m.state = ClientState.IDLE;
+                            m.matchFound = null;
 
-                default:
-                    break;
+                            m.sendMatchCanceled();
+                            m.sendLeftMatchmaking(
+                                LeftMatchmakingCause.PARTY_MEMBER_LEFT
+                                );
+                        }
+                    }
                 }
 
-                if (state != ClientState.DISCONNECTED && state != ClientState.CONNECTED)
-                    authenticatedClients.remove(account.getUsername());
-
-                state = ClientState.DISCONNECTED;
-                account = null;
-                matchFound = null;
-                lobby = null;
-                team = null;
+                List< int[] > lobbies = matchmaker.addReservedLobby(
+                    groupSessionIds,
+                    groupRanks.stream().mapToDouble(r -> r).toArray(),
+                    nowMillis()
+                    );
 
-                connectedClients.remove(this);
+                numPlayersInMatchmaking += numReturning;
 
-                // print disconnection cause
+                // if matches were found
 
-                if (cause != null)
-                    cause.printStackTrace();
+                for (int[] matchSessionIds : lobbies)
+                    startMatch(matchSessionIds);
+            }
+            finally
+            {
+                matchmakingLock.unlock();
             }
         }
 
-        @Override
-        protected void onLoginReceived(
-            String username, String password
-            )
+        // Must be invoked while holding matchmakingLock, with the specified
+        // group as returned by getMatchmakingGroup().
+        private void enterMatchmaking(List< Client > group)
         {
-            synchronized (NetServer.this)
+            for (Client c : group)
             {
-                assertState(ClientState.CONNECTED);
+                c.state = ClientState.IN_MATCHMAKING;
+                c.matchFound = null;
+                c.acceptedMatch = false;
+            }
 
-                try
-                {
-                    account = accountManager.login(username, password);
+            int[] matchSessionIds = matchmaker.addParty(
+                getSessionIds(group),
+                getRank(group),
+                nowMillis()
+                );
 
-                    if (authenticatedClients.putIfAbsent(username, this) != null)
-                        throw new LoginErrorException(LoginError.ALREADY_LOGGED_IN);
-                }
-                catch (LoginErrorException e)
-                {
-                    sendLoginFailed(e.getError());
-                    return;
-                }
+            numPlayersInMatchmaking += group.size();
 
-                state = ClientState.IDLE;
+            // if match was found
 
-                sendLoginSucceeded(account.getAccountInfo(), getStats());
-            }
+            if (matchSessionIds != null)
+                startMatch(matchSessionIds);
         }
 
-        @Override
-        protected void onSignUpReceived(
-            String username, String password
-            )
+        // Must be invoked while holding matchmakingLock, with the specified
+        // players just removed from the matchmaker.
+        private void startMatch(int[] matchSessionIds)
         {
-            synchronized (NetServer.this)
+            numPlayersInMatchmaking -= Config.LOBBY_SIZE;
+
+            List< Client > matchClients =
+                new ArrayList<>(matchSessionIds.length);
+
+            Set< String > matchUsernames =
+                new HashSet<>(2 * matchSessionIds.length);
+
+            for (int id : matchSessionIds)
             {
-                assertState(ClientState.CONNECTED);
+                Client c = sessions.get(id);
 
-                try
+                matchClients.add(c);
+                matchUsernames.add(c.account.getUsername());
+            }
+
+            MatchFound matchFound = new MatchFound(
+                matchUsernames,
+                timeToAcceptMatch,
+                scheduler,
+                this::onFailedToAcceptMatch
+                );
+
+            // lock the match before publishing it, so that no player acts on
+            // it before all players were notified (this never blocks, as no
+            // other thread can see the match yet)
+
+            matchFound.lock();
+
+            try
+            {
+                // players backfilled from a canceled match keep their
+                // acceptance (never all players, as some slots were missing)
+
+                int numAccepted = 0;
+
+                for (Client c : matchClients)
                 {
-                    account = accountManager.register(username, password);
+                    if (c.acceptedMatch)
+                    {
+                        matchFound.acceptMatch(c.account.getUsername());
+                        c.acceptedMatch = false;
 
-                    authenticatedClients.put(username, this);
+                        ++numAccepted;
+                    }
                 }
-                catch (SignUpErrorException e)
+
+                for (Client c : matchClients)
                 {
-                    sendSignUpFailed(e.getError());
-                    return;
-                }
+                    c.matchFound = matchFound;
+                    c.state = ClientState.MATCH_FOUND;
+
+                    c.sendMatchFound(timeToAcceptMatch);
 
-                state = ClientState.IDLE;
+                    for (int i = 0; i < numAccepted; ++i)
+                        c.sendPlayerAcceptedMatch();
+                }
 
-                sendLoginSucceeded(account.getAccountInfo(), getStats());
+                matchFound.startTimer();
+            }
+            finally
+            {
+                matchFound.unlock();
             }
         }
 
-        @Override
-        protected void onLogoutReceived()
+        // Removes this client from the lobby, match or matchmaking it is part
+        // of, leaving it in the IDLE state. Returns false if the client's state
+        // changed before the corresponding lock was acquired, in which case
+        // the caller must retry.
+        private boolean tryLeaveAll()
         {
-            synchronized (NetServer.this)
+            switch (state)
             {
-                assertState(ClientState.IDLE);
+            case IN_LOBBY:
+                {
+                    Lobby lobby = this.lobby;
 
-                authenticatedClients.remove(account.getUsername());
+                    if (lobby == null)
+                        return false;
 
-                state = ClientState.CONNECTED;
-                account = null;
+                    lobby.lock();
 
-                sendLogoutSucceeded();
-            }
-        }
+                    try
+                    {
+                        if (lobby.timerWasCanceled())
+                            return false;
 
-        @Override
-        protected void onJoinMatchmakingReceived()
-        {
-            synchronized (NetServer.this)
-            {
-                assertState(
-                    ClientState.IDLE,
-                    ClientState.IN_MATCHMAKING,
-                    ClientState.MATCH_FOUND
-                    );
+                        killLobby(lobby);
+                    }
+                    finally
+                    {
+                        lobby.unlock();
+                    }
+                }
+                return true;
 
-                if (state == ClientState.IDLE)
+            case MATCH_FOUND:
                 {
-                    state = ClientState.IN_MATCHMAKING;
+                    MatchFound matchFound = this.matchFound;
 
-                    sendJoinedMatchmaking();
+                    if (matchFound == null)
+                        return false;
+
+                    matchFound.lock();
+
+                    try
+                    {
+                        if (matchFound.timerWasCanceled())
+                            return false;
+
+                        cancelMatch(matchFound);
+                    }
+                    finally
+                    {
+                        matchFound.unlock();
+                    }
+                }
+                return true;
+
+            case IN_MATCHMAKING:
+                {
+                    matchmakingLock.lock();
 
-                    addThisPlayerToMatchmaking();
+                    try
+                    {
+                        if (state != ClientState.IN_MATCHMAKING)
+                            return false;
+
+                        leaveMatchmaking();
+                    }
+                    finally
+                    {
+                        matchmakingLock.unlock();
+                    }
                 }
+                return true;
+
+            default:
+                return true;
             }
         }
 
-        @Override
-        protected void onLeaveMatchmakingReceived()
+        // Must be invoked while holding matchmakingLock, with this client in
+        // the IN_MATCHMAKING state. The client's party leaves matchmaking as a
+        // whole, and its other members are informed.
+        private void leaveMatchmaking()
         {
-            synchronized (NetServer.this)
-            {
-                assertState(
-                    ClientState.IDLE,
-                    ClientState.IN_MATCHMAKING,
-                    ClientState.MATCH_FOUND
-                    );
+            List< Client > group = getMatchmakingGroup();
 
-                if (state == ClientState.IN_MATCHMAKING)
-                {
-                    state = ClientState.IDLE;
+            for (Client c : group)
+            {
+                c.state = ClientState.IDLE;
+                c.acceptedMatch = false;
+            }
 
-                    matchmaker.removePlayer(
-                         account.getUsername(),
-                         account.getIntegerRank()
-                         );
+            matchmaker.removeParty(getSessionIds(group), getRank(group));
 
-                    --numPlayersInMatchmaking;
+            numPlayersInMatchmaking -= group.size();
 
-                    sendLeftMatchmaking(LeftMatchmakingCause.VOLUNTARY);
+            for (Client c : group)
+            {
+                if (c != this)
+                {
+                    c.sendLeftMatchmaking(
+                        LeftMatchmakingCause.PARTY_MEMBER_LEFT
+                        );
                 }
             }
         }
 
-        @Override
-        protected void onAcceptMatchReceived()
+        // Removes this client from the lobby, match or matchmaking it is part
+        // of, and returns while holding matchmakingLock, with this client no
+        // longer in any of those states. As only a party's leader may put
+        // other clients in matchmaking, and does so while holding
+        // matchmakingLock, the client remains out of matchmaking until the
+        // lock is released.
+        private void leaveAllAndLock()
         {
-            synchronized (NetServer.this)
+            while (true)
             {
-                assertState(
-                    ClientState.IDLE,
+                while (!tryLeaveAll())
+                    Thread.yield();
+
+                matchmakingLock.lock();
+
+                if (!stateMatches(
+                    state,
                     ClientState.IN_MATCHMAKING,
                     ClientState.MATCH_FOUND,
                     ClientState.IN_LOBBY
-                    );
-
-                if (state == ClientState.MATCH_FOUND)
+                    ))
                 {
-                    if (matchFound.playerAcceptedMatch(account.getUsername()))
-                        return;
+                    return;
+                }
 
-                    // notify all other players
+                matchmakingLock.unlock();
+            }
+        }
 
-                    matchFound
-                        .getPlayerUsernames()
-                        .stream()
-                        .map(authenticatedClients::get)
-                        .forEach(c -> {
-                            c.sendPlayerAcceptedMatch();
-                        });
+        // Must be invoked while holding matchmakingLock, with this client in a
+        // party whose members are all in the IDLE state. Informs the remaining
+        // members of the party's new composition.
+        private void leaveParty()
+        {
+            Party party = this.party;
 
-                    // ---
+            party.leave(account.getUsername());
 
-                    if (matchFound.acceptMatch(account.getUsername()))
-                    {
-                        // all players accepted match
+            this.party = null;
 
-                        // cancel match timer
+            if (!party.isEmpty())
+            {
+                ClientMessenger.multicast(
+                    ClientMessenger.encodePartyUpdated(party.toPartyInfo()),
+                    party
+                        .getMemberUsernames()
+                        .stream()
+                        .map(authenticatedClients::get)
+                        .collect(Collectors.toList())
+                    );
+            }
+        }
 
-                        matchFound.cancelTimer();
+        // Must be invoked while holding the lock of the specified match, which
+        // must not be over. Returns all other players to matchmaking and
+        // leaves this client in the IDLE state.
+        private void cancelMatch(MatchFound matchFound)
+        {
+            matchFound.cancelTimer();
 
-                        List< Client > lobbyClients =
-                            matchFound
-                            .getPlayerUsernames()
-                            .stream()
-                            .map(authenticatedClients::get)
-                            .collect(Collectors.toList());
+            returnToMatchmaking(
+                matchFound,
+                matchFound
+                .getPlayerUsernames()
+                .stream()
+                .map(authenticatedClients::get)
+                .filter(c -> c != this)
+                .collect(Collectors.toList())
+                );
 
-                        List< Lobby.Player > lobbyPlayers =
-                            lobbyClients
-                            .stream()
-                            .map(c -> new Lobby.Player(
-                                c.account.getUsername(),
-                                c.account.getIntegerRank()
-                                ))
-                            .collect(Collectors.toList());
+            state = ClientState.IDLE;
+            this.matchFound = null;
+        }
 
-                        // create lobby
+        // Must be invoked while holding the lock of the specified lobby, which
+        // must not be dead. Returns all players to the IDLE state and informs
+        // all other players that the lobby died.
+        private void killLobby(Lobby lobby)
+        {
+            lobby.cancelTimer();
 
-                        Lobby lobby = new Lobby(
-                            lobbyPlayers,
-                            timeToSelectHero,
-                            this::onFailedToSelectHero
-                            );
+            lobbies.remove(lobby);
 
-                        // notify players
+            // ordered with respect to statistics broadcasts
+
+            matchmakingLock.lock();
+
+            try
+            {
+                lobby
+                    .getAllPlayerUsernames()
+                    .stream()
+                    .map(authenticatedClients::get)
+                    .forEach(c -> {
+                        c.state = ClientState.IDLE;
+                        c.lobby = null;
+                        c.team  = null;
+
+                        if (c != this)
+                            c.sendLobbyDied(LobbyCauseOfDeath.PLAYER_LEFT);
+                    });
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+
+        /* ------------------------------------------------------------------ */
+
+        public Client(Transport transport)
+        {
+            super(transport);
+
+            this.state = ClientState.CONNECTED;
+
+            this.account = null;
+            this.sessionId = -1;
+
+            this.matchFound = null;
+
+            this.lobby = null;
+            this.team  = null;
+        }
+
+        /* ------------------------------------------------------------------ */
+
+        @Override
+        protected void onDisconnect(Throwable cause)
+        {
+            // leave lobby, match or matchmaking, delivering messages to other
+            // players only after releasing the locks
+
+            Outbox.open();
+
+            try
+            {
+                leaveAllAndLock();
+
+                try
+                {
+                    if (party != null)
+                        leaveParty();
+
+                    // holding matchmakingLock, so that an authentication
+                    // that completes later sees that the client is gone
+
+                    if (account != null)
+                    {
+                        authenticatedClients.remove(account.getUsername());
+                        sessions.unregister(sessionId);
+                    }
+
+                    state = ClientState.DISCONNECTED;
+                    account = null;
+                    sessionId = -1;
+                }
+                finally
+                {
+                    matchmakingLock.unlock();
+                }
+            }
+            finally
+            {
+                Outbox.close();
+            }
+
+            connectedClients.remove(this);
+
+            numFlushesOfDisconnectedClients.add(getNumFlushes());
+            numMessagesFlushedOfDisconnectedClients.add(
+                getNumMessagesFlushed()
+                );
+            numDroppedMessagesOfDisconnectedClients.add(
+                getNumDroppedMessages()
+                );
+
+            if (cause instanceof SlowConsumerException)
+                numSlowConsumersEvicted.increment();
+
+            // print disconnection cause
+
+            if (cause != null)
+                cause.printStackTrace();
+        }
+
+        // Runs the specified task on an authentication worker, leaving this
+        // client in the AUTHENTICATING state until the task completes it.
+        // Returns false, leaving the client's state unchanged, if there are
+        // already too many authentications waiting for a worker.
+        private boolean authenticate(Runnable task)
+        {
+            state = ClientState.AUTHENTICATING;
+
+            try
+            {
+                authExecutor.execute(() -> {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Throwable t)
+                    {
+                        disconnect(t);
+                    }
+                });
+
+                return true;
+            }
+            catch (RejectedExecutionException e)
+            {
+                numAuthRejections.increment();
+
+                state = ClientState.CONNECTED;
+
+                return false;
+            }
+        }
+
+        // Invoked on an authentication worker once the client's credentials
+        // were verified. Logs the client in, unless it disconnected meanwhile
+        // or its account is already in use, in which case sendInUse is run.
+        private void onAuthenticated(Account account, Runnable sendInUse)
+        {
+            // ordered with respect to server statistics broadcasts, but
+            // delivered only after releasing the lock
+
+            Outbox.open();
+
+            try
+            {
+                matchmakingLock.lock();
+
+                try
+                {
+                    if (state != ClientState.AUTHENTICATING)
+                        return;
+
+                    if (authenticatedClients.putIfAbsent(
+                        account.getUsername(), this
+                        ) != null)
+                    {
+                        state = ClientState.CONNECTED;
+                        sendInUse.run();
+                        return;
+                    }
+
+                    this.account   = account;
+                    this.sessionId = sessions.register(this);
+
+                    state = ClientState.IDLE;
+
+                    sendLoginSucceeded(account.getAccountInfo(), getStats());
+                }
+                finally
+                {
+                    matchmakingLock.unlock();
+                }
+            }
+            finally
+            {
+                Outbox.close();
+            }
+        }
+
+        // Invoked on an authentication worker if the client's credentials
+        // were rejected.
+        private void onAuthenticationFailed(Runnable sendFailure)
+        {
+            Outbox.open();
+
+            try
+            {
+                matchmakingLock.lock();
+
+                try
+                {
+                    // the state is changed before replying, so that the
+                    // client may retry as soon as it gets the reply
+
+                    if (state == ClientState.AUTHENTICATING)
+                    {
+                        state = ClientState.CONNECTED;
+                        sendFailure.run();
+                    }
+                }
+                finally
+                {
+                    matchmakingLock.unlock();
+                }
+            }
+            finally
+            {
+                Outbox.close();
+            }
+        }
+
+        @Override
+        protected void onLoginReceived(
+            String username, String password
+            )
+        {
+            assertState(ClientState.CONNECTED);
+
+            // verifying the password takes long enough to stall other work,
+            // so it is done on an authentication worker
+
+            boolean accepted = authenticate(() -> {
+                try
+                {
+                    onAuthenticated(
+                        accountManager.login(username, password),
+                        () -> sendLoginFailed(LoginError.ALREADY_LOGGED_IN)
+                        );
+                }
+                catch (LoginErrorException e)
+                {
+                    onAuthenticationFailed(() -> sendLoginFailed(e.getError()));
+                }
+            });
+
+            if (!accepted)
+                sendLoginFailed(LoginError.SERVER_BUSY);
+        }
+
+        @Override
+        protected void onSignUpReceived(
+            String username, String password
+            )
+        {
+            assertState(ClientState.CONNECTED);
+
+            // hashing the password and waiting for the new account to be
+            // durable take long enough to stall other work, so they are done
+            // on an authentication worker
+
+            boolean accepted = authenticate(() -> {
+                try
+                {
+                    onAuthenticated(
+                        accountManager.register(username, password),
+                        () -> sendSignUpFailed(SignUpError.USERNAME_EXISTS)
+                        );
+                }
+                catch (SignUpErrorException e)
+                {
+                    onAuthenticationFailed(
+                        () -> sendSignUpFailed(e.getError())
+                        );
+                }
+            });
+
+            if (!accepted)
+                sendSignUpFailed(SignUpError.SERVER_BUSY);
+        }
+
+        @Override
+        protected void onLogoutReceived()
+        {
+            assertLoggedIn();
+
+            // leave the party too, holding matchmakingLock throughout so that
+            // the party's leader cannot put this client back in matchmaking
+            // (this also orders the logout with respect to server statistics
+            // broadcasts)
+
+            leaveAllAndLock();
+
+            try
+            {
+                if (party != null)
+                    leaveParty();
+
+                authenticatedClients.remove(account.getUsername());
+                sessions.unregister(sessionId);
+
+                state = ClientState.CONNECTED;
+                account = null;
+                sessionId = -1;
+
+                sendLogoutSucceeded();
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+
+        @Override
+        protected void onJoinMatchmakingReceived()
+        {
+            assertLoggedIn();
+
+            if (state == ClientState.IDLE)
+            {
+                matchmakingLock.lock();
+
+                try
+                {
+                    // ignore if put in matchmaking by the party's leader
+
+                    if (state != ClientState.IDLE)
+                        return;
+
+                    // parties must join as a whole, through their leader
+
+                    if (party != null && party.getSize() > 1)
+                    {
+                        sendPartyRequestFailed(PartyError.ALREADY_IN_PARTY);
+                        return;
+                    }
+
+                    sendJoinedMatchmaking();
+
+                    enterMatchmaking(getMatchmakingGroup());
+                }
+                finally
+                {
+                    matchmakingLock.unlock();
+                }
+            }
+        }
+
+        @Override
+        protected void onLeaveMatchmakingReceived()
+        {
+            assertState(
+                ClientState.IDLE,
+                ClientState.IN_MATCHMAKING,
+                ClientState.MATCH_FOUND
+                );
+
+            matchmakingLock.lock();
+
+            try
+            {
+                if (state == ClientState.IN_MATCHMAKING)
+                {
+                    leaveMatchmaking();
+
+                    sendLeftMatchmaking(LeftMatchmakingCause.VOLUNTARY);
+                }
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+
+        @Override
+        protected void onAcceptMatchReceived()
+        {
+            assertState(
+                ClientState.IDLE,
+                ClientState.IN_MATCHMAKING,
+                ClientState.MATCH_FOUND,
+                ClientState.IN_LOBBY
+                );
+
+            MatchFound matchFound = this.matchFound;
+
+            if (matchFound == null)
+                return;
+
+            matchFound.lock();
+
+            try
+            {
+                // ignore if the match is already over
+
+                if (matchFound.timerWasCanceled())
+                    return;
+
+                if (matchFound.playerAcceptedMatch(account.getUsername()))
+                    return;
+
+                // notify all other players
+
+                matchFound
+                    .getPlayerUsernames()
+                    .stream()
+                    .map(authenticatedClients::get)
+                    .forEach(c -> {
+                        c.sendPlayerAcceptedMatch();
+                    });
+
+                // ---
+
+                if (matchFound.acceptMatch(account.getUsername()))
+                {
+                    // all players accepted match
+
+                    // cancel match timer
+
+                    matchFound.cancelTimer();
+
+                    List< Client > lobbyClients =
+                        matchFound
+                        .getPlayerUsernames()
+                        .stream()
+                        .map(authenticatedClients::get)
+                        .collect(Collectors.toList());
+
+                    // group players by party, so that each party plays in the
+                    // same team (parties do not change while in a match)
+
+                    Map< Object, List< Lobby.Player > > lobbyGroups =
+                        new LinkedHashMap<>();
+
+                    for (Client c : lobbyClients)
+                    {
+                        Object key = (c.party != null) ? c.party : c;
+
+                        lobbyGroups
+                            .computeIfAbsent(key, k -> new ArrayList<>())
+                            .add(new Lobby.Player(
+                                c.account.getUsername(),
+                                c.account.getIntegerRank()
+                                ));
+                    }
+
+                    // create lobby, locking it before publishing it (this
+                    // never blocks, as no other thread can see it yet)
+
+                    Lobby lobby = new Lobby(
+                        new ArrayList<>(lobbyGroups.values()),
+                        timeToSelectHero,
+                        scheduler,
+                        this::onFailedToSelectHero
+                        );
+
+                    lobby.lock();
+
+                    try
+                    {
+                        lobbies.add(lobby);
+
+                        // notify players
 
                         for (Team team : Team.values())
                         {
@@ -502,227 +1143,530 @@ public class NetServer
 
                             for (Client c : teamClients)
                             {
-                                c.state      = ClientState.IN_LOBBY;
-                                c.matchFound = null;
                                 c.lobby      = lobby;
                                 c.team       = team;
-
-                                c.sendJoinedLobby(teamInfo, timeToSelectHero);
+                                c.state      = ClientState.IN_LOBBY;
+                                c.matchFound = null;
                             }
+
+                            ClientMessenger.multicast(
+                                ClientMessenger.encodeJoinedLobby(
+                                    teamInfo, timeToSelectHero
+                                    ),
+                                teamClients
+                                );
                         }
 
                         // ---
 
                         lobby.startTimer();
                     }
+                    finally
+                    {
+                        lobby.unlock();
+                    }
                 }
             }
+            finally
+            {
+                matchFound.unlock();
+            }
         }
 
         @Override
         protected void onDeclineMatchReceived()
         {
-            synchronized (NetServer.this)
-            {
-                assertState(
-                    ClientState.IDLE,
-                    ClientState.IN_MATCHMAKING,
-                    ClientState.MATCH_FOUND,
-                    ClientState.IN_LOBBY
-                    );
+            assertState(
+                ClientState.IDLE,
+                ClientState.IN_MATCHMAKING,
+                ClientState.MATCH_FOUND,
+                ClientState.IN_LOBBY
+                );
 
-                if (state == ClientState.MATCH_FOUND)
-                {
-                    matchFound.cancelTimer();
+            MatchFound matchFound = this.matchFound;
 
-                    // return other players to matchmaking
+            if (matchFound == null)
+                return;
 
-                    matchFound
-                        .getPlayerUsernames()
-                        .stream()
-                        .map(authenticatedClients::get)
-                        .filter(c -> c != this)
-                        .forEach(c -> {
-                            c.state = ClientState.IN_MATCHMAKING;
-                            c.matchFound = null;
+            matchFound.lock();
 
-                            c.sendMatchCanceled();
+            try
+            {
+                // ignore if the match is already over
 
-                            c.addThisPlayerToMatchmaking();
-                        });
+                if (matchFound.timerWasCanceled())
+                    return;
 
-                    // kick this player out of matchmaking
+                // return other players to matchmaking and kick this player out
+                // of matchmaking
 
-                    state = ClientState.IDLE;
-                    matchFound = null;
+                cancelMatch(matchFound);
 
-                    sendLeftMatchmaking(LeftMatchmakingCause.DECLINED_MATCH);
-                }
+                sendLeftMatchmaking(LeftMatchmakingCause.DECLINED_MATCH);
+            }
+            finally
+            {
+                matchFound.unlock();
             }
         }
 
         @Override
         protected void onSelectHeroReceived(Hero hero)
         {
-            synchronized (NetServer.this)
+            assertState(
+                ClientState.IDLE,
+                ClientState.IN_LOBBY
+                );
+
+            Lobby lobby = this.lobby;
+
+            if (lobby == null)
+                return;
+
+            lobby.lock();
+
+            try
             {
-                assertState(
-                    ClientState.IDLE,
-                    ClientState.IN_LOBBY
-                    );
+                // ignore if the lobby is already dead
 
-                if (state == ClientState.IN_LOBBY)
-                {
-                    // get index of player that sent
+                if (lobby.timerWasCanceled())
+                    return;
 
-                    int playerIndex = lobby.getTeamPlayerIndex(
-                        account.getUsername()
-                        );
+                // get index of player that sent
 
-                    // try selecting the hero
+                int playerIndex = lobby.getTeamPlayerIndex(
+                    account.getUsername()
+                    );
 
-                    if (lobby.trySelectHero(team, playerIndex, hero))
-                    {
-                        // hero was in fact selected, notify all team players
+                // try selecting the hero
 
+                if (lobby.trySelectHero(team, playerIndex, hero))
+                {
+                    // hero was in fact selected, notify all team players
+
+                    ClientMessenger.multicast(
+                        ClientMessenger.encodePlayerSelectedHero(
+                            playerIndex, hero
+                            ),
                         lobby
                             .getTeamPlayerUsernames(team)
                             .stream()
                             .map(authenticatedClients::get)
-                            .forEach(c -> {
-                                c.sendPlayerSelectedHero(playerIndex, hero);
-                            });
-                    }
+                            .collect(Collectors.toList())
+                        );
+                }
 
-                    // check if all players selected a hero
+                // check if all players selected a hero
 
-                    if (lobby.didEveryPlayerSelectAHero())
-                    {
-                        Random r = ThreadLocalRandom.current();
+                if (lobby.didEveryPlayerSelectAHero())
+                {
+                    Random r = ThreadLocalRandom.current();
 
-                        MatchSummary matchSummary = lobby.playMatch();
-                        Team winner = matchSummary.getWinner();
+                    MatchSummary matchSummary = lobby.playMatch();
+                    Team winner = matchSummary.getWinner();
 
-                        lobby
-                            .getTeamPlayerUsernames(winner)
-                            .stream()
-                            .map(authenticatedClients::get)
-                            .forEach(c -> {
-                                c.account.incrementNumWonMatches();
+                    lobby
+                        .getTeamPlayerUsernames(winner)
+                        .stream()
+                        .map(authenticatedClients::get)
+                        .forEach(c -> c.account.recordMatch(
+                            true, 0.8 + 0.4 * r.nextDouble()
+                            ));
 
-                                double newRank = Math.min(
-                                    Config.MAX_RANK,
-                                    c.account.getDoubleRank()
-                                    + (0.8 + 0.4 * r.nextDouble())
-                                    );
+                    lobby
+                        .getTeamPlayerUsernames(Team.other(winner))
+                        .stream()
+                        .map(authenticatedClients::get)
+                        .forEach(c -> c.account.recordMatch(
+                            false, -(0.8 + 0.4 * r.nextDouble())
+                            ));
 
-                                c.account.setDoubleRank(newRank);
-                            });
+                    // cancel lobby timer
 
-                        lobby
-                            .getTeamPlayerUsernames(Team.other(winner))
-                            .stream()
-                            .map(authenticatedClients::get)
-                            .forEach(c -> {
-                                c.account.incrementNumLostMatches();
+                    lobby.cancelTimer();
 
-                                double newRank = Math.max(
-                                    Config.MIN_RANK,
-                                    c.account.getDoubleRank() -
-                                    (0.8 + 0.4 * r.nextDouble())
-                                    );
+                    lobbies.remove(lobby);
 
-                                c.account.setDoubleRank(newRank);
-                            });
+                    // match was played, return all players to idle state
+                    // (holding matchmakingLock to order this with respect to
+                    // statistics broadcasts, which may see them as idle)
+
+                    List< Client > lobbyClients =
+                        lobby
+                        .getAllPlayerUsernames()
+                        .stream()
+                        .map(authenticatedClients::get)
+                        .collect(Collectors.toList());
 
-                        // cancel lobby timer
+                    matchmakingLock.lock();
 
-                        lobby.cancelTimer();
+                    try
+                    {
+                        for (Client c : lobbyClients)
+                        {
+                            c.state = ClientState.IDLE;
+                            c.lobby = null;
+                            c.team  = null;
+                        }
 
-                        // match was played, notify all players and return them
-                        // to idle state
+                        // notify all players, encoding the notification once
+                        // per distinct new rank
 
-                        lobby
-                            .getAllPlayerUsernames()
+                        lobbyClients
                             .stream()
-                            .map(authenticatedClients::get)
-                            .forEach(c -> {
-                                c.state = ClientState.IDLE;
-                                c.lobby = null;
-                                c.team  = null;
-
-                                c.sendMatchPlayed(
-                                    matchSummary,
-                                    c.account.getIntegerRank()
+                            .collect(Collectors.groupingBy(
+                                c -> c.account.getIntegerRank()
+                                ))
+                            .forEach((newRank, clients) -> {
+                                ClientMessenger.multicast(
+                                    ClientMessenger.encodeMatchPlayed(
+                                        matchSummary, newRank
+                                        ),
+                                    clients
                                     );
                             });
                     }
+                    finally
+                    {
+                        matchmakingLock.unlock();
+                    }
                 }
             }
+            finally
+            {
+                lobby.unlock();
+            }
         }
 
         @Override
         protected void onChatMessageReceived(String chatMessage)
         {
-            synchronized (NetServer.this)
+            assertState(
+                ClientState.IDLE,
+                ClientState.IN_LOBBY
+                );
+
+            Lobby lobby = this.lobby;
+
+            if (lobby == null)
+                return;
+
+            lobby.lock();
+
+            try
             {
-                assertState(
-                    ClientState.IDLE,
-                    ClientState.IN_LOBBY
-                    );
+                // ignore if the lobby is already dead
 
-                if (state == ClientState.IN_LOBBY)
-                {
-                    // get index of player that sent
+                if (lobby.timerWasCanceled())
+                    return;
 
-                    int playerIndex = lobby.getTeamPlayerIndex(
-                        account.getUsername()
-                        );
+                // get index of player that sent
 
-                    // send message to all team players
+                int playerIndex = lobby.getTeamPlayerIndex(
+                    account.getUsername()
+                    );
+
+                // send message to all team players
 
+                ClientMessenger.multicast(
+                    ClientMessenger.encodeChatMessage(
+                        playerIndex, chatMessage
+                        ),
                     lobby
                         .getTeamPlayerUsernames(team)
                         .stream()
                         .map(authenticatedClients::get)
-                        .forEach(c -> {
-                            c.sendChatMessage(playerIndex, chatMessage);
-                        });
-                }
+                        .collect(Collectors.toList())
+                    );
+            }
+            finally
+            {
+                lobby.unlock();
             }
         }
 
         @Override
         protected void onLeaveLobbyReceived()
         {
-            synchronized (NetServer.this)
+            assertState(
+                ClientState.IN_LOBBY,
+                ClientState.IDLE
+                );
+
+            Lobby lobby = this.lobby;
+
+            if (lobby == null)
+                return;
+
+            lobby.lock();
+
+            try
+            {
+                // ignore if the lobby is already dead
+
+                if (lobby.timerWasCanceled())
+                    return;
+
+                // inform all players that the lobby died and return them to
+                // idle state
+
+                killLobby(lobby);
+
+                sendLobbyDied(LobbyCauseOfDeath.PLAYER_LEFT);
+            }
+            finally
+            {
+                lobby.unlock();
+            }
+        }
+
+        @Override
+        protected void onCreatePartyReceived()
+        {
+            assertLoggedIn();
+
+            matchmakingLock.lock();
+
+            try
+            {
+                if (party != null)
+                {
+                    sendPartyRequestFailed(PartyError.ALREADY_IN_PARTY);
+                    return;
+                }
+
+                if (state != ClientState.IDLE)
+                {
+                    sendPartyRequestFailed(PartyError.PARTY_BUSY);
+                    return;
+                }
+
+                party = new Party(account.getUsername());
+
+                sendPartyUpdated(party.toPartyInfo());
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+
+        @Override
+        protected void onInviteToPartyReceived(String username)
+        {
+            assertLoggedIn();
+
+            matchmakingLock.lock();
+
+            try
+            {
+                String leaderUsername = account.getUsername();
+
+                if (party == null)
+                {
+                    sendPartyRequestFailed(PartyError.NOT_IN_PARTY);
+                    return;
+                }
+
+                if (!party.getLeaderUsername().equals(leaderUsername))
+                {
+                    sendPartyRequestFailed(PartyError.NOT_PARTY_LEADER);
+                    return;
+                }
+
+                if (!allIdle(getMatchmakingGroup()))
+                {
+                    sendPartyRequestFailed(PartyError.PARTY_BUSY);
+                    return;
+                }
+
+                if (party.isFull())
+                {
+                    sendPartyRequestFailed(PartyError.PARTY_FULL);
+                    return;
+                }
+
+                // logins and logouts change state while holding
+                // matchmakingLock, so the invitee's state is stable here
+
+                Client invitee = authenticatedClients.get(username);
+
+                if (invitee == null || invitee.account == null
+                    || !stateMatches(
+                        invitee.state,
+                        ClientState.IDLE,
+                        ClientState.IN_MATCHMAKING,
+                        ClientState.MATCH_FOUND,
+                        ClientState.IN_LOBBY
+                        ))
+                {
+                    sendPartyRequestFailed(PartyError.PLAYER_NOT_LOGGED_IN);
+                    return;
+                }
+
+                if (invitee.party != null)
+                {
+                    sendPartyRequestFailed(
+                        PartyError.PLAYER_ALREADY_IN_PARTY
+                        );
+                    return;
+                }
+
+                // clients that cannot decode party messages are never invited,
+                // and thus never receive any
+
+                if (!invitee.supportsParties())
+                {
+                    sendPartyRequestFailed(
+                        PartyError.PLAYER_DOES_NOT_SUPPORT_PARTIES
+                        );
+                    return;
+                }
+
+                party.invite(username);
+
+                invitee.sendPartyInviteReceived(leaderUsername);
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+
+        @Override
+        protected void onAcceptPartyInviteReceived(String leaderUsername)
+        {
+            assertLoggedIn();
+
+            matchmakingLock.lock();
+
+            try
             {
-                assertState(
-                    ClientState.IN_LOBBY,
-                    ClientState.IDLE
+                if (party != null)
+                {
+                    sendPartyRequestFailed(PartyError.ALREADY_IN_PARTY);
+                    return;
+                }
+
+                Client leader = authenticatedClients.get(leaderUsername);
+                Party party = (leader != null) ? leader.party : null;
+
+                if (party == null || !party.isInvited(account.getUsername()))
+                {
+                    sendPartyRequestFailed(PartyError.NOT_INVITED);
+                    return;
+                }
+
+                if (party.isFull())
+                {
+                    sendPartyRequestFailed(PartyError.PARTY_FULL);
+                    return;
+                }
+
+                List< Client > members = leader.getMatchmakingGroup();
+
+                if (state != ClientState.IDLE || !allIdle(members))
+                {
+                    sendPartyRequestFailed(PartyError.PARTY_BUSY);
+                    return;
+                }
+
+                party.join(account.getUsername());
+
+                this.party = party;
+
+                // inform all members, including this client
+
+                ClientMessenger.multicast(
+                    ClientMessenger.encodePartyUpdated(party.toPartyInfo()),
+                    getMatchmakingGroup()
                     );
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+
+        @Override
+        protected void onLeavePartyReceived()
+        {
+            assertLoggedIn();
+
+            matchmakingLock.lock();
+
+            try
+            {
+                if (party == null)
+                {
+                    sendPartyRequestFailed(PartyError.NOT_IN_PARTY);
+                    return;
+                }
+
+                if (!allIdle(getMatchmakingGroup()))
+                {
+                    sendPartyRequestFailed(PartyError.PARTY_BUSY);
+                    return;
+                }
+
+                leaveParty();
+
+                sendLeftParty();
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+
+        @Override
+        protected void onJoinMatchmakingAsPartyReceived()
+        {
+            assertLoggedIn();
+
+            matchmakingLock.lock();
+
+            try
+            {
+                if (party == null)
+                {
+                    sendPartyRequestFailed(PartyError.NOT_IN_PARTY);
+                    return;
+                }
 
-                if (state == ClientState.IN_LOBBY)
+                if (!party.getLeaderUsername().equals(account.getUsername()))
                 {
-                    // cancel lobby timer
+                    sendPartyRequestFailed(PartyError.NOT_PARTY_LEADER);
+                    return;
+                }
 
-                    lobby.cancelTimer();
+                // ignore if already in matchmaking
 
-                    // inform all players that the lobby died and return them to
-                    // idle state
+                if (state != ClientState.IDLE)
+                    return;
 
-                    lobby
-                        .getAllPlayerUsernames()
-                        .stream()
-                        .map(authenticatedClients::get)
-                        .forEach(c -> {
-                            c.state = ClientState.IDLE;
-                            c.lobby = null;
-                            c.team  = null;
+                List< Client > group = getMatchmakingGroup();
 
-                            c.sendLobbyDied(LobbyCauseOfDeath.PLAYER_LEFT);
-                        });
+                if (group.size() > 1 && !matchmaker.supportsParties())
+                {
+                    sendPartyRequestFailed(PartyError.PARTIES_NOT_SUPPORTED);
+                    return;
+                }
+
+                if (!allIdle(group))
+                {
+                    sendPartyRequestFailed(PartyError.PARTY_BUSY);
+                    return;
                 }
+
+                for (Client c : group)
+                    c.sendJoinedMatchmaking();
+
+                enterMatchmaking(group);
+            }
+            finally
+            {
+                matchmakingLock.unlock();
             }
         }
     }
@@ -735,28 +1679,90 @@ public class NetServer
     private final ServerSocket serverSocket;
     private final Thread serverSocketThread;
 
-    // Accesses to accountManager must be synchronized on this.
+    // null if connections are serviced by selector loops
+    private final ThreadFactory connectionThreadFactory;
+
+    // null unless connections are serviced by selector loops
+    private final SelectorLoopGroup selectorLoops;
+
+    // null if outbound queues are unbounded
+    private final OutboundLimits outboundLimits;
+
+    // There is no server-wide lock. Each match and lobby has its own lock,
+    // and only matchmaking is serialized server-wide, by matchmakingLock. A
+    // match's or lobby's lock may be held while acquiring matchmakingLock,
+    // but not the other way around, except for matches and lobbies that were
+    // just created and are not yet visible to other threads.
+
     private final AccountManager accountManager;
 
-    private final Matchmaker matchmaker;
-    private int numPlayersInMatchmaking;
+    // Accesses to matchmaker and numPlayersInMatchmaking, as well as
+    // transitions into and out of ClientState.IN_MATCHMAKING and
+    // ClientState.IDLE (except between ClientState.MATCH_FOUND and
+    // ClientState.IDLE, which are guarded by the match's lock), must be
+    // guarded by matchmakingLock.
+    private final ReentrantLock matchmakingLock;
+    private final MatchmakingQueue matchmaker;
+    private volatile int numPlayersInMatchmaking;
 
     private final double timeToAcceptMatch;
     private final double timeToSelectHero;
 
-    // Accesses to connectedClients must be synchronized on this.
-    private final List< Client > connectedClients;
+    private final Set< Client > connectedClients;
+
+    // counters of clients no longer in connectedClients
+    private final LongAdder numFlushesOfDisconnectedClients;
+    private final LongAdder numMessagesFlushedOfDisconnectedClients;
+    private final LongAdder numDroppedMessagesOfDisconnectedClients;
+
+    private final LongAdder numSlowConsumersEvicted;
 
-    // Accesses to loggedClients must be synchronized on this.
     private final Map< String, Client > authenticatedClients;
 
-    // Accesses to lobbies must be synchronized on this.
-    private final List< Lobby > lobbies;
+    // verifies credentials, which takes long enough to stall the transport
+    // and timer threads, with a bounded queue so that login storms are turned
+    // away instead of piling up
+    private final ThreadPoolExecutor authExecutor;
+
+    // logins and sign ups turned away because the queue was full
+    private final LongAdder numAuthRejections;
+
+    // authenticated clients by session id, which the matchmaker uses to
+    // identify players
+    private final SessionTable< Client > sessions;
+
+    // lobbies that are not yet dead
+    private final Set< Lobby > lobbies;
+
+    // provides the time and runs all of the server's timeouts
+    private final Scheduler scheduler;
+
+    private final Scheduler.Timeout statsTimeout;
+
+    // null if the matchmaker only forms lobbies when players are added
+    private final Scheduler.Timeout matchmakingTimeout;
 
-    private final Timer statsTimer;
+    // true while a poll of the matchmaker is running on the common pool
+    private final AtomicBoolean pollingMatchmaker;
 
     /* ---------------------------------------------------------------------- */
 
+    private Transport acceptTransport() throws IOException
+    {
+        if (selectorLoops == null)
+        {
+            Socket socket = serverSocket.accept();
+
+            return new SocketTransport(socket, connectionThreadFactory);
+        }
+        else
+        {
+            SocketChannel channel = serverSocket.getChannel().accept();
+
+            return new SelectorTransport(channel, selectorLoops);
+        }
+    }
+
     private void acceptConnections()
     {
         try
@@ -765,18 +1771,17 @@ public class NetServer
             {
                 // accept connection
 
-                Socket clientSocket = serverSocket.accept();
+                Transport transport = acceptTransport();
 
                 // create client
 
-                Client client = new Client(clientSocket);
+                Client client = new Client(transport);
 
-                // add client to connected clients list
+                client.setOutboundLimits(outboundLimits);
 
-                synchronized (connectedClients)
-                {
-                    connectedClients.add(client);
-                }
+                // add client to connected clients set
+
+                connectedClients.add(client);
 
                 // start client
 
@@ -785,28 +1790,50 @@ public class NetServer
         }
         catch (Throwable t)
         {
-            List< Client > clients;
+            // disconnect all clients (no more clients are added, as this
+            // thread is the one accepting them)
 
-            synchronized (this)
-            {
-                // disconnect all clients
-
-                for (Client c : connectedClients)
-                    c.disconnect();
+            List< Client > clients = new ArrayList<>(connectedClients);
 
-                // copy connected clients list
-
-                clients = new ArrayList<>(connectedClients);
-            }
+            for (Client c : clients)
+                c.disconnect();
 
             // wait for all clients to be disconnected
 
             for (Client c : clients)
                 c.waitUntilDisconnected();
 
-            // save player accounts
+            // stop verifying credentials, waiting for ongoing verifications
+            // that may still change accounts
+
+            authExecutor.shutdownNow();
+
+            while (true)
+            {
+                try
+                {
+                    authExecutor.awaitTermination(
+                        Long.MAX_VALUE, TimeUnit.MILLISECONDS
+                        );
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }
+
+            // make all changes to player accounts durable
+
+            accountManager.close();
+
+            // stop selector loops
 
-            accountManager.saveToAccountFile();
+            if (selectorLoops != null)
+                selectorLoops.shutdown();
+
+            // stop scheduler
+
+            scheduler.stop();
 
             // run onStop callback
 
@@ -819,21 +1846,194 @@ public class NetServer
         return Arrays.asList(states).contains(state);
     }
 
-    private synchronized void broadcastServerStats()
+    private boolean allIdle(List< Client > clients)
     {
-        ServerStats serverStats = getStats();
+        return clients.stream().allMatch(c -> c.state == ClientState.IDLE);
+    }
 
-        for (Client c : connectedClients)
+    private static int[] getSessionIds(List< Client > group)
+    {
+        return group.stream().mapToInt(c -> c.sessionId).toArray();
+    }
+
+    // Returns the rank with which the specified group is queued, which is the
+    // mean of its members' ranks.
+    private static double getRank(List< Client > group)
+    {
+        return
+            group
+            .stream()
+            .mapToDouble(c -> c.account.getDoubleRank())
+            .average()
+            .getAsDouble();
+    }
+
+    private static AccountManager newAccountManager(Arguments args)
+    {
+        Path accountsFile = args.getPlayerAccountsFile();
+        int hashIterations = args.getPasswordHashIterations();
+
+        if (accountsFile != null
+            && args.getAccountStoreMode() == Arguments.AccountStoreMode.MAPPED)
         {
-            boolean send = stateMatches(
-                c.state,
-                ClientState.IDLE,
-                ClientState.IN_MATCHMAKING,
-                ClientState.MATCH_FOUND
+            return AccountManager.openMapped(accountsFile, hashIterations);
+        }
+
+        return new AccountManager(accountsFile, hashIterations);
+    }
+
+    private static MatchmakingQueue newMatchmaker(Arguments args)
+    {
+        switch (args.getMatchmakerMode())
+        {
+        case RATING:
+            return new RatingMatchmaker(
+                args.getInitialMatchmakingWindow(),
+                args.getMatchmakingWindowGrowth()
+                );
+
+        case BATCH:
+            return new BatchMatchmaker(
+                args.getInitialMatchmakingWindow(),
+                args.getMatchmakingWindowGrowth()
                 );
 
-            if (send)
-                c.sendServerStats(serverStats);
+        default:
+            return new Matchmaker();
+        }
+    }
+
+    // Returns the current time, in milliseconds, as given to the matchmaker.
+    private long nowMillis()
+    {
+        return scheduler.nowMillis();
+    }
+
+    // Invoked periodically by the scheduler. Polls the matchmaker on the
+    // common ForkJoinPool, as choosing lobbies may take long and scheduler
+    // tasks must be short, skipping this poll if the previous one is still
+    // running.
+    private void schedulePollMatchmaker()
+    {
+        if (!pollingMatchmaker.compareAndSet(false, true))
+            return;
+
+        long nowMillis = nowMillis();
+
+        ForkJoinPool.commonPool().execute(() -> {
+            try
+            {
+                pollMatchmaker(nowMillis);
+            }
+            finally
+            {
+                pollingMatchmaker.set(false);
+            }
+        });
+    }
+
+    private void pollMatchmaker(long nowMillis)
+    {
+        // Lobbies are chosen without holding any lock, as that may take long.
+        // They are then formed, skipping those whose players left in the
+        // meantime, and their matches started while holding matchmakingLock,
+        // so that no client leaves or joins matchmaking in between. Messages
+        // are only delivered after releasing the lock.
+
+        MatchmakingQueue.LobbyPlan plan = matchmaker.planLobbies(nowMillis);
+
+        Outbox.open();
+
+        try
+        {
+            matchmakingLock.lock();
+
+            try
+            {
+                for (int[] matchSessionIds : matchmaker.formLobbies(plan))
+                {
+                    // any of the players may start the match
+
+                    sessions
+                        .get(matchSessionIds[0])
+                        .startMatch(matchSessionIds);
+                }
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+        }
+        finally
+        {
+            Outbox.close();
+        }
+    }
+
+    private void broadcastServerStats()
+    {
+        // encoded once for all recipients
+
+        EncodedMessage stats = ClientMessenger.encodeServerStats(getStats());
+
+        // Statistics must only reach clients in states that accept them, so
+        // each client's state is checked and the message recorded while
+        // holding the lock that guards its transitions out of that state.
+        // Delivery happens after releasing all locks.
+
+        Outbox.open();
+
+        try
+        {
+            matchmakingLock.lock();
+
+            try
+            {
+                ClientMessenger.multicast(
+                    stats,
+                    connectedClients
+                    .stream()
+                    .filter(c -> stateMatches(
+                        c.state,
+                        ClientState.IDLE,
+                        ClientState.IN_MATCHMAKING
+                        ))
+                    .collect(Collectors.toList())
+                    );
+            }
+            finally
+            {
+                matchmakingLock.unlock();
+            }
+
+            for (Client c : connectedClients)
+            {
+                MatchFound matchFound = c.matchFound;
+
+                if (matchFound == null)
+                    continue;
+
+                matchFound.lock();
+
+                try
+                {
+                    if (c.state == ClientState.MATCH_FOUND
+                        && c.matchFound == matchFound)
+                    {
+                        ClientMessenger.multicast(
+                            stats, Collections.singletonList(c)
+                            );
+                    }
+                }
+                finally
+                {
+                    matchFound.unlock();
+                }
+            }
+        }
+        finally
+        {
+            Outbox.close();
         }
     }
 
@@ -855,25 +2055,98 @@ public class NetServer
     public NetServer(Arguments args, Consumer< Throwable > onStop)
         throws IOException
     {
+        this(args, new TimerWheel(), onStop);
+    }
+
+    /**
+     * Creates and starts a new NetServer whose time and timeouts are provided
+     * by the specified scheduler, which the server stops when it stops.
+     * <p>
+     * Timeouts to accept matches and select heroes, server statistics
+     * broadcasts and periodic matchmaking all follow the scheduler's clock,
+     * so that a {@link mm.common.util.ManualScheduler} lets scenarios run
+     * without waiting for them in real time.
+     *
+     * @param args the arguments to the server
+     * @param scheduler the scheduler
+     * @param onStop callback to be run when the server stops
+     *
+     * @throws NullPointerException if args, scheduler or onStop are null
+     */
+    public NetServer(
+        Arguments args, Scheduler scheduler, Consumer< Throwable > onStop
+        ) throws IOException
+    {
+        this.scheduler = Objects.requireNonNull(scheduler);
+
         this.onStop            = Objects.requireNonNull(onStop);
         this.userRequestedStop = new AtomicBoolean(false);
 
-        this.serverSocket       = new ServerSocket(args.getPort());
+        switch (args.getTransportMode())
+        {
+        case NIO:
+            {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(args.getPort()));
+
+                this.serverSocket            = channel.socket();
+                this.connectionThreadFactory = null;
+                this.selectorLoops           = new SelectorLoopGroup();
+            }
+            break;
+
+        case VIRTUAL_THREADS:
+            {
+                this.serverSocket            = new ServerSocket(args.getPort());
+                this.connectionThreadFactory = Util.newVirtualThreadFactory();
+                this.selectorLoops           = null;
+            }
+            break;
+
+        default:
+            {
+                this.serverSocket            = new ServerSocket(args.getPort());
+                this.connectionThreadFactory = Thread::new;
+                this.selectorLoops           = null;
+            }
+            break;
+        }
+
+        this.outboundLimits = args.getOutboundLimits();
+
         this.serverSocketThread = new Thread(this::acceptConnections);
 
-        this.accountManager = new AccountManager(args.getPlayerAccountsFile());
+        this.accountManager = newAccountManager(args);
 
-        this.matchmaker              = new Matchmaker();
+        this.matchmakingLock         = new ReentrantLock();
+        this.matchmaker              = newMatchmaker(args);
         this.numPlayersInMatchmaking = 0;
 
         this.timeToAcceptMatch = args.getTimeToAcceptMatch();
         this.timeToSelectHero  = args.getTimeToSelectHero();
 
-        this.connectedClients     = new ArrayList<>();
-        this.authenticatedClients = new HashMap<>();
-        this.lobbies              = new ArrayList<>();
+        this.connectedClients     = ConcurrentHashMap.newKeySet();
+        this.authenticatedClients = new ConcurrentHashMap<>();
+        this.sessions             = new SessionTable<>();
+        this.lobbies              = ConcurrentHashMap.newKeySet();
+
+        this.numFlushesOfDisconnectedClients         = new LongAdder();
+        this.numMessagesFlushedOfDisconnectedClients = new LongAdder();
+        this.numDroppedMessagesOfDisconnectedClients = new LongAdder();
+
+        this.numSlowConsumersEvicted = new LongAdder();
 
-        this.statsTimer = new Timer();
+        this.authExecutor = new ThreadPoolExecutor(
+            args.getNumAuthWorkers(), args.getNumAuthWorkers(),
+            0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(args.getAuthBacklog()),
+            r -> {
+                Thread thread = new Thread(r, "Authentication");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        this.numAuthRejections = new LongAdder();
 
         // start server socket thread
 
@@ -883,18 +2156,30 @@ public class NetServer
 
         long statsTimerPeriod = (long)(args.getServerStatsInterval() * 1000.);
 
-        TimerTask statsTimerTask = new TimerTask() {
-            @Override
-            public void run()
-            {
-                broadcastServerStats();
-            }
-        };
-
-        this.statsTimer.schedule(
-            statsTimerTask,
+        this.statsTimeout = this.scheduler.scheduleAtFixedRate(
+            this::broadcastServerStats,
             statsTimerPeriod, statsTimerPeriod
             );
+
+        // schedule matchmaking timer, for matchmakers whose lobbies may form
+        // as time passes
+
+        this.pollingMatchmaker = new AtomicBoolean(false);
+
+        if (args.getMatchmakerMode() == Arguments.MatchmakerMode.BUCKETS)
+        {
+            this.matchmakingTimeout = null;
+        }
+        else
+        {
+            long matchmakingTimerPeriod =
+                (long)(args.getMatchmakingInterval() * 1000.);
+
+            this.matchmakingTimeout = this.scheduler.scheduleAtFixedRate(
+                this::schedulePollMatchmaker,
+                matchmakingTimerPeriod, matchmakingTimerPeriod
+                );
+        }
     }
 
     /* ---------------------------------------------------------------------- */
@@ -904,7 +2189,7 @@ public class NetServer
      *
      * @return statistics about the server
      */
-    public synchronized ServerStats getStats()
+    public ServerStats getStats()
     {
         return new ServerStats(
             accountManager.getNumAccounts(),
@@ -914,6 +2199,114 @@ public class NetServer
             );
     }
 
+    /**
+     * Returns the number of logins and sign ups waiting for an
+     * authentication worker.
+     *
+     * @return the number of waiting authentications
+     */
+    public int getAuthQueueDepth()
+    {
+        return authExecutor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of logins and sign ups that were turned away because
+     * too many were waiting for an authentication worker.
+     *
+     * @return the number of rejected authentications
+     */
+    public long getNumAuthRejections()
+    {
+        return numAuthRejections.sum();
+    }
+
+    /**
+     * Returns the number of player accounts.
+     *
+     * @return the number of player accounts
+     */
+    public int getNumAccounts()
+    {
+        return accountManager.getNumAccounts();
+    }
+
+    /**
+     * Returns the time it took to load player accounts on startup.
+     *
+     * @return the load time, in seconds
+     */
+    public double getAccountLoadTime()
+    {
+        return accountManager.getLoadTime();
+    }
+
+    /**
+     * Returns the average number of messages written to a client per flush,
+     * over all clients that have connected to the server so far.
+     * <p>
+     * Values above 1 indicate that messages are being coalesced.
+     *
+     * @return the average number of messages per flush, or 0 if no messages
+     *         were sent yet
+     */
+    public double getMessagesPerFlush()
+    {
+        long numFlushes         = numFlushesOfDisconnectedClients.sum();
+        long numMessagesFlushed = numMessagesFlushedOfDisconnectedClients.sum();
+
+        for (Client c : connectedClients)
+        {
+            numFlushes         += c.getNumFlushes();
+            numMessagesFlushed += c.getNumMessagesFlushed();
+        }
+
+        return numFlushes == 0 ? 0 : (double)numMessagesFlushed / numFlushes;
+    }
+
+    /**
+     * Returns the total number of bytes held in the outbound queues of all
+     * connected clients.
+     *
+     * @return the total depth of all outbound queues, in bytes
+     */
+    public long getOutboundQueueDepth()
+    {
+        return
+            connectedClients
+            .stream()
+            .mapToLong(Client::getOutboundQueueDepth)
+            .sum();
+    }
+
+    /**
+     * Returns the number of coalescible messages that were dropped because the
+     * recipient's outbound queue was congested, over all clients that have
+     * connected to the server so far.
+     *
+     * @return the number of dropped messages
+     */
+    public long getNumDroppedMessages()
+    {
+        return
+            numDroppedMessagesOfDisconnectedClients.sum()
+            + connectedClients
+            .stream()
+            .mapToLong(Client::getNumDroppedMessages)
+            .sum();
+    }
+
+    /**
+     * Returns the number of clients that were disconnected because their
+     * outbound queue was congested.
+     *
+     * @return the number of evicted clients
+     */
+    public long getNumSlowConsumersEvicted()
+    {
+        return numSlowConsumersEvicted.sum();
+    }
+
     /**
      * Synchronously stops the server.
      * <p>
@@ -924,9 +2317,12 @@ public class NetServer
     {
         userRequestedStop.set(true);
 
-        // cancel server stats time
+        // cancel server stats timer
+
+        statsTimeout.cancel();
 
-        statsTimer.cancel();
+        if (matchmakingTimeout != null)
+            matchmakingTimeout.cancel();
 
         // close server socket
 
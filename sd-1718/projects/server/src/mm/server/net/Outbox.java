@@ -0,0 +1,122 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Defers the delivery of messages sent by the current thread until the
+ * outermost open outbox is closed.
+ * <p>
+ * Handlers open an outbox before acquiring any lock and close it after
+ * releasing all locks, so that the messages they send are usually encoded and
+ * delivered after the locks are released rather than while holding them.
+ * <p>
+ * Each {@link ClientMessenger} keeps its deferred messages in a queue, in the
+ * order in which they were sent, and closing an outbox flushes the queues of
+ * all recipients. Since messages are recorded while holding the locks that
+ * order them, each client receives its messages in that same order, whichever
+ * thread ends up flushing them.
+ * <p>
+ * Deferral is not a guarantee: another thread closing its outbox, or sending
+ * without one, may flush a recipient's queue at any time, including while the
+ * thread that posted a message still holds its locks. State must therefore
+ * always be written before posting the message that reports it, so that a
+ * client never acts on a message before the server's state reflects it.
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class Outbox
+{
+    private static final ThreadLocal< Outbox > CURRENT =
+        ThreadLocal.withInitial(Outbox::new);
+
+    /* ---------------------------------------------------------------------- */
+
+    // number of nested invocations of open() not yet matched by close()
+    private int depth;
+
+    // may contain duplicates, whose queues are already empty when reached
+    private final List< ClientMessenger > recipients;
+
+    /* ---------------------------------------------------------------------- */
+
+    private Outbox()
+    {
+        this.depth      = 0;
+        this.recipients = new ArrayList<>();
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Opens an outbox on the current thread, or nests into the already open
+     * one.
+     * <p>
+     * Every invocation must be matched by an invocation of {@link #close()},
+     * usually in a finally block.
+     */
+    static void open()
+    {
+        ++CURRENT.get().depth;
+    }
+
+    /**
+     * Closes the outbox opened by the matching invocation of {@link #open()}.
+     * <p>
+     * If this closes the outermost outbox, the deferred messages of every
+     * recipient are delivered.
+     *
+     * @throws IllegalStateException if no outbox is open
+     */
+    static void close()
+    {
+        Outbox outbox = CURRENT.get();
+
+        if (outbox.depth == 0)
+            throw new IllegalStateException("No outbox is open.");
+
+        if (--outbox.depth > 0)
+            return;
+
+        try
+        {
+            for (ClientMessenger recipient : outbox.recipients)
+                recipient.flushDeferredMessages();
+        }
+        finally
+        {
+            outbox.recipients.clear();
+        }
+    }
+
+    /**
+     * Registers the specified recipient as having deferred messages, if an
+     * outbox is open on the current thread.
+     *
+     * @param recipient the recipient
+     *
+     * @return true if an outbox is open and the recipient was registered,
+     *         false if the caller must flush the recipient's messages itself
+     */
+    static boolean defer(ClientMessenger recipient)
+    {
+        Outbox outbox = CURRENT.get();
+
+        if (outbox.depth == 0)
+            return false;
+
+        int size = outbox.recipients.size();
+
+        if (size == 0 || outbox.recipients.get(size - 1) != recipient)
+            outbox.recipients.add(recipient);
+
+        return true;
+    }
+}
+
+/* -------------------------------------------------------------------------- */
@@ -0,0 +1,157 @@
+/* -------------------------------------------------------------------------- */
+
+package mm.server.net;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* -------------------------------------------------------------------------- */
+
+/**
+ * Assigns dense integer ids to sessions, and maps ids back to sessions.
+ * <p>
+ * Ids are non-negative and reused once their sessions are unregistered, so
+ * they never exceed the largest number of concurrent sessions and may index
+ * arrays instead of being hashed.
+ * <p>
+ * Registering and unregistering sessions is serialized, while looking up a
+ * session never blocks.
+ *
+ * @param <T> the type of sessions
+ *
+ * @author Alberto Faria
+ * @author Fábio Fontes
+ */
+final class SessionTable< T >
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    /* ---------------------------------------------------------------------- */
+
+    private final ReentrantLock lock;
+
+    // written only while holding lock, replaced by a larger copy when full
+    private volatile AtomicReferenceArray< T > sessions;
+
+    // the following are guarded by lock
+
+    // ids below nextId that are not in use, as a stack
+    private int[] freeIds;
+    private int numFreeIds;
+
+    // ids at or above nextId were never used
+    private int nextId;
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Creates an empty SessionTable.
+     */
+    public SessionTable()
+    {
+        this.lock = new ReentrantLock();
+
+        this.sessions = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+        this.freeIds    = new int[INITIAL_CAPACITY];
+        this.numFreeIds = 0;
+
+        this.nextId = 0;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    /**
+     * Registers a session and returns its id.
+     *
+     * @param session the session
+     * @return the session's id
+     *
+     * @throws NullPointerException if session is null
+     */
+    public int register(T session)
+    {
+        if (session == null)
+            throw new NullPointerException();
+
+        lock.lock();
+
+        try
+        {
+            int id = (numFreeIds > 0) ? freeIds[--numFreeIds] : nextId++;
+
+            AtomicReferenceArray< T > current = sessions;
+
+            if (id >= current.length())
+            {
+                AtomicReferenceArray< T > grown =
+                    new AtomicReferenceArray<>(2 * current.length());
+
+                for (int i = 0; i < current.length(); ++i)
+                    grown.set(i, current.get(i));
+
+                sessions = grown;
+                current  = grown;
+            }
+
+            current.set(id, session);
+
+            return id;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters the session with the specified id, making the id available
+     * for reuse.
+     *
+     * @param id the session's id
+     *
+     * @throws IllegalArgumentException if no session has the specified id
+     */
+    public void unregister(int id)
+    {
+        lock.lock();
+
+        try
+        {
+            if (id < 0 || id >= nextId || sessions.get(id) == null)
+            {
+                throw new IllegalArgumentException(
+                    "no session with id " + id
+                    );
+            }
+
+            sessions.set(id, null);
+
+            if (numFreeIds == freeIds.length)
+                freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+
+            freeIds[numFreeIds++] = id;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the session with the specified id, or null if no session has
+     * that id.
+     *
+     * @param id the session's id
+     * @return the session with the specified id, or null if none
+     */
+    public T get(int id)
+    {
+        AtomicReferenceArray< T > current = sessions;
+
+        return (id >= 0 && id < current.length()) ? current.get(id) : null;
+    }
+}
+
+/* -------------------------------------------------------------------------- */